@@ -1,6 +1,5 @@
 package ACLs;
 
-import java.net.UnknownHostException;
 import java.util.List;
 import java.util.Map;
 
@@ -12,6 +11,8 @@ import com.mongodb.DBCollection;
 import com.mongodb.DBObject;
 import com.mongodb.MongoClient;
 
+import dataModels.MongoClients;
+
 //test
 public class AclDatabaseClass implements AclInterface{
 
@@ -35,11 +36,8 @@ public class AclDatabaseClass implements AclInterface{
 	 * 
 	*/
 	public AclDatabaseClass(){
-		try {
-			mongoClient = new MongoClient(SERVER, PORT);
-		} catch (UnknownHostException e) {
-			e.printStackTrace();
-		}
+		// shared, an ACL request no longer opens its own connection pool.
+		mongoClient = MongoClients.getClient(SERVER, PORT);
 		db = mongoClient.getDB("openbaas");
 		DBCollection coll = db.getCollection(ACLTREE);
 	}
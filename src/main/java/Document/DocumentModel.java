@@ -1,10 +1,8 @@
 package Document;
 
-import java.net.UnknownHostException;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Set;
-import java.util.regex.Pattern;
 
 import misc.GeoLocationOperations;
 import misc.Geolocation;
@@ -18,15 +16,15 @@ import com.mongodb.DBCollection;
 import com.mongodb.DBCursor;
 import com.mongodb.DBObject;
 import com.mongodb.MongoClient;
+import com.mongodb.MongoException;
 
-/*MongoDB java driver has quite a few important things that are not easilly found. 
- * Whenever you want to get the descendants or do the "like" shell option you need to turn it into a pattern
- * e.g
- * BasicDBObject query = new BasicDBObject();
- query.put("path", Pattern.compile("b"));
- DBCursor cursor = coll.find(query);
+import dataModels.MongoClients;
 
- cursor now has all the descendants of b.
+/*Every element of a document is stored with its materialized path, the keys from the app down to it
+ * joined by commas: "appId,a,b" is the element b of a. The descendants of a path are the elements whose
+ * path starts with the path and a comma, subtree() builds that query as a range over the indexed "path"
+ * field, so reading or deleting a subtree is an index scan instead of a regex over the whole collection,
+ * and "appId,a" doesn't match "appId,ab" nor "otherApp,appId,a".
 
  * Notes:
  * This is the same database as the one found in MongoDBDataModel, we are splitting data in a new class due to
@@ -43,15 +41,41 @@ public class DocumentModel implements DocumentInterface {
 	private static final String AUDIO = "audio";
 	GeoLocationOperations geo;
 	public DocumentModel() {
-		mongoClient = null;
 		geo = new Geolocation();
+		// shared with MongoDBDataModel and the ACLs.
+		mongoClient = MongoClients.getClient(SERVER, PORT);
+		db = mongoClient.getDB("openbaas");
 		try {
-			mongoClient = new MongoClient(SERVER, PORT);
-		} catch (UnknownHostException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+			for (String coll : new String[] { DataColl, UserDataColl })
+				db.getCollection(coll).ensureIndex(
+						new BasicDBObject("path", 1),
+						new BasicDBObject("name", "path").append("background",
+								true));
+		} catch (MongoException e) {
+			// the queries still answer, scanning the collection.
+			System.out.println("Could not create the document path index: "
+					+ e.getMessage());
 		}
-		db = mongoClient.getDB("openbaas");
+	}
+
+	/**
+	 * @param path
+	 * @return the query of the element at path and its descendants.
+	 */
+	private static DBObject subtree(String path) {
+		DBObject[] paths = { new BasicDBObject("path", path),
+				descendants(path) };
+		return new BasicDBObject("$or", paths);
+	}
+
+	/**
+	 * @param path
+	 * @return the query of the descendants of path, without it.
+	 */
+	private static DBObject descendants(String path) {
+		// ',' + 1 is '-', the range holds every path starting with "path,".
+		return new BasicDBObject("path", new BasicDBObject("$gte", path + ",")
+				.append("$lt", path + "-"));
 	}
 
 	@Override
@@ -123,15 +147,9 @@ public class DocumentModel implements DocumentInterface {
 		String tempURL = appId;
 		for (int i = 1; i < array.length; i++) {
 			tempURL += "," + array[i];
-			if (elementExistsInDocument(tempURL)) { // key already exists delete
+			if (elementExistsInDocument(tempURL)) // key already exists delete
 													// it and its childs
-				BasicDBObject query = new BasicDBObject();
-				query.append("path", Pattern.compile(tempURL));
-				DBCursor cursor = coll.find(query);
-				while (cursor.hasNext()) { // delete childs
-					coll.remove(cursor.next());
-				}
-			}
+				coll.remove(subtree(tempURL));
 			// Create the element and its childs
 			BasicDBObject obj = new BasicDBObject();
 			obj.append("path", tempURL);
@@ -161,14 +179,8 @@ public class DocumentModel implements DocumentInterface {
 
 	@Override
 	public boolean deleteDataInDocument(String url) {
-		String[] array = url.split("/");
 		DBCollection coll = db.getCollection(DataColl);
-		BasicDBObject searchQuery = new BasicDBObject();
-		searchQuery.put("path", Pattern.compile(array[array.length - 1]));
-		DBCursor cursor = coll.find(searchQuery);
-		while (cursor.hasNext()) {
-			coll.remove(cursor.next());
-		}
+		coll.remove(subtree(url));
 		return true;
 	}
 
@@ -334,7 +346,7 @@ public class DocumentModel implements DocumentInterface {
 			}
 		}
 		BasicDBObject searchQuery = new BasicDBObject();
-		searchQuery.append("path", Pattern.compile(tempURL));
+		searchQuery.append("path", tempURL);
 		DBCursor cursor = coll.find(searchQuery);
 		if (cursor.hasNext()) {
 			BasicDBObject newDocument = null;
@@ -396,9 +408,7 @@ public class DocumentModel implements DocumentInterface {
 	public String getAllDocInApp(String appId) {
 		DBCollection coll = db.getCollection(DataColl);
 		String allDoc = "";
-		BasicDBObject query = new BasicDBObject();
-		query.put("path", Pattern.compile(appId));
-		DBCursor cursor = coll.find(query);
+		DBCursor cursor = coll.find(descendants(appId));
 		while (cursor.hasNext()) {
 			DBObject obj = cursor.next();
 			allDoc += obj.toString();
@@ -499,7 +509,7 @@ public class DocumentModel implements DocumentInterface {
 			}
 		}
 		BasicDBObject searchQuery = new BasicDBObject();
-		searchQuery.put("path", Pattern.compile(tempURL));
+		searchQuery.put("path", tempURL);
 		DBCursor cursor = coll.find(searchQuery);
 		if (cursor.hasNext()) {
 			BasicDBObject newDocument = null;
@@ -648,9 +658,7 @@ public class DocumentModel implements DocumentInterface {
 		Set<String> allElements = new HashSet<String>();
 		while(allIt.hasNext()){
 			String next = allIt.next();
-			BasicDBObject query = new BasicDBObject();
-			query.put("path", Pattern.compile(next));
-			DBCursor cursor = coll.find(query);
+			DBCursor cursor = coll.find(subtree(next));
 			while(cursor.hasNext()){
 				DBObject element = cursor.next();
 				allElements.add("path: " + element.get("path") + " data: " + element.get("data"));
@@ -694,9 +702,7 @@ public class DocumentModel implements DocumentInterface {
 		Set<String> allElements = new HashSet<String>();
 		while(allIt.hasNext()){
 			String next = allIt.next();
-			BasicDBObject query = new BasicDBObject();
-			query.append("path", Pattern.compile(next));
-			DBCursor cursor = coll.find(query);
+			DBCursor cursor = coll.find(subtree(next));
 			while(cursor.hasNext()){
 				DBObject element = cursor.next();
 				allElements.add("path: " + element.get("path") + " data: " + element.get("data"));
@@ -715,9 +721,7 @@ public class DocumentModel implements DocumentInterface {
 		Set<String> allElements = new HashSet<String>();
 		while(allIt.hasNext()){
 			String next = allIt.next();
-			BasicDBObject query = new BasicDBObject();
-			query.put("path", Pattern.compile(next));
-			DBCursor cursor = coll.find(query);
+			DBCursor cursor = coll.find(subtree(next));
 			while(cursor.hasNext()){
 				DBObject element = cursor.next();
 				allElements.add("path: " + element.get("path") + " data: " + element.get("data"));
@@ -753,9 +757,7 @@ public class DocumentModel implements DocumentInterface {
 	public String getAllUserDocs(String appId, String userId) {
 		DBCollection coll = db.getCollection(UserDataColl);
 		String allDoc = "";
-		BasicDBObject query = new BasicDBObject();
-		query.put("path", Pattern.compile(appId + ",users," + userId));
-		DBCursor cursor = coll.find(query);
+		DBCursor cursor = coll.find(subtree(appId + ",users," + userId));
 		while (cursor.hasNext()) {
 			DBObject obj = cursor.next();
 			allDoc += obj.toString();
@@ -775,9 +777,7 @@ public class DocumentModel implements DocumentInterface {
 		Set<String> allElements = new HashSet<String>();
 		while(allIt.hasNext()){
 			String next = allIt.next();
-			BasicDBObject query = new BasicDBObject();
-			query.put("path", Pattern.compile(next));
-			DBCursor cursor = coll.find(query);
+			DBCursor cursor = coll.find(subtree(next));
 			while(cursor.hasNext()){
 				DBObject element = cursor.next();
 				allElements.add("path: " + element.get("path") + " data: " + element.get("data"));
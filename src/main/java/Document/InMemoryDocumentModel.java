@@ -0,0 +1,335 @@
+package Document;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+
+/**
+ * DocumentInterface kept in memory, for benchmarks and tests without mongo.
+ *
+ * Every element is a node under its path ("appId,a,b") in a sorted map, so an
+ * element and its childs are a range of the map. App and user documents go to
+ * separate trees, chosen per method like the collections of DocumentModel.
+ * Each node is replaced atomically, a subtree is not. Locations are matched
+ * by distance instead of the redis grid.
+ *
+ */
+public class InMemoryDocumentModel implements DocumentInterface {
+
+	private static final String specialCharacter = "~";
+	private static final double EARTHRADIUS = 6371; // km
+	private final ConcurrentSkipListMap<String, Node> data = new ConcurrentSkipListMap<String, Node>();
+	private final ConcurrentSkipListMap<String, Node> userData = new ConcurrentSkipListMap<String, Node>();
+	private final Set<String> documents = Collections
+			.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	private static class Node {
+		private final String data;
+		private final String location;
+
+		private Node(String data, String location) {
+			this.data = data;
+			this.location = location;
+		}
+
+		/**
+		 * @return the node as DocumentModel stores it.
+		 */
+		private String toString(String path) {
+			JSONObject obj = new JSONObject();
+			try {
+				obj.put("path", path);
+				obj.put("data", data);
+				obj.put("location", location);
+			} catch (JSONException e) {
+				throw new IllegalStateException(e);
+			}
+			return obj.toString();
+		}
+	}
+
+	/**
+	 * @return the element at path and its childs.
+	 */
+	private static Map<String, Node> subtree(
+			ConcurrentSkipListMap<String, Node> tree, String path) {
+		ConcurrentNavigableMap<String, Node> range = tree.subMap(path, true,
+				path + ",\uffff", true);
+		Map<String, Node> subtree = new LinkedHashMap<String, Node>();
+		for (Entry<String, Node> node : range.entrySet())
+			if (node.getKey().equals(path)
+					|| node.getKey().startsWith(path + ","))
+				subtree.put(node.getKey(), node.getValue());
+		return subtree;
+	}
+
+	private static void removeSubtree(ConcurrentSkipListMap<String, Node> tree,
+			String path) {
+		for (String child : subtree(tree, path).keySet())
+			tree.remove(child);
+	}
+
+	/**
+	 * Writes value at path, and the keys of a JSONObject value as its childs.
+	 */
+	private static void write(ConcurrentSkipListMap<String, Node> tree,
+			String path, Object value, String location) throws JSONException {
+		tree.put(path, new Node(value.toString(), location));
+		if (value instanceof JSONObject) {
+			JSONObject obj = (JSONObject) value;
+			Iterator<?> keys = obj.keys();
+			while (keys.hasNext()) {
+				String key = (String) keys.next();
+				write(tree, path + "," + key, obj.get(key), location);
+			}
+		}
+	}
+
+	/**
+	 * Replaces the data of the node, keeping its location unless one is given.
+	 */
+	private static void setData(ConcurrentSkipListMap<String, Node> tree,
+			String path, String value, String location) {
+		while (true) {
+			Node node = tree.get(path);
+			if (node == null) {
+				if (tree.putIfAbsent(path, new Node(value, location)) == null)
+					return;
+			} else if (tree.replace(path, node, new Node(value,
+					location != null ? location : node.location)))
+				return;
+		}
+	}
+
+	private static String getData(ConcurrentSkipListMap<String, Node> tree,
+			String path) {
+		Node node = tree.get(path);
+		return node == null ? null : node.data;
+	}
+
+	private static String allDocs(ConcurrentSkipListMap<String, Node> tree,
+			String path) {
+		String allDoc = "";
+		for (Entry<String, Node> node : subtree(tree, path).entrySet())
+			allDoc += node.getValue().toString(node.getKey());
+		return allDoc;
+	}
+
+	private static double distance(double lat1, double lon1, double lat2,
+			double lon2) {
+		double dLat = Math.toRadians(lat2 - lat1);
+		double dLon = Math.toRadians(lon2 - lon1);
+		double a = Math.sin(dLat / 2) * Math.sin(dLat / 2)
+				+ Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2))
+				* Math.sin(dLon / 2) * Math.sin(dLon / 2);
+		return EARTHRADIUS * 2 * Math.atan2(Math.sqrt(a), Math.sqrt(1 - a));
+	}
+
+	/**
+	 * @param radius
+	 *            in km, like Geolocation.
+	 * @return "path: X data: Y" for the located elements under path.
+	 */
+	private static Set<String> inRadius(
+			ConcurrentSkipListMap<String, Node> tree, String path,
+			double latitude, double longitude, double radius) {
+		Set<String> allElements = new HashSet<String>();
+		for (Entry<String, Node> node : subtree(tree, path).entrySet()) {
+			String location = node.getValue().location;
+			if (location == null)
+				continue;
+			String[] splitted = location.split(":");
+			if (distance(Double.parseDouble(splitted[0]),
+					Double.parseDouble(splitted[1]), latitude, longitude) < radius)
+				allElements.add("path: " + node.getKey() + " data: "
+						+ node.getValue().data);
+		}
+		return allElements;
+	}
+
+	@Override
+	public boolean insertDocumentRoot(String appId, JSONObject data,
+			String location) throws JSONException {
+		Iterator<?> it = data.keys();
+		while (it.hasNext()) {
+			String key = (String) it.next();
+			write(this.data, appId + "," + key, data.get(key), location);
+		}
+		return true;
+	}
+
+	@Override
+	public boolean createDocumentForApplication(String appId) {
+		return documents.add(appId);
+	}
+
+	/**
+	 * Replaces the element at url ("appId/a/b") and its childs with data.
+	 */
+	@Override
+	public boolean insertIntoDocument(String appId, String url,
+			JSONObject data, String location) throws JSONException {
+		String[] array = url.split("/");
+		String tempURL = appId;
+		for (int i = 1; i < array.length - 1; i++) {
+			tempURL += "," + array[i];
+			this.data.putIfAbsent(tempURL, new Node(null, null));
+		}
+		if (array.length > 1)
+			tempURL += "," + array[array.length - 1];
+		removeSubtree(this.data, tempURL);
+		write(this.data, tempURL, data, location);
+		return true;
+	}
+
+	@Override
+	public String getDataInDocument(String url) {
+		return getData(data, url);
+	}
+
+	@Override
+	public boolean deleteDataInDocument(String url) {
+		removeSubtree(data, url);
+		return true;
+	}
+
+	@Override
+	public boolean docExistsForApp(String appId) {
+		return documents.contains(appId);
+	}
+
+	@Override
+	public boolean elementExistsInDocument(String url) {
+		return data.containsKey(url);
+	}
+
+	@Override
+	public boolean dataExistsForElement(String path) {
+		return getData(data, path) != null;
+	}
+
+	@Override
+	public boolean updateDataInDocument(String url, String data) {
+		if (this.data.containsKey(url))
+			setData(this.data, url, data, null);
+		return true;
+	}
+
+	/**
+	 * The "data" key replaces the content of the element, the other keys are
+	 * written as its childs.
+	 */
+	@Override
+	public String patchDataInElement(String url, JSONObject inputJson,
+			String location) throws JSONException {
+		Iterator<?> keys = inputJson.keys();
+		while (keys.hasNext()) {
+			String element = (String) keys.next();
+			if (element.equalsIgnoreCase("data")) {
+				setData(data, url, inputJson.toString(), location);
+				break;
+			}
+			write(data, url + "," + element, inputJson.get(element), location);
+		}
+		return inputJson.toString();
+	}
+
+	@Override
+	public String getAllDocInApp(String appId) {
+		return allDocs(data, appId);
+	}
+
+	@Override
+	public boolean createNonPublishableDocument(String appId, JSONObject data,
+			String url, String location) {
+		setData(this.data, url, specialCharacter + data.toString(), location);
+		return true;
+	}
+
+	@Override
+	public boolean insertIntoUserDocument(String appId, String userId,
+			JSONObject data, String url, String location) throws JSONException {
+		Iterator<?> keys = data.keys();
+		while (keys.hasNext()) {
+			String element = (String) keys.next();
+			if (element.equalsIgnoreCase("data")) {
+				setData(userData, url, data.toString(), location);
+				break;
+			}
+			write(userData, appId + ",users," + userId + "," + element,
+					data.get(element), location);
+		}
+		return true;
+	}
+
+	@Override
+	public String getElementInUserDocument(String appId, String userId,
+			String url) {
+		return getData(data, url);
+	}
+
+	@Override
+	public boolean insertUserDocumentRoot(String appId, String userId,
+			JSONObject data, String location) throws JSONException {
+		Iterator<?> it = data.keys();
+		while (it.hasNext()) {
+			String key = (String) it.next();
+			write(this.data, appId + ",users," + userId + "," + key,
+					data.get(key), location);
+		}
+		return true;
+	}
+
+	@Override
+	public boolean createNonPublishableUserDocument(String appId,
+			String userId, JSONObject data, String url, String location) {
+		setData(userData, url, specialCharacter + data.toString(), location);
+		return true;
+	}
+
+	@Override
+	public Set<String> getAllDocsInRadius(String appId, double latitude,
+			double longitude, double radius) {
+		return inRadius(data, appId, latitude, longitude, radius);
+	}
+
+	@Override
+	public Set<String> getDataInDocumentInRadius(String appId, String url,
+			double latitude, double longitude, double radius) {
+		return inRadius(data, url, latitude, longitude, radius);
+	}
+
+	@Override
+	public Set<String> getAllUserDocsInRadius(String appId, String userId,
+			double latitude, double longitude, double radius) {
+		return inRadius(userData, appId + ",users," + userId, latitude,
+				longitude, radius);
+	}
+
+	@Override
+	public String getAllUserDocs(String appId, String userId) {
+		return allDocs(userData, appId + ",users," + userId);
+	}
+
+	/**
+	 * Audio locations are kept in the geolocation grid by the media layer,
+	 * not in the documents.
+	 *
+	 * @return an empty set.
+	 */
+	@Override
+	public Set<String> getAllAudioIdsInRadius(String appId, double latitude,
+			double longitude, double radius) {
+		return new HashSet<String>();
+	}
+}
@@ -3,10 +3,16 @@ package Model;
 import java.io.UnsupportedEncodingException;
 import java.security.NoSuchAlgorithmException;
 import java.security.spec.InvalidKeySpecException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.Callable;
 
 import org.codehaus.jettison.json.JSONException;
 import org.codehaus.jettison.json.JSONObject;
@@ -15,13 +21,27 @@ import rest_Models.PasswordEncryptionService;
 import rest_Models.Storage;
 import Document.DocumentInterface;
 import Document.DocumentModel;
+import Document.InMemoryDocumentModel;
 
-import com.mongodb.util.JSONSerializers;
 
+import dataModels.AppStatistics;
 import dataModels.CacheInterface;
+import dataModels.CacheInvalidationBus;
+import dataModels.CacheMetrics;
+import dataModels.CacheShards;
+import dataModels.CacheWarmer;
+import dataModels.ExistenceFilters;
 import dataModels.DatabaseInterface;
+import dataModels.HitsOverAgeEvictionPolicy;
+import dataModels.IdPage;
+import dataModels.InMemoryCacheModel;
+import dataModels.InMemoryDataModel;
 import dataModels.MongoDBDataModel;
+import dataModels.NearCache;
+import dataModels.ParallelWriter;
 import dataModels.RedisDataModel;
+import dataModels.SingleFlight;
+import dataModels.WriteBehindQueue;
 
 /**
  * This class handles the cache system regarding the Databases, Redis is the
@@ -37,18 +57,356 @@ public class DataModel {
 													// aux only (testing
 													// purposes)
 	public static final String MONGODB = "mongodb";
+	// true: creates are acknowledged once in redis and persisted to the aux
+	// database in the background.
+	public static boolean writeBehindMode = false;
+	// true: creates write redis and the aux database concurrently and wait
+	// for both, instead of one after the other. Ignored in write behind mode.
+	public static boolean parallelWriteMode = false;
+	// host:port of the redis instances of the cache tier, apps are spread
+	// over them by consistent hashing of the appId.
+	public static String[] cacheShards = { "localhost:6379" };
+	// cache memory an app may use when it has no quota of its own, 0 lets it
+	// use the whole budget.
+	public static long defaultAppCacheQuota = 0; // bytes
+	// true: the cache, the aux database and the documents are kept in this
+	// process instead of redis and mongo (benchmarks and tests).
+	public static boolean inMemoryMode = false;
 	CacheInterface redisModel;
 	DatabaseInterface mongoModel;
 	DocumentInterface docModel;
 	public static final long MAXCACHESIZE = 10485760; // bytes
 	public static final String SERVER = "localhost";
 	public static final int PORT = 27017;
+	private static final int REDISCACHEPORT = 6379;
+	private static final String INVALIDATIONCHANNEL = "cache:invalidations";
+	private static final String APPS = "apps";
+	private static final String USERS = "users";
+	private static final String AUDIO = "audio";
+	private static final String IMAGES = "images";
+	private static final String VIDEO = "video";
+	private static final String STORAGE = "storage";
+	private static final int APPNEARCACHESIZE = 1000;
+	private static final int USERNEARCACHESIZE = 10000;
+	private static final long APPNEARCACHETTL = 60000; // milliseconds
+	private static final long USERNEARCACHETTL = 30000; // milliseconds
+	private static final long LOADTIMEOUT = 5000; // milliseconds
+	NearCache<Map<String, String>> appCache;
+	NearCache<Map<String, String>> userCache;
+	CacheInvalidationBus invalidationBus;
+	CacheShards shardMembership;
+	WriteBehindQueue writeBehind;
+	ParallelWriter parallelWrites;
+	ExistenceFilters existenceFilters;
+	AppStatistics statistics;
+	CacheWarmer warmer;
+	CacheMetrics metrics = new CacheMetrics(APPS, USERS, AUDIO, IMAGES,
+			VIDEO, STORAGE);
+	SingleFlight<Map<String, String>> loads = new SingleFlight<Map<String, String>>(
+			LOADTIMEOUT);
 
 	public DataModel() {
-		redisModel = new RedisDataModel();
-		if (auxDatabase.equalsIgnoreCase("mongodb"))
-			mongoModel = new MongoDBDataModel(SERVER, PORT);
+		appCache = new NearCache<Map<String, String>>(APPNEARCACHESIZE,
+				APPNEARCACHETTL);
+		userCache = new NearCache<Map<String, String>>(USERNEARCACHESIZE,
+				USERNEARCACHETTL);
+		if (inMemoryMode) {
+			InMemoryCacheModel memory = new InMemoryCacheModel(MAXCACHESIZE);
+			redisModel = memory;
+			if (auxDatabase.equalsIgnoreCase(MONGODB))
+				mongoModel = new InMemoryDataModel();
+			else
+				memory.setPersistent(true);
+			docModel = new InMemoryDocumentModel();
+			if (parallelWriteMode && auxDatabase.equalsIgnoreCase(MONGODB))
+				parallelWrites = new ParallelWriter(redisModel);
+			return;
+		}
+		// the membership stored by the first node wins over cacheShards.
+		shardMembership = new CacheShards(SERVER, REDISCACHEPORT);
+		Set<String> members = shardMembership.load(cacheShards);
+		final RedisDataModel redis = new RedisDataModel(
+				members.toArray(new String[members.size()]), MAXCACHESIZE,
+				new HitsOverAgeEvictionPolicy());
+		if (!auxDatabase.equalsIgnoreCase(MONGODB)) {
+			// redis is the only copy, nothing may expire or be evicted.
+			for (String type : new String[] { APPS, USERS, AUDIO, IMAGES,
+					VIDEO, STORAGE })
+				redis.setTtl(type, 0);
+			redis.setPersistent(true);
+		}
+		redis.setDefaultAppQuota(defaultAppCacheQuota);
+		redisModel = redis;
+		if (auxDatabase.equalsIgnoreCase("mongodb")) {
+			MongoDBDataModel mongo = new MongoDBDataModel(SERVER, PORT);
+			mongoModel = mongo;
+			existenceFilters = new ExistenceFilters(SERVER, REDISCACHEPORT,
+					mongo);
+			existenceFilters.start();
+			warmer = new CacheWarmer(SERVER, REDISCACHEPORT, mongo,
+					redisModel, MAXCACHESIZE);
+			statistics = new AppStatistics(SERVER, REDISCACHEPORT, mongo);
+			statistics.start();
+		}
 		docModel = new DocumentModel();
+		invalidationBus = new CacheInvalidationBus(SERVER, REDISCACHEPORT,
+				INVALIDATIONCHANNEL);
+		invalidationBus.register(APPS, appCache);
+		invalidationBus.register(USERS, userCache);
+		invalidationBus.register(CacheShards.REGION,
+				new CacheInvalidationBus.Listener() {
+					public void invalidated(String key) {
+						redis.setShards(shardMembership.members());
+					}
+				});
+		invalidationBus.start();
+		if (writeBehindMode && auxDatabase.equalsIgnoreCase(MONGODB)) {
+			writeBehind = new WriteBehindQueue(SERVER, REDISCACHEPORT,
+					mongoModel);
+			writeBehind.start();
+		} else if (parallelWriteMode && auxDatabase.equalsIgnoreCase(MONGODB))
+			parallelWrites = new ParallelWriter(redisModel);
+	}
+
+	public WriteBehindQueue getWriteBehindQueue() {
+		return writeBehind;
+	}
+
+	public ParallelWriter getParallelWriter() {
+		return parallelWrites;
+	}
+
+	public ExistenceFilters getExistenceFilters() {
+		return existenceFilters;
+	}
+
+	/**
+	 * Starts filling the cache from the aux database in the background.
+	 */
+	public void startCacheWarmup() {
+		if (warmer != null)
+			warmer.start();
+	}
+
+	public CacheWarmer getCacheWarmer() {
+		return warmer;
+	}
+
+	public CacheMetrics getCacheMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Stops the background workers, the pending writes are applied or left
+	 * queued in redis for another node, then closes the cache connections.
+	 */
+	public void shutdown() {
+		if (warmer != null)
+			warmer.stop();
+		if (statistics != null)
+			statistics.stop();
+		if (existenceFilters != null)
+			existenceFilters.stop();
+		if (invalidationBus != null)
+			invalidationBus.stop();
+		if (writeBehind != null)
+			writeBehind.stop();
+		if (parallelWrites != null)
+			parallelWrites.stop();
+		redisModel.destroyPool();
+	}
+
+	/**
+	 * Adds a redis instance to the cache tier, the apps hashing to it move
+	 * there. This node moves them, then the other nodes are told to rebuild
+	 * their ring from the stored membership.
+	 * 
+	 * @param host
+	 * @param port
+	 */
+	public void addCacheShard(String host, int port) {
+		if (!(redisModel instanceof RedisDataModel))
+			return;
+		((RedisDataModel) redisModel).addShard(host, port);
+		shardMembership.add(host + ":" + port);
+		invalidationBus.invalidate(CacheShards.REGION, host + ":" + port);
+	}
+
+	/**
+	 * @param host
+	 * @param port
+	 * @return false if it is the last instance of the tier, it is kept.
+	 */
+	public boolean removeCacheShard(String host, int port) {
+		if (!(redisModel instanceof RedisDataModel))
+			return false;
+		if (!shardMembership.remove(host + ":" + port))
+			return false;
+		((RedisDataModel) redisModel).removeShard(host, port);
+		invalidationBus.invalidate(CacheShards.REGION, host + ":" + port);
+		return true;
+	}
+
+	public List<String> getCacheShards() {
+		if (!(redisModel instanceof RedisDataModel))
+			return Collections.emptyList();
+		return ((RedisDataModel) redisModel).getShards();
+	}
+
+	/**
+	 * @param appId
+	 * @param bytes
+	 *            0 removes the app's quota.
+	 */
+	public void setAppCacheQuota(String appId, long bytes) {
+		if (redisModel instanceof RedisDataModel)
+			((RedisDataModel) redisModel).setAppQuota(appId, bytes);
+	}
+
+	/**
+	 * A pinned app's entities are never evicted from the cache.
+	 * 
+	 * @param appId
+	 * @param pin
+	 */
+	public void setAppPinned(String appId, boolean pin) {
+		if (redisModel instanceof RedisDataModel)
+			((RedisDataModel) redisModel).setAppPinned(appId, pin);
+	}
+
+	public Map<String, Long> getAppCacheQuotas() {
+		if (!(redisModel instanceof RedisDataModel))
+			return Collections.emptyMap();
+		return ((RedisDataModel) redisModel).getAppQuotas();
+	}
+
+	public Set<String> getPinnedApps() {
+		if (!(redisModel instanceof RedisDataModel))
+			return Collections.emptySet();
+		return ((RedisDataModel) redisModel).getPinnedApps();
+	}
+
+	public Map<String, Long> getAppCacheUsage() {
+		if (!(redisModel instanceof RedisDataModel))
+			return Collections.emptyMap();
+		return ((RedisDataModel) redisModel).getAppCacheUsage();
+	}
+
+	/**
+	 * False only if the app was never created, checked before going to the
+	 * aux database for an app that is not in redis.
+	 * 
+	 * @param appId
+	 * @return
+	 */
+	private boolean mightHaveApp(String appId) {
+		return existenceFilters == null
+				|| existenceFilters.mightHaveApp(appId);
+	}
+
+	private boolean mightHaveEmail(String appId, String email) {
+		return existenceFilters == null || email == null
+				|| existenceFilters.mightHaveEmail(appId, email);
+	}
+
+	private boolean mightHaveIdentifier(String appId, String userId) {
+		return existenceFilters == null || userId == null
+				|| existenceFilters.mightHaveIdentifier(appId, userId);
+	}
+
+	/**
+	 * Adds the user to the existence filters, before it is written.
+	 */
+	private void filterUser(String appId, String userId, String email) {
+		if (existenceFilters != null)
+			existenceFilters.addUser(appId, userId, email);
+	}
+
+	/**
+	 * Writes that go straight to the aux database, and reads that missed the
+	 * cache, wait for the queued creates of the app first: an element can be
+	 * evicted or expire from redis before its create is flushed.
+	 * 
+	 * @param appId
+	 */
+	private void awaitPersisted(String appId) {
+		if (writeBehind != null)
+			writeBehind.awaitPersisted(appId);
+	}
+
+	private void recordUsers(String appId, long delta) {
+		if (statistics != null)
+			statistics.recordUsers(appId, delta);
+	}
+
+	private void recordFile(String appId, String type, String size,
+			boolean created) {
+		if (statistics != null)
+			statistics.recordFile(appId, type, size, created);
+	}
+
+	/**
+	 * @param file
+	 *            the fields of the file before it is deleted, null if it
+	 *            doesn't exist.
+	 */
+	private void recordDeletedFile(String appId, String type,
+			Map<String, String> file) {
+		if (file != null)
+			recordFile(appId, type, file.get("size"), false);
+	}
+
+	private static String userKey(String appId, String userId) {
+		return appId + ":" + userId;
+	}
+
+	/**
+	 * Drops the app from the near cache of every node, call it after the app
+	 * is written.
+	 * 
+	 * @param appId
+	 */
+	private void invalidateApp(String appId) {
+		if (invalidationBus != null)
+			invalidationBus.invalidate(APPS, appId);
+		else
+			appCache.invalidate(appId);
+	}
+
+	private void invalidateUser(String appId, String userId) {
+		if (invalidationBus != null)
+			invalidationBus.invalidate(USERS, userKey(appId, userId));
+		else
+			userCache.invalidate(userKey(appId, userId));
+	}
+
+	/**
+	 * Runs the loader of a cache miss, concurrent misses on the same key wait
+	 * for it instead of going to the aux database themselves. Each caller gets
+	 * its own copy of the result.
+	 * 
+	 * @param type
+	 *            entity type the outcome is recorded for.
+	 * @param start
+	 *            System.nanoTime() when the read started.
+	 * @param key
+	 * @param loader
+	 * @return
+	 */
+	private Map<String, String> loadOnce(String type, long start, String key,
+			Callable<Map<String, String>> loader) {
+		Map<String, String> fields = loads.load(key, loader);
+		if (fields == null || fields.size() == 0)
+			metrics.record(type, CacheMetrics.MISS, start);
+		else if (redisModel.getCacheSize() > MAXCACHESIZE)
+			metrics.record(type, CacheMetrics.CACHEFULLBYPASS, start);
+		else
+			metrics.record(type, CacheMetrics.DATABASEHIT, start);
+		return fields == null ? null : new HashMap<String, String>(fields);
+	}
+
+	private static Map<String, String> nearCopy(Map<String, String> fields) {
+		return Collections.unmodifiableMap(new HashMap<String, String>(fields));
 	}
 
 	/**
@@ -59,13 +417,32 @@ public class DataModel {
 	 * @param creationDate2
 	 * @return
 	 */
-	public boolean createApp(String appId, String appName, String creationDate, boolean userEmailConfirmation) {
+	public boolean createApp(final String appId, final String appName, final String creationDate, final boolean userEmailConfirmation) {
 		boolean operationOk = false;
 		boolean cacheOk = false;
 		boolean auxOk = false;
-		if (redisModel.getCacheSize() <= MAXCACHESIZE) {
+		if (existenceFilters != null)
+			existenceFilters.addApp(appId);
+		if (parallelWrites != null
+				&& redisModel.getCacheSize() <= MAXCACHESIZE) {
+			operationOk = parallelWrites.write(APPS, appId, appId,
+					new Callable<Boolean>() {
+						public Boolean call() throws Exception {
+							return redisModel.createApp(appId, appName,
+									creationDate, userEmailConfirmation);
+						}
+					}, new Callable<Boolean>() {
+						public Boolean call() throws Exception {
+							return mongoModel.createApp(appId, appName,
+									creationDate, userEmailConfirmation);
+						}
+					});
+		} else if (redisModel.getCacheSize() <= MAXCACHESIZE) {
 			cacheOk = redisModel.createApp(appId, appName, creationDate, userEmailConfirmation);
-			if (auxDatabase.equalsIgnoreCase(MONGODB))
+			if (writeBehind != null)
+				auxOk = writeBehind.enqueue(appId, WriteBehindQueue.CREATEAPP, appId,
+						appName, creationDate, "" + userEmailConfirmation);
+			else if (auxDatabase.equalsIgnoreCase(MONGODB))
 				auxOk = mongoModel.createApp(appId, appName, creationDate, userEmailConfirmation);
 			if (auxOk && cacheOk)
 				operationOk = true;
@@ -82,10 +459,17 @@ public class DataModel {
 	 * Verifies the appId existence. using its appId.
 	 */
 	public boolean appExists(String appId) {
+		if (appCache.get(appId) != null)
+			return true;
 		if (redisModel.appExists(appId))
 			return true;
+		else if (!mightHaveApp(appId))
+			return false;
 		else {
-			return mongoModel.appExists(appId);
+			boolean exists = mongoModel.appExists(appId);
+			if (!exists && existenceFilters != null)
+				existenceFilters.getApps().recordFalsePositive();
+			return exists;
 		}
 	}
 
@@ -99,8 +483,10 @@ public class DataModel {
 		boolean auxOk = false;
 		boolean operationOk = false;
 		boolean cacheOk = redisModel.deleteApp(appId);
+		awaitPersisted(appId);
 		if (auxDatabase.equalsIgnoreCase(MONGODB))
 			auxOk = mongoModel.deleteApp(appId);
+		invalidateApp(appId);
 		if (cacheOk || auxOk)
 			operationOk = true;
 		return operationOk;
@@ -113,42 +499,97 @@ public class DataModel {
 	 * @param appId
 	 * @return
 	 */
-	public Map<String, String> getApplication(String appId) {
+	public Map<String, String> getApplication(final String appId) {
+		long start = System.nanoTime();
+		Map<String, String> cached = appCache.get(appId);
+		if (cached != null) {
+			metrics.record(APPS, CacheMetrics.NEARHIT, start);
+			return new HashMap<String, String>(cached);
+		}
+		long stamp = appCache.stamp(appId);
 		Map<String, String> map = redisModel.getApplication(appId);
+		if (map == null || map.size() == 0) {
+			map = loadOnce(APPS, start, APPS + ":" + appId,
+					new Callable<Map<String, String>>() {
+						public Map<String, String> call() throws Exception {
+							return loadApplication(appId);
+						}
+					});
+		} else {
+			metrics.record(APPS, CacheMetrics.REDISHIT, start);
+		}
+		if (map != null && map.size() > 0)
+			appCache.put(appId, nearCopy(map), stamp);
+		return map;
+	}
+
+	/**
+	 * Cache miss: reads the app from the aux database and puts it back
+	 * in redis. Only one thread at a time runs it for a given app.
+	 */
+	private Map<String, String> loadApplication(String appId) {
+		Map<String, String> map = null;
 		String creationDate = null;
 		String alive = null;
 		String appName = null;
 		Boolean confirmUsersEmail = false;
-		if (map == null || map.size() == 0) {
-			map = mongoModel.getApplication(appId);
-			if (redisModel.getCacheSize() <= MAXCACHESIZE) {
-				for (Entry<String, String> entry : map.entrySet()) {
-					if (entry.getKey().equalsIgnoreCase("alive")
-							&& entry.getValue().equalsIgnoreCase("false"))
-						alive = entry.getValue();
-					if (entry.getKey().equalsIgnoreCase("creationdate"))
-						creationDate = entry.getValue();
-					else if (entry.getKey().equalsIgnoreCase("appName"))
-						appName = entry.getValue();
-					else if(entry.getKey().equalsIgnoreCase("confirmUsersEmail"))
-						confirmUsersEmail = Boolean.parseBoolean(entry.getValue());
-				}
-				redisModel.createApp(appId, appName, creationDate, confirmUsersEmail);
+		awaitPersisted(appId);
+		map = mongoModel.getApplication(appId);
+		if (map == null)
+			return null;
+		if (redisModel.getCacheSize() <= MAXCACHESIZE) {
+			for (Entry<String, String> entry : map.entrySet()) {
+				if (entry.getKey().equalsIgnoreCase("alive")
+						&& entry.getValue().equalsIgnoreCase("false"))
+					alive = entry.getValue();
+				if (entry.getKey().equalsIgnoreCase("creationdate"))
+					creationDate = entry.getValue();
+				else if (entry.getKey().equalsIgnoreCase("appName"))
+					appName = entry.getValue();
+				else if(entry.getKey().equalsIgnoreCase("confirmUsersEmail"))
+					confirmUsersEmail = Boolean.parseBoolean(entry.getValue());
 			}
+			redisModel.createApp(appId, appName, creationDate, confirmUsersEmail);
+			// keeps a deleted app out of the active apps index.
+			if (alive != null)
+				redisModel.deleteApp(appId);
 		}
 		return map;
 	}
 
-	public boolean createUserWithFlag(String appId, String userId, String userName,
-			String email, byte[] salt, byte[] hash, String userFile)
+	public boolean createUserWithFlag(final String appId, final String userId, final String userName,
+			final String email, final byte[] salt, final byte[] hash, final String userFile)
 			throws UnsupportedEncodingException {
 		boolean operationOk = false;
 		boolean cacheOk = false;
 		boolean auxOk = false;
-		if (redisModel.getCacheSize() <= MAXCACHESIZE) {
+		filterUser(appId, userId, email);
+		if (parallelWrites != null
+				&& redisModel.getCacheSize() <= MAXCACHESIZE) {
+			operationOk = parallelWrites.write(USERS, appId, userId,
+					new Callable<Boolean>() {
+						public Boolean call() throws Exception {
+							return redisModel.createUserWithFlag(appId, userId,
+									userName, email, salt, hash,
+									new Date().toString(), userFile);
+						}
+					}, new Callable<Boolean>() {
+						public Boolean call() throws Exception {
+							return mongoModel.createUserWithFlag(appId, userId,
+									userName, email, salt, hash,
+									new Date().toString(), userFile);
+						}
+					});
+		} else if (redisModel.getCacheSize() <= MAXCACHESIZE) {
 			cacheOk = redisModel.createUserWithFlag(appId, userId, userName, email,
 					salt, hash, new Date().toString(), userFile);
-			if (auxDatabase.equalsIgnoreCase(MONGODB))
+			if (writeBehind != null)
+				auxOk = writeBehind.enqueue(appId,
+						WriteBehindQueue.CREATEUSERWITHFLAG, appId, userId,
+						userName, email, WriteBehindQueue.encode(salt),
+						WriteBehindQueue.encode(hash), new Date().toString(),
+						userFile);
+			else if (auxDatabase.equalsIgnoreCase(MONGODB))
 				auxOk = mongoModel.createUserWithFlag(appId, userId, userName, email,
 						salt, hash, new Date().toString(), userFile);
 			if (auxOk && cacheOk)
@@ -160,18 +601,42 @@ public class DataModel {
 			if (auxOk)
 				operationOk = true;
 		}
+		if (operationOk)
+			recordUsers(appId, 1);
 		return operationOk;
 	}
-	public boolean createUserWithoutFlag(String appId, String userId, String userName,
-			String email, byte[] salt, byte[] hash)
+	public boolean createUserWithoutFlag(final String appId, final String userId, final String userName,
+			final String email, final byte[] salt, final byte[] hash)
 			throws UnsupportedEncodingException {
 		boolean operationOk = false;
 		boolean cacheOk = false;
 		boolean auxOk = false;
-		if (redisModel.getCacheSize() <= MAXCACHESIZE) {
+		filterUser(appId, userId, email);
+		if (parallelWrites != null
+				&& redisModel.getCacheSize() <= MAXCACHESIZE) {
+			operationOk = parallelWrites.write(USERS, appId, userId,
+					new Callable<Boolean>() {
+						public Boolean call() throws Exception {
+							return redisModel.createUserWithoutFlag(appId,
+									userId, userName, email, salt, hash,
+									new Date().toString());
+						}
+					}, new Callable<Boolean>() {
+						public Boolean call() throws Exception {
+							return mongoModel.createUserWithoutFlag(appId,
+									userId, userName, email, salt, hash,
+									new Date().toString());
+						}
+					});
+		} else if (redisModel.getCacheSize() <= MAXCACHESIZE) {
 			cacheOk = redisModel.createUserWithoutFlag(appId, userId, userName, email,
 					salt, hash, new Date().toString());
-			if (auxDatabase.equalsIgnoreCase(MONGODB))
+			if (writeBehind != null)
+				auxOk = writeBehind.enqueue(appId,
+						WriteBehindQueue.CREATEUSERWITHOUTFLAG, appId, userId,
+						userName, email, WriteBehindQueue.encode(salt),
+						WriteBehindQueue.encode(hash), new Date().toString());
+			else if (auxDatabase.equalsIgnoreCase(MONGODB))
 				auxOk = mongoModel.createUserWithoutFlag(appId, userId, userName, email,
 						salt, hash, new Date().toString());
 			if (auxOk && cacheOk)
@@ -183,37 +648,100 @@ public class DataModel {
 			if (auxOk)
 				operationOk = true;
 		}
+		if (operationOk)
+			recordUsers(appId, 1);
 		return operationOk;
 	}
 	public Set<String> getAllAppIds() {
 		if (auxDatabase.equalsIgnoreCase(MONGODB))
 			return mongoModel.getAllAppIds();
-		else if (!auxDatabase.equalsIgnoreCase(MONGODB))
-			System.out.println("Database not implemented.");
-		return null;
+		// cache only, redis is the only store.
+		return redisModel.getAllAppIds();
+	}
+
+	/**
+	 * @param type
+	 *            apps, users, audio, images, video, storage or media.
+	 * @param appId
+	 * @param token
+	 *            null for the first page.
+	 * @param limit
+	 * @return
+	 */
+	public IdPage getIdPage(String type, String appId, String token, int limit) {
+		if (auxDatabase.equalsIgnoreCase(MONGODB)) {
+			// the apps have no app to wait for.
+			if (appId != null)
+				awaitPersisted(appId);
+			return mongoModel.getIdPage(type, appId, token, limit);
+		}
+		// cache only, redis is the only store.
+		return redisModel.getIdPage(type, appId, token, limit);
 	}
 
 	public boolean userExistsInApp(String appId, String userId, String email) {
 		if (redisModel.userExistsInApp(appId, email))
 			return true;
-		else if (auxDatabase.equalsIgnoreCase(MONGODB))
-			return mongoModel.userExistsInApp(appId, email);
+		else if (!mightHaveEmail(appId, email))
+			return false;
+		else if (auxDatabase.equalsIgnoreCase(MONGODB)) {
+			boolean exists = mongoModel.userExistsInApp(appId, email);
+			if (!exists && existenceFilters != null)
+				existenceFilters.getEmails().recordFalsePositive();
+			return exists;
+		}
 		else if (!auxDatabase.equalsIgnoreCase(MONGODB))
 			System.out.println("Database not implemented.");
 		return false;
 	}
 
 	public boolean identifierInUseByUserInApp(String appId, String userId) {
-		if (auxDatabase.equalsIgnoreCase(MONGODB))
-			return mongoModel.identifierInUseByUserInApp(appId, userId);
+		if (!mightHaveIdentifier(appId, userId))
+			return false;
+		else if (auxDatabase.equalsIgnoreCase(MONGODB)) {
+			boolean inUse = mongoModel.identifierInUseByUserInApp(appId, userId);
+			if (!inUse && existenceFilters != null)
+				existenceFilters.getIdentifiers().recordFalsePositive();
+			return inUse;
+		}
 		else if (!auxDatabase.equalsIgnoreCase(MONGODB))
 			System.out.println("Database not implemented.");
 		return false;
 	}
 
-	public Map<String, String> getUser(String appId, String userId)
+	public Map<String, String> getUser(final String appId, final String userId)
 			throws UnsupportedEncodingException {
+		long start = System.nanoTime();
+		Map<String, String> cached = userCache.get(userKey(appId, userId));
+		if (cached != null) {
+			metrics.record(USERS, CacheMetrics.NEARHIT, start);
+			return new HashMap<String, String>(cached);
+		}
+		long stamp = userCache.stamp(userKey(appId, userId));
 		Map<String, String> userFields = redisModel.getUser(appId, userId);
+		if (userFields == null || userFields.size() == 0) {
+			userFields = loadOnce(USERS, start,
+					USERS + ":" + userKey(appId, userId),
+					new Callable<Map<String, String>>() {
+						public Map<String, String> call() throws Exception {
+							return loadUser(appId, userId);
+						}
+					});
+		} else {
+			metrics.record(USERS, CacheMetrics.REDISHIT, start);
+		}
+		if (userFields != null && userFields.size() > 0)
+			userCache.put(userKey(appId, userId), nearCopy(userFields), stamp);
+		return userFields;
+	}
+
+	/**
+	 * Cache miss: reads the user from the aux database and puts it back
+	 * in redis. Only one thread at a time runs it for a given user.
+	 */
+	private Map<String, String> loadUser(String appId, String userId)
+			throws UnsupportedEncodingException {
+		Map<String, String> userFields = null;
 		String email = null;
 		String creationDate = null;
 		String updatedDate = null;
@@ -223,46 +751,113 @@ public class DataModel {
 		byte[] salt = null;
 		String flag = null;
 		String location = null;
-		if (userFields == null || userFields.size() == 0) {
-			if (auxDatabase.equalsIgnoreCase(MONGODB)) {
-				userFields = mongoModel.getUser(appId, userId);
-				if (redisModel.getCacheSize() <= MAXCACHESIZE) {
-					for (Entry<String, String> entry : userFields.entrySet()) {
-						if (entry.getKey().equalsIgnoreCase("email"))
-							email = entry.getValue();
-						else if (entry.getKey()
-								.equalsIgnoreCase("creationDate"))
-							creationDate = entry.getValue();
-						else if (entry.getKey().equalsIgnoreCase("updatedDate"))
-							updatedDate = entry.getValue();
-						else if (entry.getKey().equalsIgnoreCase("userName"))
-							userName = entry.getValue();
-						else if (entry.getKey().equalsIgnoreCase("alive"))
-							alive = entry.getValue();
-						else if (entry.getKey().equalsIgnoreCase("hash"))
-							hash = JSONSerializers.getStrict()
-									.serialize(entry.getValue()).getBytes();
-						else if (entry.getKey().equalsIgnoreCase("salt"))
-							salt = JSONSerializers.getStrict()
-									.serialize(entry.getValue()).getBytes();
-						else if(entry.getKey().equalsIgnoreCase("flag"))
-							flag = entry.getValue();
-					}
-					if(flag != null)
-						redisModel.createUserWithFlag(appId, userId,userName, email, salt, hash, creationDate, flag);
-					else{
-						redisModel.createUserWithoutFlag(appId, userId, userName, email, salt, hash, creationDate);
-					}
-				} else {
-					System.out.println("Warning: Cache is full.");
+		if (auxDatabase.equalsIgnoreCase(MONGODB)) {
+			awaitPersisted(appId);
+			userFields = mongoModel.getUser(appId, userId);
+			if (userFields == null)
+				return null;
+			if (redisModel.getCacheSize() <= MAXCACHESIZE) {
+				for (Entry<String, String> entry : userFields.entrySet()) {
+					if (entry.getKey().equalsIgnoreCase("email"))
+						email = entry.getValue();
+					else if (entry.getKey()
+							.equalsIgnoreCase("creationDate"))
+						creationDate = entry.getValue();
+					else if (entry.getKey().equalsIgnoreCase("updatedDate"))
+						updatedDate = entry.getValue();
+					else if (entry.getKey().equalsIgnoreCase("userName"))
+						userName = entry.getValue();
+					else if (entry.getKey().equalsIgnoreCase("alive"))
+						alive = entry.getValue();
+					else if (entry.getKey().equalsIgnoreCase("hash"))
+						hash = entry.getValue().getBytes("ISO-8859-1");
+					else if (entry.getKey().equalsIgnoreCase("salt"))
+						salt = entry.getValue().getBytes("ISO-8859-1");
+					else if(entry.getKey().equalsIgnoreCase("flag"))
+						flag = entry.getValue();
+				}
+				if(flag != null)
+					redisModel.createUserWithFlag(appId, userId,userName, email, salt, hash, creationDate, flag);
+				else{
+					redisModel.createUserWithoutFlag(appId, userId, userName, email, salt, hash, creationDate);
 				}
 			} else {
-				System.out.println("Database not implemented.");
+				System.out.println("Warning: Cache is full.");
 			}
+		} else {
+			System.out.println("Database not implemented.");
 		}
 		return userFields;
 	}
 
+	/**
+	 * @param appId
+	 * @return the counters of the app, see AppStatistics, null if they are
+	 *         not kept.
+	 */
+	public Map<String, Long> getAppStatistics(String appId) {
+		if (statistics == null)
+			return null;
+		return statistics.get(appId);
+	}
+
+	/**
+	 * @param appId
+	 * @param emails
+	 * @return the emails already used in the app.
+	 */
+	public Set<String> getExistingEmails(String appId, Collection<String> emails) {
+		if (auxDatabase.equalsIgnoreCase(MONGODB)) {
+			// users created just before must be seen, or they are imported twice.
+			awaitPersisted(appId);
+			return mongoModel.getExistingEmails(appId, emails);
+		}
+		// cache only, redis is the only store.
+		return redisModel.getExistingEmails(appId, emails);
+	}
+
+	/**
+	 * Creates a batch of users of the app: one insert in the aux database,
+	 * then one pipeline per cache shard with the users written, if the cache
+	 * has room. Write behind and parallel writes are not used, the batch is
+	 * already a single round trip.
+	 * 
+	 * @param appId
+	 * @param users
+	 *            in the shape the databases store them.
+	 * @return the ids of the users created.
+	 */
+	public Set<String> createUsers(String appId, List<Map<String, String>> users) {
+		if (existenceFilters != null) {
+			List<String> userIds = new ArrayList<String>();
+			List<String> emails = new ArrayList<String>();
+			for (Map<String, String> user : users) {
+				userIds.add(user.get("_id"));
+				emails.add(user.get("email"));
+			}
+			existenceFilters.addUsers(appId, userIds, emails);
+		}
+		if (!auxDatabase.equalsIgnoreCase(MONGODB))
+			return redisModel.createUsers(users);
+		awaitPersisted(appId);
+		Set<String> created = mongoModel.createUsers(users);
+		recordUsers(appId, created.size());
+		if (redisModel.getCacheSize() <= MAXCACHESIZE) {
+			List<Map<String, String>> cached = new ArrayList<Map<String, String>>();
+			for (Map<String, String> user : users)
+				if (created.contains(user.get("_id")))
+					cached.add(user);
+			try {
+				redisModel.warm(USERS, cached);
+			} catch (RuntimeException e) {
+				// the users are in the database, they are cached when read.
+				System.out.println("Could not cache the imported users: "
+						+ e.getMessage());
+			}
+		}
+		return created;
+	}
+
 	public Set<String> getAllUserIdsForApp(String appId) {
 		if (auxDatabase.equalsIgnoreCase(MONGODB))
 			return mongoModel.getAllUserIdsForApp(appId);
@@ -274,18 +869,22 @@ public class DataModel {
 	public boolean updateAllAppFields(String appId, String alive, String newAppName, boolean confirmUsersEmail) {
 		boolean sucess = false;
 		if (auxDatabase.equalsIgnoreCase(MONGODB)) {
+			awaitPersisted(appId);
 			sucess = mongoModel.updateAllAppFields(appId, alive, newAppName, confirmUsersEmail);
 			if (redisModel.appExists(appId)) {
 				redisModel.updateAllAppFields(appId, alive, newAppName, confirmUsersEmail);
 			}
+			invalidateApp(appId);
 		}
 		return sucess;
 	}
 
 	public void updateUser(String appId, String userId, String email,
 			byte[] salt, byte[] hash, String alive) {
+		filterUser(appId, null, email);
 		if (auxDatabase.equalsIgnoreCase(MONGODB)) {
 			try {
+				awaitPersisted(appId);
 				mongoModel.updateUser(appId, userId, email, hash, salt, alive);
 			} catch (UnsupportedEncodingException e) {
 				// TODO Auto-generated catch block
@@ -298,6 +897,7 @@ public class DataModel {
 					// TODO Auto-generated catch block
 					e.printStackTrace();
 				}
+			invalidateUser(appId, userId);
 		} else if (!auxDatabase.equalsIgnoreCase(MONGODB))
 			System.out.println("Database not implemented.");
 	}
@@ -320,55 +920,80 @@ public class DataModel {
 		return false;
 	}
 
-	public Map<String, String> getAudioInApp(String appId, String audioId) {
+	public Map<String, String> getAudioInApp(final String appId,
+			final String audioId) {
+		long start = System.nanoTime();
 		Map<String, String> audioFields = redisModel.getAudioInApp(appId,
 				audioId);
-
 		if (audioFields == null || audioFields.size() == 0) {
-			String dir = null;
-			String type = null;
-			String size = null;
-			String bitRate = null;
-			String fileName = null;
-			String creationDate = null;
-			String location = null;
-			if (auxDatabase.equalsIgnoreCase(MONGODB)) {
-				audioFields = mongoModel.getAudioInApp(appId, audioId);
-				if (redisModel.getCacheSize() <= MAXCACHESIZE) {
-					for (Entry<String, String> entry : audioFields.entrySet()) {
-						if (entry.getKey().equalsIgnoreCase("dir"))
-							dir = entry.getValue();
-						else if (entry.getKey().equalsIgnoreCase("type"))
-							type = entry.getValue();
-						else if (entry.getKey().equalsIgnoreCase("size"))
-							size = entry.getValue();
-						else if (entry.getKey().equalsIgnoreCase("bitRate"))
-							bitRate = entry.getValue();
-						else if (entry.getKey().equalsIgnoreCase("fileName"))
-							fileName = entry.getValue();
-						else if (entry.getKey().equalsIgnoreCase("location"))
-							location = entry.getValue();
-						else if (entry.getKey()
-								.equalsIgnoreCase("creationDate"))
-							creationDate = entry.getValue();
-					}
-					redisModel.createAudioInApp(appId, audioId, dir, type,
-							size, bitRate, creationDate, fileName, location);
-				} else {
-					System.out.println("Warning: Cache is full.");
+			audioFields = loadOnce(AUDIO, start,
+					AUDIO + ":" + appId + ":" + audioId,
+					new Callable<Map<String, String>>() {
+						public Map<String, String> call() throws Exception {
+							return loadAudioInApp(appId, audioId);
+						}
+					});
+		} else {
+			metrics.record(AUDIO, CacheMetrics.REDISHIT, start);
+			audioFields.put("id", audioId);
+			audioFields.put("appId", appId);
+		}
+		return audioFields;
+	}
+
+	/**
+	 * Cache miss: reads the audio from the aux database and puts it back
+	 * in redis. Only one thread at a time runs it for a given audio.
+	 */
+	private Map<String, String> loadAudioInApp(String appId, String audioId) {
+		Map<String, String> audioFields = null;
+		String dir = null;
+		String type = null;
+		String size = null;
+		String bitRate = null;
+		String fileName = null;
+		String creationDate = null;
+		String location = null;
+		if (auxDatabase.equalsIgnoreCase(MONGODB)) {
+			awaitPersisted(appId);
+			audioFields = mongoModel.getAudioInApp(appId, audioId);
+			if (audioFields == null)
+				return null;
+			if (redisModel.getCacheSize() <= MAXCACHESIZE) {
+				for (Entry<String, String> entry : audioFields.entrySet()) {
+					if (entry.getKey().equalsIgnoreCase("dir"))
+						dir = entry.getValue();
+					else if (entry.getKey().equalsIgnoreCase("type"))
+						type = entry.getValue();
+					else if (entry.getKey().equalsIgnoreCase("size"))
+						size = entry.getValue();
+					else if (entry.getKey().equalsIgnoreCase("bitRate"))
+						bitRate = entry.getValue();
+					else if (entry.getKey().equalsIgnoreCase("fileName"))
+						fileName = entry.getValue();
+					else if (entry.getKey().equalsIgnoreCase("location"))
+						location = entry.getValue();
+					else if (entry.getKey()
+							.equalsIgnoreCase("creationDate"))
+						creationDate = entry.getValue();
 				}
+				redisModel.createAudioInApp(appId, audioId, dir, type,
+						size, bitRate, creationDate, fileName, location);
 			} else {
-				System.out.println("Database not implemented.");
+				System.out.println("Warning: Cache is full.");
 			}
 		} else {
-			audioFields.put("id", audioId);
-			audioFields.put("appId", appId);
+			System.out.println("Database not implemented.");
 		}
 		return audioFields;
 	}
 
 	public void deleteAudioInApp(String appId, String audioId) {
 		if (auxDatabase.equalsIgnoreCase(MONGODB)) {
+			awaitPersisted(appId);
+			if (statistics != null)
+				recordDeletedFile(appId, AUDIO,
+						mongoModel.getAudioInApp(appId, audioId));
 			mongoModel.deleteAudioInApp(appId, audioId);
 			if (redisModel.audioExistsInApp(appId, audioId)) {
 				redisModel.deleteAudioInApp(appId, audioId);
@@ -382,6 +1007,7 @@ public class DataModel {
 		boolean cacheOk = false;
 		boolean operationOk = false;
 		if (auxDatabase.equalsIgnoreCase(MONGODB)) {
+			awaitPersisted(appId);
 			auxOk = mongoModel.deleteUser(appId, userId);
 			String email = redisModel.getEmailUsingUserId(appId, userId);
 			if (redisModel.userExistsInApp(appId, email)) {
@@ -389,23 +1015,46 @@ public class DataModel {
 				if (auxOk && cacheOk)
 					operationOk = true;
 			}
+			invalidateUser(appId, userId);
 		} else if (!auxDatabase.equalsIgnoreCase(MONGODB))
 			System.out.println("Database not implemented.");
+		if (auxOk)
+			recordUsers(appId, -1);
 		return operationOk;
 	}
 
-	public boolean createAudioInApp(String appId, String audioId,
-			String directory, String fileExtension, String fileSize,
-			String bitRate, String creationDate, String fileName,
-			String location) {
+	public boolean createAudioInApp(final String appId, final String audioId,
+			final String directory, final String fileExtension, final String fileSize,
+			final String bitRate, final String creationDate, final String fileName,
+			final String location) {
 		boolean auxOk = false;
 		boolean cacheOk = false;
 		boolean operationOk = false;
-		if (redisModel.getCacheSize() <= MAXCACHESIZE) {
+		if (parallelWrites != null
+				&& redisModel.getCacheSize() <= MAXCACHESIZE) {
+			operationOk = parallelWrites.write(AUDIO, appId, audioId,
+					new Callable<Boolean>() {
+						public Boolean call() throws Exception {
+							return redisModel.createAudioInApp(appId, audioId,
+									directory, fileExtension, fileSize, bitRate,
+									creationDate, fileName, location);
+						}
+					}, new Callable<Boolean>() {
+						public Boolean call() throws Exception {
+							return mongoModel.createAudioInApp(appId, audioId,
+									directory, fileExtension, fileSize, bitRate,
+									creationDate, fileName, location);
+						}
+					});
+		} else if (redisModel.getCacheSize() <= MAXCACHESIZE) {
 			cacheOk = redisModel.createAudioInApp(appId, audioId, directory,
 					fileExtension, fileSize, bitRate, creationDate, fileName,
 					location);
-			if (auxDatabase.equalsIgnoreCase(MONGODB))
+			if (writeBehind != null)
+				auxOk = writeBehind.enqueue(appId, WriteBehindQueue.CREATEAUDIO,
+						appId, audioId, directory, fileExtension, fileSize,
+						bitRate, creationDate, fileName, location);
+			else if (auxDatabase.equalsIgnoreCase(MONGODB))
 				auxOk = mongoModel.createAudioInApp(appId, audioId, directory,
 						fileExtension, fileSize, bitRate, creationDate,
 						fileName, location);
@@ -420,6 +1069,8 @@ public class DataModel {
 			if (auxOk)
 				operationOk = true;
 		}
+		if (operationOk)
+			recordFile(appId, AUDIO, fileSize, true);
 		return operationOk;
 	}
 
@@ -449,66 +1100,109 @@ public class DataModel {
 		return false;
 	}
 
-	public Map<String, String> getImageInApp(String appId, String imageId) {
+	public Map<String, String> getImageInApp(final String appId,
+			final String imageId) {
+		long start = System.nanoTime();
 		Map<String, String> imageFields = redisModel.getImageInApp(appId,
 				imageId);
-
 		if (imageFields == null || imageFields.size() == 0) {
-			String dir = null;
-			String type = null;
-			String size = null;
-			String pixelsSize = null;
-			String creationDate = null;
-			String fileName = null;
-			String location = null;
-			if (auxDatabase.equalsIgnoreCase(MONGODB)) {
-				imageFields = mongoModel.getImageInApp(appId, imageId);
-				if (redisModel.getCacheSize() <= MAXCACHESIZE) {
-					for (Entry<String, String> entry : imageFields.entrySet()) {
-						if (entry.getKey().equalsIgnoreCase("dir"))
-							dir = entry.getValue();
-						else if (entry.getKey().equalsIgnoreCase("type"))
-							type = entry.getValue();
-						else if (entry.getKey().equalsIgnoreCase("size"))
-							size = entry.getValue();
-						else if (entry.getKey().equalsIgnoreCase("pixelsSize"))
-							pixelsSize = entry.getValue();
-						else if (entry.getKey()
-								.equalsIgnoreCase("creationDate"))
-							creationDate = entry.getValue();
-						else if (entry.getKey().equalsIgnoreCase("fileName"))
-							fileName = entry.getValue();
-						else if (entry.getKey().equalsIgnoreCase("location"))
-							location = entry.getValue();
+			imageFields = loadOnce(IMAGES, start,
+					IMAGES + ":" + appId + ":" + imageId,
+					new Callable<Map<String, String>>() {
+						public Map<String, String> call() throws Exception {
+							return loadImageInApp(appId, imageId);
+						}
+					});
+		} else {
+			metrics.record(IMAGES, CacheMetrics.REDISHIT, start);
+			imageFields.put("id", imageId);
+			imageFields.put("appId", appId);
+		}
+		return imageFields;
+	}
+
+	/**
+	 * Cache miss: reads the image from the aux database and puts it back
+	 * in redis. Only one thread at a time runs it for a given image.
+	 */
+	private Map<String, String> loadImageInApp(String appId, String imageId) {
+		Map<String, String> imageFields = null;
+		String dir = null;
+		String type = null;
+		String size = null;
+		String pixelsSize = null;
+		String creationDate = null;
+		String fileName = null;
+		String location = null;
+		if (auxDatabase.equalsIgnoreCase(MONGODB)) {
+			awaitPersisted(appId);
+			imageFields = mongoModel.getImageInApp(appId, imageId);
+			if (imageFields == null)
+				return null;
+			if (redisModel.getCacheSize() <= MAXCACHESIZE) {
+				for (Entry<String, String> entry : imageFields.entrySet()) {
+					if (entry.getKey().equalsIgnoreCase("dir"))
+						dir = entry.getValue();
+					else if (entry.getKey().equalsIgnoreCase("type"))
+						type = entry.getValue();
+					else if (entry.getKey().equalsIgnoreCase("size"))
+						size = entry.getValue();
+					else if (entry.getKey().equalsIgnoreCase("pixelsSize"))
+						pixelsSize = entry.getValue();
+					else if (entry.getKey()
+							.equalsIgnoreCase("creationDate"))
+						creationDate = entry.getValue();
+					else if (entry.getKey().equalsIgnoreCase("fileName"))
+						fileName = entry.getValue();
+					else if (entry.getKey().equalsIgnoreCase("location"))
+						location = entry.getValue();
 
-					}
-					redisModel.createImageInApp(appId, imageId, dir, type,
-							size, pixelsSize, creationDate, fileName, location);
-				} else {
-					System.out.println("Warning: Cache is full.");
 				}
+				redisModel.createImageInApp(appId, imageId, dir, type,
+						size, pixelsSize, creationDate, fileName, location);
 			} else {
-				System.out.println("Database not implemented.");
+				System.out.println("Warning: Cache is full.");
 			}
 		} else {
-			imageFields.put("id", imageId);
-			imageFields.put("appId", appId);
+			System.out.println("Database not implemented.");
 		}
 		return imageFields;
 	}
 
-	public boolean createImageInApp(String appId, String id,
-			String destinationDirectory, String type, String size,
-			String pixelsSize, String creationDate, String fileName,
-			String location) {
+	public boolean createImageInApp(final String appId, final String id,
+			final String destinationDirectory, final String type, final String size,
+			final String pixelsSize, final String creationDate, final String fileName,
+			final String location) {
 		boolean auxOk = false;
 		boolean cacheOk = false;
 		boolean operationOk = false;
-		if (redisModel.getCacheSize() <= MAXCACHESIZE) {
+		if (parallelWrites != null
+				&& redisModel.getCacheSize() <= MAXCACHESIZE) {
+			operationOk = parallelWrites.write(IMAGES, appId, id,
+					new Callable<Boolean>() {
+						public Boolean call() throws Exception {
+							return redisModel.createImageInApp(appId, id,
+									destinationDirectory, type, size,
+									pixelsSize, creationDate, fileName,
+									location);
+						}
+					}, new Callable<Boolean>() {
+						public Boolean call() throws Exception {
+							return mongoModel.createImageInApp(appId, id,
+									destinationDirectory, type, size,
+									pixelsSize, creationDate, fileName,
+									location);
+						}
+					});
+		} else if (redisModel.getCacheSize() <= MAXCACHESIZE) {
 			cacheOk = redisModel.createImageInApp(appId, id,
 					destinationDirectory, type, size, pixelsSize, creationDate,
 					fileName, location);
-			if (auxDatabase.equalsIgnoreCase(MONGODB))
+			if (writeBehind != null)
+				auxOk = writeBehind.enqueue(appId, WriteBehindQueue.CREATEIMAGE,
+						appId, id, destinationDirectory, type, size,
+						pixelsSize, creationDate, fileName, location);
+			else if (auxDatabase.equalsIgnoreCase(MONGODB))
 				auxOk = mongoModel.createImageInApp(appId, id,
 						destinationDirectory, type, size, pixelsSize,
 						creationDate, fileName, location);
@@ -523,6 +1217,8 @@ public class DataModel {
 		}
 		if (auxOk)
 			operationOk = true;
+		if (operationOk)
+			recordFile(appId, IMAGES, size, true);
 		return operationOk;
 	}
 
@@ -540,18 +1236,40 @@ public class DataModel {
 	 * @param location
 	 * @return
 	 */
-	public boolean createVideoInApp(String appId, String id,
-			String destinationDirectory, String type, String size,
-			String resolution, String creationDate, String fileName,
-			String location) {
+	public boolean createVideoInApp(final String appId, final String id,
+			final String destinationDirectory, final String type, final String size,
+			final String resolution, final String creationDate, final String fileName,
+			final String location) {
 		boolean auxOk = false;
 		boolean cacheOk = false;
 		boolean operationOk = false;
-		if (redisModel.getCacheSize() <= MAXCACHESIZE) {
+		if (parallelWrites != null
+				&& redisModel.getCacheSize() <= MAXCACHESIZE) {
+			operationOk = parallelWrites.write(VIDEO, appId, id,
+					new Callable<Boolean>() {
+						public Boolean call() throws Exception {
+							return redisModel.createVideoInApp(appId, id,
+									destinationDirectory, type, size,
+									resolution, creationDate, fileName,
+									location);
+						}
+					}, new Callable<Boolean>() {
+						public Boolean call() throws Exception {
+							return mongoModel.createVideoInApp(appId, id,
+									destinationDirectory, type, size,
+									resolution, creationDate, fileName,
+									location);
+						}
+					});
+		} else if (redisModel.getCacheSize() <= MAXCACHESIZE) {
 			cacheOk = redisModel.createVideoInApp(appId, id,
 					destinationDirectory, type, size, resolution, creationDate,
 					fileName, location);
-			if (auxDatabase.equalsIgnoreCase(MONGODB))
+			if (writeBehind != null)
+				auxOk = writeBehind.enqueue(appId, WriteBehindQueue.CREATEVIDEO,
+						appId, id, destinationDirectory, type, size,
+						resolution, creationDate, fileName, location);
+			else if (auxDatabase.equalsIgnoreCase(MONGODB))
 				auxOk = mongoModel.createVideoInApp(appId, id,
 						destinationDirectory, type, size, resolution,
 						creationDate, fileName, location);
@@ -566,6 +1284,8 @@ public class DataModel {
 			if (auxOk)
 				operationOk = true;
 		}
+		if (operationOk)
+			recordFile(appId, VIDEO, size, true);
 		return operationOk;
 
 	}
@@ -578,18 +1298,38 @@ public class DataModel {
 		return null;
 	}
 
-	public boolean createStorageInApp(String appId, String id,
-			String destinationDirectory, String fileExtension, String fileSize,
-			String creationDate, String fileName, String location) {
+	public boolean createStorageInApp(final String appId, final String id,
+			final String destinationDirectory, final String fileExtension, final String fileSize,
+			final String creationDate, final String fileName, final String location) {
 		boolean auxOk = false;
 		boolean cacheOk = false;
 		boolean operationOk = false;
 
-		if (redisModel.getCacheSize() <= MAXCACHESIZE) {
+		if (parallelWrites != null
+				&& redisModel.getCacheSize() <= MAXCACHESIZE) {
+			operationOk = parallelWrites.write(STORAGE, appId, id,
+					new Callable<Boolean>() {
+						public Boolean call() throws Exception {
+							return redisModel.createStorageInApp(appId, id,
+									destinationDirectory, fileExtension,
+									fileSize, creationDate, fileName, location);
+						}
+					}, new Callable<Boolean>() {
+						public Boolean call() throws Exception {
+							return mongoModel.createStorageInApp(appId, id,
+									destinationDirectory, fileExtension,
+									fileSize, creationDate, fileName, location);
+						}
+					});
+		} else if (redisModel.getCacheSize() <= MAXCACHESIZE) {
 			cacheOk = redisModel.createStorageInApp(appId, id,
 					destinationDirectory, fileExtension, fileSize,
 					creationDate, fileName, location);
-			if (auxDatabase.equalsIgnoreCase(MONGODB))
+			if (writeBehind != null)
+				auxOk = writeBehind.enqueue(appId, WriteBehindQueue.CREATESTORAGE,
+						appId, id, destinationDirectory, fileExtension,
+						fileSize, creationDate, fileName, location);
+			else if (auxDatabase.equalsIgnoreCase(MONGODB))
 				auxOk = mongoModel.createStorageInApp(appId, id,
 						destinationDirectory, fileExtension, fileSize,
 						creationDate, fileName, location);
@@ -603,6 +1343,8 @@ public class DataModel {
 			if (auxOk)
 				operationOk = true;
 		}
+		if (operationOk)
+			recordFile(appId, STORAGE, fileSize, true);
 		return operationOk;
 	}
 
@@ -621,6 +1363,10 @@ public class DataModel {
 		if (redisModel.videoExistsInApp(appId, videoId))
 			redisModel.deleteVideoInApp(appId, videoId);
 		if (auxDatabase.equalsIgnoreCase(MONGODB)) {
+			awaitPersisted(appId);
+			if (statistics != null)
+				recordDeletedFile(appId, VIDEO,
+						mongoModel.getVideoInApp(appId, videoId));
 			mongoModel.deleteVideoInApp(appId, videoId);
 			sucess = true;
 		} else {
@@ -644,50 +1390,72 @@ public class DataModel {
 		return dir;
 	}
 
-	public Map<String, String> getVideoInApp(String appId, String videoId) {
+	public Map<String, String> getVideoInApp(final String appId,
+			final String videoId) {
+		long start = System.nanoTime();
 		Map<String, String> videoFields = redisModel.getVideoInApp(appId,
 				videoId);
 		if (videoFields == null || videoFields.size() == 0) {
-			String dir = null;
-			String type = null;
-			String size = null;
-			String resolution = null;
-			String creationDate = null;
-			String fileName = null;
-			String location = null;
-			if (auxDatabase.equalsIgnoreCase(MONGODB)) {
-				videoFields = mongoModel.getImageInApp(appId, videoId);
-				if (redisModel.getCacheSize() <= MAXCACHESIZE) {
-					for (Entry<String, String> entry : videoFields.entrySet()) {
-						if (entry.getKey().equalsIgnoreCase("dir"))
-							dir = entry.getValue();
-						else if (entry.getKey().equalsIgnoreCase("type"))
-							type = entry.getValue();
-						else if (entry.getKey().equalsIgnoreCase("size"))
-							size = entry.getValue();
-						else if (entry.getKey().equalsIgnoreCase("resolution"))
-							resolution = entry.getValue();
-						else if (entry.getKey()
-								.equalsIgnoreCase("creationDate"))
-							creationDate = entry.getValue();
-						else if (entry.getKey().equalsIgnoreCase("fileName"))
-							fileName = entry.getValue();
-						else if (entry.getKey().equalsIgnoreCase("location"))
-							location = entry.getValue();
-					}
-					redisModel.createVideoInApp(appId, videoId, dir, type,
-							size, resolution, creationDate, fileName, location);
-				}
-			} else {
-				System.out.println("Database not implemented.");
-			}
+			videoFields = loadOnce(VIDEO, start,
+					VIDEO + ":" + appId + ":" + videoId,
+					new Callable<Map<String, String>>() {
+						public Map<String, String> call() throws Exception {
+							return loadVideoInApp(appId, videoId);
+						}
+					});
 		} else {
+			metrics.record(VIDEO, CacheMetrics.REDISHIT, start);
 			videoFields.put("id", videoId);
 			videoFields.put("appId", appId);
 		}
 		return videoFields;
 	}
 
+	/**
+	 * Cache miss: reads the video from the aux database and puts it back
+	 * in redis. Only one thread at a time runs it for a given video.
+	 */
+	private Map<String, String> loadVideoInApp(String appId, String videoId) {
+		Map<String, String> videoFields = null;
+		String dir = null;
+		String type = null;
+		String size = null;
+		String resolution = null;
+		String creationDate = null;
+		String fileName = null;
+		String location = null;
+		if (auxDatabase.equalsIgnoreCase(MONGODB)) {
+			awaitPersisted(appId);
+			videoFields = mongoModel.getVideoInApp(appId, videoId);
+			if (videoFields == null)
+				return null;
+			if (redisModel.getCacheSize() <= MAXCACHESIZE) {
+				for (Entry<String, String> entry : videoFields.entrySet()) {
+					if (entry.getKey().equalsIgnoreCase("dir"))
+						dir = entry.getValue();
+					else if (entry.getKey().equalsIgnoreCase("type"))
+						type = entry.getValue();
+					else if (entry.getKey().equalsIgnoreCase("size"))
+						size = entry.getValue();
+					else if (entry.getKey().equalsIgnoreCase("resolution"))
+						resolution = entry.getValue();
+					else if (entry.getKey()
+							.equalsIgnoreCase("creationDate"))
+						creationDate = entry.getValue();
+					else if (entry.getKey().equalsIgnoreCase("fileName"))
+						fileName = entry.getValue();
+					else if (entry.getKey().equalsIgnoreCase("location"))
+						location = entry.getValue();
+				}
+				redisModel.createVideoInApp(appId, videoId, dir, type,
+						size, resolution, creationDate, fileName, location);
+			}
+		} else {
+			System.out.println("Database not implemented.");
+		}
+		return videoFields;
+	}
+
 	public String getEmailUsingUserName(String appId, String userName) {
 		String email = redisModel.getEmailUsingUserName(appId, userName);
 		if (email == null)
@@ -707,24 +1475,31 @@ public class DataModel {
 	public void reviveApp(String appId) {
 		if (redisModel.appExists(appId))
 			redisModel.reviveApp(appId);
+		awaitPersisted(appId);
 		if (auxDatabase.equalsIgnoreCase(MONGODB))
 			mongoModel.reviveApp(appId);
+		invalidateApp(appId);
 
 	}
 
 	public void updateUser(String appId, String userId, String email) {
+		filterUser(appId, null, email);
 		if (auxDatabase.equalsIgnoreCase(MONGODB)) {
+			awaitPersisted(appId);
 			mongoModel.updateUser(appId, userId, email);
 			if (redisModel.userExistsInApp(appId, email))
 				redisModel.updateUser(appId, userId, email);
+			invalidateUser(appId, userId);
 		} else if (!auxDatabase.equalsIgnoreCase(MONGODB))
 			System.out.println("Database not implemented.");
 	}
 
 	public void updateUser(String appId, String userId, String email,
 			byte[] hash, byte[] salt) {
+		filterUser(appId, null, email);
 		if (auxDatabase.equalsIgnoreCase(MONGODB)) {
 			try {
+				awaitPersisted(appId);
 				mongoModel.updateUser(appId, userId, email, hash, salt);
 			} catch (UnsupportedEncodingException e1) {
 				// TODO Auto-generated catch block
@@ -737,6 +1512,7 @@ public class DataModel {
 					// TODO Auto-generated catch block
 					e.printStackTrace();
 				}
+			invalidateUser(appId, userId);
 		} else if (!auxDatabase.equalsIgnoreCase(MONGODB))
 			System.out.println("Database not implemented.");
 	}
@@ -889,29 +1665,34 @@ public class DataModel {
 
 	public void updateUserLocationAndDate(String userId, String appId,
 			String sessionToken, String location, String date) {
+		awaitPersisted(appId);
 		mongoModel.updateUserLocationAndDate(userId, appId, sessionToken,
 				location, date);
+		invalidateUser(appId, userId);
 	}
 
 	public boolean authenticateUser(String appId, String userId,
 			String attemptedPassword) throws UnsupportedEncodingException,
 			NoSuchAlgorithmException, InvalidKeySpecException {
-		Map<String, String> userFields = redisModel.getUser(appId, userId);
 		PasswordEncryptionService service = new PasswordEncryptionService();
 		byte[] salt = null;
 		byte[] hash = null;
-		boolean authenticated = false;
-		if (userFields == null) {
-			userFields = mongoModel.getUser(appId, userId);
-			for (Map.Entry<String, String> entry : userFields.entrySet()) {
-				if (entry.getKey().equalsIgnoreCase("salt")) {
-					salt = entry.getValue().getBytes("ISO-8859-1");
-				} else if (entry.getKey().equalsIgnoreCase("hash")) {
-					hash = entry.getValue().getBytes("ISO-8859-1");
-				}
-			}
-			authenticated = service.authenticate(attemptedPassword, hash, salt);
+		Map<String, String> cached = userCache.get(userKey(appId, userId));
+		byte[][] credentials;
+		if (cached != null)
+			credentials = new byte[][] {
+					cached.get("salt").getBytes("ISO-8859-1"),
+					cached.get("hash").getBytes("ISO-8859-1") };
+		else
+			credentials = redisModel.getUserCredentials(appId, userId);
+		if (credentials != null) {
+			salt = credentials[0];
+			hash = credentials[1];
 		} else {
+			awaitPersisted(appId);
+			Map<String, String> userFields = mongoModel.getUser(appId, userId);
+			if (userFields == null)
+				return false;
 			for (Map.Entry<String, String> entry : userFields.entrySet()) {
 				if (entry.getKey().equalsIgnoreCase("salt")) {
 					salt = entry.getValue().getBytes("ISO-8859-1");
@@ -919,9 +1700,8 @@ public class DataModel {
 					hash = entry.getValue().getBytes("ISO-8859-1");
 				}
 			}
-			authenticated = service.authenticate(attemptedPassword, hash, salt);
 		}
-		return authenticated;
+		return service.authenticate(attemptedPassword, hash, salt);
 	}
 
 	public boolean storageExistsInApp(String appId, String storageId) {
@@ -934,48 +1714,67 @@ public class DataModel {
 		return false;
 	}
 
-	public Map<String, String> getStorageInApp(String appId, String storageId) {
+	public Map<String, String> getStorageInApp(final String appId,
+			final String storageId) {
+		long start = System.nanoTime();
 		Map<String, String> storageFields = redisModel.getStorageInApp(appId, storageId);
-
 		if (storageFields == null || storageFields.size() == 0) {
-			String dir = null;
-			String type = null;
-			String size = null;
-			String bitRate = null;
-			String fileName = null;
-			String creationDate = null;
-			String location = null;
-			if (auxDatabase.equalsIgnoreCase(MONGODB)) {
-				storageFields = mongoModel.getAudioInApp(appId, storageId);
-				if (redisModel.getCacheSize() <= MAXCACHESIZE) {
-					for (Entry<String, String> entry : storageFields.entrySet()) {
-						if (entry.getKey().equalsIgnoreCase("dir"))
-							dir = entry.getValue();
-						else if (entry.getKey().equalsIgnoreCase("type"))
-							type = entry.getValue();
-						else if (entry.getKey().equalsIgnoreCase("size"))
-							size = entry.getValue();
-						else if (entry.getKey().equalsIgnoreCase("bitRate"))
-							bitRate = entry.getValue();
-						else if (entry.getKey().equalsIgnoreCase("fileName"))
-							fileName = entry.getValue();
-						else if (entry.getKey().equalsIgnoreCase("location"))
-							location = entry.getValue();
-						else if (entry.getKey()
-								.equalsIgnoreCase("creationDate"))
-							creationDate = entry.getValue();
-					}
-					redisModel.createAudioInApp(appId, storageId, dir, type,
-							size, bitRate, creationDate, fileName, location);
-				} else {
-					System.out.println("Warning: Cache is full.");
+			storageFields = loadOnce(STORAGE, start, STORAGE + ":" + appId
+					+ ":" + storageId,
+					new Callable<Map<String, String>>() {
+						public Map<String, String> call() throws Exception {
+							return loadStorageInApp(appId, storageId);
+						}
+					});
+		} else {
+			metrics.record(STORAGE, CacheMetrics.REDISHIT, start);
+			storageFields.put("id", storageId);
+			storageFields.put("appId", appId);
+		}
+		return storageFields;
+	}
+
+	/**
+	 * Cache miss: reads the storage file from the aux database and puts it back
+	 * in redis. Only one thread at a time runs it for a given storage file.
+	 */
+	private Map<String, String> loadStorageInApp(String appId,
+			String storageId) {
+		Map<String, String> storageFields = null;
+		String dir = null;
+		String type = null;
+		String size = null;
+		String fileName = null;
+		String creationDate = null;
+		String location = null;
+		if (auxDatabase.equalsIgnoreCase(MONGODB)) {
+			awaitPersisted(appId);
+			storageFields = mongoModel.getStorageInApp(appId, storageId);
+			if (storageFields == null)
+				return null;
+			if (redisModel.getCacheSize() <= MAXCACHESIZE) {
+				for (Entry<String, String> entry : storageFields.entrySet()) {
+					if (entry.getKey().equalsIgnoreCase("dir"))
+						dir = entry.getValue();
+					else if (entry.getKey().equalsIgnoreCase("type"))
+						type = entry.getValue();
+					else if (entry.getKey().equalsIgnoreCase("size"))
+						size = entry.getValue();
+					else if (entry.getKey().equalsIgnoreCase("fileName"))
+						fileName = entry.getValue();
+					else if (entry.getKey().equalsIgnoreCase("location"))
+						location = entry.getValue();
+					else if (entry.getKey()
+							.equalsIgnoreCase("creationDate"))
+						creationDate = entry.getValue();
 				}
+				redisModel.createStorageInApp(appId, storageId, dir, type,
+						size, creationDate, fileName, location);
 			} else {
-				System.out.println("Database not implemented.");
+				System.out.println("Warning: Cache is full.");
 			}
 		} else {
-			storageFields.put("id", storageId);
-			storageFields.put("appId", appId);
+			System.out.println("Database not implemented.");
 		}
 		return storageFields;
 	}
@@ -1026,6 +1825,10 @@ public class DataModel {
 
 	public void deleteStorageInApp(String appId, String storageId) {
 		if (auxDatabase.equalsIgnoreCase(MONGODB)) {
+			awaitPersisted(appId);
+			if (statistics != null)
+				recordDeletedFile(appId, STORAGE,
+						mongoModel.getStorageInApp(appId, storageId));
 			mongoModel.deleteStorageInApp(appId, storageId);
 			if (redisModel.storageExistsInApp(appId, storageId)) {
 				redisModel.deleteStorageInApp(appId, storageId);
@@ -1035,6 +1838,9 @@ public class DataModel {
 	}
 
 	public boolean confirmUsersEmail(String appId) {
+		Map<String, String> cached = appCache.get(appId);
+		if (cached != null)
+			return Boolean.parseBoolean(cached.get("confirmUsersEmail"));
 		if(redisModel.appExists(appId))
 			return redisModel.confirmUsersEmail(appId);
 		else if(auxDatabase.equalsIgnoreCase(MONGODB))
@@ -1046,6 +1852,10 @@ public class DataModel {
 
 	public void deleteImageInApp(String appId, String imageId) {
 		if (auxDatabase.equalsIgnoreCase(MONGODB)) {
+			awaitPersisted(appId);
+			if (statistics != null)
+				recordDeletedFile(appId, IMAGES,
+						mongoModel.getImageInApp(appId, imageId));
 			mongoModel.deleteImageInApp(appId, imageId);
 			if (redisModel.imageExistsInApp(appId, imageId)) {
 				redisModel.deleteImageInApp(appId, imageId);
@@ -1054,16 +1864,42 @@ public class DataModel {
 			System.out.println("Database not implemented.");
 	}
 
-	public boolean createUserWithFlagWithEmailConfirmation(String appId,
-			String userId, String userName, String email, byte[] salt,
-			byte[] hash, String flag, boolean emailConfirmed) throws UnsupportedEncodingException {
+	public boolean createUserWithFlagWithEmailConfirmation(final String appId,
+			final String userId, final String userName, final String email, final byte[] salt,
+			final byte[] hash, final String flag, final boolean emailConfirmed) throws UnsupportedEncodingException {
 		boolean operationOk = false;
 		boolean cacheOk = false;
 		boolean auxOk = false;
-		if (redisModel.getCacheSize() <= MAXCACHESIZE) {
+		filterUser(appId, userId, email);
+		if (parallelWrites != null
+				&& redisModel.getCacheSize() <= MAXCACHESIZE) {
+			operationOk = parallelWrites.write(USERS, appId, userId,
+					new Callable<Boolean>() {
+						public Boolean call() throws Exception {
+							return redisModel.createUserWithFlagWithEmailConfirmation(appId,
+									userId, userName, email, salt, hash,
+									new Date().toString(), flag,
+									emailConfirmed);
+						}
+					}, new Callable<Boolean>() {
+						public Boolean call() throws Exception {
+							return mongoModel.createUserWithFlagWithEmailConfirmation(appId,
+									userId, userName, email, salt, hash,
+									new Date().toString(), flag,
+									emailConfirmed);
+						}
+					});
+		} else if (redisModel.getCacheSize() <= MAXCACHESIZE) {
 			cacheOk = redisModel.createUserWithFlagWithEmailConfirmation(appId, userId, userName, email,
 					salt, hash, new Date().toString(), flag, emailConfirmed);
-			if (auxDatabase.equalsIgnoreCase(MONGODB))
+			if (writeBehind != null)
+				auxOk = writeBehind.enqueue(appId,
+						WriteBehindQueue.CREATEUSERWITHFLAGWITHEMAILCONFIRMATION,
+						appId, userId, userName, email,
+						WriteBehindQueue.encode(salt),
+						WriteBehindQueue.encode(hash), new Date().toString(),
+						flag, "" + emailConfirmed);
+			else if (auxDatabase.equalsIgnoreCase(MONGODB))
 				auxOk = mongoModel.createUserWithFlagWithEmailConfirmation(appId, userId, userName, email,
 						salt, hash, new Date().toString(), flag, emailConfirmed);
 			if (auxOk && cacheOk)
@@ -1075,19 +1911,45 @@ public class DataModel {
 			if (auxOk)
 				operationOk = true;
 		}
+		if (operationOk)
+			recordUsers(appId, 1);
 		return operationOk;
 	}
 
-	public boolean createUserWithoutFlagWithEmailConfirmation(String appId,
-			String userId, String userName, String email, byte[] salt,
-			byte[] hash, boolean emailConfirmed) throws UnsupportedEncodingException {
+	public boolean createUserWithoutFlagWithEmailConfirmation(final String appId,
+			final String userId, final String userName, final String email, final byte[] salt,
+			final byte[] hash, final boolean emailConfirmed) throws UnsupportedEncodingException {
 		boolean operationOk = false;
 		boolean cacheOk = false;
 		boolean auxOk = false;
-		if (redisModel.getCacheSize() <= MAXCACHESIZE) {
+		filterUser(appId, userId, email);
+		if (parallelWrites != null
+				&& redisModel.getCacheSize() <= MAXCACHESIZE) {
+			operationOk = parallelWrites.write(USERS, appId, userId,
+					new Callable<Boolean>() {
+						public Boolean call() throws Exception {
+							return redisModel.createUserWithoutFlagWithEmailConfirmation(appId,
+									userId, userName, email, salt, hash,
+									new Date().toString(), emailConfirmed);
+						}
+					}, new Callable<Boolean>() {
+						public Boolean call() throws Exception {
+							return mongoModel.createUserWithoutFlagWithEmailConfirmation(appId,
+									userId, userName, email, salt, hash,
+									new Date().toString(), emailConfirmed);
+						}
+					});
+		} else if (redisModel.getCacheSize() <= MAXCACHESIZE) {
 			cacheOk = redisModel.createUserWithoutFlagWithEmailConfirmation(appId, userId, userName, email,
 					salt, hash, new Date().toString(), emailConfirmed);
-			if (auxDatabase.equalsIgnoreCase(MONGODB))
+			if (writeBehind != null)
+				auxOk = writeBehind.enqueue(appId,
+						WriteBehindQueue.CREATEUSERWITHOUTFLAGWITHEMAILCONFIRMATION,
+						appId, userId, userName, email,
+						WriteBehindQueue.encode(salt),
+						WriteBehindQueue.encode(hash), new Date().toString(),
+						"" + emailConfirmed);
+			else if (auxDatabase.equalsIgnoreCase(MONGODB))
 				auxOk = mongoModel.createUserWithoutFlagWithEmailConfirmation(appId, userId, userName, email,
 						salt, hash, new Date().toString(), emailConfirmed);
 			if (auxOk && cacheOk)
@@ -1099,6 +1961,8 @@ public class DataModel {
 			if (auxOk)
 				operationOk = true;
 		}
+		if (operationOk)
+			recordUsers(appId, 1);
 		return operationOk;
 	}
 
@@ -1107,6 +1971,7 @@ public class DataModel {
 		boolean operationOk = false;
 		boolean auxOk = false;
 		if (auxDatabase.equalsIgnoreCase(MONGODB)) {
+			awaitPersisted(appId);
 			mongoModel.confirmUserEmail(appId, userId);
 			String email = redisModel.getEmailUsingUserId(appId, userId);
 			if (redisModel.userExistsInApp(appId, email)) {
@@ -1114,6 +1979,7 @@ public class DataModel {
 				if (auxOk && cacheOk)
 					operationOk = true;
 			}
+			invalidateUser(appId, userId);
 		} else if (!auxDatabase.equalsIgnoreCase(MONGODB))
 			System.out.println("Database not implemented.");
 	}
@@ -1132,10 +1998,12 @@ public class DataModel {
 			Boolean confirmUsersEmail) {
 		boolean sucess = false;
 		if (auxDatabase.equalsIgnoreCase(MONGODB)) {
+			awaitPersisted(appId);
 			sucess = mongoModel.updateConfirmUsersEmailOption(appId, confirmUsersEmail);
 			if (redisModel.appExists(appId)) {
 				redisModel.updateConfirmUsersEmailOption(appId, confirmUsersEmail);
 			}
+			invalidateApp(appId);
 		}
 		return sucess;
 	}
@@ -1143,10 +2011,12 @@ public class DataModel {
 	public boolean updateAppName(String appId, String newAppName) {
 		boolean sucess = false;
 		if (auxDatabase.equalsIgnoreCase(MONGODB)) {
+			awaitPersisted(appId);
 			sucess = mongoModel.updateAppName(appId, newAppName);
 			if (redisModel.appExists(appId)) {
 				redisModel.updateAppName(appId, newAppName);
 			}
+			invalidateApp(appId);
 		}
 		return sucess;
 	}
@@ -1154,6 +2024,7 @@ public class DataModel {
 	public boolean updateUserPassword(String appId, String userId, byte[] hash,
 			byte[] salt) {
 		boolean sucess = false;
+		awaitPersisted(appId);
 		String email = mongoModel.getEmailUsingUserId(appId, userId);
 		if (auxDatabase.equalsIgnoreCase(MONGODB)) {
 			try {
@@ -1161,6 +2032,7 @@ public class DataModel {
 				if (redisModel.appExists(appId) && redisModel.userExistsInApp(appId, email)) {
 					redisModel.updateUserPassword(appId, userId, hash, salt);
 				}
+				invalidateUser(appId, userId);
 			} catch (UnsupportedEncodingException e) {
 				// TODO Auto-generated catch block
 				e.printStackTrace();
@@ -1173,6 +2045,8 @@ public class DataModel {
 	public boolean userExistsInApp(String appId, String userId) {
 		if (redisModel.userExistsInApp(appId, redisModel.getEmailUsingUserId(appId, userId)))
 			return true;
+		else if (!mightHaveIdentifier(appId, userId))
+			return false;
 		else if (auxDatabase.equalsIgnoreCase(MONGODB))
 			return mongoModel.userExistsInApp(appId, mongoModel.getEmailUsingUserId(appId, userId));
 		else if (!auxDatabase.equalsIgnoreCase(MONGODB))
@@ -4,6 +4,7 @@ import java.io.File;
 import java.io.UnsupportedEncodingException;
 import java.security.NoSuchAlgorithmException;
 import java.security.spec.InvalidKeySpecException;
+import java.util.Collection;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
@@ -16,6 +17,13 @@ import org.codehaus.jettison.json.JSONObject;
 
 import rest_Models.Storage;
 
+import dataModels.CacheMetrics;
+import dataModels.CacheWarmer;
+import dataModels.ExistenceFilters;
+import dataModels.IdPage;
+import dataModels.ParallelWriter;
+import dataModels.WriteBehindQueue;
+
 //*************Singleton, takes care of Filesystem + database
 public class Model {
 
@@ -62,6 +70,85 @@ public class Model {
 		return ref;
 	}
 
+	/**
+	 * @return the write-behind queue, null if writeBehindMode is off.
+	 */
+	public WriteBehindQueue getWriteBehindQueue() {
+		return dataModel.getWriteBehindQueue();
+	}
+
+	/**
+	 * @return the parallel writer, null if parallelWriteMode is off.
+	 */
+	public ParallelWriter getParallelWriter() {
+		return dataModel.getParallelWriter();
+	}
+
+	/**
+	 * @return the existence filters, null without an aux database.
+	 */
+	public ExistenceFilters getExistenceFilters() {
+		return dataModel.getExistenceFilters();
+	}
+
+	public void startCacheWarmup() {
+		dataModel.startCacheWarmup();
+	}
+
+	/**
+	 * Stops the background workers of the data model, before the pools are
+	 * closed.
+	 */
+	public void shutdown() {
+		dataModel.shutdown();
+	}
+
+	/**
+	 * @return the cache warmer, null without an aux database.
+	 */
+	public CacheWarmer getCacheWarmer() {
+		return dataModel.getCacheWarmer();
+	}
+
+	public CacheMetrics getCacheMetrics() {
+		return dataModel.getCacheMetrics();
+	}
+
+	public void addCacheShard(String host, int port) {
+		dataModel.addCacheShard(host, port);
+	}
+
+	public boolean removeCacheShard(String host, int port) {
+		return dataModel.removeCacheShard(host, port);
+	}
+
+	public List<String> getCacheShards() {
+		return dataModel.getCacheShards();
+	}
+
+	public void setAppCacheQuota(String appId, long bytes) {
+		dataModel.setAppCacheQuota(appId, bytes);
+	}
+
+	public void setAppPinned(String appId, boolean pin) {
+		dataModel.setAppPinned(appId, pin);
+	}
+
+	public Map<String, Long> getAppCacheQuotas() {
+		return dataModel.getAppCacheQuotas();
+	}
+
+	public Set<String> getPinnedApps() {
+		return dataModel.getPinnedApps();
+	}
+
+	/**
+	 * @return appId -> estimated bytes in the cache.
+	 */
+	public Map<String, Long> getAppCacheUsage() {
+		return dataModel.getAppCacheUsage();
+	}
+
 	public Object clone() throws CloneNotSupportedException {
 		throw new CloneNotSupportedException();
 	}
@@ -110,6 +197,29 @@ public class Model {
 		return dataModel.getAllAppIds();
 	}
 
+	public IdPage getIdPage(String type, String appId, String token, int limit) {
+		return dataModel.getIdPage(type, appId, token, limit);
+	}
+
+	public Map<String, Long> getAppStatistics(String appId) {
+		return dataModel.getAppStatistics(appId);
+	}
+
+	public Set<String> getExistingEmails(String appId, Collection<String> emails) {
+		return dataModel.getExistingEmails(appId, emails);
+	}
+
+	/**
+	 * Imported users get no AWS user, see UserImporter.
+	 * 
+	 * @param appId
+	 * @param users
+	 * @return the ids of the users created.
+	 */
+	public Set<String> createUsers(String appId, List<Map<String, String>> users) {
+		return dataModel.createUsers(appId, users);
+	}
+
 	public Map<String, String> getUserFields(String appId, String userId)
 			throws UnsupportedEncodingException {
 		return dataModel.getUser(appId, userId);
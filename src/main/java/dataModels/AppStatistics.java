@@ -0,0 +1,213 @@
+package dataModels;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.exceptions.JedisException;
+
+/**
+ * Counters of each app kept in the redis hash "stats:app:{appId}": users
+ * (alive), audio, images, video and storage files with their bytes
+ * ("audioBytes"...), and document elements.
+ *
+ * Writes move the counters as they happen. A background task recomputes
+ * every app from mongo each RECONCILEINTERVAL, to correct what the writes
+ * missed, and documents, which are only counted there. An app read before
+ * it has counters is computed on the spot.
+ *
+ * Writes between the computation of an app and the write of its counters
+ * are lost until the next reconciliation.
+ *
+ */
+public class AppStatistics implements Runnable {
+
+	public static final String USERS = "users";
+	public static final String AUDIO = "audio";
+	public static final String IMAGES = "images";
+	public static final String VIDEO = "video";
+	public static final String STORAGE = "storage";
+	public static final String DOCUMENTS = "documents";
+	public static final String BYTES = "Bytes";
+	private static final String LOCK = "stats:reconciling";
+	private static final int RECONCILELOCK = 1800; // seconds
+	private static final long RECONCILEINTERVAL = 3600; // seconds
+	// takes the lock with its expiry at once, a crash can't leave it forever.
+	private static final String LOCKSCRIPT = "if redis.call('setnx', KEYS[1], ARGV[1]) == 1 then"
+			+ " redis.call('expire', KEYS[1], ARGV[2]) return 1 end return 0";
+	// moves the counters of an app that has them, an app without counters
+	// gets them all at once when it is computed.
+	private static final String INCRSCRIPT = "if redis.call('exists', KEYS[1]) == 0 then return 0 end "
+			+ "for i = 1, #ARGV, 2 do redis.call('hincrby', KEYS[1], ARGV[i], ARGV[i + 1]) end "
+			+ "return 1";
+	private final JedisPool pool;
+	private final MongoDBDataModel database;
+	private ScheduledExecutorService executor;
+
+	public AppStatistics(String host, int port, MongoDBDataModel database) {
+		this.pool = RedisPools.getPool(host, port);
+		this.database = database;
+	}
+
+	private static String key(String appId) {
+		return "stats:app:" + appId;
+	}
+
+	public synchronized void start() {
+		if (executor != null)
+			return;
+		executor = Executors
+				.newSingleThreadScheduledExecutor(new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "app-statistics");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		executor.scheduleWithFixedDelay(this, RECONCILEINTERVAL,
+				RECONCILEINTERVAL, TimeUnit.SECONDS);
+	}
+
+	public synchronized void stop() {
+		if (executor != null) {
+			executor.shutdownNow();
+			executor = null;
+		}
+	}
+
+	/**
+	 * Recomputes the counters of every app, if no other node is doing it.
+	 */
+	public void run() {
+		try {
+			Jedis jedis = pool.getResource();
+			try {
+				Object locked = jedis.eval(LOCKSCRIPT, 1, LOCK, "1",
+						String.valueOf(RECONCILELOCK));
+				if (!Long.valueOf(1).equals(locked))
+					return;
+			} finally {
+				pool.returnResource(jedis);
+			}
+			long start = System.currentTimeMillis();
+			Map<String, Map<String, Long>> apps = database
+					.countAppStatistics(null);
+			store(apps);
+			System.out.println("Statistics of " + apps.size()
+					+ " apps reconciled in "
+					+ (System.currentTimeMillis() - start) + "ms.");
+		} catch (RuntimeException e) {
+			// redis or mongo, an exception would cancel the next runs.
+			System.out.println("Could not reconcile the statistics: "
+					+ e.getMessage());
+		}
+	}
+
+	private void store(Map<String, Map<String, Long>> apps) {
+		Jedis jedis = pool.getResource();
+		try {
+			Pipeline pipeline = jedis.pipelined();
+			for (Entry<String, Map<String, Long>> app : apps.entrySet()) {
+				Map<String, String> counters = new HashMap<String, String>();
+				for (Entry<String, Long> counter : app.getValue().entrySet())
+					counters.put(counter.getKey(), counter.getValue()
+							.toString());
+				pipeline.hmset(key(app.getKey()), counters);
+			}
+			pipeline.sync();
+		} finally {
+			pool.returnResource(jedis);
+		}
+	}
+
+	/**
+	 * @param appId
+	 * @return the counters of the app, computed if it has none.
+	 */
+	public Map<String, Long> get(String appId) {
+		Map<String, String> stored;
+		Jedis jedis = pool.getResource();
+		try {
+			stored = jedis.hgetAll(key(appId));
+		} finally {
+			pool.returnResource(jedis);
+		}
+		if (stored == null || stored.isEmpty()) {
+			Map<String, Map<String, Long>> computed = database
+					.countAppStatistics(appId);
+			store(computed);
+			return computed.get(appId);
+		}
+		Map<String, Long> counters = new HashMap<String, Long>();
+		for (Entry<String, String> counter : stored.entrySet())
+			counters.put(counter.getKey(), Long.parseLong(counter.getValue()));
+		return counters;
+	}
+
+	/**
+	 * @param appId
+	 * @param delta
+	 *            1 for a created user, -1 for a deleted one.
+	 */
+	public void recordUsers(String appId, long delta) {
+		record(appId, USERS, delta);
+	}
+
+	/**
+	 * @param appId
+	 * @param type
+	 *            AUDIO, IMAGES, VIDEO or STORAGE.
+	 * @param size
+	 *            in bytes as stored with the file, may be null.
+	 * @param created
+	 *            false for a deleted file.
+	 */
+	public void recordFile(String appId, String type, String size,
+			boolean created) {
+		long sign = created ? 1 : -1;
+		record(appId, type, sign, type + BYTES, sign * bytes(size));
+	}
+
+	/**
+	 * @return the size as a number, 0 if it isn't one.
+	 */
+	static long bytes(String size) {
+		if (size == null)
+			return 0;
+		try {
+			return (long) Double.parseDouble(size);
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * @param countersAndDeltas
+	 *            counter name, delta, counter name, delta...
+	 */
+	private void record(String appId, Object... countersAndDeltas) {
+		List<String> args = new ArrayList<String>();
+		for (Object arg : countersAndDeltas)
+			args.add(arg.toString());
+		Jedis jedis = pool.getResource();
+		try {
+			jedis.eval(INCRSCRIPT, Arrays.asList(key(appId)), args);
+		} catch (JedisException e) {
+			// the next reconciliation fixes the counters.
+			System.out.println("Could not record statistics of app " + appId
+					+ ": " + e.getMessage());
+		} finally {
+			pool.returnResource(jedis);
+		}
+	}
+}
@@ -0,0 +1,251 @@
+package dataModels;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.Pipeline;
+import redis.clients.util.MurmurHash;
+
+/**
+ * Bloom filter kept as a bitmap in redis, so every node sees the elements
+ * added by the others. mightContain false means the element was never added,
+ * true means it may have been.
+ *
+ * Elements can't be removed, deleted ones only cost a false positive. Until
+ * the filter is marked ready (filled from the database) every check answers
+ * true. The bits of an element are derived from one 64 bit murmur hash
+ * (double hashing), a check is a single script call.
+ *
+ */
+public class BloomFilter {
+
+	private static final String CHECKSCRIPT = "if redis.call('exists', KEYS[2]) == 0 then return 1 end"
+			+ " for i = 1, #ARGV do"
+			+ " if redis.call('getbit', KEYS[1], ARGV[i]) == 0 then return 0 end"
+			+ " end return 1";
+	private static final String BITCOUNTSCRIPT = "return redis.call('bitcount', KEYS[1])";
+	private static final String LOCKSCRIPT = "if redis.call('setnx', KEYS[1], ARGV[1]) == 1 then"
+			+ " redis.call('expire', KEYS[1], ARGV[2]) return 1 end return 0";
+	private static final int SEED = 0x9747b28c;
+	private final JedisPool pool;
+	private final String key;
+	private final String readyKey;
+	private final long bits;
+	private final int hashes;
+	private final AtomicLong checks = new AtomicLong();
+	private final AtomicLong absent = new AtomicLong();
+	private final AtomicLong falsePositives = new AtomicLong();
+
+	/**
+	 * @param pool
+	 * @param key
+	 *            redis key of the bitmap.
+	 * @param expectedElements
+	 * @param falsePositiveRate
+	 *            wanted rate once expectedElements were added.
+	 */
+	public BloomFilter(JedisPool pool, String key, long expectedElements,
+			double falsePositiveRate) {
+		this.pool = pool;
+		this.key = key;
+		this.readyKey = key + ":ready";
+		this.bits = (long) Math.ceil(-expectedElements
+				* Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+		this.hashes = Math.max(1,
+				(int) Math.round((double) bits / expectedElements * Math.log(2)));
+	}
+
+	private long[] offsets(String element) {
+		byte[] bytes;
+		try {
+			bytes = element.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			bytes = element.getBytes();
+		}
+		long hash = MurmurHash.hash64A(bytes, SEED);
+		int h1 = (int) hash;
+		int h2 = (int) (hash >>> 32);
+		long[] offsets = new long[hashes];
+		for (int i = 0; i < hashes; i++)
+			offsets[i] = ((h1 + (long) i * h2) & Long.MAX_VALUE) % bits;
+		return offsets;
+	}
+
+	/**
+	 * Adds the element. Call it before the element is written, otherwise a
+	 * check in between could answer "absent" for an element that exists.
+	 *
+	 * @param element
+	 */
+	public void add(String element) {
+		Jedis jedis = pool.getResource();
+		try {
+			Pipeline pipeline = jedis.pipelined();
+			add(pipeline, element);
+			pipeline.sync();
+		} finally {
+			pool.returnResource(jedis);
+		}
+	}
+
+	public void addAll(Collection<String> elements) {
+		if (elements.isEmpty())
+			return;
+		Jedis jedis = pool.getResource();
+		try {
+			Pipeline pipeline = jedis.pipelined();
+			for (String element : elements)
+				add(pipeline, element);
+			pipeline.sync();
+		} finally {
+			pool.returnResource(jedis);
+		}
+	}
+
+	private void add(Pipeline pipeline, String element) {
+		long[] offsets = offsets(element);
+		for (int i = 0; i < offsets.length; i++)
+			pipeline.setbit(key, offsets[i], true);
+	}
+
+	public boolean mightContain(String element) {
+		checks.incrementAndGet();
+		Jedis jedis = pool.getResource();
+		Object found;
+		try {
+			long[] offsets = offsets(element);
+			String[] keysAndArgs = new String[offsets.length + 2];
+			keysAndArgs[0] = key;
+			keysAndArgs[1] = readyKey;
+			for (int i = 0; i < offsets.length; i++)
+				keysAndArgs[i + 2] = String.valueOf(offsets[i]);
+			found = jedis.eval(CHECKSCRIPT, 2, keysAndArgs);
+		} finally {
+			pool.returnResource(jedis);
+		}
+		if (Long.valueOf(0).equals(found)) {
+			absent.incrementAndGet();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Tells the filter that an element it might contain turned out not to
+	 * exist.
+	 */
+	public void recordFalsePositive() {
+		falsePositives.incrementAndGet();
+	}
+
+	public boolean isReady() {
+		Jedis jedis = pool.getResource();
+		try {
+			return jedis.exists(readyKey);
+		} finally {
+			pool.returnResource(jedis);
+		}
+	}
+
+	public void markReady() {
+		Jedis jedis = pool.getResource();
+		try {
+			jedis.set(readyKey, String.valueOf(System.currentTimeMillis()));
+		} finally {
+			pool.returnResource(jedis);
+		}
+	}
+
+	/**
+	 * Takes the rebuild of the filter for the given time, so only one node
+	 * fills it from the database.
+	 *
+	 * @param seconds
+	 * @return
+	 */
+	public boolean lockRebuild(int seconds) {
+		Jedis jedis = pool.getResource();
+		try {
+			// the lock and its expiry at once, a crash can't leave it forever.
+			Object locked = jedis.eval(LOCKSCRIPT, 1, key + ":rebuilding",
+					"1", String.valueOf(seconds));
+			return Long.valueOf(1).equals(locked);
+		} finally {
+			pool.returnResource(jedis);
+		}
+	}
+
+	/**
+	 * Gives back the rebuild before its time, when it failed.
+	 */
+	public void unlockRebuild() {
+		Jedis jedis = pool.getResource();
+		try {
+			jedis.del(key + ":rebuilding");
+		} finally {
+			pool.returnResource(jedis);
+		}
+	}
+
+	public String getKey() {
+		return key;
+	}
+
+	public long getBits() {
+		return bits;
+	}
+
+	public int getHashes() {
+		return hashes;
+	}
+
+	/**
+	 * Fraction of the bits that are set.
+	 *
+	 * @return
+	 */
+	public double getFillRatio() {
+		Jedis jedis = pool.getResource();
+		try {
+			Object set = jedis.eval(BITCOUNTSCRIPT, 1, key);
+			return ((Long) set).doubleValue() / bits;
+		} finally {
+			pool.returnResource(jedis);
+		}
+	}
+
+	/**
+	 * False positive rate expected with the current fill ratio.
+	 *
+	 * @return
+	 */
+	public double getEstimatedFalsePositiveRate() {
+		return Math.pow(getFillRatio(), hashes);
+	}
+
+	/**
+	 * Share of the "might contain" answers that turned out to be absent.
+	 *
+	 * @return
+	 */
+	public double getObservedFalsePositiveRate() {
+		long maybe = checks.get() - absent.get();
+		return maybe <= 0 ? 0 : (double) falsePositives.get() / maybe;
+	}
+
+	public long getChecks() {
+		return checks.get();
+	}
+
+	/**
+	 * Checks answered "definitely absent".
+	 *
+	 * @return
+	 */
+	public long getAbsent() {
+		return absent.get();
+	}
+}
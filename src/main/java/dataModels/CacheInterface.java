@@ -1,26 +1,61 @@
 package dataModels;
 
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
 public interface CacheInterface extends DatabaseInterface{
 	/**
-	 * Gets the bytes used by the cache.
+	 * Gets the bytes used by the cache. The value is sampled in the
+	 * background, calling this does not reach the cache server.
 	 * @return
 	 */
 	public long getCacheSize();
 	/**
-	 * Retrieves the oldest element.
+	 * Asks for a new sample of the bytes used by the cache (after evictions).
+	 */
+	public void refreshCacheSize();
+	/**
+	 * Retrieves the element the eviction policy would evict next.
 	 * @return
 	 */
 	public Map<String, String> getOldestElement();
 	/**
-	 * Deletes the oldest element.
+	 * Evicts the element the eviction policy would evict next.
 	 */
 	public void deleteOldestElement();
+	/**
+	 * Evicts up to count elements picked by the eviction policy.
+	 * @return the number of evicted elements.
+	 */
+	public int evict(int count);
+	/**
+	 * Checks if the id belongs to the app's users, audio, images, video or
+	 * storage (type), in constant time.
+	 */
+	public boolean existsInApp(String appId, String type, String id);
 	/**
 	 * Returns all the cached element ids.
 	 */
 	public Set<String> allCachedElements();
+	/**
+	 * Bulk loads entities read from the aux database, the ones already
+	 * cached are skipped. Each entity holds its fields plus "_id" and
+	 * "appId".
+	 * @param type apps, users, audio, images, video or storage.
+	 * @return the number of entities written.
+	 */
+	public int warm(String type, List<Map<String, String>> entities);
+	/**
+	 * Salt and hash of a cached user as raw bytes.
+	 * @return {salt, hash}, null if the user is not cached.
+	 */
+	public byte[][] getUserCredentials(String appId, String userId);
+	/**
+	 * Drops one entity from the cache, reads reload it from the aux database.
+	 * @param type apps, users, audio, images, video or storage.
+	 * @param id the appId for apps.
+	 */
+	public void evictElement(String type, String appId, String id);
 	void destroyPool();
 }
@@ -0,0 +1,180 @@
+package dataModels;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPubSub;
+import redis.clients.jedis.exceptions.JedisException;
+
+/**
+ * Keeps the near caches of every node coherent. A write invalidates the local
+ * entry and publishes "region|key" on a redis channel, every node subscribed
+ * to it drops that key from the near cache registered for the region.
+ *
+ * Other state shared by the nodes registers a Listener for its region, it is
+ * told the key that changed.
+ *
+ * Pub/sub does not keep messages for disconnected subscribers, so the near
+ * caches are cleared every time the subscription is (re)established, and the
+ * listeners are told that anything may have changed (a null key). The near
+ * cache TTL bounds anything else that gets lost.
+ *
+ */
+public class CacheInvalidationBus implements Runnable {
+
+	public interface Listener {
+		/**
+		 * @param key
+		 *            null if any key of the region may have changed.
+		 */
+		void invalidated(String key);
+	}
+
+	private static final String SEPARATOR = "|";
+	private static final long RECONNECTDELAY = 1000; // milliseconds
+	private final String host;
+	private final int port;
+	private final String channel;
+	private final JedisPool pool;
+	private final Map<String, NearCache<?>> regions = new ConcurrentHashMap<String, NearCache<?>>();
+	private final Map<String, Listener> listeners = new ConcurrentHashMap<String, Listener>();
+	private volatile boolean running = false;
+	private volatile JedisPubSub subscriber;
+	private Thread thread;
+
+	public CacheInvalidationBus(String host, int port, String channel) {
+		this.host = host;
+		this.port = port;
+		this.channel = channel;
+		this.pool = RedisPools.getPool(host, port);
+	}
+
+	public void register(String region, NearCache<?> cache) {
+		regions.put(region, cache);
+	}
+
+	public void register(String region, Listener listener) {
+		listeners.put(region, listener);
+	}
+
+	public synchronized void start() {
+		if (running)
+			return;
+		running = true;
+		thread = new Thread(this, "cache-invalidation");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public synchronized void stop() {
+		running = false;
+		JedisPubSub current = subscriber;
+		if (current != null && current.isSubscribed())
+			current.unsubscribe();
+		thread = null;
+	}
+
+	/**
+	 * Drops the key from the local near cache and tells the other nodes to do
+	 * the same.
+	 *
+	 * @param region
+	 * @param key
+	 */
+	public void invalidate(String region, String key) {
+		invalidateLocally(region, key);
+		Jedis jedis = null;
+		try {
+			jedis = pool.getResource();
+			jedis.publish(channel, region + SEPARATOR + key);
+		} catch (JedisException e) {
+			// the other nodes will drop it when the entry expires.
+			System.out.println("Could not publish the invalidation of " + key
+					+ ": " + e.getMessage());
+		} finally {
+			if (jedis != null)
+				pool.returnResource(jedis);
+		}
+	}
+
+	private void invalidateLocally(String region, String key) {
+		NearCache<?> cache = regions.get(region);
+		if (cache != null)
+			cache.invalidate(key);
+		Listener listener = listeners.get(region);
+		if (listener != null)
+			notify(listener, key);
+	}
+
+	private void clearAll() {
+		for (NearCache<?> cache : regions.values())
+			cache.clear();
+		for (Listener listener : listeners.values())
+			notify(listener, null);
+	}
+
+	private static void notify(Listener listener, String key) {
+		try {
+			listener.invalidated(key);
+		} catch (RuntimeException e) {
+			// the subscription must go on.
+			System.out.println("Cache invalidation listener failed: "
+					+ e.getMessage());
+		}
+	}
+
+	/**
+	 * Subscription loop, a subscribed connection can't be used for anything
+	 * else so it has its own connection instead of a pooled one.
+	 */
+	public void run() {
+		while (running) {
+			Jedis jedis = new Jedis(host, port, 0);
+			subscriber = new JedisPubSub() {
+				public void onMessage(String channel, String message) {
+					int separator = message.indexOf(SEPARATOR);
+					if (separator > 0)
+						invalidateLocally(message.substring(0, separator),
+								message.substring(separator + 1));
+				}
+
+				public void onSubscribe(String channel, int subscribedChannels) {
+					clearAll();
+				}
+
+				public void onPMessage(String pattern, String channel,
+						String message) {
+				}
+
+				public void onUnsubscribe(String channel, int subscribedChannels) {
+				}
+
+				public void onPUnsubscribe(String pattern,
+						int subscribedChannels) {
+				}
+
+				public void onPSubscribe(String pattern, int subscribedChannels) {
+				}
+			};
+			try {
+				jedis.subscribe(subscriber, channel);
+			} catch (JedisException e) {
+				System.out.println("Cache invalidation subscription lost: "
+						+ e.getMessage());
+				clearAll();
+				try {
+					Thread.sleep(RECONNECTDELAY);
+				} catch (InterruptedException e1) {
+					return;
+				}
+			} finally {
+				try {
+					jedis.disconnect();
+				} catch (JedisException e) {
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,139 @@
+package dataModels;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.exceptions.JedisException;
+
+/**
+ * Sampled view of the memory used by a redis instance.
+ *
+ * Asking redis for INFO on every write doubles the round trips and parses the
+ * whole reply each time, so a background thread samples used_memory every
+ * interval and readers only get the last sample (a volatile read). Evictions
+ * can ask for an early sample so the gauge catches up with the freed memory.
+ *
+ */
+public class CacheMemoryGauge implements Runnable {
+
+	/**
+	 * Told about every sample, runs in the sampling thread.
+	 */
+	public interface Listener {
+		public void memorySampled(long usedMemory);
+	}
+
+	private static final String USEDMEMORY = "used_memory";
+	private final JedisPool pool;
+	private final long interval; // milliseconds
+	private final AtomicBoolean refreshPending = new AtomicBoolean(false);
+	private volatile long usedMemory = 0;
+	private volatile long lastSample = 0;
+	private volatile Listener listener;
+	private ScheduledExecutorService executor;
+
+	public CacheMemoryGauge(JedisPool pool, long interval) {
+		this.pool = pool;
+		this.interval = interval;
+	}
+
+	public void setListener(Listener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Takes the first sample and schedules the next ones.
+	 */
+	public synchronized void start() {
+		if (executor != null)
+			return;
+		run();
+		executor = Executors
+				.newSingleThreadScheduledExecutor(new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "cache-memory-gauge");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		executor.scheduleWithFixedDelay(this, interval, interval,
+				TimeUnit.MILLISECONDS);
+	}
+
+	public synchronized void stop() {
+		if (executor != null) {
+			executor.shutdownNow();
+			executor = null;
+		}
+	}
+
+	/**
+	 * Bytes used by redis at the time of the last sample.
+	 *
+	 * @return
+	 */
+	public long getUsedMemory() {
+		return usedMemory;
+	}
+
+	/**
+	 * Time (in millis) of the last successful sample, 0 if there is none.
+	 *
+	 * @return
+	 */
+	public long getLastSample() {
+		return lastSample;
+	}
+
+	/**
+	 * Schedules a sample right away, requests arriving while one is pending
+	 * are merged into it.
+	 */
+	public void requestRefresh() {
+		ScheduledExecutorService current = executor;
+		if (current != null && refreshPending.compareAndSet(false, true))
+			current.execute(this);
+	}
+
+	public void run() {
+		refreshPending.set(false);
+		Jedis jedis = null;
+		boolean sampled = false;
+		try {
+			jedis = pool.getResource();
+			usedMemory = parseUsedMemory(jedis.info());
+			lastSample = System.currentTimeMillis();
+			sampled = true;
+		} catch (JedisException e) {
+			// keep the last sample, the next run will try again.
+			System.out.println("Could not sample the cache size: "
+					+ e.getMessage());
+		} finally {
+			if (jedis != null)
+				pool.returnResource(jedis);
+		}
+		Listener current = listener;
+		if (sampled && current != null) {
+			try {
+				current.memorySampled(usedMemory);
+			} catch (JedisException e) {
+				System.out.println("Cache memory listener failed: "
+						+ e.getMessage());
+			}
+		}
+	}
+
+	static long parseUsedMemory(String info) {
+		String[] lines = info.split("\r\n");
+		for (int i = 0; i < lines.length; i++) {
+			if (lines[i].startsWith(USEDMEMORY + ":"))
+				return Long.parseLong(lines[i].substring(USEDMEMORY.length() + 1));
+		}
+		return 0;
+	}
+}
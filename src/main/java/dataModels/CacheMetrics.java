@@ -0,0 +1,78 @@
+package dataModels;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Outcome counts and latencies of cache reads, per entity type. A read ends
+ * in the near cache, in redis, in the aux database (loaded into redis, or not
+ * when the cache is full) or as a miss everywhere. Counts are the histogram
+ * counts.
+ *
+ */
+public class CacheMetrics {
+
+	public static final int NEARHIT = 0;
+	public static final int REDISHIT = 1;
+	public static final int DATABASEHIT = 2;
+	public static final int CACHEFULLBYPASS = 3;
+	public static final int MISS = 4;
+	private static final String[] OUTCOMES = { "nearHit", "redisHit",
+			"databaseHit", "cacheFullBypass", "miss" };
+	// not modified after the constructor, reads need no locking.
+	private final Map<String, LatencyHistogram[]> histograms = new LinkedHashMap<String, LatencyHistogram[]>();
+
+	public CacheMetrics(String... types) {
+		for (String type : types) {
+			LatencyHistogram[] outcomes = new LatencyHistogram[OUTCOMES.length];
+			for (int i = 0; i < outcomes.length; i++)
+				outcomes[i] = new LatencyHistogram();
+			histograms.put(type, outcomes);
+		}
+	}
+
+	/**
+	 * @param type
+	 * @param outcome
+	 *            NEARHIT, REDISHIT, DATABASEHIT, CACHEFULLBYPASS or MISS.
+	 * @param startNanos
+	 *            System.nanoTime() when the read started.
+	 */
+	public void record(String type, int outcome, long startNanos) {
+		histograms.get(type)[outcome].recordSince(startNanos);
+	}
+
+	public LatencyHistogram getHistogram(String type, int outcome) {
+		return histograms.get(type)[outcome];
+	}
+
+	/**
+	 * Share of the reads of the type answered by a cache.
+	 *
+	 * @param type
+	 * @return
+	 */
+	public double getHitRatio(String type) {
+		LatencyHistogram[] outcomes = histograms.get(type);
+		long hits = outcomes[NEARHIT].getCount()
+				+ outcomes[REDISHIT].getCount();
+		long total = hits;
+		for (int i = DATABASEHIT; i < outcomes.length; i++)
+			total += outcomes[i].getCount();
+		return total == 0 ? 0 : (double) hits / total;
+	}
+
+	public Set<String> getTypes() {
+		return Collections.unmodifiableSet(histograms.keySet());
+	}
+
+	public static String getOutcomeName(int outcome) {
+		return OUTCOMES[outcome];
+	}
+
+	public static int getOutcomes() {
+		return OUTCOMES.length;
+	}
+}
@@ -0,0 +1,81 @@
+package dataModels;
+
+import java.util.Set;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+
+/**
+ * The redis instances of the cache tier, kept in the set "cache:shards" of
+ * the main instance so every node routes the apps to the same instance. The
+ * node that changes the set publishes it on the invalidation bus (region
+ * REGION), every node then reads the set again and rebuilds its ring.
+ *
+ * The first node to start stores the instances it was configured with, the
+ * configuration of the later ones is ignored.
+ *
+ */
+public class CacheShards {
+
+	public static final String REGION = "cacheShards";
+	private static final String KEY = "cache:shards";
+	private final JedisPool pool;
+
+	public CacheShards(String host, int port) {
+		this.pool = RedisPools.getPool(host, port);
+	}
+
+	/**
+	 * @param defaults
+	 *            host:port of the configured instances, stored if there is
+	 *            no membership yet.
+	 * @return host:port of every instance of the tier.
+	 */
+	public Set<String> load(String[] defaults) {
+		Jedis jedis = pool.getResource();
+		try {
+			if (!jedis.exists(KEY))
+				jedis.sadd(KEY, defaults);
+			return jedis.smembers(KEY);
+		} finally {
+			pool.returnResource(jedis);
+		}
+	}
+
+	/**
+	 * @return host:port of every instance of the tier.
+	 */
+	public Set<String> members() {
+		Jedis jedis = pool.getResource();
+		try {
+			return jedis.smembers(KEY);
+		} finally {
+			pool.returnResource(jedis);
+		}
+	}
+
+	public void add(String name) {
+		Jedis jedis = pool.getResource();
+		try {
+			jedis.sadd(KEY, name);
+		} finally {
+			pool.returnResource(jedis);
+		}
+	}
+
+	/**
+	 * @return false if name is the last instance, it is kept.
+	 */
+	public boolean remove(String name) {
+		Jedis jedis = pool.getResource();
+		try {
+			Set<String> members = jedis.smembers(KEY);
+			if (members.size() == 1 && members.contains(name))
+				return false;
+			jedis.srem(KEY, name);
+			return true;
+		} finally {
+			pool.returnResource(jedis);
+		}
+	}
+}
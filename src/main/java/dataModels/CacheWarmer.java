@@ -0,0 +1,250 @@
+package dataModels;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.exceptions.JedisException;
+
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+
+/**
+ * Fills an empty cache from the aux database after a redis restart or a
+ * deploy, so the first requests don't all fall through to it.
+ *
+ * Runs in a background thread, requests are served (read-through) while it
+ * works. Apps go first, then the most recently active users and the most
+ * recent media, each read in batches and written with one pipeline per batch.
+ * It stops once the cache reaches WARMUPWATERMARK of its budget, below the
+ * eviction watermark so warming never evicts. Only one node warms a shared
+ * redis at a time.
+ *
+ */
+public class CacheWarmer implements Runnable {
+
+	private static final String APPS = "apps";
+	private static final String USERS = "users";
+	private static final String[] MEDIA = { "audio", "images", "video",
+			"storage" };
+	private static final String LOCKKEY = "cache:warmup";
+	private static final int WARMUPLOCK = 600; // seconds
+	// takes the lock with its expiry at once, a crash can't leave it forever.
+	private static final String LOCKSCRIPT = "if redis.call('setnx', KEYS[1], ARGV[1]) == 1 then"
+			+ " redis.call('expire', KEYS[1], ARGV[2]) return 1 end return 0";
+	private static final int MAXUSERS = 50000;
+	private static final int MAXMEDIA = 20000; // per type
+	private static final double WARMUPWATERMARK = 0.7;
+	private static final long SHUTDOWNWAIT = 5000; // milliseconds
+	private final MongoDBDataModel database;
+	private final CacheInterface cache;
+	private final JedisPool pool;
+	private final long maxCacheSize; // bytes
+	private final Map<String, AtomicLong> loaded = new HashMap<String, AtomicLong>();
+	private final AtomicLong read = new AtomicLong();
+	private volatile String state = "idle";
+	private volatile long started = 0;
+	private volatile long finished = 0;
+	private volatile boolean stopped = false;
+	private Thread thread;
+
+	public CacheWarmer(String host, int port, MongoDBDataModel database,
+			CacheInterface cache, long maxCacheSize) {
+		this.pool = RedisPools.getPool(host, port);
+		this.database = database;
+		this.cache = cache;
+		this.maxCacheSize = maxCacheSize;
+		loaded.put(APPS, new AtomicLong());
+		loaded.put(USERS, new AtomicLong());
+		for (String type : MEDIA)
+			loaded.put(type, new AtomicLong());
+	}
+
+	public synchronized void start() {
+		if (thread != null)
+			return;
+		thread = new Thread(this, "cache-warmer");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stops loading after the current batch and waits for the lock to be
+	 * released.
+	 */
+	public void stop() {
+		stopped = true;
+		Thread current;
+		synchronized (this) {
+			current = thread;
+		}
+		if (current == null)
+			return;
+		try {
+			current.join(SHUTDOWNWAIT);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	public void run() {
+		boolean locked = false;
+		try {
+			locked = lock();
+			if (!locked)
+				state = "skipped, another node is warming the cache";
+		} catch (JedisException e) {
+			state = "failed: " + e.getMessage();
+		}
+		if (!locked) {
+			System.out.println("Cache warm-up " + state + ".");
+			return;
+		}
+		started = System.currentTimeMillis();
+		try {
+			boolean room = load(APPS, database.getAppsForWarmup());
+			if (room)
+				room = load(USERS, database.getRecentUsers(MAXUSERS));
+			for (int i = 0; room && i < MEDIA.length; i++)
+				room = load(MEDIA[i], database.getRecentMedia(MEDIA[i],
+						MAXMEDIA));
+			if (stopped)
+				state = "stopped";
+			else
+				state = room ? "done" : "done, cache budget reached";
+		} catch (JedisException e) {
+			state = "failed: " + e.getMessage();
+		} catch (MongoException e) {
+			state = "failed: " + e.getMessage();
+		} finally {
+			finished = System.currentTimeMillis();
+			unlock();
+		}
+		System.out.println("Cache warm-up " + state + " in "
+				+ (finished - started) + "ms, " + getLoaded() + " loaded.");
+	}
+
+	/**
+	 * @return false if it stopped because the cache is full or on stop().
+	 */
+	private boolean load(String type, DBCursor cursor) {
+		state = "loading " + type;
+		List<Map<String, String>> batch = new ArrayList<Map<String, String>>();
+		try {
+			while (!stopped && cursor.hasNext()) {
+				batch.add(fields(cursor.next()));
+				if (batch.size() == MongoDBDataModel.WARMUPBATCH) {
+					if (!flush(type, batch))
+						return false;
+					batch.clear();
+				}
+			}
+			return !stopped && flush(type, batch);
+		} finally {
+			cursor.close();
+		}
+	}
+
+	private boolean flush(String type, List<Map<String, String>> batch) {
+		if (cache.getCacheSize() >= maxCacheSize * WARMUPWATERMARK)
+			return false;
+		read.addAndGet(batch.size());
+		int written = cache.warm(type, batch);
+		loaded.get(type).addAndGet(written);
+		if (written > 0) {
+			cache.refreshCacheSize();
+			System.out.println("Cache warm-up: " + loaded.get(type) + " "
+					+ type + " loaded.");
+		}
+		return true;
+	}
+
+	private static Map<String, String> fields(DBObject object) {
+		Map<String, String> fields = new HashMap<String, String>();
+		for (String key : object.keySet()) {
+			Object value = object.get(key);
+			if (value != null)
+				fields.put(key, value.toString());
+		}
+		return fields;
+	}
+
+	private boolean lock() {
+		Jedis jedis = pool.getResource();
+		try {
+			Object locked = jedis.eval(LOCKSCRIPT, 1, LOCKKEY,
+					String.valueOf(System.currentTimeMillis()),
+					String.valueOf(WARMUPLOCK));
+			return Long.valueOf(1).equals(locked);
+		} finally {
+			pool.returnResource(jedis);
+		}
+	}
+
+	private void unlock() {
+		Jedis jedis = null;
+		try {
+			jedis = pool.getResource();
+			jedis.del(LOCKKEY);
+		} catch (JedisException e) {
+			// expires after WARMUPLOCK.
+		} finally {
+			if (jedis != null)
+				pool.returnResource(jedis);
+		}
+	}
+
+	public String getState() {
+		return state;
+	}
+
+	/**
+	 * Entities written to the cache so far.
+	 *
+	 * @return
+	 */
+	public long getLoaded() {
+		long total = 0;
+		for (AtomicLong count : loaded.values())
+			total += count.get();
+		return total;
+	}
+
+	public long getLoaded(String type) {
+		return loaded.get(type).get();
+	}
+
+	/**
+	 * Entities read from the database, cached ones included.
+	 *
+	 * @return
+	 */
+	public long getRead() {
+		return read.get();
+	}
+
+	/**
+	 * @return milliseconds since the warm-up started, or what it took once
+	 *         finished.
+	 */
+	public long getElapsed() {
+		if (started == 0)
+			return 0;
+		return (finished == 0 ? System.currentTimeMillis() : finished)
+				- started;
+	}
+
+	public boolean isFinished() {
+		return finished != 0;
+	}
+
+	public static String[] getTypes() {
+		return new String[] { APPS, USERS, MEDIA[0], MEDIA[1], MEDIA[2],
+				MEDIA[3] };
+	}
+}
@@ -0,0 +1,87 @@
+package dataModels;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import redis.clients.util.MurmurHash;
+
+/**
+ * Consistent hash ring: every node is placed at VIRTUALNODES points of a 64
+ * bit ring and a key belongs to the first point at or after its hash. Adding
+ * a node only moves the keys that land on its points (about 1/N of them),
+ * removing one only moves its own keys.
+ *
+ * Changes rebuild the ring and swap it in, lookups read it without locking.
+ *
+ * @param <T>
+ */
+public class ConsistentHashRing<T> {
+
+	private static final int VIRTUALNODES = 160;
+	private static final int SEED = 0x1234ABCD;
+	private final Map<String, T> nodes = new LinkedHashMap<String, T>();
+	private volatile TreeMap<Long, T> ring = new TreeMap<Long, T>();
+
+	private static long hash(String key) {
+		byte[] bytes;
+		try {
+			bytes = key.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			bytes = key.getBytes();
+		}
+		return MurmurHash.hash64A(bytes, SEED);
+	}
+
+	/**
+	 * @param name
+	 *            stable name of the node (host:port), its points depend only
+	 *            on it.
+	 * @param node
+	 */
+	public synchronized void add(String name, T node) {
+		nodes.put(name, node);
+		rebuild();
+	}
+
+	public synchronized T remove(String name) {
+		T node = nodes.remove(name);
+		rebuild();
+		return node;
+	}
+
+	private void rebuild() {
+		TreeMap<Long, T> points = new TreeMap<Long, T>();
+		for (Map.Entry<String, T> node : nodes.entrySet())
+			for (int i = 0; i < VIRTUALNODES; i++)
+				points.put(hash(node.getKey() + "#" + i), node.getValue());
+		ring = points;
+	}
+
+	/**
+	 * @param key
+	 * @return the node owning the key, null on an empty ring.
+	 */
+	public T get(String key) {
+		TreeMap<Long, T> points = ring;
+		if (points.isEmpty())
+			return null;
+		Map.Entry<Long, T> point = points.ceilingEntry(hash(key));
+		return (point != null ? point : points.firstEntry()).getValue();
+	}
+
+	public synchronized T getNode(String name) {
+		return nodes.get(name);
+	}
+
+	public synchronized List<T> getNodes() {
+		return new ArrayList<T>(nodes.values());
+	}
+
+	public synchronized int size() {
+		return nodes.size();
+	}
+}
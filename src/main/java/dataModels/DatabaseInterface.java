@@ -4,8 +4,10 @@ import modelInterfaces.Application;
 
 import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -431,6 +433,42 @@ public interface DatabaseInterface {
 	 */
 	public Set<String> getAllMediaIds(String appId);
 
+	/**
+	 * Retrieves a page of identifiers, in a stable order.
+	 * 
+	 * @param type
+	 *            apps, users, audio, images, video, storage or media (images,
+	 *            audio and video).
+	 * @param appId
+	 *            ignored for apps.
+	 * @param token
+	 *            next token of the previous page, null for the first page.
+	 * @param limit
+	 * @return
+	 * @throws IllegalArgumentException
+	 *             if the token is malformed.
+	 */
+	public IdPage getIdPage(String type, String appId, String token, int limit);
+
+	/**
+	 * Finds which of the emails are already used in the app.
+	 * 
+	 * @param appId
+	 * @param emails
+	 * @return the emails in use.
+	 */
+	public Set<String> getExistingEmails(String appId, Collection<String> emails);
+
+	/**
+	 * Creates many users at once, for imports.
+	 * 
+	 * @param users
+	 *            in the shape MongoDBDataModel stores them: _id, appId, salt
+	 *            and hash as ISO-8859-1 text...
+	 * @return the ids of the users created.
+	 */
+	public Set<String> createUsers(List<Map<String, String>> users);
+
 	public void updateUserLocationAndDate(String userId, String appId,
 			String sessionToken, String location, String date);
 
@@ -464,4 +502,4 @@ public interface DatabaseInterface {
 	public boolean updateUserPassword(String appId, String userId, byte[] hash,
 			byte[] salt) throws UnsupportedEncodingException;
 
-}
\ No newline at end of file
+}
\ No newline at end of file
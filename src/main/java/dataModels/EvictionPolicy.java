@@ -0,0 +1,70 @@
+package dataModels;
+
+import java.util.List;
+import java.util.Set;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+
+/**
+ * Decides which cached elements leave redis when the cache runs out of
+ * memory.
+ * 
+ * Elements are named "type:appId:id" (type being apps, users, audio, images,
+ * video or storage, apps use their appId as id) so every entity is tracked the
+ * same way. Bookkeeping is queued in the caller's pipeline, it never costs a
+ * round trip of its own.
+ * 
+ */
+public interface EvictionPolicy {
+	/**
+	 * An element was added to the cache.
+	 * 
+	 * @param pipeline
+	 * @param element
+	 */
+	public void recordWrite(Pipeline pipeline, String element);
+
+	/**
+	 * An element was read or updated in the cache.
+	 * 
+	 * @param pipeline
+	 * @param element
+	 */
+	public void recordAccess(Pipeline pipeline, String element);
+
+	/**
+	 * Stops tracking the element (it was deleted or evicted).
+	 * 
+	 * @param pipeline
+	 * @param element
+	 */
+	public void forget(Pipeline pipeline, String element);
+
+	/**
+	 * Picks up to count elements to evict, the least valuable first.
+	 * 
+	 * @param jedis
+	 * @param count
+	 * @return
+	 */
+	public List<String> selectVictims(Jedis jedis, int count);
+
+	/**
+	 * Same as selectVictims among the elements of one app.
+	 * 
+	 * @param jedis
+	 * @param appId
+	 * @param count
+	 * @return
+	 */
+	public List<String> selectVictims(Jedis jedis, String appId, int count);
+
+	/**
+	 * Returns every tracked element.
+	 * 
+	 * @param jedis
+	 * @return
+	 */
+	public Set<String> elements(Jedis jedis);
+}
@@ -0,0 +1,174 @@
+package dataModels;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import redis.clients.jedis.JedisPool;
+
+/**
+ * Bloom filters answering "definitely absent" for apps, user emails and user
+ * identifiers, so lookups of ids that don't exist don't reach the database.
+ *
+ * The filters are filled from the database the first time (and again if
+ * redis loses them), a background check looks for that every
+ * REBUILDINTERVAL. Creates add to them before writing.
+ *
+ */
+public class ExistenceFilters implements Runnable {
+
+	private static final long EXPECTEDAPPS = 10000;
+	private static final long EXPECTEDUSERS = 200000;
+	private static final double FALSEPOSITIVERATE = 0.01;
+	private static final int REBUILDLOCK = 600; // seconds
+	private static final long REBUILDINTERVAL = 60; // seconds
+	private final BloomFilter apps;
+	private final BloomFilter emails;
+	private final BloomFilter identifiers;
+	private final MongoDBDataModel database;
+	private ScheduledExecutorService executor;
+
+	public ExistenceFilters(String host, int port, MongoDBDataModel database) {
+		JedisPool pool = RedisPools.getPool(host, port);
+		this.apps = new BloomFilter(pool, "bloom:apps", EXPECTEDAPPS,
+				FALSEPOSITIVERATE);
+		this.emails = new BloomFilter(pool, "bloom:users:emails",
+				EXPECTEDUSERS, FALSEPOSITIVERATE);
+		this.identifiers = new BloomFilter(pool, "bloom:users:ids",
+				EXPECTEDUSERS, FALSEPOSITIVERATE);
+		this.database = database;
+	}
+
+	static String appElement(String appId) {
+		return appId;
+	}
+
+	static String userElement(String appId, String id) {
+		return appId + ":" + id;
+	}
+
+	public synchronized void start() {
+		if (executor != null)
+			return;
+		executor = Executors
+				.newSingleThreadScheduledExecutor(new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "existence-filters");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		executor.scheduleWithFixedDelay(this, 0, REBUILDINTERVAL,
+				TimeUnit.SECONDS);
+	}
+
+	public synchronized void stop() {
+		if (executor != null) {
+			executor.shutdownNow();
+			executor = null;
+		}
+	}
+
+	/**
+	 * Fills the filters from the database if they are not ready and no other
+	 * node is doing it.
+	 */
+	public void run() {
+		boolean locked = false;
+		try {
+			if (apps.isReady() && emails.isReady() && identifiers.isReady())
+				return;
+			if (!apps.lockRebuild(REBUILDLOCK))
+				return;
+			locked = true;
+			long start = System.currentTimeMillis();
+			database.fillExistenceFilters(this);
+			apps.markReady();
+			emails.markReady();
+			identifiers.markReady();
+			System.out.println("Existence filters rebuilt in "
+					+ (System.currentTimeMillis() - start) + "ms.");
+		} catch (RuntimeException e) {
+			// redis or mongo, an exception would cancel the next runs.
+			System.out.println("Could not rebuild the existence filters: "
+					+ e.getMessage());
+			if (locked)
+				unlockRebuild();
+		}
+	}
+
+	/**
+	 * Lets the next run, here or on another node, retry the rebuild.
+	 */
+	private void unlockRebuild() {
+		try {
+			apps.unlockRebuild();
+		} catch (RuntimeException e) {
+			System.out.println("Could not release the existence filters rebuild: "
+					+ e.getMessage());
+		}
+	}
+
+	public void addApp(String appId) {
+		apps.add(appElement(appId));
+	}
+
+	/**
+	 * @param appId
+	 * @param userId
+	 * @param email
+	 *            null if only the identifier is new.
+	 */
+	public void addUser(String appId, String userId, String email) {
+		if (userId != null)
+			identifiers.add(userElement(appId, userId));
+		if (email != null)
+			emails.add(userElement(appId, email));
+	}
+
+	/**
+	 * Adds many users with one write per filter, for imports.
+	 * 
+	 * @param appId
+	 * @param userIds
+	 * @param userEmails
+	 */
+	public void addUsers(String appId, List<String> userIds,
+			List<String> userEmails) {
+		List<String> elements = new ArrayList<String>();
+		for (String userId : userIds)
+			elements.add(userElement(appId, userId));
+		identifiers.addAll(elements);
+		elements.clear();
+		for (String email : userEmails)
+			elements.add(userElement(appId, email));
+		emails.addAll(elements);
+	}
+
+	public boolean mightHaveApp(String appId) {
+		return apps.mightContain(appElement(appId));
+	}
+
+	public boolean mightHaveEmail(String appId, String email) {
+		return emails.mightContain(userElement(appId, email));
+	}
+
+	public boolean mightHaveIdentifier(String appId, String userId) {
+		return identifiers.mightContain(userElement(appId, userId));
+	}
+
+	public BloomFilter getApps() {
+		return apps;
+	}
+
+	public BloomFilter getEmails() {
+		return emails;
+	}
+
+	public BloomFilter getIdentifiers() {
+		return identifiers;
+	}
+}
@@ -0,0 +1,102 @@
+package dataModels;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+
+/**
+ * Ratio between hits and age: a newer element with 1000 hits is kept over an
+ * older one with 1001 hits.
+ *
+ * Hits and insertion times are kept in two sorted sets. The ratio changes as
+ * time goes by so it can't be a score, instead the candidates are the least
+ * hit and the oldest elements (SAMPLEFACTOR times the number of victims of
+ * each) and the ones with the lowest hits per second are evicted. Every app
+ * also has its own pair of sets, to pick victims among its elements only.
+ *
+ */
+public class HitsOverAgeEvictionPolicy implements EvictionPolicy {
+
+	private static final String HITSSET = "cache:hits";
+	private static final String BORNSET = "cache:born";
+	private static final int SAMPLEFACTOR = 4;
+
+	private static String appSet(String set, String element) {
+		return set + ":" + element.split(":", 3)[1];
+	}
+
+	public void recordWrite(Pipeline pipeline, String element) {
+		long now = System.currentTimeMillis();
+		pipeline.zadd(BORNSET, now, element);
+		pipeline.zincrby(HITSSET, 1, element);
+		pipeline.zadd(appSet(BORNSET, element), now, element);
+		pipeline.zincrby(appSet(HITSSET, element), 1, element);
+	}
+
+	public void recordAccess(Pipeline pipeline, String element) {
+		pipeline.zincrby(HITSSET, 1, element);
+		pipeline.zincrby(appSet(HITSSET, element), 1, element);
+	}
+
+	public void forget(Pipeline pipeline, String element) {
+		pipeline.zrem(BORNSET, element);
+		pipeline.zrem(HITSSET, element);
+		pipeline.zrem(appSet(BORNSET, element), element);
+		pipeline.zrem(appSet(HITSSET, element), element);
+	}
+
+	public List<String> selectVictims(Jedis jedis, int count) {
+		return selectVictims(jedis, HITSSET, BORNSET, count);
+	}
+
+	public List<String> selectVictims(Jedis jedis, String appId, int count) {
+		return selectVictims(jedis, HITSSET + ":" + appId, BORNSET + ":"
+				+ appId, count);
+	}
+
+	private List<String> selectVictims(Jedis jedis, String hitsSet,
+			String bornSet, int count) {
+		int sample = count * SAMPLEFACTOR;
+		Set<String> candidates = new LinkedHashSet<String>();
+		candidates.addAll(jedis.zrange(hitsSet, 0, sample - 1));
+		candidates.addAll(jedis.zrange(bornSet, 0, sample - 1));
+		Map<String, Response<Double>> hits = new HashMap<String, Response<Double>>();
+		Map<String, Response<Double>> born = new HashMap<String, Response<Double>>();
+		Pipeline pipeline = jedis.pipelined();
+		for (String element : candidates) {
+			hits.put(element, pipeline.zscore(hitsSet, element));
+			born.put(element, pipeline.zscore(bornSet, element));
+		}
+		pipeline.sync();
+		long now = System.currentTimeMillis();
+		final Map<String, Double> ratios = new HashMap<String, Double>();
+		for (String element : candidates) {
+			Double elementHits = hits.get(element).get();
+			Double elementBorn = born.get(element).get();
+			double age = elementBorn == null ? 1 : Math.max(now - elementBorn, 1);
+			ratios.put(element, (elementHits == null ? 0 : elementHits) / age);
+		}
+		List<String> victims = new ArrayList<String>(candidates);
+		Collections.sort(victims, new Comparator<String>() {
+			public int compare(String a, String b) {
+				return ratios.get(a).compareTo(ratios.get(b));
+			}
+		});
+		if (victims.size() > count)
+			return new ArrayList<String>(victims.subList(0, count));
+		return victims;
+	}
+
+	public Set<String> elements(Jedis jedis) {
+		return jedis.zrange(BORNSET, 0, -1);
+	}
+}
@@ -0,0 +1,98 @@
+package dataModels;
+
+import java.io.UnsupportedEncodingException;
+import java.util.List;
+
+import javax.xml.bind.DatatypeConverter;
+
+import org.codehaus.jettison.json.JSONArray;
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+
+/**
+ * One page of a listing of identifiers and the token to read the next one.
+ *
+ * The token is opaque to clients, it encodes where the listing stopped: the
+ * last id for the databases, the SSCAN cursor for redis. It is only valid for
+ * the listing that returned it. Ids created or deleted between two pages may
+ * be missed, an id is never returned twice by a database listing.
+ *
+ */
+public class IdPage {
+
+	public static final int DEFAULTLIMIT = 100;
+	public static final int MAXLIMIT = 1000;
+	private final List<String> ids;
+	private final String next;
+
+	/**
+	 * @param ids
+	 * @param position
+	 *            where the next page starts, null if this is the last page.
+	 */
+	public IdPage(List<String> ids, String position) {
+		this.ids = ids;
+		this.next = position == null ? null : DatatypeConverter
+				.printHexBinary(bytes(position));
+	}
+
+	/**
+	 * @param token
+	 *            the next token of the previous page, null for the first.
+	 * @return the position encoded in the token, null for the first page.
+	 * @throws IllegalArgumentException
+	 *             if the token is malformed.
+	 */
+	public static String position(String token) {
+		if (token == null)
+			return null;
+		try {
+			return new String(DatatypeConverter.parseHexBinary(token), "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * @param limit
+	 *            requested page size, 0 or less for the default.
+	 * @return the page size to use, at most MAXLIMIT.
+	 */
+	public static int limit(int limit) {
+		if (limit <= 0)
+			return DEFAULTLIMIT;
+		return Math.min(limit, MAXLIMIT);
+	}
+
+	private static byte[] bytes(String value) {
+		try {
+			return value.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	public List<String> getIds() {
+		return ids;
+	}
+
+	/**
+	 * @return the token of the next page, null if this is the last one.
+	 */
+	public String getNext() {
+		return next;
+	}
+
+	/**
+	 * @return {"ids": [...], "next": token}, next is left out on the last
+	 *         page.
+	 * @throws JSONException
+	 */
+	public JSONObject toJSON() throws JSONException {
+		JSONObject json = new JSONObject();
+		json.put("ids", new JSONArray(ids));
+		if (next != null)
+			json.put("next", next);
+		return json;
+	}
+}
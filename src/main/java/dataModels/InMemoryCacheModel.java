@@ -0,0 +1,248 @@
+package dataModels;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * CacheInterface kept in memory, the counterpart of InMemoryDataModel for the
+ * cache tier.
+ *
+ * The memory used is the sum of the estimated sizes of the entities, counted
+ * as they are written. Elements are named "type:appId:id" like in
+ * RedisDataModel and evicted least recently used first, once the size
+ * crosses EVICTIONWATERMARK of the budget. Apps are deleted by marking them
+ * dead, as in redis.
+ *
+ */
+public class InMemoryCacheModel extends InMemoryDataModel implements
+		CacheInterface {
+
+	private static final int EVICTIONBATCH = 50;
+	private static final double EVICTIONWATERMARK = 0.9;
+	private static final long ELEMENTOVERHEAD = 96; // bytes
+	private static final long FIELDOVERHEAD = 16; // bytes
+	private final long maxCacheSize;
+	private volatile boolean persistent = false;
+	private final AtomicLong cacheSize = new AtomicLong();
+	private final AtomicLong clock = new AtomicLong();
+	// element -> estimated bytes
+	private final ConcurrentHashMap<String, Long> sizes = new ConcurrentHashMap<String, Long>();
+	// element -> clock value of the last access
+	private final ConcurrentHashMap<String, Long> accesses = new ConcurrentHashMap<String, Long>();
+
+	/**
+	 * @param maxCacheSize
+	 *            memory budget in bytes, elements are evicted past it.
+	 */
+	public InMemoryCacheModel(long maxCacheSize) {
+		this.maxCacheSize = maxCacheSize;
+	}
+
+	/**
+	 * For when there is no aux database: nothing is evicted past the budget.
+	 * 
+	 * @param persistent
+	 */
+	public void setPersistent(boolean persistent) {
+		this.persistent = persistent;
+	}
+
+	private static String element(String type, String appId, String id) {
+		return type + ":" + appId + ":" + id;
+	}
+
+	private static long estimateSize(String type, Map<String, String> entity) {
+		long size = ELEMENTOVERHEAD + type.length()
+				+ entity.get("_id").length();
+		for (Entry<String, String> field : entity.entrySet())
+			size += FIELDOVERHEAD + field.getKey().length()
+					+ field.getValue().length();
+		return size;
+	}
+
+	private void account(String element, Map<String, String> entity) {
+		long size = estimateSize(element.split(":", 2)[0], entity);
+		Long previous = sizes.put(element, size);
+		cacheSize.addAndGet(size - (previous == null ? 0 : previous));
+	}
+
+	@Override
+	protected Map<String, String> find(String type, String appId, String id) {
+		Map<String, String> entity = super.find(type, appId, id);
+		if (entity != null)
+			accesses.put(element(type, appId, id), clock.incrementAndGet());
+		return entity;
+	}
+
+	@Override
+	protected Map<String, String> insert(String type, String appId,
+			String id, Map<String, String> fields) {
+		Map<String, String> entity = super.insert(type, appId, id, fields);
+		if (entity != null) {
+			String element = element(type, appId, id);
+			accesses.put(element, clock.incrementAndGet());
+			account(element, entity);
+			if (!persistent
+					&& cacheSize.get() > maxCacheSize * EVICTIONWATERMARK)
+				evict(EVICTIONBATCH);
+		}
+		return entity;
+	}
+
+	@Override
+	protected Map<String, String> update(String type, String appId,
+			String id, Map<String, String> changes) {
+		Map<String, String> entity = super.update(type, appId, id, changes);
+		if (entity != null) {
+			String element = element(type, appId, id);
+			accesses.put(element, clock.incrementAndGet());
+			account(element, entity);
+		}
+		return entity;
+	}
+
+	@Override
+	protected Map<String, String> remove(String type, String appId, String id) {
+		Map<String, String> entity = super.remove(type, appId, id);
+		if (entity != null) {
+			String element = element(type, appId, id);
+			accesses.remove(element);
+			Long size = sizes.remove(element);
+			if (size != null)
+				cacheSize.addAndGet(-size);
+		}
+		return entity;
+	}
+
+	/**
+	 * Marks the app dead, it stays cached like in redis.
+	 */
+	@Override
+	public boolean deleteApp(String appId) {
+		Map<String, String> fields = new HashMap<String, String>();
+		fields.put("alive", "false");
+		return update(APPS, appId, appId, fields) != null;
+	}
+
+	/**
+	 * @return the live apps.
+	 */
+	@Override
+	public Set<String> getAllAppIds() {
+		Set<String> appIds = new HashSet<String>();
+		for (String appId : super.getAllAppIds()) {
+			Map<String, String> app = super.find(APPS, appId, appId);
+			if (app != null && "true".equals(app.get("alive")))
+				appIds.add(appId);
+		}
+		return appIds;
+	}
+
+	public long getCacheSize() {
+		return cacheSize.get();
+	}
+
+	public void refreshCacheSize() {
+		// the size is exact, nothing to sample.
+	}
+
+	/**
+	 * @return up to count elements, the least recently used first.
+	 */
+	private List<String> leastRecentlyUsed(int count) {
+		PriorityQueue<Entry<String, Long>> newest = new PriorityQueue<Entry<String, Long>>(
+				count + 1, new Comparator<Entry<String, Long>>() {
+					public int compare(Entry<String, Long> a,
+							Entry<String, Long> b) {
+						return b.getValue().compareTo(a.getValue());
+					}
+				});
+		for (Entry<String, Long> access : accesses.entrySet()) {
+			newest.add(access);
+			if (newest.size() > count)
+				newest.poll();
+		}
+		List<String> elements = new ArrayList<String>();
+		while (!newest.isEmpty())
+			elements.add(0, newest.poll().getKey());
+		return elements;
+	}
+
+	public Map<String, String> getOldestElement() {
+		List<String> oldest = leastRecentlyUsed(1);
+		if (oldest.isEmpty())
+			return null;
+		String[] splitted = oldest.get(0).split(":", 3);
+		Map<String, String> entity = super.find(splitted[0], splitted[1],
+				splitted[2]);
+		return entity == null ? null : new HashMap<String, String>(entity);
+	}
+
+	public void deleteOldestElement() {
+		evict(1);
+	}
+
+	public int evict(int count) {
+		int evicted = 0;
+		for (String element : leastRecentlyUsed(count)) {
+			String[] splitted = element.split(":", 3);
+			if (remove(splitted[0], splitted[1], splitted[2]) != null)
+				evicted++;
+			else
+				// read while it was being removed
+				accesses.remove(element);
+		}
+		return evicted;
+	}
+
+	public void evictElement(String type, String appId, String id) {
+		remove(type, appId, id);
+	}
+
+	public boolean existsInApp(String appId, String type, String id) {
+		return contains(type, appId, id);
+	}
+
+	public Set<String> allCachedElements() {
+		return new HashSet<String>(accesses.keySet());
+	}
+
+	public int warm(String type, List<Map<String, String>> entities) {
+		int written = 0;
+		for (Map<String, String> entity : entities) {
+			Map<String, String> fields = new HashMap<String, String>(entity);
+			String id = fields.remove("_id");
+			String appId = fields.remove("appId");
+			if (insert(type, type.equals(APPS) ? id : appId, id, fields) != null)
+				written++;
+		}
+		return written;
+	}
+
+	public byte[][] getUserCredentials(String appId, String userId) {
+		Map<String, String> user = find(USERS, appId, userId);
+		if (user == null || user.get("salt") == null
+				|| user.get("hash") == null)
+			return null;
+		try {
+			return new byte[][] { user.get("salt").getBytes("ISO-8859-1"),
+					user.get("hash").getBytes("ISO-8859-1") };
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	public void destroyPool() {
+		// no connections to close.
+	}
+}
@@ -0,0 +1,596 @@
+package dataModels;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * DatabaseInterface kept in memory, to benchmark the REST and middle layers
+ * without the cost of a database.
+ *
+ * Every entity is a map of the fields MongoDBDataModel stores ("_id",
+ * "appId"...) in a ConcurrentHashMap per type, next to an index of the ids of
+ * each app. Entity maps are never modified: updates swap in a new map, so
+ * readers never see half an update.
+ *
+ */
+public class InMemoryDataModel implements DatabaseInterface {
+
+	static final String APPS = "apps";
+	static final String USERS = "users";
+	static final String AUDIO = "audio";
+	static final String IMAGES = "images";
+	static final String VIDEO = "video";
+	static final String STORAGE = "storage";
+	private static final String STORAGEFOLDER = "storage";
+	private static final String MEDIAFOLDER = "media";
+	private static final String CONFIRMUSERSEMAIL = "confirmUsersEmail";
+	// one map per type, filled in the constructor and only read afterwards
+	private final Map<String, ConcurrentMap<String, Map<String, String>>> collections = new HashMap<String, ConcurrentMap<String, Map<String, String>>>();
+	// appId:type -> ids, sorted for paging
+	private final ConcurrentMap<String, NavigableSet<String>> members = new ConcurrentHashMap<String, NavigableSet<String>>();
+
+	public InMemoryDataModel() {
+		for (String type : new String[] { APPS, USERS, AUDIO, IMAGES, VIDEO,
+				STORAGE })
+			collections.put(type,
+					new ConcurrentHashMap<String, Map<String, String>>());
+	}
+
+	private NavigableSet<String> members(String appId, String type) {
+		String key = appId + ":" + type;
+		NavigableSet<String> ids = members.get(key);
+		if (ids == null) {
+			NavigableSet<String> created = new ConcurrentSkipListSet<String>();
+			ids = members.putIfAbsent(key, created);
+			if (ids == null)
+				ids = created;
+		}
+		return ids;
+	}
+
+	/**
+	 * @return the entity, null if it doesn't exist or belongs to another app.
+	 */
+	private Map<String, String> get(String type, String appId, String id) {
+		Map<String, String> entity = collections.get(type).get(id);
+		if (entity == null
+				|| (!type.equals(APPS) && !appId.equals(entity.get("appId"))))
+			return null;
+		return entity;
+	}
+
+	/**
+	 * Checks an entity without reading it.
+	 */
+	protected boolean contains(String type, String appId, String id) {
+		return get(type, appId, id) != null;
+	}
+
+	/**
+	 * Reads an entity.
+	 *
+	 * @return the entity, not to be modified, null if it doesn't exist.
+	 */
+	protected Map<String, String> find(String type, String appId, String id) {
+		return get(type, appId, id);
+	}
+
+	/**
+	 * @param fields
+	 *            null values are left out.
+	 * @return the new entity, null if the id is taken.
+	 */
+	protected Map<String, String> insert(String type, String appId,
+			String id, Map<String, String> fields) {
+		Map<String, String> entity = new HashMap<String, String>();
+		for (Entry<String, String> field : fields.entrySet())
+			if (field.getValue() != null)
+				entity.put(field.getKey(), field.getValue());
+		entity.put("_id", id);
+		if (!type.equals(APPS))
+			entity.put("appId", appId);
+		entity = Collections.unmodifiableMap(entity);
+		if (collections.get(type).putIfAbsent(id, entity) != null)
+			return null;
+		if (!type.equals(APPS))
+			members(appId, type).add(id);
+		return entity;
+	}
+
+	/**
+	 * Swaps in a copy of the entity with the changes, retried when the entity
+	 * changed in between.
+	 *
+	 * @param changes
+	 *            null values remove the field.
+	 * @return the updated entity, null if it doesn't exist.
+	 */
+	protected Map<String, String> update(String type, String appId,
+			String id, Map<String, String> changes) {
+		ConcurrentMap<String, Map<String, String>> collection = collections
+				.get(type);
+		while (true) {
+			Map<String, String> current = get(type, appId, id);
+			if (current == null)
+				return null;
+			Map<String, String> updated = new HashMap<String, String>(current);
+			for (Entry<String, String> change : changes.entrySet())
+				if (change.getValue() == null)
+					updated.remove(change.getKey());
+				else
+					updated.put(change.getKey(), change.getValue());
+			updated = Collections.unmodifiableMap(updated);
+			if (collection.replace(id, current, updated))
+				return updated;
+		}
+	}
+
+	/**
+	 * @return the removed entity, null if it doesn't exist.
+	 */
+	protected Map<String, String> remove(String type, String appId, String id) {
+		Map<String, String> current = get(type, appId, id);
+		if (current == null || !collections.get(type).remove(id, current))
+			return null;
+		if (!type.equals(APPS))
+			members(appId, type).remove(id);
+		return current;
+	}
+
+	private Map<String, String> copy(Map<String, String> entity) {
+		return entity == null ? null : new HashMap<String, String>(entity);
+	}
+
+	private String field(String type, String appId, String id, String field) {
+		Map<String, String> entity = find(type, appId, id);
+		return entity == null ? null : entity.get(field);
+	}
+
+	private static Map<String, String> fields(String... namesAndValues) {
+		Map<String, String> fields = new HashMap<String, String>();
+		for (int i = 0; i + 1 < namesAndValues.length; i += 2)
+			fields.put(namesAndValues[i], namesAndValues[i + 1]);
+		return fields;
+	}
+
+	/**
+	 * @return the first user of the app with the value in the field, null if
+	 *         there is none.
+	 */
+	private Map<String, String> findUserBy(String appId, String field,
+			String value) {
+		for (String userId : members(appId, USERS)) {
+			Map<String, String> user = get(USERS, appId, userId);
+			if (user != null && value != null && value.equals(user.get(field)))
+				return user;
+		}
+		return null;
+	}
+
+	// *** APPS *** //
+
+	@Override
+	public boolean createApp(String appId, String appName,
+			String creationDate, boolean userEmailConfirmation) {
+		return insert(APPS, appId, appId, fields("alive", "true",
+				"creationDate", creationDate, "appName", appName,
+				CONFIRMUSERSEMAIL, "" + userEmailConfirmation)) != null;
+	}
+
+	@Override
+	public boolean deleteApp(String appId) {
+		remove(APPS, appId, appId);
+		return true;
+	}
+
+	@Override
+	public boolean updateAllAppFields(String currentId, String alive,
+			String newAppName, boolean confirmUsersEmail) {
+		return update(APPS, currentId, currentId, fields("appName",
+				newAppName, "alive", alive, CONFIRMUSERSEMAIL, ""
+						+ confirmUsersEmail)) != null;
+	}
+
+	@Override
+	public Map<String, String> getApplication(String appId) {
+		return copy(find(APPS, appId, appId));
+	}
+
+	@Override
+	public boolean appExists(String appId) {
+		return contains(APPS, appId, appId);
+	}
+
+	@Override
+	public Set<String> getAllAppIds() {
+		return new HashSet<String>(collections.get(APPS).keySet());
+	}
+
+	@Override
+	public String convertAppIdToAppName(String appId) {
+		return field(APPS, appId, appId, "appName");
+	}
+
+	@Override
+	public void reviveApp(String appId) {
+		update(APPS, appId, appId, fields("alive", "true"));
+	}
+
+	@Override
+	public boolean updateAppName(String appId, String newAppName) {
+		return update(APPS, appId, appId, fields("appName", newAppName)) != null;
+	}
+
+	@Override
+	public boolean confirmUsersEmail(String appId) {
+		return Boolean.parseBoolean(field(APPS, appId, appId,
+				CONFIRMUSERSEMAIL));
+	}
+
+	@Override
+	public boolean updateConfirmUsersEmailOption(String appId,
+			Boolean confirmUsersEmail) {
+		return update(APPS, appId, appId, fields(CONFIRMUSERSEMAIL, ""
+				+ confirmUsersEmail)) != null;
+	}
+
+	// *** USERS *** //
+
+	@Override
+	public Set<String> getAllUserIdsForApp(String appId) {
+		return new HashSet<String>(members(appId, USERS));
+	}
+
+	@Override
+	public boolean identifierInUseByUserInApp(String appId, String userId) {
+		return contains(USERS, appId, userId);
+	}
+
+	@Override
+	public boolean userExistsInApp(String appId, String email) {
+		return findUserBy(appId, "email", email) != null;
+	}
+
+	private boolean createUser(String appId, String userId, String userName,
+			String email, byte[] salt, byte[] hash, String creationDate,
+			String userFile, Boolean emailConfirmed)
+			throws UnsupportedEncodingException {
+		Map<String, String> fields = fields("alive", "true", "userName",
+				userName, "email", email, "hash", new String(hash,
+						"ISO-8859-1"), "salt", new String(salt, "ISO-8859-1"),
+				"userFile", userFile, "creationDate", creationDate);
+		if (emailConfirmed != null)
+			fields.put("emailConfirmed", emailConfirmed.toString());
+		return insert(USERS, appId, userId, fields) != null;
+	}
+
+	@Override
+	public boolean createUserWithFlag(String appId, String userId,
+			String userName, String email, byte[] salt, byte[] hash,
+			String creationDate, String flag)
+			throws UnsupportedEncodingException {
+		return createUser(appId, userId, userName, email, salt, hash,
+				creationDate, flag, null);
+	}
+
+	@Override
+	public boolean createUserWithoutFlag(String appId, String userId,
+			String userName, String email, byte[] salt, byte[] hash,
+			String creationDate) throws UnsupportedEncodingException {
+		return createUser(appId, userId, userName, email, salt, hash,
+				creationDate, null, null);
+	}
+
+	@Override
+	public boolean createUserWithFlagWithEmailConfirmation(String appId,
+			String userId, String userName, String email, byte[] salt,
+			byte[] hash, String creationDate, String flag,
+			boolean emailConfirmed) throws UnsupportedEncodingException {
+		return createUser(appId, userId, userName, email, salt, hash,
+				creationDate, flag, emailConfirmed);
+	}
+
+	@Override
+	public boolean createUserWithoutFlagWithEmailConfirmation(String appId,
+			String userId, String userName, String email, byte[] salt,
+			byte[] hash, String creationDate, boolean emailConfirmed)
+			throws UnsupportedEncodingException {
+		return createUser(appId, userId, userName, email, salt, hash,
+				creationDate, null, emailConfirmed);
+	}
+
+	@Override
+	public Map<String, String> getUser(String appId, String userId) {
+		return copy(find(USERS, appId, userId));
+	}
+
+	@Override
+	public boolean deleteUser(String appId, String userId) {
+		return update(USERS, appId, userId, fields("alive", "false")) != null;
+	}
+
+	@Override
+	public void updateUser(String appId, String userId, String email,
+			byte[] hash, byte[] salt, String alive)
+			throws UnsupportedEncodingException {
+		update(USERS, appId, userId, fields("email", email, "hash",
+				new String(hash, "ISO-8859-1"), "salt", new String(salt,
+						"ISO-8859-1"), "alive", alive));
+	}
+
+	@Override
+	public void updateUser(String appId, String userId, String email) {
+		update(USERS, appId, userId, fields("email", email));
+	}
+
+	@Override
+	public void updateUser(String appId, String userId, String email,
+			byte[] hash, byte[] salt) throws UnsupportedEncodingException {
+		update(USERS, appId, userId, fields("email", email, "hash",
+				new String(hash, "ISO-8859-1"), "salt", new String(salt,
+						"ISO-8859-1")));
+	}
+
+	@Override
+	public boolean updateUserPassword(String appId, String userId,
+			byte[] hash, byte[] salt) throws UnsupportedEncodingException {
+		return update(USERS, appId, userId, fields("hash", new String(hash,
+				"ISO-8859-1"), "salt", new String(salt, "ISO-8859-1"))) != null;
+	}
+
+	@Override
+	public String getUserNameUsingUserId(String appId, String userId) {
+		return field(USERS, appId, userId, "userName");
+	}
+
+	@Override
+	public String getUserIdUsingUserName(String appId, String userName) {
+		Map<String, String> user = findUserBy(appId, "userName", userName);
+		return user == null ? null : user.get("_id");
+	}
+
+	@Override
+	public String getEmailUsingUserId(String appId, String userId) {
+		return field(USERS, appId, userId, "email");
+	}
+
+	@Override
+	public String getEmailUsingUserName(String appId, String userName) {
+		Map<String, String> user = findUserBy(appId, "userName", userName);
+		return user == null ? null : user.get("email");
+	}
+
+	@Override
+	public void updateUserLocationAndDate(String userId, String appId,
+			String sessionToken, String location, String date) {
+		update(USERS, appId, userId, fields("location", location, "date",
+				date, "lastActive", new Date().toString()));
+	}
+
+	@Override
+	public boolean confirmUserEmail(String appId, String userId) {
+		update(USERS, appId, userId, fields("emailConfirmed", "true"));
+		return true;
+	}
+
+	@Override
+	public boolean userEmailIsConfirmed(String appId, String userId) {
+		return Boolean.parseBoolean(field(USERS, appId, userId,
+				"emailConfirmed"));
+	}
+
+	// *** MEDIA AND STORAGE *** //
+
+	private boolean createFile(String type, String appId, String id,
+			String directory, String fileType, String size, String infoName,
+			String info, String creationDate, String fileName, String location) {
+		Map<String, String> fields = fields("dir", directory, "type",
+				fileType, "size", size, "creationDate", creationDate,
+				"fileName", fileName, "location", location);
+		if (infoName != null)
+			fields.put(infoName, info);
+		return insert(type, appId, id, fields) != null;
+	}
+
+	@Override
+	public Set<String> getAllAudioIds(String appId) {
+		return new HashSet<String>(members(appId, AUDIO));
+	}
+
+	@Override
+	public boolean audioExistsInApp(String appId, String audioId) {
+		return contains(AUDIO, appId, audioId);
+	}
+
+	@Override
+	public Map<String, String> getAudioInApp(String appId, String audioId) {
+		return copy(find(AUDIO, appId, audioId));
+	}
+
+	@Override
+	public void deleteAudioInApp(String appId, String audioId) {
+		remove(AUDIO, appId, audioId);
+	}
+
+	@Override
+	public boolean createAudioInApp(String appId, String audioId,
+			String directory, String fileExtension, String size,
+			String bitRate, String creationDate, String fileName,
+			String location) {
+		return createFile(AUDIO, appId, audioId, directory, fileExtension,
+				size, "bitRate", bitRate, creationDate, fileName, location);
+	}
+
+	@Override
+	public Set<String> getAllImageIdsInApp(String appId) {
+		return new HashSet<String>(members(appId, IMAGES));
+	}
+
+	@Override
+	public boolean imageExistsInApp(String appId, String imageId) {
+		return contains(IMAGES, appId, imageId);
+	}
+
+	@Override
+	public Map<String, String> getImageInApp(String appId, String imageId) {
+		return copy(find(IMAGES, appId, imageId));
+	}
+
+	@Override
+	public boolean createImageInApp(String appId, String imageId,
+			String directory, String type, String size, String pixelsSize,
+			String creationDate, String fileName, String location) {
+		return createFile(IMAGES, appId, imageId, directory, type, size,
+				"pixelsSize", pixelsSize, creationDate, fileName, location);
+	}
+
+	@Override
+	public boolean deleteImageInApp(String appId, String imageId) {
+		remove(IMAGES, appId, imageId);
+		return true;
+	}
+
+	@Override
+	public Set<String> getAllVideoIdsInApp(String appId) {
+		return new HashSet<String>(members(appId, VIDEO));
+	}
+
+	@Override
+	public boolean createVideoInApp(String appId, String videoId,
+			String directory, String type, String size, String resolution,
+			String creationDate, String fileName, String location) {
+		return createFile(VIDEO, appId, videoId, directory, type, size,
+				"resolution", resolution, creationDate, fileName, location);
+	}
+
+	@Override
+	public boolean videoExistsInApp(String appId, String videoId) {
+		return contains(VIDEO, appId, videoId);
+	}
+
+	@Override
+	public boolean deleteVideoInApp(String appId, String videoId) {
+		remove(VIDEO, appId, videoId);
+		return true;
+	}
+
+	@Override
+	public Map<String, String> getVideoInApp(String appId, String videoId) {
+		return copy(find(VIDEO, appId, videoId));
+	}
+
+	@Override
+	public boolean createStorageInApp(String appId, String storageId,
+			String directory, String fileExtension, String fileSize,
+			String creationDate, String fileName, String location) {
+		return createFile(STORAGE, appId, storageId, directory,
+				fileExtension, fileSize, null, null, creationDate, fileName,
+				location);
+	}
+
+	@Override
+	public Set<String> getAllStorageIdsInApp(String appId) {
+		return new HashSet<String>(members(appId, STORAGE));
+	}
+
+	@Override
+	public boolean storageExistsInApp(String appId, String storageId) {
+		return contains(STORAGE, appId, storageId);
+	}
+
+	@Override
+	public Map<String, String> getStorageInApp(String appId, String storageId) {
+		return copy(find(STORAGE, appId, storageId));
+	}
+
+	@Override
+	public boolean deleteStorageInApp(String appId, String storageId) {
+		remove(STORAGE, appId, storageId);
+		return true;
+	}
+
+	@Override
+	public String getFileDirectory(String appId, String id,
+			String folderType, String requestType) {
+		String type = null;
+		if (folderType.equalsIgnoreCase(STORAGEFOLDER))
+			type = STORAGE;
+		else if (folderType.equalsIgnoreCase(MEDIAFOLDER)
+				&& collections.containsKey(requestType))
+			type = requestType;
+		return type == null ? null : field(type, appId, id, "dir");
+	}
+
+	@Override
+	public Set<String> getAllMediaIds(String appId) {
+		Set<String> mediaIds = new HashSet<String>();
+		mediaIds.addAll(members(appId, IMAGES));
+		mediaIds.addAll(members(appId, AUDIO));
+		mediaIds.addAll(members(appId, VIDEO));
+		return mediaIds;
+	}
+
+	/**
+	 * The position is the last id of the previous page. Apps and media are
+	 * sorted for each page, the other types are kept sorted.
+	 */
+	@Override
+	public IdPage getIdPage(String type, String appId, String token, int limit) {
+		NavigableSet<String> sorted;
+		if (type.equals(APPS))
+			sorted = new TreeSet<String>(getAllAppIds());
+		else if (type.equals("media")) {
+			sorted = new TreeSet<String>(members(appId, IMAGES));
+			sorted.addAll(members(appId, AUDIO));
+			sorted.addAll(members(appId, VIDEO));
+		} else
+			sorted = members(appId, type);
+		String after = IdPage.position(token);
+		List<String> ids = new ArrayList<String>();
+		for (String id : after == null ? sorted : sorted.tailSet(after, false)) {
+			if (ids.size() == limit)
+				return new IdPage(ids, ids.get(limit - 1));
+			ids.add(id);
+		}
+		return new IdPage(ids, null);
+	}
+
+	@Override
+	public Set<String> getExistingEmails(String appId, Collection<String> emails) {
+		Set<String> wanted = new HashSet<String>(emails);
+		Set<String> existing = new HashSet<String>();
+		for (String userId : members(appId, USERS)) {
+			Map<String, String> user = get(USERS, appId, userId);
+			if (user != null && wanted.contains(user.get("email")))
+				existing.add(user.get("email"));
+		}
+		return existing;
+	}
+
+	@Override
+	public Set<String> createUsers(List<Map<String, String>> users) {
+		Set<String> created = new HashSet<String>();
+		for (Map<String, String> user : users) {
+			Map<String, String> fields = new HashMap<String, String>(user);
+			String id = fields.remove("_id");
+			String appId = fields.remove("appId");
+			if (insert(USERS, appId, id, fields) != null)
+				created.add(id);
+		}
+		return created;
+	}
+}
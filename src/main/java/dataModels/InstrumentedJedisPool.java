@@ -0,0 +1,130 @@
+package dataModels;
+
+import java.lang.reflect.Field;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.pool.impl.GenericObjectPool;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.util.Pool;
+
+/**
+ * JedisPool that keeps track of how long threads wait for a connection and of
+ * how many times the pool ran out of them (the borrow timed out).
+ *
+ * Active and idle counts are read from the commons pool behind the JedisPool,
+ * it is private in this jedis version so it is looked up once by reflection.
+ *
+ */
+public class InstrumentedJedisPool extends JedisPool {
+
+	private final String name;
+	private final int maxActive;
+	private final AtomicLong borrows = new AtomicLong();
+	private final AtomicLong borrowWaitNanos = new AtomicLong();
+	private final AtomicLong maxBorrowWaitNanos = new AtomicLong();
+	private final AtomicLong exhausted = new AtomicLong();
+	private final GenericObjectPool internalPool;
+
+	public InstrumentedJedisPool(String name, JedisPoolConfig config,
+			String host, int port, int timeout) {
+		super(config, host, port, timeout);
+		this.name = name;
+		this.maxActive = config.getMaxActive();
+		this.internalPool = lookupInternalPool();
+	}
+
+	private GenericObjectPool lookupInternalPool() {
+		try {
+			Field field = Pool.class.getDeclaredField("internalPool");
+			field.setAccessible(true);
+			return (GenericObjectPool) field.get(this);
+		} catch (Exception e) {
+			System.out.println("Pool counts not available for " + name + ": "
+					+ e.getMessage());
+			return null;
+		}
+	}
+
+	@Override
+	public Jedis getResource() {
+		long start = System.nanoTime();
+		try {
+			return super.getResource();
+		} catch (JedisConnectionException e) {
+			if (e.getCause() instanceof NoSuchElementException)
+				exhausted.incrementAndGet();
+			throw e;
+		} finally {
+			long waited = System.nanoTime() - start;
+			borrows.incrementAndGet();
+			borrowWaitNanos.addAndGet(waited);
+			long max = maxBorrowWaitNanos.get();
+			while (waited > max
+					&& !maxBorrowWaitNanos.compareAndSet(max, waited))
+				max = maxBorrowWaitNanos.get();
+		}
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public int getMaxActive() {
+		return maxActive;
+	}
+
+	/**
+	 * Connections currently borrowed, -1 if the count is not available.
+	 *
+	 * @return
+	 */
+	public int getNumActive() {
+		return internalPool == null ? -1 : internalPool.getNumActive();
+	}
+
+	/**
+	 * Connections waiting in the pool, -1 if the count is not available.
+	 *
+	 * @return
+	 */
+	public int getNumIdle() {
+		return internalPool == null ? -1 : internalPool.getNumIdle();
+	}
+
+	public long getBorrows() {
+		return borrows.get();
+	}
+
+	/**
+	 * Average time spent waiting for a connection, in microseconds.
+	 *
+	 * @return
+	 */
+	public long getAverageBorrowWait() {
+		long count = borrows.get();
+		return count == 0 ? 0 : borrowWaitNanos.get() / count / 1000;
+	}
+
+	/**
+	 * Longest time spent waiting for a connection, in microseconds.
+	 *
+	 * @return
+	 */
+	public long getMaxBorrowWait() {
+		return maxBorrowWaitNanos.get() / 1000;
+	}
+
+	/**
+	 * Borrows that failed because no connection was returned in time.
+	 *
+	 * @return
+	 */
+	public long getExhausted() {
+		return exhausted.get();
+	}
+}
@@ -0,0 +1,51 @@
+package dataModels;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+
+/**
+ * Least frequently used: a sorted set scored with the number of hits, the
+ * elements with fewer hits are evicted first. Every app has its own set as
+ * well.
+ * 
+ */
+public class LFUEvictionPolicy implements EvictionPolicy {
+
+	private static final String LFUSET = "cache:lfu";
+
+	private static String appSet(String element) {
+		return LFUSET + ":" + element.split(":", 3)[1];
+	}
+
+	public void recordWrite(Pipeline pipeline, String element) {
+		pipeline.zincrby(LFUSET, 1, element);
+		pipeline.zincrby(appSet(element), 1, element);
+	}
+
+	public void recordAccess(Pipeline pipeline, String element) {
+		pipeline.zincrby(LFUSET, 1, element);
+		pipeline.zincrby(appSet(element), 1, element);
+	}
+
+	public void forget(Pipeline pipeline, String element) {
+		pipeline.zrem(LFUSET, element);
+		pipeline.zrem(appSet(element), element);
+	}
+
+	public List<String> selectVictims(Jedis jedis, int count) {
+		return new ArrayList<String>(jedis.zrange(LFUSET, 0, count - 1));
+	}
+
+	public List<String> selectVictims(Jedis jedis, String appId, int count) {
+		return new ArrayList<String>(jedis.zrange(LFUSET + ":" + appId, 0,
+				count - 1));
+	}
+
+	public Set<String> elements(Jedis jedis) {
+		return jedis.zrange(LFUSET, 0, -1);
+	}
+}
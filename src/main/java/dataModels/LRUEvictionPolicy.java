@@ -0,0 +1,52 @@
+package dataModels;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+
+/**
+ * Least recently used: a sorted set scored with the time of the last access,
+ * the lowest scores are evicted first. Every app has its own set as well.
+ * 
+ */
+public class LRUEvictionPolicy implements EvictionPolicy {
+
+	private static final String LRUSET = "cache:lru";
+
+	private static String appSet(String element) {
+		return LRUSET + ":" + element.split(":", 3)[1];
+	}
+
+	public void recordWrite(Pipeline pipeline, String element) {
+		long now = System.currentTimeMillis();
+		pipeline.zadd(LRUSET, now, element);
+		pipeline.zadd(appSet(element), now, element);
+	}
+
+	public void recordAccess(Pipeline pipeline, String element) {
+		long now = System.currentTimeMillis();
+		pipeline.zadd(LRUSET, now, element);
+		pipeline.zadd(appSet(element), now, element);
+	}
+
+	public void forget(Pipeline pipeline, String element) {
+		pipeline.zrem(LRUSET, element);
+		pipeline.zrem(appSet(element), element);
+	}
+
+	public List<String> selectVictims(Jedis jedis, int count) {
+		return new ArrayList<String>(jedis.zrange(LRUSET, 0, count - 1));
+	}
+
+	public List<String> selectVictims(Jedis jedis, String appId, int count) {
+		return new ArrayList<String>(jedis.zrange(LRUSET + ":" + appId, 0,
+				count - 1));
+	}
+
+	public Set<String> elements(Jedis jedis) {
+		return jedis.zrange(LRUSET, 0, -1);
+	}
+}
@@ -0,0 +1,100 @@
+package dataModels;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency histogram with power of two buckets in microseconds (bucket i
+ * counts latencies under 2^i us), striped like StripedCounter: each thread
+ * records in its own row so recording is one uncontended add per column.
+ * Percentiles are the upper bound of the bucket they fall in.
+ *
+ */
+public class LatencyHistogram {
+
+	private static final int BUCKETS = 26; // the last one is unbounded
+	private static final int COUNT = BUCKETS;
+	private static final int TOTAL = BUCKETS + 1; // microseconds
+	private static final int MAX = BUCKETS + 2; // microseconds
+	private static final int ROW = (MAX / StripedCounter.PADDING + 1)
+			* StripedCounter.PADDING;
+	private final AtomicLongArray cells = new AtomicLongArray(
+			StripedCounter.STRIPES * ROW);
+
+	/**
+	 * @param startNanos
+	 *            System.nanoTime() when the operation started.
+	 */
+	public void recordSince(long startNanos) {
+		record((System.nanoTime() - startNanos) / 1000);
+	}
+
+	/**
+	 * @param micros
+	 */
+	public void record(long micros) {
+		if (micros < 0)
+			micros = 0;
+		int row = StripedCounter.stripe() * ROW;
+		int bucket = 64 - Long.numberOfLeadingZeros(micros);
+		cells.getAndIncrement(row + Math.min(bucket, BUCKETS - 1));
+		cells.getAndIncrement(row + COUNT);
+		cells.getAndAdd(row + TOTAL, micros);
+		long max = cells.get(row + MAX);
+		while (micros > max && !cells.compareAndSet(row + MAX, max, micros))
+			max = cells.get(row + MAX);
+	}
+
+	private long sum(int column) {
+		long sum = 0;
+		for (int i = 0; i < StripedCounter.STRIPES; i++)
+			sum += cells.get(i * ROW + column);
+		return sum;
+	}
+
+	public long getCount() {
+		return sum(COUNT);
+	}
+
+	/**
+	 * @return mean latency in microseconds.
+	 */
+	public double getMean() {
+		long count = getCount();
+		return count == 0 ? 0 : (double) sum(TOTAL) / count;
+	}
+
+	/**
+	 * @return max latency in microseconds.
+	 */
+	public long getMax() {
+		long max = 0;
+		for (int i = 0; i < StripedCounter.STRIPES; i++)
+			max = Math.max(max, cells.get(i * ROW + MAX));
+		return max;
+	}
+
+	/**
+	 * @param quantile
+	 *            between 0 and 1.
+	 * @return upper bound in microseconds of the bucket holding the quantile,
+	 *         the max for the last bucket.
+	 */
+	public long getPercentile(double quantile) {
+		long[] buckets = new long[BUCKETS];
+		long count = 0;
+		for (int b = 0; b < BUCKETS; b++) {
+			buckets[b] = sum(b);
+			count += buckets[b];
+		}
+		if (count == 0)
+			return 0;
+		long rank = (long) Math.ceil(quantile * count);
+		long seen = 0;
+		for (int b = 0; b < BUCKETS - 1; b++) {
+			seen += buckets[b];
+			if (seen >= rank)
+				return 1L << b;
+		}
+		return getMax();
+	}
+}
@@ -0,0 +1,74 @@
+package dataModels;
+
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.mongodb.MongoClient;
+import com.mongodb.MongoClientOptions;
+import com.mongodb.WriteConcern;
+
+/**
+ * One MongoClient per mongo instance, shared by the data model, the documents
+ * and the ACLs. A MongoClient holds its own connection pool and is safe to
+ * use from every thread, creating one per request or per class only
+ * multiplies the connections to the server.
+ *
+ * The settings are read when the first client is created, Startup sets them
+ * from the context parameters. At most connectionsPerHost connections are
+ * open per instance, connectionsPerHost * waitQueueMultiplier threads may
+ * wait up to maxWaitTime for one of them before failing.
+ *
+ */
+public class MongoClients {
+
+	public static int connectionsPerHost = 100;
+	public static int waitQueueMultiplier = 5;
+	public static int maxWaitTime = 2000; // milliseconds
+	public static int connectTimeout = 2000; // milliseconds
+	public static int socketTimeout = 10000; // milliseconds
+	// name of a WriteConcern constant: ACKNOWLEDGED, JOURNALED, MAJORITY...
+	public static String writeConcern = "ACKNOWLEDGED";
+	private static final Map<String, MongoClient> clients = new HashMap<String, MongoClient>();
+
+	private MongoClients() {
+	}
+
+	public static synchronized MongoClient getClient(String host, int port) {
+		String name = host + ":" + port;
+		MongoClient client = clients.get(name);
+		if (client == null) {
+			WriteConcern concern = WriteConcern.valueOf(writeConcern);
+			if (concern == null) {
+				System.out.println("Unknown write concern " + writeConcern
+						+ ", using ACKNOWLEDGED.");
+				concern = WriteConcern.ACKNOWLEDGED;
+			}
+			MongoClientOptions options = new MongoClientOptions.Builder()
+					.description("openbaas")
+					.connectionsPerHost(connectionsPerHost)
+					.threadsAllowedToBlockForConnectionMultiplier(
+							waitQueueMultiplier).maxWaitTime(maxWaitTime)
+					.connectTimeout(connectTimeout)
+					.socketTimeout(socketTimeout).socketKeepAlive(true)
+					.writeConcern(concern).build();
+			try {
+				client = new MongoClient(name, options);
+			} catch (UnknownHostException e) {
+				throw new IllegalStateException("Unknown mongo host " + host,
+						e);
+			}
+			clients.put(name, client);
+		}
+		return client;
+	}
+
+	/**
+	 * Closes every client, only meant for shutdown.
+	 */
+	public static synchronized void closeAll() {
+		for (MongoClient client : clients.values())
+			client.close();
+		clients.clear();
+	}
+}
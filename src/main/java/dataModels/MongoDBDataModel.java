@@ -1,6 +1,9 @@
 package dataModels;
 
+import com.mongodb.AggregationOutput;
 import com.mongodb.BasicDBList;
+import com.mongodb.MapReduceCommand.OutputType;
+import com.mongodb.MapReduceOutput;
 import com.mongodb.MongoClient;
 import com.mongodb.MongoException;
 import com.mongodb.WriteConcern;
@@ -12,14 +15,17 @@ import com.mongodb.DBCursor;
 import com.mongodb.ServerAddress;
 
 import java.io.UnsupportedEncodingException;
-import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.regex.Pattern;
 
 import misc.GeoLocationOperations;
 import misc.Geolocation;
@@ -28,25 +34,11 @@ import org.bson.types.ObjectId;
 
 import ucar.ma2.Range.Iterator;
 
-//Developer notes:
-/*
- * EmailsInApp is a great way to save time while creating/deleting users and so on.
- * keep a collection like this {"appId": "X" , "list" : [{"userId": "Y", "email":"Y@gmail.com"}, {"userId": "z", "email:
- * "z@gmail.com"}]}
- * and go over the list as you do your stuff, its faster. 
- * 
- * I didn't have enough time to do it.
- * 
- * 
- * 
- * 
- * 
- * 
- */
 public class MongoDBDataModel implements DatabaseInterface {
 
 	private MongoClient mongoClient;
 	private DB db;
+	private UserKeys userKeys;
 	private static final String STORAGEFOLDER = "storage";
 	private static final String MEDIAFOLDER = "media";
 	private static final String UsersColl = "users";
@@ -58,9 +50,19 @@ public class MongoDBDataModel implements DatabaseInterface {
 //	private static final String SessionColl = "sessions";
 //	private static final String adminColl = "admin";
 //	private static final String UsersInactive = "users:inactive";
-//	private static final String EmailsInAppColl = "emailsInApp";
 //	private static final String EmailsApp = "app:emails";
 	public static final String CONFIRMUSERSEMAIL = "confirmUsersEmail";
+	private static final int FILTERBATCH = 1000;
+	static final int WARMUPBATCH = 500;
+	// DocumentModel's elements, counted for the statistics.
+	private static final String DataColl = "data";
+	private static final String[] FILETYPES = { AppStatistics.AUDIO,
+			AppStatistics.IMAGES, AppStatistics.VIDEO, AppStatistics.STORAGE };
+	private static final String[] FILECOLLECTIONS = { AudioColl, ImageColl,
+			VideoColl, StorageColl };
+	private static final String MAPFILE = "function() { emit(this.appId, {count: 1, bytes: parseFloat(this.size) || 0}); }";
+	private static final String REDUCEFILE = "function(key, values) { var total = {count: 0, bytes: 0}; "
+			+ "values.forEach(function(v) { total.count += v.count; total.bytes += v.bytes; }); return total; }";
 //	private static final int EXPIRETIME = 86400; // 24hours in seconds
 	
 	
@@ -69,43 +71,214 @@ public class MongoDBDataModel implements DatabaseInterface {
 	GeoLocationOperations geo;
 	public MongoDBDataModel(String server, int port) {
 		geo = new Geolocation();
-		mongoClient = null;
-		try {
-			mongoClient = new MongoClient(server, port);
-		} catch (UnknownHostException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
+		mongoClient = MongoClients.getClient(server, port);
 		db = mongoClient.getDB("openbaas");
+		new MongoIndexes(db).ensureAll();
+		userKeys = new UserKeys(db);
+		userKeys.start();
+	}
+
+	/**
+	 * Ids of the app's documents in the collection, read from the {appId,
+	 * _id} index.
+	 * 
+	 * @param collection
+	 * @param appId
+	 * @param ids
+	 *            the ids are added to it.
+	 * @return ids
+	 */
+	private Set<String> idsInApp(String collection, String appId,
+			Set<String> ids) {
+		DBCursor cursor = db.getCollection(collection).find(
+				new BasicDBObject("appId", appId), new BasicDBObject("_id", 1));
+		while (cursor.hasNext())
+			ids.add((String) cursor.next().get("_id"));
+		return ids;
+	}
+
+	private boolean existsInApp(String collection, String appId, String id) {
+		return db.getCollection(collection).findOne(
+				new BasicDBObject("appId", appId).append("_id", id),
+				new BasicDBObject("_id", 1)) != null;
+	}
+
+	/**
+	 * @param collection
+	 * @param query
+	 * @param field
+	 * @return the field of the first match, null if nothing matches.
+	 */
+	private Object fieldOf(String collection, DBObject query, String field) {
+		DBObject obj = db.getCollection(collection).findOne(query,
+				new BasicDBObject(field, 1));
+		return obj == null ? null : obj.get(field);
 	}
 
 	@Override
 	public Set<String> getAllUserIdsForApp(String appId) {
-		DBCollection coll = db.getCollection(UsersColl);
-		DBCursor cursor = coll.find();
-		Set<String> userIds = new HashSet<String>();
-		while (cursor.hasNext()) {
-			DBObject user = cursor.next();
-			if (user.get("appId").equals(appId))
-				userIds.add((String) user.get("_id"));
-		}
-		return userIds;
+		return idsInApp(UsersColl, appId, new HashSet<String>());
 	}
 
 	@Override
 	public Set<String> getAllAppIds() {
-		DBCollection coll = db.getCollection(AppsColl);
+		DBCursor cursor = db.getCollection(AppsColl).find(new BasicDBObject(),
+				new BasicDBObject("_id", 1));
 		Set<String> appIds = new HashSet<String>();
-		DBCursor cursor = coll.find();
-		while (cursor.hasNext()) {
+		while (cursor.hasNext())
 			appIds.add((String) cursor.next().get("_id"));
-		}
-		java.util.Iterator<String> it = appIds.iterator();
-		while (it.hasNext())
-			System.out.println(it.next());
 		return appIds;
 	}
 
+	/**
+	 * Counts the users, files and document elements of the apps on the
+	 * server: users with an aggregation, files with a map-reduce since their
+	 * sizes are kept as text, and elements with a count of the paths under
+	 * the app. Every app is counted on its own through the {appId} indexes,
+	 * one pass over a whole collection would outlast the socket timeout.
+	 * 
+	 * @param appId
+	 *            null for every app.
+	 * @return appId -> counter -> value, see AppStatistics.
+	 */
+	public Map<String, Map<String, Long>> countAppStatistics(String appId) {
+		Map<String, Map<String, Long>> apps = new HashMap<String, Map<String, Long>>();
+		for (String id : appId != null ? Collections.singleton(appId)
+				: getAllAppIds())
+			apps.put(id, countApp(id));
+		return apps;
+	}
+
+	private Map<String, Long> countApp(String appId) {
+		Map<String, Long> counters = new HashMap<String, Long>();
+		for (String type : FILETYPES) {
+			counters.put(type, 0L);
+			counters.put(type + AppStatistics.BYTES, 0L);
+		}
+		counters.put(AppStatistics.USERS, 0L);
+		AggregationOutput users = db.getCollection(UsersColl).aggregate(
+				new BasicDBObject("$match", new BasicDBObject("appId", appId)
+						.append("alive", "true")),
+				new BasicDBObject("$group", new BasicDBObject("_id", "$appId")
+						.append("count", new BasicDBObject("$sum", 1))));
+		for (DBObject result : users.results())
+			count(counters, AppStatistics.USERS, result.get("count"));
+		DBObject query = new BasicDBObject("appId", appId);
+		for (int i = 0; i < FILETYPES.length; i++) {
+			MapReduceOutput files = db.getCollection(FILECOLLECTIONS[i])
+					.mapReduce(MAPFILE, REDUCEFILE, null, OutputType.INLINE,
+							query);
+			for (DBObject result : files.results()) {
+				DBObject value = (DBObject) result.get("value");
+				count(counters, FILETYPES[i], value.get("count"));
+				count(counters, FILETYPES[i] + AppStatistics.BYTES,
+						value.get("bytes"));
+			}
+		}
+		counters.put(AppStatistics.DOCUMENTS, db.getCollection(DataColl)
+				.count(new BasicDBObject("path", Pattern.compile("^"
+						+ Pattern.quote(appId) + ","))));
+		return counters;
+	}
+
+	private static void count(Map<String, Long> counters, String counter,
+			Object value) {
+		if (value != null)
+			counters.put(counter, ((Number) value).longValue());
+	}
+
+	/**
+	 * Adds every app and user to the existence filters, reading only the
+	 * fields they use and sending them to redis in batches.
+	 * 
+	 * @param filters
+	 */
+	public void fillExistenceFilters(ExistenceFilters filters) {
+		DBCursor apps = db.getCollection(AppsColl).find(new BasicDBObject(),
+				new BasicDBObject("_id", 1));
+		List<String> batch = new ArrayList<String>();
+		while (apps.hasNext()) {
+			batch.add(ExistenceFilters.appElement((String) apps.next().get(
+					"_id")));
+			if (batch.size() == FILTERBATCH) {
+				filters.getApps().addAll(batch);
+				batch.clear();
+			}
+		}
+		filters.getApps().addAll(batch);
+		DBCursor users = db.getCollection(UsersColl).find(
+				new BasicDBObject(),
+				new BasicDBObject("_id", 1).append("appId", 1)
+						.append("email", 1));
+		List<String> ids = new ArrayList<String>();
+		List<String> emails = new ArrayList<String>();
+		while (users.hasNext()) {
+			DBObject user = users.next();
+			String appId = (String) user.get("appId");
+			ids.add(ExistenceFilters.userElement(appId,
+					(String) user.get("_id")));
+			if (user.get("email") != null)
+				emails.add(ExistenceFilters.userElement(appId,
+						(String) user.get("email")));
+			if (ids.size() == FILTERBATCH) {
+				filters.getIdentifiers().addAll(ids);
+				filters.getEmails().addAll(emails);
+				ids.clear();
+				emails.clear();
+			}
+		}
+		filters.getIdentifiers().addAll(ids);
+		filters.getEmails().addAll(emails);
+	}
+
+	/**
+	 * Live apps with every field, read WARMUPBATCH at a time.
+	 * 
+	 * @return
+	 */
+	DBCursor getAppsForWarmup() {
+		return db.getCollection(AppsColl)
+				.find(new BasicDBObject("alive", "true"))
+				.batchSize(WARMUPBATCH);
+	}
+
+	/**
+	 * Live users, the most recently active first.
+	 * 
+	 * @param limit
+	 * @return
+	 */
+	DBCursor getRecentUsers(int limit) {
+		return db.getCollection(UsersColl)
+				.find(new BasicDBObject("alive", "true"))
+				.sort(new BasicDBObject("lastActive", -1)).limit(limit)
+				.batchSize(WARMUPBATCH);
+	}
+
+	/**
+	 * Media or storage metadata, the most recently inserted first (creation
+	 * dates are stored as text, natural order is the insertion order).
+	 * 
+	 * @param type
+	 *            audio, images, video or storage.
+	 * @param limit
+	 * @return
+	 */
+	DBCursor getRecentMedia(String type, int limit) {
+		String collection;
+		if (type.equals("audio"))
+			collection = AudioColl;
+		else if (type.equals("images"))
+			collection = ImageColl;
+		else if (type.equals("video"))
+			collection = VideoColl;
+		else
+			collection = StorageColl;
+		return db.getCollection(collection).find()
+				.sort(new BasicDBObject("$natural", -1)).limit(limit)
+				.batchSize(WARMUPBATCH);
+	}
+
 	@Override
 	public boolean createApp(String appId, String appName, String creationDate, boolean userEmailConfirmation) {
 		if (this.appExists(appId)) {
@@ -159,48 +332,16 @@ public class MongoDBDataModel implements DatabaseInterface {
 
 	@Override
 	public boolean appExists(String appId) {
-		DBCollection table = db.getCollection(AppsColl);
-		BasicDBObject searchQuery = new BasicDBObject();
-		searchQuery.put("_id", appId);
-		DBCursor cursor = table.find(searchQuery);
-		boolean appExists = false;
-		if (cursor.hasNext())
-			appExists = true;
-		return appExists;
+		return db.getCollection(AppsColl).findOne(
+				new BasicDBObject("_id", appId), new BasicDBObject("_id", 1)) != null;
 	}
 
 	@Override
 	public boolean userExistsInApp(String appId, String email) {
-		// check if the system generated id exists in the app
-		DBCollection table = db.getCollection(UsersColl);
-		BasicDBObject searchQuery = new BasicDBObject();
-		searchQuery.put("appId", appId);
-		searchQuery.put("email", email);
-		DBCursor cursor = table.find(searchQuery);
-
-		if (cursor.hasNext()) {
-			System.out.println(cursor.next());
-			return true;
-		}
-		return false;
-
-		// check if the email does not exist in the app (emails are unique in
-		// each app)
-		// DBCollection emailsApp = db.getCollection(EmailsInAppColl);
-		// BasicDBObject searchEmail = new BasicDBObject();
-		// searchQuery.put("_id", appId);
-		// DBCursor cursorEmail = emailsApp.find(searchEmail);
-		// while (cursorEmail.hasNext()) {
-		// BasicDBObject result = (BasicDBObject) cursorEmail.next();
-		//
-		// BasicDBList list = (BasicDBList) result.get("list");
-		// System.out.println(list.toString());
-		// BasicDBObject[] emailsArray = list.toArray(new BasicDBObject[0]);
-		// for(BasicDBObject dbObj : emailsArray) {
-		// if(dbObj.get("email").equals(email))
-		// return true;
-		// }
-		// }
+		if (userKeys.isReady())
+			return userKeys.userIdByEmail(appId, email) != null;
+		return fieldOf(UsersColl,
+				new BasicDBObject("appId", appId).append("email", email), "_id") != null;
 	}
 
 	@Override
@@ -215,8 +356,7 @@ public class MongoDBDataModel implements DatabaseInterface {
 				.append("salt", new String(salt, "ISO-8859-1"))
 				.append("userFile", userFile)
 				.append("creationDate", creationDate);
-		coll.insert(user);
-		return true;
+		return insertUser(coll, user);
 	}
 	@Override
 	public boolean createUserWithoutFlag(String appId, String userId, String userName,
@@ -229,7 +369,27 @@ public class MongoDBDataModel implements DatabaseInterface {
 				.append("hash", new String(hash, "ISO-8859-1"))
 				.append("salt", new String(salt, "ISO-8859-1"))
 				.append("creationDate", creationDate);
-		coll.insert(user);
+		return insertUser(coll, user);
+	}
+
+	/**
+	 * Takes the email and user name of the user before writing it.
+	 * 
+	 * @return false if the email is used by another user of the app.
+	 */
+	private boolean insertUser(DBCollection coll, BasicDBObject user) {
+		String appId = user.getString("appId");
+		String userId = user.getString("_id");
+		String email = user.getString("email");
+		String userName = user.getString("userName");
+		if (!userKeys.reserve(appId, userId, email, userName))
+			return false;
+		try {
+			coll.insert(user);
+		} catch (MongoException e) {
+			userKeys.release(appId, userId, email, userName);
+			throw e;
+		}
 		return true;
 	}
 	@Override
@@ -241,9 +401,12 @@ public class MongoDBDataModel implements DatabaseInterface {
 		query.put("_id", userId);
 		query.put("appId", appId);
 		BasicDBObject updateUser = new BasicDBObject();
-		updateUser.append("$set", new BasicDBObject().append("email", email).append("hash", new String(
+		BasicDBObject fields = new BasicDBObject().append("hash", new String(
 				hash, "ISO-8859-1")).append("salt", new String(
-				salt, "ISO-8859-1")).append("alive", alive));
+				salt, "ISO-8859-1")).append("alive", alive);
+		if (takeEmail(appId, userId, email))
+			fields.append("email", email);
+		updateUser.append("$set", fields);
 		
 //		updateUser.append("$set", new BasicDBObject().append("email", email));
 //		updateUser.append("$set", new BasicDBObject().append("hash", new String(
@@ -297,26 +460,12 @@ public class MongoDBDataModel implements DatabaseInterface {
 
 	@Override
 	public Set<String> getAllAudioIds(String appId) {
-		DBCollection coll = db.getCollection(AudioColl);
-		Set<String> audioIds = new HashSet<String>();
-		DBCursor cursor = coll.find();
-		while (cursor.hasNext()) {
-			audioIds.add((String) cursor.next().get("_id"));
-		}
-		return audioIds;
+		return idsInApp(AudioColl, appId, new HashSet<String>());
 	}
 
 	@Override
 	public boolean audioExistsInApp(String appId, String audioId) {
-		DBCollection coll = db.getCollection(AudioColl);
-		BasicDBObject query = new BasicDBObject();
-		query.append("appId", appId);
-		query.append("_id", audioId);
-		DBCursor cursor = coll.find(query);
-		boolean audioExistsInApp = false;
-		if (cursor.hasNext())
-			audioExistsInApp = true;
-		return audioExistsInApp;
+		return existsInApp(AudioColl, appId, audioId);
 	}
 
 	@Override
@@ -367,26 +516,12 @@ public class MongoDBDataModel implements DatabaseInterface {
 
 	@Override
 	public Set<String> getAllVideoIdsInApp(String appId) {
-		DBCollection coll = db.getCollection(VideoColl);
-		Set<String> videoIds = new HashSet<String>();
-		DBCursor cursor = coll.find();
-		while (cursor.hasNext()) {
-			videoIds.add((String) cursor.next().get("_id"));
-		}
-		return videoIds;
+		return idsInApp(VideoColl, appId, new HashSet<String>());
 	}
 
 	@Override
 	public boolean imageExistsInApp(String appId, String imageId) {
-		DBCollection coll = db.getCollection(ImageColl);
-		BasicDBObject query = new BasicDBObject();
-		query.append("appId", appId);
-		query.append("_id", imageId);
-		DBCursor cursor = coll.find(query);
-		boolean imageExistsInApp = false;
-		if (cursor.hasNext())
-			imageExistsInApp = true;
-		return imageExistsInApp;
+		return existsInApp(ImageColl, appId, imageId);
 	}
 
 	@Override
@@ -454,15 +589,7 @@ public class MongoDBDataModel implements DatabaseInterface {
 
 	@Override
 	public boolean videoExistsInApp(String appId, String videoId) {
-		DBCollection coll = db.getCollection(VideoColl);
-		BasicDBObject query = new BasicDBObject();
-		query.append("appId", appId);
-		query.append("_id", videoId);
-		DBCursor cursor = coll.find(query);
-		boolean videoExistsInApp = false;
-		if (cursor.hasNext())
-			videoExistsInApp = true;
-		return videoExistsInApp;
+		return existsInApp(VideoColl, appId, videoId);
 	}
 
 	// @Override
@@ -516,7 +643,6 @@ public class MongoDBDataModel implements DatabaseInterface {
 	public String getFileDirectory(String appId, String id, String folderType,
 			String requestType) {
 		DBCollection coll = null;
-		String type = null;
 		// Switch performance is not guaranteed
 		if(folderType.equalsIgnoreCase(STORAGEFOLDER)){
 			coll = db.getCollection(StorageColl);
@@ -530,16 +656,10 @@ public class MongoDBDataModel implements DatabaseInterface {
 			}
 		}
 		
-		BasicDBObject searchQuery = new BasicDBObject();
-		searchQuery.append("appId", appId);
-		searchQuery.append("_id", type + id);
-		DBCursor cursor = coll.find(searchQuery);
-		String dir = null;
-		if (cursor.hasNext()) {
-			DBObject object = cursor.next();
-			dir = (String) object.get("dir");
-		}
-		return dir;
+		if (coll == null)
+			return null;
+		return (String) fieldOf(coll.getName(), new BasicDBObject("appId",
+				appId).append("_id", id), "dir");
 	}
 
 	@Override
@@ -554,116 +674,59 @@ public class MongoDBDataModel implements DatabaseInterface {
 	@Override
 	public boolean identifierInUseByUserInApp(String appId, String userId) {
 		// check if the system generated exist exists in the app
-		DBCollection table = db.getCollection(UsersColl);
-		BasicDBObject searchQuery = new BasicDBObject();
-		searchQuery.append("_id", userId);
-		searchQuery.append("appId", appId);
-		DBCursor cursor = table.find(searchQuery);
-		boolean userExists = false;
-		if (cursor.hasNext())
-			userExists = true;
-		return userExists;
+		return existsInApp(UsersColl, appId, userId);
 	}
 
 	@Override
 	public Set<String> getAllImageIdsInApp(String appId) {
-		DBCollection coll = db.getCollection(ImageColl);
-		Set<String> imageIds = new HashSet<String>();
-		DBCursor cursor = coll.find();
-		while (cursor.hasNext()) {
-			imageIds.add((String) cursor.next().get("_id"));
-		}
-		return imageIds;
+		return idsInApp(ImageColl, appId, new HashSet<String>());
 	}
 
 	@Override
 	public String convertAppIdToAppName(String appId) {
-		DBCollection apps = db.getCollection(AppsColl);
-		BasicDBObject searchQuery = new BasicDBObject();
-		searchQuery.append("_id", appId);
-		DBCursor cursor = apps.find(searchQuery);
-		String appName = null;
-		while (cursor.hasNext()) {
-			DBObject temp = cursor.next();
-			if (temp.get("_id").equals(appId)) {
-				appName = (String) temp.get("appName");
-				break;
-			}
-		}
-		return appName;
+		return (String) fieldOf(AppsColl, new BasicDBObject("_id", appId),
+				"appName");
 	}
 
 	@Override
 	public String getUserNameUsingUserId(String appId, String userId) {
-		DBCollection users = db.getCollection(UsersColl);
-		BasicDBObject searchQuery = new BasicDBObject();
-		searchQuery.append("_id", userId);
-		searchQuery.append("appId", appId);
-		DBCursor cursor = users.find(searchQuery);
-		String userName = null;
-		if (cursor.hasNext()) {
-			DBObject temp = cursor.next();
-			userName = (String) temp.get("userName");
-		}
-		return userName;
+		return (String) fieldOf(UsersColl,
+				new BasicDBObject("_id", userId).append("appId", appId),
+				"userName");
 	}
 
 	@Override
 	public String getEmailUsingUserId(String appId, String userId) {
-		DBCollection users = db.getCollection(UsersColl);
-		BasicDBObject searchQuery = new BasicDBObject();
-		searchQuery.append("_id", userId);
-		searchQuery.append("appId", appId);
-		DBCursor cursor = users.find(searchQuery);
-		String email = null;
-		if (cursor.hasNext()) {
-			DBObject temp = cursor.next();
-			email = (String) temp.get("email");
-		}
-		return email;
+		return (String) fieldOf(UsersColl,
+				new BasicDBObject("_id", userId).append("appId", appId),
+				"email");
 	}
 
 	@Override
 	public String getEmailUsingUserName(String appId, String userName) {
-		DBCollection users = db.getCollection(UsersColl);
-		BasicDBObject searchQuery = new BasicDBObject();
-		searchQuery.append("userName", userName);
-		searchQuery.append("appId", appId);
-		DBCursor cursor = users.find(searchQuery);
-		String email = null;
-		if (cursor.hasNext()) {
-			DBObject temp = cursor.next();
-			email = (String) temp.get("email");
+		if (userKeys.isReady()) {
+			DBObject key = userKeys.byUserName(appId, userName);
+			return key == null ? null : (String) key.get("email");
 		}
-		return email;
+		return (String) fieldOf(UsersColl,
+				new BasicDBObject("appId", appId).append("userName", userName),
+				"email");
 	}
 
 	@Override
 	public String getUserIdUsingUserName(String appId, String userName) {
-		DBCollection users = db.getCollection(UsersColl);
-		BasicDBObject searchQuery = new BasicDBObject();
-		searchQuery.append("userName", userName);
-		searchQuery.append("appId", appId);
-		DBCursor cursor = users.find(searchQuery);
-		String userId = null;
-		if (cursor.hasNext()) {
-			DBObject temp = cursor.next();
-			userId = (String) temp.get("_id");
+		if (userKeys.isReady()) {
+			DBObject key = userKeys.byUserName(appId, userName);
+			return key == null ? null : (String) key.get("userId");
 		}
-		return userId;
+		return (String) fieldOf(UsersColl,
+				new BasicDBObject("appId", appId).append("userName", userName),
+				"_id");
 	}
 
 	@Override
 	public Set<String> getAllStorageIdsInApp(String appId) {
-		DBCollection coll = db.getCollection(StorageColl);
-		DBCursor cursor = coll.find();
-		Set<String> storageIds = new HashSet<String>();
-		while (cursor.hasNext()) {
-			DBObject storage = cursor.next();
-			if (storage.get("appId").equals(appId))
-				storageIds.add((String) storage.get("_id"));
-		}
-		return storageIds;
+		return idsInApp(StorageColl, appId, new HashSet<String>());
 	}
 
 	@Override
@@ -697,10 +760,29 @@ public class MongoDBDataModel implements DatabaseInterface {
 		BasicDBObject query = new BasicDBObject();
 		query.append("_id", userId);
 		query.append("appId", appId);
+		if (!takeEmail(appId, userId, email))
+			return;
 		BasicDBObject updateUser = new BasicDBObject();
 		updateUser.append("$set", new BasicDBObject().append("email", email));
 		users.update(query, updateUser);
 	}
+
+	/**
+	 * Moves the user's entry in the emails of the app to the new email.
+	 * 
+	 * @return false if the email is null or used by another user, it must
+	 *         not be written then.
+	 */
+	private boolean takeEmail(String appId, String userId, String email) {
+		if (email == null)
+			return false;
+		if (userKeys.changeEmail(appId, userId,
+				getEmailUsingUserId(appId, userId), email))
+			return true;
+		System.out.println("Email " + email
+				+ " is used by another user of app " + appId + ".");
+		return false;
+	}
 	@Override
 	public boolean updateUserPassword(String appId, String userId, byte [] hash, byte [] salt) throws UnsupportedEncodingException{
 		DBCollection users = db.getCollection(UsersColl);
@@ -724,36 +806,149 @@ public class MongoDBDataModel implements DatabaseInterface {
 		query.append("_id", userId);
 		query.append("appId", appId);
 		BasicDBObject updateUser = new BasicDBObject();
-		updateUser.append("$set", new BasicDBObject().append("email", email));
-		updateUser.append("$set", new BasicDBObject().append("hash", new String(
-				hash, "ISO-8859-1")));
-		updateUser.append("$set", new BasicDBObject().append("salt", new String(
-				salt, "ISO-8859-1")));
+		// one $set, appending it again would replace the previous one.
+		BasicDBObject fields = new BasicDBObject().append("hash", new String(
+				hash, "ISO-8859-1")).append("salt", new String(
+				salt, "ISO-8859-1"));
+		if (takeEmail(appId, userId, email))
+			fields.append("email", email);
+		updateUser.append("$set", fields);
 		users.update(query, updateUser);
 	}
 	
 	@Override
 	public Set<String> getAllMediaIds(String appId) {
-		// images
-		DBCollection coll = db.getCollection(ImageColl);
 		Set<String> mediaIds = new HashSet<String>();
-		DBCursor cursor = coll.find();
-		while (cursor.hasNext()) {
-			mediaIds.add((String) cursor.next().get("_id"));
+		idsInApp(ImageColl, appId, mediaIds);
+		idsInApp(AudioColl, appId, mediaIds);
+		idsInApp(VideoColl, appId, mediaIds);
+		return mediaIds;
+	}
+
+	private static String collection(String type) {
+		if (type.equals("apps"))
+			return AppsColl;
+		else if (type.equals("users"))
+			return UsersColl;
+		else if (type.equals("audio"))
+			return AudioColl;
+		else if (type.equals("images"))
+			return ImageColl;
+		else if (type.equals("video"))
+			return VideoColl;
+		return StorageColl;
+	}
+
+	/**
+	 * Reads the ids in _id order from the {appId, _id} index, starting after
+	 * the last id of the previous page. The position is "collection:lastId",
+	 * media walks images, audio and video one after the other.
+	 */
+	@Override
+	public IdPage getIdPage(String type, String appId, String token, int limit) {
+		String[] collections = type.equals("media") ? new String[] {
+				ImageColl, AudioColl, VideoColl } : new String[] { collection(type) };
+		String position = IdPage.position(token);
+		int i = 0;
+		String after = null;
+		if (position != null) {
+			int colon = position.indexOf(':');
+			if (colon > 0)
+				i = Integer.parseInt(position.substring(0, colon));
+			if (colon <= 0 || i < 0)
+				throw new IllegalArgumentException("Invalid token.");
+			after = position.substring(colon + 1);
 		}
-		// audio
-		coll = db.getCollection(AudioColl);
-		cursor = coll.find();
-		while (cursor.hasNext()) {
-			mediaIds.add((String) cursor.next().get("_id"));
+		List<String> ids = new ArrayList<String>();
+		int last = i;
+		for (; i < collections.length; i++, after = null) {
+			BasicDBObject query = type.equals("apps") ? new BasicDBObject()
+					: new BasicDBObject("appId", appId);
+			if (after != null)
+				query.append("_id", new BasicDBObject("$gt", after));
+			// one more than needed tells whether there is a next page.
+			DBCursor cursor = db.getCollection(collections[i])
+					.find(query, new BasicDBObject("_id", 1))
+					.sort(new BasicDBObject("_id", 1))
+					.limit(limit - ids.size() + 1);
+			while (cursor.hasNext()) {
+				String id = (String) cursor.next().get("_id");
+				if (ids.size() == limit)
+					return new IdPage(ids, last + ":" + ids.get(limit - 1));
+				ids.add(id);
+				last = i;
+			}
 		}
+		return new IdPage(ids, null);
+	}
 
-		coll = db.getCollection(VideoColl);
-		cursor = coll.find();
-		while (cursor.hasNext()) {
-			mediaIds.add((String) cursor.next().get("_id"));
+	/**
+	 * Answered from the {appId, email} index.
+	 */
+	@Override
+	public Set<String> getExistingEmails(String appId, Collection<String> emails) {
+		Set<String> existing = new HashSet<String>();
+		if (emails.isEmpty())
+			return existing;
+		if (userKeys.isReady())
+			return userKeys.existingEmails(appId, emails);
+		DBCursor cursor = db.getCollection(UsersColl).find(
+				new BasicDBObject("appId", appId).append("email",
+						new BasicDBObject("$in", emails)),
+				new BasicDBObject("email", 1));
+		while (cursor.hasNext())
+			existing.add((String) cursor.next().get("email"));
+		return existing;
+	}
+
+	/**
+	 * Takes the emails of the users, then inserts the ones that got theirs in
+	 * one batch. If the batch fails they are inserted one by one, to know
+	 * which ones were written.
+	 */
+	@Override
+	public Set<String> createUsers(List<Map<String, String>> users) {
+		DBCollection coll = db.getCollection(UsersColl);
+		List<DBObject> batch = new ArrayList<DBObject>();
+		Set<String> created = new HashSet<String>();
+		if (users.isEmpty())
+			return created;
+		Set<String> reserved = userKeys.reserveAll(users);
+		for (Map<String, String> user : users) {
+			if (!reserved.contains(user.get("_id")))
+				continue;
+			batch.add(new BasicDBObject(user));
+			created.add(user.get("_id"));
 		}
-		return mediaIds;
+		if (batch.isEmpty())
+			return created;
+		try {
+			coll.insert(batch);
+			return created;
+		} catch (MongoException e) {
+			System.out.println("Batch insert of " + batch.size()
+					+ " users failed, inserting them one by one: "
+					+ e.getMessage());
+		}
+		created.clear();
+		for (DBObject user : batch) {
+			try {
+				coll.insert(user);
+				created.add((String) user.get("_id"));
+			} catch (MongoException e) {
+				// the batch stops at the first error, the users before it
+				// were written.
+				if (existsInApp(UsersColl, (String) user.get("appId"),
+						(String) user.get("_id")))
+					created.add((String) user.get("_id"));
+				else
+					userKeys.release((String) user.get("appId"),
+							(String) user.get("_id"),
+							(String) user.get("email"),
+							(String) user.get("userName"));
+			}
+		}
+		return created;
 	}
 
 	@Override
@@ -764,24 +959,17 @@ public class MongoDBDataModel implements DatabaseInterface {
 		query.append("_id", userId);
 		query.append("appId", appId);
 		BasicDBObject updateUser = new BasicDBObject();
-		updateUser
-				.append("$set", new BasicDBObject().append("location", location));
-		updateUser.append("$set", new BasicDBObject().append("date", date));
+		// lastActive is kept as a date so recently active users can be sorted.
+		updateUser.append("$set", new BasicDBObject()
+				.append("location", location).append("date", date)
+				.append("lastActive", new Date()));
 		users.update(query, updateUser);
 
 	}
 
 	@Override
 	public boolean storageExistsInApp(String appId, String storageId) {
-		DBCollection coll = db.getCollection(StorageColl);
-		BasicDBObject query = new BasicDBObject();
-		query.append("appId", appId);
-		query.append("_id", storageId);
-		DBCursor cursor = coll.find(query);
-		boolean storageExistsInApp = false;
-		if (cursor.hasNext())
-			storageExistsInApp = true;
-		return storageExistsInApp;
+		return existsInApp(StorageColl, appId, storageId);
 	}
 
 	@Override
@@ -805,15 +993,10 @@ public class MongoDBDataModel implements DatabaseInterface {
 
 	@Override
 	public boolean confirmUsersEmail(String appId) {
-		DBCollection coll = db.getCollection(AppsColl);
-		BasicDBObject searchQuery = new BasicDBObject();
-		searchQuery.append("appId", appId);
-		Map<String, String> temp = (Map) coll.findOne(searchQuery);
-		for(Map.Entry<String, String> entry : temp.entrySet()){
-			if(entry.getKey().equalsIgnoreCase(CONFIRMUSERSEMAIL))
-				return Boolean.parseBoolean(entry.getValue());
-		}
-		return false;
+		// stored as a boolean, older apps may have it as text.
+		Object confirm = fieldOf(AppsColl, new BasicDBObject("_id", appId),
+				CONFIRMUSERSEMAIL);
+		return confirm != null && Boolean.parseBoolean(confirm.toString());
 	}
 
 	@Override
@@ -839,8 +1022,7 @@ public class MongoDBDataModel implements DatabaseInterface {
 				.append("userFile", userFile)
 				.append("emailConfirmed", emailConfirmed)
 				.append("creationDate", creationDate);
-		coll.insert(user);
-		return true;
+		return insertUser(coll, user);
 	}
 
 	@Override
@@ -856,8 +1038,7 @@ public class MongoDBDataModel implements DatabaseInterface {
 				.append("salt", new String(salt, "ISO-8859-1"))
 				.append("emailConfirmed", emailConfirmed)
 				.append("creationDate", creationDate);
-		coll.insert(user);
-		return true;
+		return insertUser(coll, user);
 	}
 
 	@Override
@@ -882,17 +1063,10 @@ public class MongoDBDataModel implements DatabaseInterface {
 
 	@Override
 	public boolean userEmailIsConfirmed(String appId, String userId) {
-		DBCollection users = db.getCollection(UsersColl);
-		BasicDBObject query = new BasicDBObject();
-		query.put("_id", userId);
-		query.put("appId", appId);
-		DBCursor cursor = users.find(query);
-		boolean emailIsConfirmed = false;
-		if(cursor.hasNext()){
-			DBObject temp = cursor.next();
-			emailIsConfirmed = (Boolean) temp.get("emailConfirmed");
-		}
-		return emailIsConfirmed;
+		Object confirmed = fieldOf(UsersColl,
+				new BasicDBObject("_id", userId).append("appId", appId),
+				"emailConfirmed");
+		return confirmed != null && (Boolean) confirmed;
 	}
 
 	@Override
@@ -0,0 +1,63 @@
+package dataModels;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+
+/**
+ * Creates the indexes the queries of MongoDBDataModel rely on. Every lookup
+ * and listing filters on the appId first, so each collection gets an
+ * {appId, _id} index and users also get {appId, email} and {appId, userName}.
+ * Listing the ids of an app is then answered from the index alone. The cache
+ * warmup reads the most recently active users, {lastActive} and {appId,
+ * lastActive} keep that sort out of memory.
+ *
+ * Creating an index that already exists does nothing, so this runs on every
+ * startup. Indexes are built in the background to leave the database usable
+ * while a large collection is indexed.
+ *
+ */
+public class MongoIndexes {
+
+	private static final String[] APPCOLLECTIONS = { "users", "audio",
+			"images", "videos", "storage" };
+	private final DB db;
+
+	public MongoIndexes(DB db) {
+		this.db = db;
+	}
+
+	public void ensureAll() {
+		for (String collection : APPCOLLECTIONS)
+			ensure(collection, new BasicDBObject("appId", 1).append("_id", 1),
+					"appId_id");
+		ensure("users", new BasicDBObject("appId", 1).append("email", 1),
+				"appId_email");
+		ensure("users", new BasicDBObject("appId", 1).append("userName", 1),
+				"appId_userName");
+		ensure("users", new BasicDBObject("lastActive", -1), "lastActive");
+		ensure("users",
+				new BasicDBObject("appId", 1).append("lastActive", -1),
+				"appId_lastActive");
+	}
+
+	/**
+	 * @param collection
+	 * @param keys
+	 * @param name
+	 * @return false if the index could not be created, the queries still
+	 *         work without it.
+	 */
+	private boolean ensure(String collection, DBObject keys, String name) {
+		try {
+			db.getCollection(collection).ensureIndex(keys,
+					new BasicDBObject("name", name).append("background", true));
+			return true;
+		} catch (MongoException e) {
+			System.out.println("Could not create index " + name + " on "
+					+ collection + ": " + e.getMessage());
+			return false;
+		}
+	}
+}
@@ -0,0 +1,133 @@
+package dataModels;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Small on-heap cache kept in front of redis for the records read on every
+ * request (apps and users). It holds at most maxSize entries, the least
+ * recently used one is dropped first, and entries older than ttl are ignored.
+ *
+ * Loads race with invalidations: a thread can read a record, another one
+ * update and invalidate it, and the first one then put the old record back.
+ * Callers take a stamp of the key before loading and the put is ignored if
+ * the key was invalidated since. Keys are stamped per stripe (STRIPES of
+ * them, by hash), an invalidation only holds back the puts of its stripe.
+ *
+ * @param <V>
+ */
+public class NearCache<V> {
+
+	private static class CachedValue<V> {
+		final V value;
+		final long expires;
+
+		CachedValue(V value, long expires) {
+			this.value = value;
+			this.expires = expires;
+		}
+	}
+
+	private final long ttl; // milliseconds
+	private final LinkedHashMap<String, CachedValue<V>> entries;
+	private static final int STRIPES = 256; // power of two
+	private final AtomicLongArray invalidations = new AtomicLongArray(STRIPES);
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	public NearCache(final int maxSize, long ttl) {
+		this.ttl = ttl;
+		this.entries = new LinkedHashMap<String, CachedValue<V>>(16, 0.75f,
+				true) {
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry(
+					Map.Entry<String, CachedValue<V>> eldest) {
+				return size() > maxSize;
+			}
+		};
+	}
+
+	/**
+	 * @param key
+	 * @return the cached value, null if it is not cached or expired.
+	 */
+	public V get(String key) {
+		CachedValue<V> entry;
+		synchronized (entries) {
+			entry = entries.get(key);
+			if (entry != null && entry.expires < System.currentTimeMillis()) {
+				entries.remove(key);
+				entry = null;
+			}
+		}
+		if (entry == null) {
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+		return entry.value;
+	}
+
+	private static int stripe(String key) {
+		int h = key.hashCode();
+		return (h ^ (h >>> 16)) & (STRIPES - 1);
+	}
+
+	/**
+	 * Taken before reading the value from redis/mongo, see put.
+	 *
+	 * @param key
+	 * @return
+	 */
+	public long stamp(String key) {
+		return invalidations.get(stripe(key));
+	}
+
+	/**
+	 * Caches the value unless the stripe of the key was invalidated after the
+	 * stamp was taken.
+	 *
+	 * @param key
+	 * @param value
+	 * @param stamp
+	 */
+	public void put(String key, V value, long stamp) {
+		synchronized (entries) {
+			if (invalidations.get(stripe(key)) == stamp)
+				entries.put(key, new CachedValue<V>(value,
+						System.currentTimeMillis() + ttl));
+		}
+	}
+
+	public void invalidate(String key) {
+		synchronized (entries) {
+			invalidations.incrementAndGet(stripe(key));
+			entries.remove(key);
+		}
+	}
+
+	public void clear() {
+		synchronized (entries) {
+			for (int i = 0; i < STRIPES; i++)
+				invalidations.incrementAndGet(i);
+			entries.clear();
+		}
+	}
+
+	public int size() {
+		synchronized (entries) {
+			return entries.size();
+		}
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+}
@@ -0,0 +1,142 @@
+package dataModels;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes an entity to the cache and to the aux database at the same time, so
+ * a create costs about the slower of the two instead of their sum.
+ *
+ * The cache write runs on a bounded pool, the database write on the calling
+ * thread, then both are joined. The database is the reference: when either
+ * side fails the cached entity is evicted (it is missing from the database,
+ * or it may be an older copy) and reads reload it. Both must succeed for the
+ * write to succeed. When the pool and its queue are full the cache write runs
+ * on the calling thread, before the database write.
+ *
+ */
+public class ParallelWriter {
+
+	private static final int THREADS = 16;
+	private static final int QUEUESIZE = 256;
+	private static final long KEEPALIVE = 60; // seconds
+	private static final long SHUTDOWNWAIT = 5000; // milliseconds
+	private final CacheInterface cache;
+	private final ThreadPoolExecutor executor;
+	private final AtomicLong writes = new AtomicLong();
+	private final AtomicLong cacheFailures = new AtomicLong();
+	private final AtomicLong databaseFailures = new AtomicLong();
+	private final AtomicLong compensations = new AtomicLong();
+
+	public ParallelWriter(CacheInterface cache) {
+		this.cache = cache;
+		this.executor = new ThreadPoolExecutor(THREADS, THREADS, KEEPALIVE,
+				TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(QUEUESIZE),
+				new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "parallel-writes");
+						t.setDaemon(true);
+						return t;
+					}
+				}, new ThreadPoolExecutor.CallerRunsPolicy());
+		executor.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * @param type
+	 *            apps, users, audio, images, video or storage.
+	 * @param appId
+	 * @param id
+	 *            the appId for apps.
+	 * @param cacheWrite
+	 * @param databaseWrite
+	 * @return true if both writes succeeded.
+	 */
+	public boolean write(String type, String appId, String id,
+			Callable<Boolean> cacheWrite, Callable<Boolean> databaseWrite) {
+		writes.incrementAndGet();
+		Future<Boolean> cached = executor.submit(cacheWrite);
+		boolean databaseOk = false;
+		try {
+			databaseOk = Boolean.TRUE.equals(databaseWrite.call());
+		} catch (Exception e) {
+			System.out.println("Database write of " + type + " " + id
+					+ " failed: " + e.getMessage());
+		}
+		boolean cacheOk = false;
+		try {
+			cacheOk = Boolean.TRUE.equals(cached.get());
+		} catch (ExecutionException e) {
+			System.out.println("Cache write of " + type + " " + id
+					+ " failed: " + e.getCause().getMessage());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (!databaseOk)
+			databaseFailures.incrementAndGet();
+		if (!cacheOk)
+			cacheFailures.incrementAndGet();
+		if (!databaseOk || !cacheOk)
+			compensate(type, appId, id);
+		return databaseOk && cacheOk;
+	}
+
+	private void compensate(String type, String appId, String id) {
+		compensations.incrementAndGet();
+		try {
+			cache.evictElement(type, appId, id);
+		} catch (RuntimeException e) {
+			// the TTL bounds how long the entry can outlive the failure.
+			System.out.println("Could not evict " + type + " " + id + ": "
+					+ e.getMessage());
+		}
+	}
+
+	/**
+	 * Waits for the writes in flight, they still compensate on failure.
+	 */
+	public void stop() {
+		executor.shutdown();
+		try {
+			executor.awaitTermination(SHUTDOWNWAIT, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	public long getWrites() {
+		return writes.get();
+	}
+
+	public long getCacheFailures() {
+		return cacheFailures.get();
+	}
+
+	public long getDatabaseFailures() {
+		return databaseFailures.get();
+	}
+
+	/**
+	 * Cache entries evicted after a failed write.
+	 *
+	 * @return
+	 */
+	public long getCompensations() {
+		return compensations.get();
+	}
+
+	/**
+	 * Cache writes waiting for a thread.
+	 *
+	 * @return
+	 */
+	public int getQueued() {
+		return executor.getQueue().size();
+	}
+}
@@ -2,19 +2,25 @@ package dataModels;
 
 import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.Set;
 import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
 
 import modelInterfaces.*;
 
-import redis.clients.jedis.Client;
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
-import redis.clients.jedis.JedisPoolConfig;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.util.SafeEncoder;
 import rest_Models.DefaultApplication;
 import rest_Models.DefaultUser;
 
@@ -29,40 +35,1134 @@ import rest_Models.DefaultUser;
  * TLDR: Do ratio between hits and timestamp.
  * 
  * Present solution:
- * Sorted set using a UNIX timestamp as score.
+ * Every app, user, media and storage element is tracked by an EvictionPolicy (LRU, LFU or the
+ * hits over age ratio above). Writes and reads update the policy and, once the sampled memory
+ * crosses EVICTIONWATERMARK of the budget, the policy's victims are evicted EVICTIONBATCH at a time.
+ * 
+ * On top of that every entity hash has a TTL per type (0 = none), refreshed by a sample of the
+ * reads, so redis drops cold entities by itself and the budget is only a ceiling. The cache:expires
+ * index lets a periodic prune clean the app sets and bookkeeping left behind by expired entities.
+ * 
+ * Every element's estimated size is added to its app's total in cache:appbytes. An app over its
+ * quota has its own elements evicted, and past the watermark the victims come from the app the
+ * furthest over its quota, so one busy app can't push the others out. Pinned apps are never
+ * evicted and their entities have no TTL.
  * 
  */
 public class RedisDataModel implements CacheInterface {
 
 	// request types
+	private static final String APPS = "apps";
+	private static final String USERS = "users";
 	private static final String AUDIO = "audio";
 	private static final String IMAGES = "images";
 	private static final String VIDEO = "video";
 	private static final String STORAGE = "storage";
-	private JedisPool pool = new JedisPool(new JedisPoolConfig(), server);
-	Jedis jedis;
 	private final static String server = "localhost";
-
 	private static final int RedisCachePORT = 6379;
+	private static final long MEMORYSAMPLEINTERVAL = 1000; // milliseconds
+	private static final int EVICTIONBATCH = 50;
+	private static final double EVICTIONWATERMARK = 0.9;
+	private static final String ACTIVEAPPS = "apps:active";
+	private static final String INACTIVEAPPS = "apps:inactive";
+	private static final String USERNAMEINDEX = ":users:byUserName";
+	private static final String SCANSCRIPT = "return redis.call('scan', ARGV[1], 'match', ARGV[2], 'count', ARGV[3])";
+	private static final String SSCANSCRIPT = "return redis.call('sscan', KEYS[1], ARGV[1], 'count', ARGV[2])";
+	private static final int SCANBATCH = 500;
+	private static final String EXPIRES = "cache:expires";
+	private static final int APPTTL = 86400; // seconds
+	private static final int USERTTL = 21600; // seconds
+	private static final int MEDIATTL = 7200; // seconds
+	private static final double REFRESHSAMPLE = 0.1;
+	private static final int PRUNEEVERY = 10; // memory samples
+	private static final int PRUNEBATCH = 200;
+	private static final String ELEMENTBYTES = "cache:sizes";
+	private static final String APPBYTES = "cache:appbytes";
+	private static final String QUOTAS = "cache:quotas";
+	private static final String PINNED = "cache:pinned";
+	private static final long ELEMENTOVERHEAD = 96; // bytes
+	private static final long FIELDOVERHEAD = 16; // bytes
+	private static final int RECONCILEEVERY = 60; // memory samples
+	// recomputes the per app totals from the element sizes, the running
+	// totals drift when an element is written twice.
+	private static final String RECONCILESCRIPT = "local sizes = redis.call('hgetall', KEYS[1]) local totals = {}"
+			+ " for i = 1, #sizes, 2 do local appId = string.match(sizes[i], '^[^:]+:([^:]+):')"
+			+ " if appId then totals[appId] = (totals[appId] or 0) + tonumber(sizes[i + 1]) end end"
+			+ " redis.call('del', KEYS[2]) for appId, total in pairs(totals) do redis.call('hset', KEYS[2], appId, total) end"
+			+ " return #sizes / 2";
+	private static final String USERSCRIPT = "if redis.call('sismember', KEYS[1], ARGV[1]) == 0 then return false end"
+			+ " return redis.call('hgetall', KEYS[2])";
+	private static final String CREDENTIALSSCRIPT = "if redis.call('sismember', KEYS[1], ARGV[1]) == 0 then return false end"
+			+ " return redis.call('hmget', KEYS[2], ARGV[2], ARGV[3], ARGV[4])";
+	private final ConsistentHashRing<Shard> shards = new ConsistentHashRing<Shard>();
+	private EvictionPolicy evictionPolicy;
+	private long maxCacheSize;
+	private final Map<String, Integer> ttls = new ConcurrentHashMap<String, Integer>();
+	private final Random random = new Random();
+	private long defaultAppQuota = 0; // bytes
+	private volatile boolean persistent = false;
+	// copies of cache:quotas and cache:pinned, reloaded on every memory sample
+	private volatile Map<String, Long> quotas = new HashMap<String, Long>();
+	private volatile Set<String> pinned = new HashSet<String>();
 
-	public RedisDataModel() {
-		jedis = new Jedis(server, RedisCachePORT);
+	/**
+	 * One redis instance of the cache tier, with its own memory gauge and
+	 * eviction bookkeeping.
+	 */
+	private class Shard {
+		final String host;
+		final int port;
+		final JedisPool pool;
+		final CacheMemoryGauge memoryGauge;
+		int samples = 0; // only used by the gauge thread
+		volatile Map<String, Long> appBytes = new HashMap<String, Long>();
+
+		Shard(String host, int port) {
+			this.host = host;
+			this.port = port;
+			this.pool = RedisPools.getPool(host, port);
+			this.memoryGauge = new CacheMemoryGauge(pool, MEMORYSAMPLEINTERVAL);
+			memoryGauge.setListener(new CacheMemoryGauge.Listener() {
+				public void memorySampled(long usedMemory) {
+					loadQuotas(Shard.this);
+					if (!persistent) {
+						enforceQuotas(Shard.this);
+						if (usedMemory > getShardBudget() * EVICTIONWATERMARK)
+							evict(Shard.this, EVICTIONBATCH);
+					}
+					if (++samples % PRUNEEVERY == 0)
+						pruneExpired(Shard.this);
+					if (samples % RECONCILEEVERY == 0)
+						reconcile(Shard.this);
+				}
+			});
+		}
 	}
 
-	public long getCacheSize() {
-		String info = jedis.info();
-		String[] array = info.split("\r\n");
-		long size = 0;
-		for (int i = 0; i < array.length; i++) {
-			if (array[i].contains("used_memory")) {
-				String[] split = array[i].split(":");
-				if (split[0].equalsIgnoreCase("used_memory"))
-					size = Long.parseLong(split[1]);
+	/**
+	 * Single instance cache on localhost.
+	 * 
+	 * @param maxCacheSize
+	 *            memory budget in bytes, elements are evicted past it.
+	 * @param evictionPolicy
+	 */
+	public RedisDataModel(long maxCacheSize, EvictionPolicy evictionPolicy) {
+		this(new String[] { server + ":" + RedisCachePORT }, maxCacheSize,
+				evictionPolicy);
+	}
+
+	/**
+	 * Sharded cache: every key of an app lives on the instance its appId
+	 * hashes to on a consistent hash ring.
+	 * 
+	 * @param shards
+	 *            host:port of every redis instance.
+	 * @param maxCacheSize
+	 *            memory budget in bytes of the whole tier, split evenly
+	 *            between the instances.
+	 * @param evictionPolicy
+	 */
+	public RedisDataModel(String[] shards, long maxCacheSize,
+			EvictionPolicy evictionPolicy) {
+		this.maxCacheSize = maxCacheSize;
+		this.evictionPolicy = evictionPolicy;
+		ttls.put(APPS, APPTTL);
+		ttls.put(USERS, USERTTL);
+		ttls.put(AUDIO, MEDIATTL);
+		ttls.put(IMAGES, MEDIATTL);
+		ttls.put(VIDEO, MEDIATTL);
+		ttls.put(STORAGE, MEDIATTL);
+		for (String shard : shards) {
+			String[] hostPort = shard.split(":");
+			this.shards.add(shard,
+					startShard(hostPort[0], Integer.parseInt(hostPort[1])));
+		}
+	}
+
+	private Shard startShard(String host, int port) {
+		Shard shard = new Shard(host, port);
+		shard.memoryGauge.start();
+		indexApps(shard.pool);
+		return shard;
+	}
+
+	private long getShardBudget() {
+		return maxCacheSize / Math.max(1, shards.size());
+	}
+
+	/**
+	 * Pool of the instance holding the app's keys.
+	 */
+	private JedisPool pool(String appId) {
+		return shards.get(appId).pool;
+	}
+
+	/**
+	 * Adds a redis instance to the tier. Only the apps that now hash to it
+	 * move (about 1/N of them): they are dropped from the instances that had
+	 * them and the next reads load them on the new one. Whatever the new
+	 * instance kept from an earlier membership is dropped first, it may be
+	 * stale. When the cache is persistent nothing is dropped, the elements
+	 * of the moved apps stay on the instances that had them.
+	 * 
+	 * @param host
+	 * @param port
+	 */
+	public synchronized void addShard(String host, int port) {
+		String name = host + ":" + port;
+		if (shards.getNode(name) != null)
+			return;
+		Shard added = new Shard(host, port);
+		storeQuotas(added);
+		if (!persistent)
+			dropMoved(added);
+		added.memoryGauge.start();
+		indexApps(added.pool);
+		shards.add(name, added);
+		if (!persistent)
+			for (Shard shard : shards.getNodes())
+				if (shard != added)
+					dropMoved(shard);
+	}
+
+	/**
+	 * Removes a redis instance from the tier, its apps are reloaded on the
+	 * instances they hash to now.
+	 * 
+	 * @param host
+	 * @param port
+	 */
+	public synchronized void removeShard(String host, int port) {
+		Shard removed = shards.remove(host + ":" + port);
+		if (removed != null) {
+			removed.memoryGauge.stop();
+			// other components may share the instance, see RedisPools.
+			RedisPools.releasePool(host, port);
+		}
+	}
+
+	/**
+	 * Makes the ring hold exactly these instances, after another node changed
+	 * the membership. Nothing is moved, the node that made the change did it.
+	 * 
+	 * @param names
+	 *            host:port of every instance of the tier.
+	 */
+	public synchronized void setShards(Collection<String> names) {
+		if (names.isEmpty())
+			return;
+		for (String name : names)
+			if (shards.getNode(name) == null) {
+				String[] hostPort = name.split(":");
+				shards.add(name,
+						startShard(hostPort[0], Integer.parseInt(hostPort[1])));
+			}
+		for (Shard shard : shards.getNodes())
+			if (!names.contains(shard.host + ":" + shard.port))
+				removeShard(shard.host, shard.port);
+	}
+
+	/**
+	 * @return host:port of the instances of the tier.
+	 */
+	public List<String> getShards() {
+		List<String> names = new ArrayList<String>();
+		for (Shard shard : shards.getNodes())
+			names.add(shard.host + ":" + shard.port);
+		return names;
+	}
+
+	/**
+	 * Drops from the instance the elements of the apps that don't hash to it,
+	 * all of them if it is not on the ring.
+	 */
+	private void dropMoved(Shard shard) {
+		Jedis jedis = shard.pool.getResource();
+		try {
+			List<String> moved = new ArrayList<String>();
+			for (String element : evictionPolicy.elements(jedis))
+				if (shards.get(element.split(":", 3)[1]) != shard)
+					moved.add(element);
+			for (int i = 0; i < moved.size(); i += SCANBATCH)
+				dropElements(jedis,
+						moved.subList(i, Math.min(moved.size(), i + SCANBATCH)));
+		} finally {
+			shard.pool.returnResource(jedis);
+		}
+		shard.memoryGauge.requestRefresh();
+	}
+
+	/**
+	 * Sets how long the entities of a type stay cached without being read.
+	 * Applies to the entities written or refreshed from now on.
+	 * 
+	 * @param type
+	 *            apps, users, audio, images, video or storage.
+	 * @param seconds
+	 *            0 keeps them until they are evicted.
+	 */
+	public void setTtl(String type, int seconds) {
+		ttls.put(type, seconds);
+	}
+
+	/**
+	 * Queues the TTL of the element's hash and its entry in the expiry index.
+	 */
+	private void expire(Pipeline pipeline, String element) {
+		String[] splitted = element.split(":", 3);
+		Integer ttl = ttls.get(splitted[0]);
+		if (ttl == null || ttl <= 0 || pinned.contains(splitted[1]))
+			return;
+		pipeline.expire(splitted[0] + ":" + splitted[2], ttl);
+		pipeline.zadd(EXPIRES, System.currentTimeMillis() + ttl * 1000L,
+				element);
+	}
+
+	/**
+	 * Drops what expired entities left behind: their app set entries,
+	 * eviction bookkeeping and expiry index entries, PRUNEBATCH at a time.
+	 * Entries whose hash is still there were refreshed concurrently, their
+	 * index entry is renewed.
+	 */
+	private void pruneExpired(Shard shard) {
+		Jedis jedis = shard.pool.getResource();
+		try {
+			List<String> due = new ArrayList<String>(jedis.zrangeByScore(
+					EXPIRES, 0, System.currentTimeMillis(), 0, PRUNEBATCH));
+			if (due.isEmpty())
+				return;
+			Pipeline pipeline = jedis.pipelined();
+			List<Response<Boolean>> exists = new ArrayList<Response<Boolean>>();
+			for (String element : due) {
+				String[] splitted = element.split(":", 3);
+				exists.add(pipeline.exists(splitted[0] + ":" + splitted[2]));
 			}
+			pipeline.sync();
+			List<String> expired = new ArrayList<String>();
+			pipeline = jedis.pipelined();
+			for (int i = 0; i < due.size(); i++) {
+				if (exists.get(i).get())
+					expire(pipeline, due.get(i));
+				else
+					expired.add(due.get(i));
+			}
+			pipeline.sync();
+			dropElements(jedis, expired);
+		} finally {
+			shard.pool.returnResource(jedis);
 		}
+	}
+
+	/**
+	 * Reads the app totals of the instance and the quotas and pins in one
+	 * flush.
+	 */
+	private void loadQuotas(Shard shard) {
+		Jedis jedis = shard.pool.getResource();
+		try {
+			Pipeline pipeline = jedis.pipelined();
+			Response<Map<String, String>> appBytes = pipeline.hgetAll(APPBYTES);
+			Response<Map<String, String>> quotaFields = pipeline
+					.hgetAll(QUOTAS);
+			Response<Set<String>> pinnedApps = pipeline.smembers(PINNED);
+			pipeline.sync();
+			shard.appBytes = parseLongs(appBytes.get());
+			quotas = parseLongs(quotaFields.get());
+			pinned = new HashSet<String>(pinnedApps.get());
+		} finally {
+			shard.pool.returnResource(jedis);
+		}
+	}
+
+	private static Map<String, Long> parseLongs(Map<String, String> fields) {
+		Map<String, Long> values = new HashMap<String, Long>();
+		for (Entry<String, String> field : fields.entrySet())
+			values.put(field.getKey(), Long.parseLong(field.getValue()));
+		return values;
+	}
+
+	/**
+	 * Copies the quotas and pins to a new instance.
+	 */
+	private void storeQuotas(Shard shard) {
+		Jedis jedis = shard.pool.getResource();
+		try {
+			Pipeline pipeline = jedis.pipelined();
+			pipeline.del(QUOTAS);
+			pipeline.del(PINNED);
+			for (Entry<String, Long> quota : quotas.entrySet())
+				pipeline.hset(QUOTAS, quota.getKey(), quota.getValue()
+						.toString());
+			for (String appId : pinned)
+				pipeline.sadd(PINNED, appId);
+			pipeline.sync();
+		} finally {
+			shard.pool.returnResource(jedis);
+		}
+	}
+
+	/**
+	 * @param appId
+	 * @return the app's quota, the default one or the instance budget
+	 *         without.
+	 */
+	private long quota(String appId) {
+		Long quota = quotas.get(appId);
+		if (quota != null)
+			return quota;
+		return defaultAppQuota > 0 ? defaultAppQuota : getShardBudget();
+	}
+
+	/**
+	 * Evicts a batch of every unpinned app over its quota, from that app
+	 * only.
+	 */
+	private void enforceQuotas(Shard shard) {
+		for (Entry<String, Long> app : shard.appBytes.entrySet())
+			if (!pinned.contains(app.getKey())
+					&& app.getValue() > quota(app.getKey()))
+				evict(shard, app.getKey(), EVICTIONBATCH);
+	}
+
+	/**
+	 * @return the unpinned app using the most of its quota on the instance,
+	 *         null if there is none.
+	 */
+	private String heaviestApp(Shard shard) {
+		String heaviest = null;
+		double heaviestUse = 0;
+		for (Entry<String, Long> app : shard.appBytes.entrySet()) {
+			double use = (double) app.getValue() / quota(app.getKey());
+			if (!pinned.contains(app.getKey()) && app.getValue() > 0
+					&& use > heaviestUse) {
+				heaviest = app.getKey();
+				heaviestUse = use;
+			}
+		}
+		return heaviest;
+	}
+
+	private void reconcile(Shard shard) {
+		Jedis jedis = shard.pool.getResource();
+		try {
+			jedis.eval(RECONCILESCRIPT, 2, ELEMENTBYTES, APPBYTES);
+		} finally {
+			shard.pool.returnResource(jedis);
+		}
+	}
+
+	/**
+	 * Estimated memory of an entity hash.
+	 */
+	private static long estimateSize(String key, Map<String, String> fields) {
+		long size = ELEMENTOVERHEAD + key.length();
+		for (Entry<String, String> field : fields.entrySet())
+			if (field.getValue() != null)
+				size += FIELDOVERHEAD + field.getKey().length()
+						+ field.getValue().length();
 		return size;
 	}
 
+	/**
+	 * Queues the size of a new element and its addition to the app total.
+	 */
+	private static void account(Pipeline pipeline, String element, long size) {
+		pipeline.hset(ELEMENTBYTES, element, String.valueOf(size));
+		pipeline.hincrBy(APPBYTES, element.split(":", 3)[1], size);
+	}
+
+	/**
+	 * Queues the removal of an element's size from its app total.
+	 * 
+	 * @param size
+	 *            as read from cache:sizes, may be null.
+	 */
+	private static void unaccount(Pipeline pipeline, String element,
+			String size) {
+		pipeline.hdel(ELEMENTBYTES, element);
+		if (size != null)
+			pipeline.hincrBy(APPBYTES, element.split(":", 3)[1],
+					-Long.parseLong(size));
+	}
+
+	/**
+	 * Sets how much of the cache an app may use, its elements are evicted
+	 * past it. Stored on every instance.
+	 * 
+	 * @param appId
+	 * @param bytes
+	 *            0 removes the app's quota.
+	 */
+	public void setAppQuota(String appId, long bytes) {
+		Map<String, Long> updated = new HashMap<String, Long>(quotas);
+		if (bytes > 0)
+			updated.put(appId, bytes);
+		else
+			updated.remove(appId);
+		quotas = updated;
+		for (Shard shard : shards.getNodes()) {
+			Jedis jedis = shard.pool.getResource();
+			try {
+				if (bytes > 0)
+					jedis.hset(QUOTAS, appId, String.valueOf(bytes));
+				else
+					jedis.hdel(QUOTAS, appId);
+			} finally {
+				shard.pool.returnResource(jedis);
+			}
+		}
+	}
+
+	/**
+	 * Quota of the apps without one of their own.
+	 * 
+	 * @param bytes
+	 *            0 lets them use the whole budget.
+	 */
+	public void setDefaultAppQuota(long bytes) {
+		this.defaultAppQuota = bytes;
+	}
+
+	/**
+	 * For when redis is the only store: nothing is evicted, quotas are not
+	 * enforced and adding an instance drops nothing. Set TTLs to 0 too.
+	 * 
+	 * @param persistent
+	 */
+	public void setPersistent(boolean persistent) {
+		this.persistent = persistent;
+	}
+
+	/**
+	 * Pins or unpins an app: the entities of a pinned app are never evicted
+	 * and don't expire. The TTLs of its cached entities are removed or set
+	 * back.
+	 * 
+	 * @param appId
+	 * @param pin
+	 */
+	public void setAppPinned(String appId, boolean pin) {
+		Set<String> updated = new HashSet<String>(pinned);
+		if (pin)
+			updated.add(appId);
+		else
+			updated.remove(appId);
+		pinned = updated;
+		for (Shard shard : shards.getNodes()) {
+			Jedis jedis = shard.pool.getResource();
+			try {
+				if (pin)
+					jedis.sadd(PINNED, appId);
+				else
+					jedis.srem(PINNED, appId);
+			} finally {
+				shard.pool.returnResource(jedis);
+			}
+		}
+		JedisPool pool = pool(appId);
+		Jedis jedis = pool.getResource();
+		try {
+			List<String> elements = new ArrayList<String>();
+			if (jedis.exists("apps:" + appId))
+				elements.add(element(APPS, appId, appId));
+			for (String type : new String[] { USERS, AUDIO, IMAGES, VIDEO,
+					STORAGE })
+				for (String id : scanSet(jedis, "app:" + appId + ":" + type))
+					elements.add(element(type, appId, id));
+			Pipeline pipeline = jedis.pipelined();
+			for (String element : elements) {
+				if (pin) {
+					String[] splitted = element.split(":", 3);
+					pipeline.persist(splitted[0] + ":" + splitted[2]);
+					pipeline.zrem(EXPIRES, element);
+				} else {
+					expire(pipeline, element);
+				}
+			}
+			pipeline.sync();
+		} finally {
+			pool.returnResource(jedis);
+		}
+	}
+
+	public Set<String> getPinnedApps() {
+		return Collections.unmodifiableSet(pinned);
+	}
+
+	/**
+	 * @return appId -> quota in bytes, for the apps with a quota of their own.
+	 */
+	public Map<String, Long> getAppQuotas() {
+		return Collections.unmodifiableMap(quotas);
+	}
+
+	/**
+	 * Estimated cache memory of every app, as of the last memory samples.
+	 * 
+	 * @return appId -> bytes
+	 */
+	public Map<String, Long> getAppCacheUsage() {
+		Map<String, Long> usage = new HashMap<String, Long>();
+		for (Shard shard : shards.getNodes())
+			for (Entry<String, Long> app : shard.appBytes.entrySet()) {
+				Long bytes = usage.get(app.getKey());
+				usage.put(app.getKey(), app.getValue()
+						+ (bytes == null ? 0 : bytes));
+			}
+		return usage;
+	}
+
+	private Shard fullestShard() {
+		Shard fullest = null;
+		for (Shard shard : shards.getNodes())
+			if (fullest == null
+					|| shard.memoryGauge.getUsedMemory() > fullest.memoryGauge
+							.getUsedMemory())
+				fullest = shard;
+		return fullest;
+	}
+
+	private static String element(String type, String appId, String id) {
+		return type + ":" + appId + ":" + id;
+	}
+
+	/**
+	 * Updates the eviction bookkeeping and, for REFRESHSAMPLE of the reads,
+	 * renews the TTL: hot elements stay, reads don't all pay an extra write.
+	 */
+	private void recordAccess(Jedis jedis, String element) {
+		Pipeline pipeline = jedis.pipelined();
+		evictionPolicy.recordAccess(pipeline, element);
+		if (random.nextDouble() < REFRESHSAMPLE)
+			expire(pipeline, element);
+		pipeline.sync();
+	}
+
+
+	/**
+	 * Writes an entity hash, its set memberships and the eviction bookkeeping
+	 * in a single MULTI/EXEC, sent to redis in one flush. Null fields are
+	 * left out.
+	 * 
+	 * @param element
+	 *            name of the entity for the eviction policy.
+	 * @param created
+	 *            true for new entities, false for updates.
+	 * @param key
+	 * @param fields
+	 * @param memberships
+	 *            set key -> member, may be null.
+	 */
+	private void writeEntity(Jedis jedis, String element, boolean created,
+			String key, Map<String, String> fields,
+			Map<String, String> memberships) {
+		writeEntity(jedis, element, created, key, fields, memberships, null);
+	}
+
+	/**
+	 * @param removedMemberships
+	 *            set key -> member to remove in the same MULTI/EXEC, may be
+	 *            null.
+	 */
+	private void writeEntity(Jedis jedis, String element, boolean created,
+			String key, Map<String, String> fields,
+			Map<String, String> memberships,
+			Map<String, String> removedMemberships) {
+		writeEntity(jedis, element, created, key, fields, memberships,
+				removedMemberships, null);
+	}
+
+	/**
+	 * An update of a user whose hash expired or was evicted writes nothing,
+	 * a partial hash would be served as the user. What the user left behind
+	 * is dropped instead.
+	 * 
+	 * @param indexes
+	 *            hash key -> field -> value to set in the same MULTI/EXEC, a
+	 *            null value deletes the field. User names are only set if
+	 *            the name is free. May be null.
+	 */
+	private void writeEntity(Jedis jedis, String element, boolean created,
+			String key, Map<String, String> fields,
+			Map<String, String> memberships,
+			Map<String, String> removedMemberships,
+			Map<String, Map<String, String>> indexes) {
+		if (!created && key.startsWith(USERS + ":") && !jedis.exists(key)) {
+			dropElements(jedis, Collections.singletonList(element));
+			return;
+		}
+		Map<String, String> values = new HashMap<String, String>();
+		for (Entry<String, String> field : fields.entrySet())
+			if (field.getValue() != null)
+				values.put(field.getKey(), field.getValue());
+		Pipeline pipeline = jedis.pipelined();
+		pipeline.multi();
+		if (key.startsWith(USERS + ":"))
+			pipeline.hmset(SafeEncoder.encode(key),
+					UserCodec.encode(values, created));
+		else
+			pipeline.hmset(key, values);
+		if (memberships != null)
+			for (Entry<String, String> membership : memberships.entrySet())
+				pipeline.sadd(membership.getKey(), membership.getValue());
+		if (removedMemberships != null)
+			for (Entry<String, String> membership : removedMemberships
+					.entrySet())
+				pipeline.srem(membership.getKey(), membership.getValue());
+		if (indexes != null)
+			for (Entry<String, Map<String, String>> index : indexes.entrySet())
+				for (Entry<String, String> entry : index.getValue().entrySet())
+					if (entry.getValue() == null)
+						pipeline.hdel(index.getKey(), entry.getKey());
+					else if (index.getKey().endsWith(USERNAMEINDEX))
+						pipeline.hsetnx(index.getKey(), entry.getKey(),
+								entry.getValue());
+					else
+						pipeline.hset(index.getKey(), entry.getKey(),
+								entry.getValue());
+		if (created) {
+			evictionPolicy.recordWrite(pipeline, element);
+			account(pipeline, element, estimateSize(key, values));
+		} else {
+			evictionPolicy.recordAccess(pipeline, element);
+		}
+		expire(pipeline, element);
+		pipeline.exec();
+		pipeline.sync();
+	}
+
+	/**
+	 * Removes an entity hash, its set memberships and its eviction
+	 * bookkeeping in a single MULTI/EXEC.
+	 */
+	private void deleteEntity(Jedis jedis, String element, String key,
+			Map<String, String> memberships) {
+		String size = jedis.hget(ELEMENTBYTES, element);
+		Pipeline pipeline = jedis.pipelined();
+		pipeline.multi();
+		pipeline.del(key);
+		if (memberships != null)
+			for (Entry<String, String> membership : memberships.entrySet())
+				pipeline.srem(membership.getKey(), membership.getValue());
+		evictionPolicy.forget(pipeline, element);
+		pipeline.zrem(EXPIRES, element);
+		unaccount(pipeline, element, size);
+		pipeline.exec();
+		pipeline.sync();
+	}
+
+	/**
+	 * Checks if id is in the app:{appId}:{type} set, SISMEMBER costs the same
+	 * whatever the size of the app.
+	 * 
+	 * @param appId
+	 * @param type
+	 *            users, audio, images, video or storage.
+	 * @param id
+	 * @return
+	 */
+	public boolean existsInApp(String appId, String type, String id) {
+		JedisPool pool = pool(appId);
+		Jedis jedis = pool.getResource();
+		boolean exists = false;
+		try {
+			exists = jedis.sismember("app:" + appId + ":" + type, id);
+		} finally {
+			pool.returnResource(jedis);
+		}
+		return exists;
+	}
+
+	/**
+	 * Checks the app:{appId}:{type} membership and reads the {type}:{id} hash
+	 * in the same flush, the fields are only returned to app members.
+	 */
+	private Map<String, String> getMemberFields(Jedis jedis, String appId,
+			String type, String id) {
+		if (type.equals(USERS))
+			return getUserFields(jedis, appId, id);
+		Pipeline pipeline = jedis.pipelined();
+		Response<Boolean> member = pipeline.sismember("app:" + appId + ":"
+				+ type, id);
+		Response<Map<String, String>> fields = pipeline.hgetAll(type + ":"
+				+ id);
+		pipeline.sync();
+		if (!member.get())
+			return null;
+		recordAccess(jedis, element(type, appId, id));
+		return fields.get();
+	}
+
+	/**
+	 * Same as getMemberFields for users, read raw in one script call (the
+	 * values are binary). A hash in an older encoding is dropped and reported
+	 * missing, the caller reloads it.
+	 */
+	private Map<String, String> getUserFields(Jedis jedis, String appId,
+			String userId) {
+		Object reply = jedis.eval(SafeEncoder.encode(USERSCRIPT),
+				SafeEncoder.encode("2"), new byte[][] {
+						SafeEncoder.encode("app:" + appId + ":users"),
+						UserCodec.key(userId), SafeEncoder.encode(userId) });
+		if (reply == null)
+			return null;
+		Map<String, String> fields = UserCodec.decode(userId, (List<?>) reply);
+		if (fields == null) {
+			jedis.del(UserCodec.key(userId));
+			return null;
+		}
+		recordAccess(jedis, element(USERS, appId, userId));
+		return fields;
+	}
+
+	/**
+	 * Salt and hash of a cached user as raw bytes, without going through the
+	 * string fields.
+	 * 
+	 * @param appId
+	 * @param userId
+	 * @return {salt, hash}, null if the user is not cached.
+	 */
+	public byte[][] getUserCredentials(String appId, String userId) {
+		JedisPool pool = pool(appId);
+		Jedis jedis = pool.getResource();
+		try {
+			Object reply = jedis.eval(SafeEncoder.encode(CREDENTIALSSCRIPT),
+					SafeEncoder.encode("2"), new byte[][] {
+							SafeEncoder.encode("app:" + appId + ":users"),
+							UserCodec.key(userId), SafeEncoder.encode(userId),
+							UserCodec.field("salt"), UserCodec.field("hash"),
+							UserCodec.versionField() });
+			if (reply == null)
+				return null;
+			List<?> values = (List<?>) reply;
+			if (values.get(0) == null || values.get(1) == null
+					|| !UserCodec.isCurrent((byte[]) values.get(2)))
+				return null;
+			recordAccess(jedis, element(USERS, appId, userId));
+			return new byte[][] { (byte[]) values.get(0),
+					(byte[]) values.get(1) };
+		} finally {
+			pool.returnResource(jedis);
+		}
+	}
+
+	private static Map<String, String> membership(String set, String member) {
+		Map<String, String> memberships = new HashMap<String, String>();
+		memberships.put(set, member);
+		return memberships;
+	}
+
+	private static Map<String, String> userMemberships(String appId,
+			String userId) {
+		return membership("app:" + appId + ":users", userId);
+	}
+
+	/**
+	 * Hash of the app mapping each cached user's email to its id.
+	 */
+	private static String emailIndex(String appId) {
+		return "app:" + appId + ":users:byEmail";
+	}
+
+	/**
+	 * Hash of the app mapping each cached user's name to its id. A name
+	 * belongs to the first user that took it, as in UserKeys.
+	 */
+	private static String userNameIndex(String appId) {
+		return "app:" + appId + USERNAMEINDEX;
+	}
+
+	/**
+	 * Hash of the app mapping each cached user's id to its email, so the
+	 * email index can be cleaned after the user hash expired.
+	 */
+	private static String emailById(String appId) {
+		return "app:" + appId + ":users:emailById";
+	}
+
+	/**
+	 * Hash of the app mapping each cached user's id to its name.
+	 */
+	private static String userNameById(String appId) {
+		return "app:" + appId + ":users:userNameById";
+	}
+
+	/**
+	 * @param oldEmail
+	 *            removed from the email index if it isn't email, may be null.
+	 * @param email
+	 *            may be null.
+	 * @param userName
+	 *            may be null.
+	 * @return the entries of the user in the email and user name indexes,
+	 *         and in the reverse ones by id.
+	 */
+	private static Map<String, Map<String, String>> userIndexes(String appId,
+			String userId, String oldEmail, String email, String userName) {
+		Map<String, Map<String, String>> indexes = new HashMap<String, Map<String, String>>();
+		Map<String, String> emails = new HashMap<String, String>();
+		if (oldEmail != null && !oldEmail.equals(email))
+			emails.put(oldEmail, null);
+		if (email != null) {
+			emails.put(email, userId);
+			indexes.put(emailById(appId), membership(userId, email));
+		}
+		indexes.put(emailIndex(appId), emails);
+		if (userName != null) {
+			indexes.put(userNameIndex(appId),
+					membership(userName, userId));
+			indexes.put(userNameById(appId), membership(userId, userName));
+		}
+		return indexes;
+	}
+
+	/**
+	 * @return the index entries moving the user to the new email, null if
+	 *         email is null.
+	 */
+	private Map<String, Map<String, String>> emailChange(Jedis jedis,
+			String appId, String userId, String email) {
+		if (email == null)
+			return null;
+		// the user hash may be gone, the reverse index outlives it.
+		String oldEmail = jedis.hget(emailById(appId), userId);
+		return userIndexes(appId, userId, oldEmail, email, null);
+	}
+
+	private static Map<String, String> userFields(String userId,
+			String userName, String email, byte[] salt, byte[] hash,
+			String creationDate) throws UnsupportedEncodingException {
+		Map<String, String> fields = new HashMap<String, String>();
+		fields.put("userId", userId);
+		fields.put("userName", userName);
+		fields.put("email", email);
+		fields.put("salt", new String(salt, "ISO-8859-1"));
+		fields.put("lastActive", new Date().toString());
+		fields.put("hash", new String(hash, "ISO-8859-1"));
+		fields.put("alive", "true");
+		fields.put("creationDate", creationDate);
+		return fields;
+	}
+
+	/**
+	 * Writes a batch of entities in two flushes: one to find the ones already
+	 * cached (they may be newer than the database copy, they are left alone)
+	 * and one with the hashes, memberships and eviction bookkeeping of the
+	 * others.
+	 */
+	public int warm(String type, List<Map<String, String>> entities) {
+		return warm(type, entities, null);
+	}
+
+	/**
+	 * Writes the users with the pipelines of warm, one per shard.
+	 */
+	@Override
+	public Set<String> createUsers(List<Map<String, String>> users) {
+		Set<String> created = new HashSet<String>();
+		warm(USERS, users, created);
+		return created;
+	}
+
+	/**
+	 * Emails are checked against the email index of the app in one flush.
+	 */
+	@Override
+	public Set<String> getExistingEmails(String appId, Collection<String> emails) {
+		Set<String> existing = new HashSet<String>();
+		JedisPool pool = pool(appId);
+		Jedis jedis = pool.getResource();
+		try {
+			Pipeline pipeline = jedis.pipelined();
+			Map<String, Response<Boolean>> members = new HashMap<String, Response<Boolean>>();
+			for (String email : emails)
+				members.put(email, pipeline.hexists(emailIndex(appId), email));
+			pipeline.sync();
+			for (Entry<String, Response<Boolean>> member : members.entrySet())
+				if (member.getValue().get())
+					existing.add(member.getKey());
+		} finally {
+			pool.returnResource(jedis);
+		}
+		return existing;
+	}
+
+	/**
+	 * @param writtenIds
+	 *            the ids written are added to it, may be null.
+	 */
+	private int warm(String type, List<Map<String, String>> entities,
+			Set<String> writtenIds) {
+		Map<Shard, List<Map<String, String>>> batches = new HashMap<Shard, List<Map<String, String>>>();
+		for (Map<String, String> entity : entities) {
+			Shard shard = shards.get(type.equals(APPS) ? entity.get("_id")
+					: entity.get("appId"));
+			List<Map<String, String>> batch = batches.get(shard);
+			if (batch == null) {
+				batch = new ArrayList<Map<String, String>>();
+				batches.put(shard, batch);
+			}
+			batch.add(entity);
+		}
+		int written = 0;
+		for (Entry<Shard, List<Map<String, String>>> batch : batches
+				.entrySet())
+			written += warm(batch.getKey().pool, type, batch.getValue(),
+					writtenIds);
+		return written;
+	}
+
+	private int warm(JedisPool pool, String type,
+			List<Map<String, String>> entities, Set<String> writtenIds) {
+		if (entities.isEmpty())
+			return 0;
+		Jedis jedis = pool.getResource();
+		int written = 0;
+		try {
+			Pipeline pipeline = jedis.pipelined();
+			List<Response<Boolean>> cached = new ArrayList<Response<Boolean>>();
+			for (Map<String, String> entity : entities)
+				cached.add(pipeline.exists(type + ":" + entity.get("_id")));
+			pipeline.sync();
+			pipeline = jedis.pipelined();
+			for (int i = 0; i < entities.size(); i++) {
+				if (cached.get(i).get())
+					continue;
+				Map<String, String> fields = new HashMap<String, String>(
+						entities.get(i));
+				String id = fields.remove("_id");
+				String appId = fields.remove("appId");
+				if (type.equals(APPS)) {
+					appId = id;
+					pipeline.sadd("true".equals(fields.get("alive")) ? ACTIVEAPPS
+							: INACTIVEAPPS, id);
+				} else if (type.equals(USERS)) {
+					fields.put("userId", id);
+					pipeline.sadd("app:" + appId + ":users", id);
+					if (fields.get("email") != null) {
+						pipeline.hset(emailIndex(appId), fields.get("email"),
+								id);
+						pipeline.hset(emailById(appId), id, fields.get("email"));
+					}
+					if (fields.get("userName") != null) {
+						pipeline.hsetnx(userNameIndex(appId),
+								fields.get("userName"), id);
+						pipeline.hset(userNameById(appId), id,
+								fields.get("userName"));
+					}
+				} else {
+					pipeline.sadd("app:" + appId + ":" + type, id);
+				}
+				if (type.equals(USERS))
+					pipeline.hmset(UserCodec.key(id),
+							UserCodec.encode(fields, true));
+				else
+					pipeline.hmset(type + ":" + id, fields);
+				evictionPolicy.recordWrite(pipeline, element(type, appId, id));
+				account(pipeline, element(type, appId, id),
+						estimateSize(type + ":" + id, fields));
+				expire(pipeline, element(type, appId, id));
+				written++;
+				if (writtenIds != null)
+					writtenIds.add(id);
+			}
+			pipeline.sync();
+		} finally {
+			pool.returnResource(jedis);
+		}
+		return written;
+	}
+
+	/**
+	 * Walks the members of a set SCANBATCH at a time (SSCAN), so a big set
+	 * doesn't block redis the way SMEMBERS does.
+	 */
+	private Set<String> scanSet(Jedis jedis, String set) {
+		Set<String> members = new HashSet<String>();
+		String cursor = "0";
+		do {
+			List<?> reply = (List<?>) jedis.eval(SSCANSCRIPT, 1, set, cursor,
+					String.valueOf(SCANBATCH));
+			cursor = (String) reply.get(0);
+			for (Object member : (List<?>) reply.get(1))
+				members.add((String) member);
+		} while (!cursor.equals("0"));
+		return members;
+	}
+
+	/**
+	 * Walks the keys matching pattern SCANBATCH at a time (SCAN), for the
+	 * enumerations no index covers. Never use KEYS, it blocks redis for the
+	 * whole keyspace.
+	 */
+	private Set<String> scanKeys(Jedis jedis, String pattern) {
+		Set<String> keys = new HashSet<String>();
+		String cursor = "0";
+		do {
+			List<?> reply = (List<?>) jedis.eval(SCANSCRIPT, 0, cursor,
+					pattern, String.valueOf(SCANBATCH));
+			cursor = (String) reply.get(0);
+			for (Object key : (List<?>) reply.get(1))
+				keys.add((String) key);
+		} while (!cursor.equals("0"));
+		return keys;
+	}
+
+	/**
+	 * Builds apps:active from the cached apps when it is missing (cache
+	 * written before the index existed), creates, deletes, revives and
+	 * evictions keep it up to date afterwards. Only the app hashes are read,
+	 * older caches also have other keys under apps: (the apps:time set).
+	 */
+	private void indexApps(JedisPool pool) {
+		Jedis jedis = pool.getResource();
+		try {
+			if (jedis.exists(ACTIVEAPPS))
+				return;
+			List<String> keys = new ArrayList<String>();
+			for (String key : scanKeys(jedis, "apps:*"))
+				if (key.indexOf(':', "apps:".length()) < 0)
+					keys.add(key);
+			Pipeline pipeline = jedis.pipelined();
+			List<Response<String>> types = new ArrayList<Response<String>>();
+			for (String key : keys)
+				types.add(pipeline.type(key));
+			pipeline.sync();
+			List<String> appIds = new ArrayList<String>();
+			for (int i = 0; i < keys.size(); i++)
+				if ("hash".equals(types.get(i).get()))
+					appIds.add(keys.get(i).substring("apps:".length()));
+			pipeline = jedis.pipelined();
+			List<Response<String>> alive = new ArrayList<Response<String>>();
+			for (String appId : appIds)
+				alive.add(pipeline.hget("apps:" + appId, "alive"));
+			pipeline.sync();
+			pipeline = jedis.pipelined();
+			for (int i = 0; i < appIds.size(); i++)
+				if ("true".equals(alive.get(i).get()))
+					pipeline.sadd(ACTIVEAPPS, appIds.get(i));
+			pipeline.sync();
+		} finally {
+			pool.returnResource(jedis);
+		}
+	}
+
+	/**
+	 * Returns the last sampled used_memory, no request is made to redis.
+	 */
+	public long getCacheSize() {
+		long usedMemory = 0;
+		for (Shard shard : shards.getNodes())
+			usedMemory += shard.memoryGauge.getUsedMemory();
+		return usedMemory;
+	}
+
+	public void refreshCacheSize() {
+		for (Shard shard : shards.getNodes())
+			shard.memoryGauge.requestRefresh();
+	}
+
 	public Object clone() throws CloneNotSupportedException {
 		throw new CloneNotSupportedException();
 	}
@@ -71,6 +1171,7 @@ public class RedisDataModel implements CacheInterface {
 	 * Keep it safe, this method should not be accessible.
 	 */
 	public Set<String> getAllUserIdsForApp(String appId) {
+		JedisPool pool = pool(appId);
 		Jedis jedis = pool.getResource();
 		Set<String> usersId;
 		try{
@@ -82,20 +1183,14 @@ public class RedisDataModel implements CacheInterface {
 	}
 
 	public Set<String> getAllAppIds() {
-		Jedis jedis = pool.getResource();
-		Set<String> result;
-		try {
-			Set<String> allApps = jedis.keys("apps:");
-			Set<String> inactiveApps = jedis.smembers("apps:inactive");
-			result = new HashSet<String>(allApps.size());
-			Iterator<String> i = allApps.iterator();
-			while (i.hasNext()) {
-				String element = i.next();
-				if (!inactiveApps.contains(element))
-					result.add(element);
+		Set<String> result = new HashSet<String>();
+		for (Shard shard : shards.getNodes()) {
+			Jedis jedis = shard.pool.getResource();
+			try {
+				result.addAll(scanSet(jedis, ACTIVEAPPS));
+			} finally {
+				shard.pool.returnResource(jedis);
 			}
-		} finally {
-			pool.returnResource(jedis);
 		}
 		return result;
 	}
@@ -106,22 +1201,18 @@ public class RedisDataModel implements CacheInterface {
 	 * 
 	 */
 	public boolean deleteApp(String appId) {
+		JedisPool pool = pool(appId);
 		Jedis jedis = pool.getResource();
 		boolean sucess = false;
 		try {
 			if (jedis.exists("apps:" + appId)) {
-				long unixTime = System.currentTimeMillis() / 1000L;
-				jedis.zrem("apps:time", appId);
-				Set<String> inactiveApps = jedis.smembers("apps:inactive");
-				Iterator<String> it = inactiveApps.iterator();
-				boolean inactive = false;
-				while (it.hasNext() && !inactive) {
-					if (it.next().equals(appId))
-						inactive = true;
-				}
-				if (!inactive) {
-					jedis.hset("apps:" + appId, "alive", "false");
-					jedis.sadd("apps:inactive", appId);
+				if (!jedis.sismember(INACTIVEAPPS, appId)) {
+					Map<String, String> fields = new HashMap<String, String>();
+					fields.put("alive", "false");
+					writeEntity(jedis, element(APPS, appId, appId), false,
+							"apps:" + appId, fields,
+							membership(INACTIVEAPPS, appId),
+							membership(ACTIVEAPPS, appId));
 					sucess = true;
 				}
 			}
@@ -138,37 +1229,52 @@ public class RedisDataModel implements CacheInterface {
 	 * @return
 	 */
 	public boolean updateApp(String currentId, String newId, String alive) {
-		Jedis jedis = pool.getResource();
-		boolean sucess = false;
+		// the ids may hash to different instances.
+		JedisPool from = pool(currentId);
+		JedisPool to = pool(newId);
+		Jedis jedis = from.getResource();
+		Map<String, String> tempValues = null;
 		try {
-			if (jedis.exists("apps:" + currentId)) {
-				jedis.zrem("apps:time", currentId);
-				long unixTime = System.currentTimeMillis() / 1000L;
-				jedis.zadd("apps:time", unixTime, newId);
-				Map<String, String> tempValues = jedis.hgetAll("apps:"
-						+ currentId);
-				for (Map.Entry<String, String> entry : tempValues.entrySet()) {
-					jedis.hset("apps:" + newId, entry.getKey(),
-							entry.getValue());
-				}
-				jedis.del("apps:" + currentId);
-				sucess = true;
-			}
+			if (jedis.exists("apps:" + currentId))
+				tempValues = jedis.hgetAll("apps:" + currentId);
 		} finally {
-			pool.returnResource(jedis);
+			from.returnResource(jedis);
 		}
-		return sucess;
+		if (tempValues == null)
+			return false;
+		jedis = to.getResource();
+		try {
+			Map<String, String> index = membership(
+					"true".equals(tempValues.get("alive")) ? ACTIVEAPPS
+							: INACTIVEAPPS, newId);
+			writeEntity(jedis, element(APPS, newId, newId), true, "apps:"
+					+ newId, tempValues, index);
+		} finally {
+			to.returnResource(jedis);
+		}
+		jedis = from.getResource();
+		try {
+			Map<String, String> oldIndex = membership(ACTIVEAPPS, currentId);
+			oldIndex.put(INACTIVEAPPS, currentId);
+			deleteEntity(jedis, element(APPS, currentId, currentId), "apps:"
+					+ currentId, oldIndex);
+		} finally {
+			from.returnResource(jedis);
+		}
+		return true;
 	}
 
 	/**
 	 * Returns the fields of the corresponding application
 	 */
 	public Map<String, String> getApplication(String appId) {
+		JedisPool pool = pool(appId);
 		Jedis jedis = pool.getResource();
 		Map<String, String> appFields = null;
 		try {
 			if (jedis.exists("apps:" + appId)) {
 				appFields = jedis.hgetAll("apps:" + appId);
+				recordAccess(jedis, element(APPS, appId, appId));
 			}
 		} finally {
 			pool.returnResource(jedis);
@@ -177,6 +1283,7 @@ public class RedisDataModel implements CacheInterface {
 	}
 
 	public boolean appExists(String appId) {
+		JedisPool pool = pool(appId);
 		Jedis jedis = pool.getResource();
 		boolean op;
 		try {
@@ -188,12 +1295,11 @@ public class RedisDataModel implements CacheInterface {
 	}
 
 	public boolean userExistsInApp(String appId, String email) {
+		JedisPool pool = pool(appId);
 		Jedis jedis = pool.getResource();
 		boolean userExists = false;
 		try {
-			Set<String> usersInApp = this.jedis.smembers("app:" + appId + ":users");
-			Iterator<String> it = usersInApp.iterator();
-			if (jedis.sismember("app:" + appId + ":users:emails", email))
+			if (jedis.hexists(emailIndex(appId), email))
 				userExists = true;
 		} finally {
 			pool.returnResource(jedis);
@@ -204,26 +1310,18 @@ public class RedisDataModel implements CacheInterface {
 	public boolean createUserWithFlag(String appId, String userId, String userName,
 			String email, byte[] salt, byte[] hash, String creationDate, String userFile)
 					throws UnsupportedEncodingException {
+		JedisPool pool = pool(appId);
 		Jedis jedis = pool.getResource();
 		boolean sucess = false;
 		try {
 			if (!jedis.exists("users:" + userId)) {
-				long unixTime = System.currentTimeMillis() / 1000L;
-				jedis.zadd("users:time", unixTime, appId + ":" + userId);
-				jedis.hset("users:" + userId, "userId", userId);
-				jedis.hset("users:" + userId, "userName", userName);
-				jedis.hset("users:" + userId, "email", email);
-				jedis.hset("users:" + userId, "salt",
-						new String(salt,
-								"ISO-8859-1"));
-				jedis.hset(("users:" + userId), "lastActive", new Date().toString());
-				jedis.hset(("users:" + userId), "userFile", userFile);
-				jedis.hset(("users:" + userId), "hash",
-						new String(hash, "ISO-8859-1"));
-				jedis.hset("users:" + userId, "alive", new String("true"));
-				jedis.hset("users:" + userId, "creationDate", creationDate);
-				jedis.sadd("app:" + appId + ":users", userId);
-				jedis.sadd("app:" + appId + ":users:emails", email);
+				Map<String, String> fields = userFields(userId, userName,
+						email, salt, hash, creationDate);
+				fields.put("userFile", userFile);
+				writeEntity(jedis, element(USERS, appId, userId), true,
+						"users:" + userId, fields,
+						userMemberships(appId, userId), null,
+						userIndexes(appId, userId, null, email, userName));
 				sucess = true;
 			}
 		} finally {
@@ -235,25 +1333,17 @@ public class RedisDataModel implements CacheInterface {
 	public boolean createUserWithoutFlag(String appId, String userId, String userName,
 			String email, byte[] salt, byte[] hash, String creationDate)
 					throws UnsupportedEncodingException {
+		JedisPool pool = pool(appId);
 		Jedis jedis = pool.getResource();
 		boolean sucess = false;
 		try {
 			if (!jedis.exists("users:" + userId)) {
-				long unixTime = System.currentTimeMillis() / 1000L;
-				jedis.zadd("users:time", unixTime, appId + ":" + userId);
-				jedis.hset("users:" + userId, "userId", userId);
-				jedis.hset("users:" + userId, "userName", userName);
-				jedis.hset("users:" + userId, "email", email);
-				jedis.hset("users:" + userId, "salt",
-						new String(salt,
-								"ISO-8859-1"));
-				jedis.hset(("users:" + userId), "lastActive", new Date().toString());
-				jedis.hset(("users:" + userId), "hash",
-						new String(hash, "ISO-8859-1"));
-				jedis.hset("users:" + userId, "alive", new String("true"));
-				jedis.hset("users:" + userId, "creationDate", creationDate);
-				jedis.sadd("app:" + appId + ":users", userId);
-				jedis.sadd("app:" + appId + ":users:emails", email);
+				Map<String, String> fields = userFields(userId, userName,
+						email, salt, hash, creationDate);
+				writeEntity(jedis, element(USERS, appId, userId), true,
+						"users:" + userId, fields,
+						userMemberships(appId, userId), null,
+						userIndexes(appId, userId, null, email, userName));
 				sucess = true;
 			}
 		} finally {
@@ -271,18 +1361,11 @@ public class RedisDataModel implements CacheInterface {
 	 * @return
 	 */
 	public Map<String, String> getUser(String appId, String userId) {
+		JedisPool pool = pool(appId);
 		Jedis jedis = pool.getResource();
 		Map<String, String> userFields = null;
 		try {
-			Set<String> usersOfApp = jedis.smembers("app:" + appId + ":users");
-			Iterator<String> it = usersOfApp.iterator();
-			boolean userExistsforApp = false;
-			while (it.hasNext())
-				if (it.next().equalsIgnoreCase(userId))
-					userExistsforApp = true;
-			if (userExistsforApp) {
-				userFields = jedis.hgetAll("users:" + userId);
-			}
+			userFields = getMemberFields(jedis, appId, USERS, userId);
 		} finally {
 			pool.returnResource(jedis);
 		}
@@ -290,18 +1373,11 @@ public class RedisDataModel implements CacheInterface {
 	}
 
 	public Map<String, String> getStorageInApp(String appId, String storageId) {
+		JedisPool pool = pool(appId);
 		Jedis jedis = pool.getResource();
 		Map<String, String> storageFields = null;
 		try {
-			Set<String> storageOfApp = jedis.smembers("app:" + appId
-					+ ":storage");
-			Iterator<String> it = storageOfApp.iterator();
-			boolean storageExists = false;
-			while (it.hasNext())
-				if (it.next().equals(storageId))
-					storageExists = true;
-			if (storageExists)
-				storageFields = jedis.hgetAll("storage:" + storageId);
+			storageFields = getMemberFields(jedis, appId, STORAGE, storageId);
 		} finally {
 			pool.returnResource(jedis);
 		}
@@ -316,20 +1392,17 @@ public class RedisDataModel implements CacheInterface {
 	 * @return
 	 */
 	public boolean deleteUser(String appId, String userId) {
+		JedisPool pool = pool(appId);
 		Jedis jedis = pool.getResource();
 		boolean sucess = false;
 		try {
 			if (jedis.exists("users:"+userId)) {
-				jedis.zrem("users:time", userId);
-				if(jedis==this.jedis)
-					System.out.println("ss");
-				Client c1 = this.jedis.getClient();
-				int a = c1.getPort();
-				if(this.jedis.equals(this.jedis))
-					System.out.println("aa");
-				this.jedis.hset("users:" + userId, "alive", "false");
-				this.jedis.sadd("app:" + appId + ":users:inactive", appId + ":"
-						+ userId);
+				Map<String, String> fields = new HashMap<String, String>();
+				fields.put("alive", "false");
+				writeEntity(jedis, element(USERS, appId, userId), false,
+						"users:" + userId, fields,
+						membership("app:" + appId + ":users:inactive", appId
+								+ ":" + userId));
 				sucess = true;
 			} else {
 				sucess = false;
@@ -347,11 +1420,13 @@ public class RedisDataModel implements CacheInterface {
 	 * @return
 	 */
 	public boolean updateAppName(String appId, String newAppName) {
+		JedisPool pool = pool(appId);
 		Jedis jedis = pool.getResource();
 		try {
-			long unixTime = System.currentTimeMillis() / 1000L;
-			jedis.zadd("apps:time", unixTime, appId);
-			jedis.hset("apps:" + appId, "appName", newAppName);
+			Map<String, String> fields = new HashMap<String, String>();
+			fields.put("appName", newAppName);
+			writeEntity(jedis, element(APPS, appId, appId), false,
+					"apps:" + appId, fields, null);
 		} finally {
 			pool.returnResource(jedis);
 		}
@@ -370,21 +1445,25 @@ public class RedisDataModel implements CacheInterface {
 	 * @param alive
 	 */
 	public void updateUser(String appId, String userId, String email,
-			byte[] hash, byte[] salt, String alive) {
+			byte[] hash, byte[] salt, String alive) throws UnsupportedEncodingException {
+		JedisPool pool = pool(appId);
 		Jedis jedis = pool.getResource();
 		try {
-			jedis.hset("users:" + userId, "email", email);
-			jedis.hset(("users:" + userId).getBytes(), "salt".getBytes(), salt);
-			jedis.hset(("users:" + userId).getBytes(), "hash".getBytes(), hash);
-			jedis.hset("users:" + userId, "alive", alive);
-			long unixTime = System.currentTimeMillis() / 1000L;
-			jedis.zadd("users:time", unixTime, appId + ":" + userId);
+			Map<String, String> fields = new HashMap<String, String>();
+			fields.put("email", email);
+			fields.put("salt", new String(salt, "ISO-8859-1"));
+			fields.put("hash", new String(hash, "ISO-8859-1"));
+			fields.put("alive", alive);
+			writeEntity(jedis, element(USERS, appId, userId), false,
+					"users:" + userId, fields, null, null,
+					emailChange(jedis, appId, userId, email));
 		} finally {
 			pool.returnResource(jedis);
 		}
 	}
 
 	public Set<String> getAllAudioIds(String appId) {
+		JedisPool pool = pool(appId);
 		Jedis jedis = pool.getResource();
 		Set<String> audioIds = null;
 		try {
@@ -396,33 +1475,15 @@ public class RedisDataModel implements CacheInterface {
 	}
 
 	public boolean audioExistsInApp(String appId, String audioId) {
-		Jedis jedis = pool.getResource();
-		boolean sucess = false;
-		try {
-			Set<String> audioInApp = this.jedis.smembers("app:" + appId
-					+ ":audio");
-			Iterator<String> it = audioInApp.iterator();
-			while (it.hasNext())
-				if (it.next().equalsIgnoreCase(audioId))
-					sucess = true;
-		} finally {
-			pool.returnResource(jedis);
-		}
-		return sucess;
+		return existsInApp(appId, AUDIO, audioId);
 	}
 
 	public Map<String, String> getAudioInApp(String appId, String audioId) {
+		JedisPool pool = pool(appId);
 		Jedis jedis = pool.getResource();
 		Map<String, String> audioFields = null;
 		try {
-			Set<String> audioInApp = jedis.smembers("app:" + appId + ":audio");
-			Iterator<String> it = audioInApp.iterator();
-			boolean audioExistsForApp = false;
-			while (it.hasNext())
-				if (it.next().equalsIgnoreCase(audioId))
-					audioExistsForApp = true;
-			if (audioExistsForApp)
-				audioFields = jedis.hgetAll("audio:" + audioId);
+			audioFields = getMemberFields(jedis, appId, AUDIO, audioId);
 		} finally {
 			pool.returnResource(jedis);
 		}
@@ -430,11 +1491,12 @@ public class RedisDataModel implements CacheInterface {
 	}
 
 	public void deleteAudioInApp(String appId, String audioId) {
+		JedisPool pool = pool(appId);
 		Jedis jedis = pool.getResource();
 		try {
-			this.jedis.srem("app:" + appId + ":audio", audioId);
-			this.jedis.del("audio:" + audioId);
-			jedis.zrem("audio:time", appId + ":" + audioId);
+			deleteEntity(jedis, element(AUDIO, appId, audioId),
+					"audio:" + audioId, membership("app:" + appId + ":audio",
+					audioId));
 		} finally {
 			pool.returnResource(jedis);
 		}
@@ -443,20 +1505,21 @@ public class RedisDataModel implements CacheInterface {
 	public boolean createAudioInApp(String appId, String audioId,
 			String directory, String fileExtension, String size,
 			String bitRate, String creationDate, String fileName, String location) {
-		boolean sucess = false;
+		JedisPool pool = pool(appId);
 		Jedis jedis = pool.getResource();
+		boolean sucess = false;
 		try {
-			long unixTime = System.currentTimeMillis() / 1000L;
-			jedis.zadd("audio:time", unixTime, appId + ":" + audioId);
-			jedis.hset("audio:" + audioId, "dir", directory);
-			jedis.hset("audio:" + audioId, "type", fileExtension);
-			jedis.hset("audio:" + audioId, "bitRate", bitRate);
-			jedis.hset("audio:" + audioId, "size", size);
-			jedis.hset("audio:" + audioId, "creationDate", creationDate);
-			jedis.hset("audio:" + audioId, "fileName", fileName);
-			if(location != null)
-				jedis.hset("audio:" + audioId, "location", location);
-			jedis.sadd("app:" + appId + ":audio", audioId);
+			Map<String, String> fields = new HashMap<String, String>();
+			fields.put("dir", directory);
+			fields.put("type", fileExtension);
+			fields.put("bitRate", bitRate);
+			fields.put("size", size);
+			fields.put("creationDate", creationDate);
+			fields.put("fileName", fileName);
+			fields.put("location", location);
+			writeEntity(jedis, element(AUDIO, appId, audioId), true,
+					"audio:" + audioId, fields,
+					membership("app:" + appId + ":audio", audioId));
 			sucess = true;
 		} finally {
 			pool.returnResource(jedis);
@@ -465,6 +1528,7 @@ public class RedisDataModel implements CacheInterface {
 	}
 
 	public Set<String> getAllImageIdsInApp(String appId) {
+		JedisPool pool = pool(appId);
 		Jedis jedis = pool.getResource();
 		Set<String> imageIds = null;
 		try {
@@ -476,6 +1540,7 @@ public class RedisDataModel implements CacheInterface {
 	}
 
 	public Set<String> getAllVideoIdsInApp(String appId) {
+		JedisPool pool = pool(appId);
 		Jedis jedis = pool.getResource();
 		Set<String> videoIds = null;
 		try {
@@ -487,37 +1552,15 @@ public class RedisDataModel implements CacheInterface {
 	}
 
 	public boolean imageExistsInApp(String appId, String imageId) {
-		Jedis jedis = pool.getResource();
-		boolean sucess = false;
-		try {
-			Set<String> audioInApp = this.jedis.smembers("app:" + appId
-					+ ":images");
-			Iterator<String> it = audioInApp.iterator();
-			while (it.hasNext())
-				if (it.next().equalsIgnoreCase(imageId)){
-					sucess = true;
-					break;
-				}
-					
-		} finally {
-			pool.returnResource(jedis);
-		}
-		return sucess;
+		return existsInApp(appId, IMAGES, imageId);
 	}
 
 	public Map<String, String> getImageInApp(String appId, String imageId) {
+		JedisPool pool = pool(appId);
 		Jedis jedis = pool.getResource();
 		Map<String, String> imageFields = null;
 		try {
-			Set<String> imagesInApp = jedis
-					.smembers("app:" + appId + ":images");
-			Iterator<String> it = imagesInApp.iterator();
-			boolean imageExistsForApp = false;
-			while (it.hasNext())
-				if (it.next().equalsIgnoreCase(imageId))
-					imageExistsForApp = true;
-			if (imageExistsForApp)
-				imageFields = jedis.hgetAll("images:" + imageId);
+			imageFields = getMemberFields(jedis, appId, IMAGES, imageId);
 		} finally {
 			pool.returnResource(jedis);
 		}
@@ -540,21 +1583,22 @@ public class RedisDataModel implements CacheInterface {
 	public boolean createImageInApp(String appId, String imageId,
 			String directory, String type, String size, String pixelsSize,
 			String creationDate, String fileName, String location) {
+		JedisPool pool = pool(appId);
 		Jedis jedis = pool.getResource();
 		boolean sucess = false;
 		try {
-			long unixTime = System.currentTimeMillis() / 1000L;
-			jedis.zadd("images:time", unixTime, appId + ":" + imageId);
-			jedis.hset("images:" + imageId, "dir", directory);
-			jedis.hset("images:" + imageId, "type", type);
-			jedis.hset("images:" + imageId, "size", size);
-			jedis.hset("images:" + imageId, "resolution", pixelsSize);
-			jedis.hset("images:" + imageId, "creationDate", creationDate);
-			jedis.hset("images:" + imageId, "pixelsSize", pixelsSize);
-			jedis.hset("images:" + imageId, "fileName", fileName);
-			if(location != null)
-				jedis.hset("images:" + imageId, "location", location);
-			this.jedis.sadd("app:" + appId + ":images", imageId);
+			Map<String, String> fields = new HashMap<String, String>();
+			fields.put("dir", directory);
+			fields.put("type", type);
+			fields.put("size", size);
+			fields.put("resolution", pixelsSize);
+			fields.put("creationDate", creationDate);
+			fields.put("pixelsSize", pixelsSize);
+			fields.put("fileName", fileName);
+			fields.put("location", location);
+			writeEntity(jedis, element(IMAGES, appId, imageId), true,
+					"images:" + imageId, fields,
+					membership("app:" + appId + ":images", imageId));
 			sucess = true;
 		} finally {
 			pool.returnResource(jedis);
@@ -565,20 +1609,21 @@ public class RedisDataModel implements CacheInterface {
 	public boolean createVideoInApp(String appId, String videoId,
 			String directory, String type, String size, String resolution,
 			String creationDate, String fileName, String location) {
+		JedisPool pool = pool(appId);
 		Jedis jedis = pool.getResource();
 		boolean sucess = false;
 		try {
-			long unixTime = System.currentTimeMillis() / 1000L;
-			jedis.zadd("video:time", unixTime, appId + ":" + videoId);
-			this.jedis.hset("video:" + videoId, "dir", directory);
-			this.jedis.hset("video:" + videoId, "type", type);
-			this.jedis.hset("video:" + videoId, "size", size);
-			this.jedis.hset("video:" + videoId, "resolution", resolution);
-			this.jedis.hset("video:" + videoId, "creationDate", creationDate);
-			this.jedis.hset("video:" + videoId, "fileName", fileName);
-			if(location != null)
-				this.jedis.hset("video:" + videoId, "location", location);
-			this.jedis.sadd("app:" + appId + ":video", videoId);
+			Map<String, String> fields = new HashMap<String, String>();
+			fields.put("dir", directory);
+			fields.put("type", type);
+			fields.put("size", size);
+			fields.put("resolution", resolution);
+			fields.put("creationDate", creationDate);
+			fields.put("fileName", fileName);
+			fields.put("location", location);
+			writeEntity(jedis, element(VIDEO, appId, videoId), true,
+					"video:" + videoId, fields,
+					membership("app:" + appId + ":video", videoId));
 			sucess = true;
 		} finally {
 			pool.returnResource(jedis);
@@ -587,6 +1632,7 @@ public class RedisDataModel implements CacheInterface {
 	}
 
 	public Set<String> getAllStorageIds(String appId) {
+		JedisPool pool = pool(appId);
 		Jedis jedis = pool.getResource();
 		Set<String> storageIds = null;
 		try {
@@ -600,20 +1646,20 @@ public class RedisDataModel implements CacheInterface {
 	public boolean createStorageInApp(String appId, String storageId,
 			String directory, String fileExtension, String fileSize,
 			String creationDate, String fileName, String location) {
+		JedisPool pool = pool(appId);
 		Jedis jedis = pool.getResource();
 		boolean sucess = true;
 		try {
-			long unixTime = System.currentTimeMillis() / 1000L;
-			jedis.zadd("storage:time", unixTime, appId + ":" + storageId);
-			jedis.hset("storage:" + storageId, "dir", directory);
-			jedis.hset("storage:" + storageId, "type", fileExtension);
-			jedis.hset("storage:" + storageId, "size", fileSize);
-			jedis.hset("storage:" + storageId, "creationDate",
-					creationDate);
-			jedis.hset("storage:" + storageId, "fileName", fileName);
-			if(location != null)
-				jedis.hset("storage:" + storageId, "location", location);
-			jedis.sadd("app:" + appId + ":storage", storageId);
+			Map<String, String> fields = new HashMap<String, String>();
+			fields.put("dir", directory);
+			fields.put("type", fileExtension);
+			fields.put("size", fileSize);
+			fields.put("creationDate", creationDate);
+			fields.put("fileName", fileName);
+			fields.put("location", location);
+			writeEntity(jedis, element(STORAGE, appId, storageId), true,
+					"storage:" + storageId, fields,
+					membership("app:" + appId + ":storage", storageId));
 			sucess = true;
 		} finally {
 			pool.returnResource(jedis);
@@ -622,18 +1668,7 @@ public class RedisDataModel implements CacheInterface {
 	}
 
 	public boolean videoExistsInApp(String appId, String videoId) {
-		Jedis jedis = pool.getResource();
-		boolean sucess = false;
-		try {
-			Set<String> videoInApp = jedis.smembers("app:" + appId + ":video");
-			Iterator<String> it = videoInApp.iterator();
-			while (it.hasNext())
-				if (it.next().equalsIgnoreCase(videoId))
-					sucess = true;
-		} finally {
-			pool.returnResource(jedis);
-		}
-		return sucess;
+		return existsInApp(appId, VIDEO, videoId);
 	}
 
 	/**
@@ -644,13 +1679,14 @@ public class RedisDataModel implements CacheInterface {
 	 * @return
 	 */
 	public boolean deleteVideoInApp(String appId, String videoId) {
+		JedisPool pool = pool(appId);
 		Jedis jedis = pool.getResource();
 		boolean sucess = false;
 		try {
 			System.out.println("reaching video deletion in redis");
-			jedis.zrem("video:time", appId + ":" + videoId);
-			jedis.srem("app:" + appId + ":video", videoId);
-			jedis.del("video:" + videoId);
+			deleteEntity(jedis, element(VIDEO, appId, videoId),
+					"video:" + videoId, membership("app:" + appId + ":video",
+					videoId));
 		} finally {
 			pool.returnResource(jedis);
 		}
@@ -665,12 +1701,13 @@ public class RedisDataModel implements CacheInterface {
 	 * @return
 	 */
 	public boolean deleteImageInApp(String appId, String imageId) {
+		JedisPool pool = pool(appId);
 		Jedis jedis = pool.getResource();
 		boolean sucess = false;
 		try {
-			jedis.zrem("image:time", appId + ":" + imageId);
-			jedis.srem("app:" + appId + ":image", imageId);
-			jedis.del("image:" + imageId);
+			deleteEntity(jedis, element(IMAGES, appId, imageId),
+					"images:" + imageId, membership("app:" + appId + ":images",
+					imageId));
 		} finally {
 			pool.returnResource(jedis);
 		}
@@ -678,12 +1715,13 @@ public class RedisDataModel implements CacheInterface {
 	}
 
 	public boolean deleteStorageInApp(String appId, String storageId) {
+		JedisPool pool = pool(appId);
 		Jedis jedis = pool.getResource();
 		boolean sucess = false;
 		try {
-			jedis.zrem("storage:time", appId + ":" + storageId);
-			jedis.srem("app:" + appId + ":storage", storageId);
-			jedis.del("storage:" + storageId);
+			deleteEntity(jedis, element(STORAGE, appId, storageId),
+					"storage:" + storageId,
+					membership("app:" + appId + ":storage", storageId));
 		} finally {
 			pool.returnResource(jedis);
 		}
@@ -701,10 +1739,11 @@ public class RedisDataModel implements CacheInterface {
 	 */
 	public String getFileDirectory(String appId, String id, String folderType,
 			String requestType) {
+		JedisPool pool = pool(appId);
 		Jedis jedis = pool.getResource();
 		String fileDirectory = null;
 		try {
-			fileDirectory = this.jedis.hget(requestType + ":" + id, "dir");
+			fileDirectory = jedis.hget(requestType + ":" + id, "dir");
 		} finally {
 			pool.returnResource(jedis);
 		}
@@ -720,17 +1759,11 @@ public class RedisDataModel implements CacheInterface {
 	 * @return
 	 */
 	public Map<String, String> getVideoInApp(String appId, String videoId) {
+		JedisPool pool = pool(appId);
 		Jedis jedis = pool.getResource();
 		Map<String, String> videoFields = null;
 		try {
-			Set<String> videoInApp = jedis.smembers("app:" + appId + ":video");
-			Iterator<String> it = videoInApp.iterator();
-			boolean videoExistsForApp = false;
-			while (it.hasNext())
-				if (it.next().equalsIgnoreCase(videoId))
-					videoExistsForApp = true;
-			if (videoExistsForApp)
-				videoFields = jedis.hgetAll("video:" + videoId);
+			videoFields = getMemberFields(jedis, appId, VIDEO, videoId);
 		} finally {
 			pool.returnResource(jedis);
 		}
@@ -739,23 +1772,12 @@ public class RedisDataModel implements CacheInterface {
 
 	@Override
 	public boolean identifierInUseByUserInApp(String appId, String userId) {
-		Jedis jedis = pool.getResource();
-		boolean userExists = false;
-		try {
-			Set<String> usersInApp = this.jedis.smembers("app:" + appId
-					+ ":users");
-			Iterator<String> it = usersInApp.iterator();
-			while (it.hasNext())
-				if (it.next().equalsIgnoreCase(userId))
-					userExists = true;
-		} finally {
-			pool.returnResource(jedis);
-		}
-		return userExists;
+		return existsInApp(appId, USERS, userId);
 	}
 
 	@Override
 	public String convertAppIdToAppName(String appId) {
+		JedisPool pool = pool(appId);
 		Jedis jedis = pool.getResource();
 		String appName = null;
 		try {
@@ -770,15 +1792,18 @@ public class RedisDataModel implements CacheInterface {
 
 	@Override
 	public String getUserNameUsingUserId(String appId, String userId) {
+		JedisPool pool = pool(appId);
 		Jedis jedis = pool.getResource();
 		String userName = null;
 		try {
-			Set<String> usersInApp = this.jedis.smembers("app:" + appId
-					+ ":users");
-			Iterator<String> it = usersInApp.iterator();
-			while (it.hasNext())
-				if (it.next().equalsIgnoreCase(userId))
-					userName = jedis.hget("users:" + userId, "userName");
+			Pipeline pipeline = jedis.pipelined();
+			Response<Boolean> member = pipeline.sismember("app:" + appId
+					+ ":users", userId);
+			Response<String> value = pipeline.hget(UserCodec.key(userId),
+					UserCodec.field("userName"));
+			pipeline.sync();
+			if (member.get())
+				userName = value.get();
 		} finally {
 			pool.returnResource(jedis);
 		}
@@ -787,187 +1812,204 @@ public class RedisDataModel implements CacheInterface {
 
 	@Override
 	public String getEmailUsingUserId(String appId, String userId) {
+		JedisPool pool = pool(appId);
 		Jedis jedis = pool.getResource();
 		String email = null;
 		try {
-			Set<String> usersInApp = this.jedis.smembers("app:" + appId
-					+ ":users");
-			Iterator<String> it = usersInApp.iterator();
-			while (it.hasNext())
-				if (it.next().equalsIgnoreCase(userId))
-					email = jedis.hget("users:" + userId, "email");
+			Pipeline pipeline = jedis.pipelined();
+			Response<Boolean> member = pipeline.sismember("app:" + appId
+					+ ":users", userId);
+			Response<String> value = pipeline.hget(UserCodec.key(userId),
+					UserCodec.field("email"));
+			pipeline.sync();
+			if (member.get())
+				email = value.get();
 		} finally {
 			pool.returnResource(jedis);
 		}
 		return email;
 	}
 
+	/**
+	 * Returns the fields of the element the eviction policy would evict next.
+	 */
 	@Override
 	public Map<String, String> getOldestElement() {
-		System.out
-				.println("!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!");
-		System.out
-				.println("!!!!!!!!!!!!!!!!!!TESTING CACHE!!!!!!!!!!!!!!!!!!!!");
-		Jedis jedis = pool.getResource();
+		Shard shard = fullestShard();
+		Jedis jedis = shard.pool.getResource();
 		Map<String, String> oldestElementFields = null;
 		try {
-			Set<String> oldestAudioElement = jedis
-					.zrevrange("audio:time", 1, 1);
-			System.out.println("oldestAudioElement size: "
-					+ oldestAudioElement.size());
-			Double audioScore = jedis.zscore("audio:time", oldestAudioElement
-					.iterator().next());
-			System.out.println("AUDIO SCORE: " + audioScore);
-			Set<String> oldestVideoElement = jedis
-					.zrevrange("video:time", 1, 1);
-			System.out.println("oldestVideoElement size: "
-					+ oldestVideoElement.size());
-			Double videoScore = jedis.zscore("video:time", oldestVideoElement
-					.iterator().next());
-			Set<String> oldestImageElement = jedis
-					.zrevrange("image:time", 1, 1);
-			System.out.println("oldestImageElement size: "
-					+ oldestImageElement.size());
-			Double imageScore = jedis.zscore("images:time", oldestImageElement
-					.iterator().next());
-			Set<String> oldestStorageElement = jedis.zrevrange("storage:time",
-					1, 1);
-			System.out.println("oldestStorageElement size: "
-					+ oldestStorageElement.size());
-			Double storageScore = jedis.zscore("storage:time",
-					oldestStorageElement.iterator().next());
-			String greater = compareScores(audioScore, videoScore, imageScore,
-					storageScore);
-			String[] splitted = greater.split(":");
-			if (greater.equalsIgnoreCase(AUDIO))
-				return getAudioInApp(splitted[0], splitted[1]);
-			else if (greater.equalsIgnoreCase(VIDEO))
-				return getVideoInApp(splitted[0], splitted[1]);
-			else if (greater.equalsIgnoreCase(IMAGES))
-				return getImageInApp(splitted[0], splitted[1]);
-			else if (greater.equalsIgnoreCase(STORAGE))
-				return getStorageInApp(splitted[0], splitted[1]);
-
+			List<String> victims = evictionPolicy.selectVictims(jedis, 1);
+			if (!victims.isEmpty()) {
+				String[] splitted = victims.get(0).split(":", 3);
+				if (splitted[0].equals(USERS))
+					oldestElementFields = UserCodec.decode(splitted[2],
+							jedis.hgetAll(UserCodec.key(splitted[2])));
+				else
+					oldestElementFields = jedis.hgetAll(splitted[0] + ":"
+							+ splitted[2]);
+			}
 		} finally {
-			pool.returnResource(jedis);
+			shard.pool.returnResource(jedis);
 		}
 		return oldestElementFields;
 	}
 
-	private String compareScores(Double audioScore, Double videoScore,
-			Double imageScore, Double storageScore) {
-		if (audioScore > videoScore) {
-			if (audioScore > imageScore) {
-				if (audioScore > storageScore)
-					return AUDIO;
-				else
-					return STORAGE;
-			}
-			if (imageScore > storageScore)
-				return IMAGES;
-			else
-				return STORAGE;
-		}
-		if (videoScore > imageScore) {
-			if (videoScore > storageScore)
-				return VIDEO;
-			else
-				return STORAGE;
-		}
-		if (imageScore > storageScore)
-			return IMAGES;
-		else
-			return STORAGE;
+	public void deleteOldestElement() {
+		evict(1);
 	}
 
-	public void deleteOldestElement() {
-		Jedis jedis = pool.getResource();
+	/**
+	 * Removes up to count elements chosen by the eviction policy, together
+	 * with their entries in the app sets. MongoDB still has them, reads will
+	 * bring them back.
+	 * 
+	 * @param count
+	 * @return the number of evicted elements.
+	 */
+	public int evict(int count) {
+		return evict(fullestShard(), count);
+	}
+
+	/**
+	 * Evicts from the app the furthest over its quota, from all unpinned
+	 * apps before any size is known.
+	 */
+	private int evict(Shard shard, int count) {
+		String appId = heaviestApp(shard);
+		if (appId != null)
+			return evict(shard, appId, count);
+		Jedis jedis = shard.pool.getResource();
+		List<String> victims = new ArrayList<String>();
 		try {
-			Set<String> oldestAudioElement = jedis
-					.zrevrange("audio:time", 1, 1);
-			System.out.println("oldestAudioElement size: "
-					+ oldestAudioElement.size());
-			String appIdAudioId = oldestAudioElement.iterator().next();
-			Double audioScore = jedis.zscore("audio:time", appIdAudioId);
-			System.out.println("AUDIO SCORE: " + audioScore);
-
-			Set<String> oldestVideoElement = jedis
-					.zrevrange("video:time", 1, 1);
-			System.out.println("oldestVideoElement size: "
-					+ oldestVideoElement.size());
-			String appIdVideoId = oldestVideoElement.iterator().next();
-			Double videoScore = jedis.zscore("video:time", appIdVideoId);
-
-			Set<String> oldestImageElement = jedis
-					.zrevrange("image:time", 1, 1);
-			System.out.println("oldestImageElement size: "
-					+ oldestImageElement.size());
-			String appIdImageId = oldestImageElement.iterator().next();
-			Double imageScore = jedis.zscore("images:time", appIdImageId);
-
-			Set<String> oldestStorageElement = jedis.zrevrange("storage:time",
-					1, 1);
-			System.out.println("oldestStorageElement size: "
-					+ oldestStorageElement.size());
-			String appIdStorageId = oldestStorageElement.iterator().next();
-			Double storageScore = jedis.zscore("storage:time", appIdStorageId);
-
-			String greater = compareScores(audioScore, videoScore, imageScore,
-					storageScore);
-			if (greater.equalsIgnoreCase(AUDIO))
-				jedis.zrem("audio:time", appIdAudioId);
-			else if (greater.equalsIgnoreCase(VIDEO))
-				jedis.zrem("video:time", appIdVideoId);
-			else if (greater.equalsIgnoreCase(IMAGES))
-				jedis.zrem("images:time", appIdImageId);
-			else if (greater.equalsIgnoreCase(STORAGE))
-				jedis.zrem("storage:time", appIdStorageId);
+			for (String victim : evictionPolicy.selectVictims(jedis, count))
+				if (!pinned.contains(victim.split(":", 3)[1]))
+					victims.add(victim);
+			dropElements(jedis, victims);
 		} finally {
-			pool.returnResource(jedis);
+			shard.pool.returnResource(jedis);
 		}
+		shard.memoryGauge.requestRefresh();
+		return victims.size();
 	}
 
-	@Override
-	public String getEmailUsingUserName(String appId, String userName) {
-		Jedis jedis = pool.getResource();
+	private int evict(Shard shard, String appId, int count) {
+		Jedis jedis = shard.pool.getResource();
+		List<String> victims;
 		try {
-			Set<String> usersInApp = jedis.smembers("app:" + appId + ":users");
-			Iterator<String> it = usersInApp.iterator();
-			while (it.hasNext()) {
-				String userId = it.next();
-				Map<String, String> userFields = jedis.hgetAll("users:"
-						+ userId);
-				if (userFields.get("userName").equalsIgnoreCase(userName))
-					return userFields.get("email");
-			}
+			victims = evictionPolicy.selectVictims(jedis, appId, count);
+			dropElements(jedis, victims);
+		} finally {
+			shard.pool.returnResource(jedis);
+		}
+		shard.memoryGauge.requestRefresh();
+		return victims.size();
+	}
 
+	public void evictElement(String type, String appId, String id) {
+		JedisPool pool = pool(appId);
+		Jedis jedis = pool.getResource();
+		try {
+			dropElements(jedis,
+					Collections.singletonList(element(type, appId, id)));
 		} finally {
 			pool.returnResource(jedis);
 		}
-		return null;
+	}
+
+	/**
+	 * Removes the elements with their entries in the app sets and their
+	 * eviction bookkeeping.
+	 */
+	private void dropElements(Jedis jedis, List<String> elements) {
+		if (elements.isEmpty())
+			return;
+		// user emails and names are needed to clean the indexes of the app,
+		// they are read by id: the user hash may have expired already.
+		Map<String, Response<String>> emails = new HashMap<String, Response<String>>();
+		Map<String, Response<String>> userNames = new HashMap<String, Response<String>>();
+		Map<String, Response<String>> sizes = new HashMap<String, Response<String>>();
+		Pipeline pipeline = jedis.pipelined();
+		for (String victim : elements) {
+			sizes.put(victim, pipeline.hget(ELEMENTBYTES, victim));
+			String[] splitted = victim.split(":", 3);
+			if (splitted[0].equals(USERS)) {
+				emails.put(victim,
+						pipeline.hget(emailById(splitted[1]), splitted[2]));
+				userNames.put(victim,
+						pipeline.hget(userNameById(splitted[1]), splitted[2]));
+			}
+		}
+		pipeline.sync();
+		// an entry is only removed if it is still the user's.
+		Map<String, Response<String>> emailOwners = new HashMap<String, Response<String>>();
+		Map<String, Response<String>> userNameOwners = new HashMap<String, Response<String>>();
+		pipeline = jedis.pipelined();
+		for (String victim : emails.keySet()) {
+			String appId = victim.split(":", 3)[1];
+			String email = emails.get(victim).get();
+			if (email != null)
+				emailOwners.put(victim,
+						pipeline.hget(emailIndex(appId), email));
+			String userName = userNames.get(victim).get();
+			if (userName != null)
+				userNameOwners.put(victim,
+						pipeline.hget(userNameIndex(appId), userName));
+		}
+		pipeline.sync();
+		pipeline = jedis.pipelined();
+		for (String victim : elements) {
+			String[] splitted = victim.split(":", 3);
+			String type = splitted[0];
+			String appId = splitted[1];
+			String id = splitted[2];
+			pipeline.del(type + ":" + id);
+			if (type.equals(APPS)) {
+				pipeline.srem(INACTIVEAPPS, appId);
+				pipeline.srem(ACTIVEAPPS, appId);
+			} else if (type.equals(USERS)) {
+				pipeline.srem("app:" + appId + ":users", id);
+				if (emailOwners.containsKey(victim)
+						&& id.equals(emailOwners.get(victim).get()))
+					pipeline.hdel(emailIndex(appId), emails.get(victim).get());
+				if (userNameOwners.containsKey(victim)
+						&& id.equals(userNameOwners.get(victim).get()))
+					pipeline.hdel(userNameIndex(appId), userNames.get(victim)
+							.get());
+				pipeline.hdel(emailById(appId), id);
+				pipeline.hdel(userNameById(appId), id);
+			} else {
+				pipeline.srem("app:" + appId + ":" + type, id);
+			}
+			evictionPolicy.forget(pipeline, victim);
+			pipeline.zrem(EXPIRES, victim);
+			unaccount(pipeline, victim, sizes.get(victim).get());
+		}
+		pipeline.sync();
+	}
+
+	@Override
+	public String getEmailUsingUserName(String appId, String userName) {
+		String userId = getUserIdUsingUserName(appId, userName);
+		return userId == null ? null : getEmailUsingUserId(appId, userId);
 	}
 
 	@Override
 	public String getUserIdUsingUserName(String appId, String userName) {
+		JedisPool pool = pool(appId);
 		Jedis jedis = pool.getResource();
+		String userId = null;
 		try {
-			Set<String> usersInApp = jedis.smembers("app:" + appId + ":users");
-			Iterator<String> it = usersInApp.iterator();
-			while (it.hasNext()) {
-				String userId = it.next();
-				Map<String, String> userFields = jedis.hgetAll("users:"
-						+ userId);
-				if (userFields.get("userName").equalsIgnoreCase(userName))
-					return userFields.get("userId");
-			}
+			userId = jedis.hget(userNameIndex(appId), userName);
 		} finally {
 			pool.returnResource(jedis);
 		}
-		return null;
+		return userId;
 	}
 
 	@Override
 	public Set<String> getAllStorageIdsInApp(String appId) {
+		JedisPool pool = pool(appId);
 		Jedis jedis = pool.getResource();
 		Set<String> op;
 		try {
@@ -987,16 +2029,18 @@ public class RedisDataModel implements CacheInterface {
 	 * @return
 	 */
 	public boolean createApp(String appId, String appName, String creationDate, boolean confirmUsersEmail) {
+		JedisPool pool = pool(appId);
 		Jedis jedis = pool.getResource();
 		boolean sucess = false;
 		try {
 			if (!jedis.exists("apps:" + appId)) {
-				jedis.hset("apps:" + appId, "creationDate", creationDate);
-				jedis.hset("apps:" + appId, "alive", "true");
-				jedis.hset("apps:" + appId, "appName", appName);
-				jedis.hset("apps:" + appId, "confirmUsersEmail", ""+confirmUsersEmail);
-				long unixTime = System.currentTimeMillis() / 1000L;
-				jedis.zadd("apps:time", unixTime, appId);
+				Map<String, String> fields = new HashMap<String, String>();
+				fields.put("creationDate", creationDate);
+				fields.put("alive", "true");
+				fields.put("appName", appName);
+				fields.put("confirmUsersEmail", "" + confirmUsersEmail);
+				writeEntity(jedis, element(APPS, appId, appId), true, "apps:"
+						+ appId, fields, membership(ACTIVEAPPS, appId));
 				sucess = true;
 			}
 		} finally {
@@ -1008,11 +2052,14 @@ public class RedisDataModel implements CacheInterface {
 
 	@Override
 	public void reviveApp(String appId) {
+		JedisPool pool = pool(appId);
 		Jedis jedis = pool.getResource();
 		try {
-			long unixTime = System.currentTimeMillis() / 1000L;
-			jedis.zadd("apps:time", unixTime, appId);
-			jedis.hset("apps:" + appId, "alive", "true");
+			Map<String, String> fields = new HashMap<String, String>();
+			fields.put("alive", "true");
+			writeEntity(jedis, element(APPS, appId, appId), false,
+					"apps:" + appId, fields, membership(ACTIVEAPPS, appId),
+					membership(INACTIVEAPPS, appId));
 		} finally {
 			pool.returnResource(jedis);
 		}
@@ -1020,11 +2067,14 @@ public class RedisDataModel implements CacheInterface {
 
 	@Override
 	public void updateUser(String appId, String userId, String email) {
+		JedisPool pool = pool(appId);
 		Jedis jedis = pool.getResource();
 		try {
-			jedis.hset("users:" + userId, "email", email);
-			long unixTime = System.currentTimeMillis() / 1000L;
-			jedis.zadd("users:time", unixTime, appId + ":" + userId);
+			Map<String, String> fields = new HashMap<String, String>();
+			fields.put("email", email);
+			writeEntity(jedis, element(USERS, appId, userId), false,
+					"users:" + userId, fields, null, null,
+					emailChange(jedis, appId, userId, email));
 		} finally {
 			pool.returnResource(jedis);
 		}
@@ -1032,15 +2082,17 @@ public class RedisDataModel implements CacheInterface {
 
 	@Override
 	public void updateUser(String appId, String userId, String email,
-			byte[] hash, byte[] salt) {
+			byte[] hash, byte[] salt) throws UnsupportedEncodingException {
+		JedisPool pool = pool(appId);
 		Jedis jedis = pool.getResource();
 		try {
-			jedis.hset("users:" + userId, "email", email);
-			jedis.hset(("users:" + userId).getBytes(), "salt".getBytes(), salt);
-			jedis.hset(("users:" + userId).getBytes(), "hash".getBytes(), hash);
-			long unixTime = System.currentTimeMillis() / 1000L;
-			jedis.zadd("users:time", unixTime, appId + ":" + userId);
-
+			Map<String, String> fields = new HashMap<String, String>();
+			fields.put("email", email);
+			fields.put("salt", new String(salt, "ISO-8859-1"));
+			fields.put("hash", new String(hash, "ISO-8859-1"));
+			writeEntity(jedis, element(USERS, appId, userId), false,
+					"users:" + userId, fields, null, null,
+					emailChange(jedis, appId, userId, email));
 		} finally {
 			pool.returnResource(jedis);
 		}
@@ -1050,6 +2102,7 @@ public class RedisDataModel implements CacheInterface {
 	 */
 	@Override
 	public Set<String> getAllMediaIds(String appId) {
+		JedisPool pool = pool(appId);
 		Jedis jedis = pool.getResource();
 		Set<String> mediaIds = new HashSet<String>();
 		try {
@@ -1062,59 +2115,104 @@ public class RedisDataModel implements CacheInterface {
 		return mediaIds;		
 	}
 
+	/**
+	 * Pages through the sets with SSCAN. The position is "set:cursor", apps
+	 * walk the active apps of each shard and media the images, audio and
+	 * video sets of the app. SSCAN's count is a hint, a page holds about
+	 * limit ids. Adding or removing a shard restarts the listing of apps at
+	 * other positions.
+	 */
+	@Override
+	public IdPage getIdPage(String type, String appId, String token, int limit) {
+		List<JedisPool> pools = new ArrayList<JedisPool>();
+		List<String> sets = new ArrayList<String>();
+		if (type.equals(APPS)) {
+			for (Shard shard : shards.getNodes()) {
+				pools.add(shard.pool);
+				sets.add(ACTIVEAPPS);
+			}
+		} else {
+			String[] types = type.equals("media") ? new String[] { IMAGES,
+					AUDIO, VIDEO } : new String[] { type };
+			for (String t : types) {
+				pools.add(pool(appId));
+				sets.add("app:" + appId + ":" + t);
+			}
+		}
+		String position = IdPage.position(token);
+		int i = 0;
+		String cursor = "0";
+		if (position != null) {
+			int colon = position.indexOf(':');
+			if (colon > 0)
+				i = Integer.parseInt(position.substring(0, colon));
+			if (colon <= 0 || i < 0)
+				throw new IllegalArgumentException("Invalid token.");
+			cursor = position.substring(colon + 1);
+			if (!cursor.matches("[0-9]+"))
+				throw new IllegalArgumentException("Invalid token.");
+		}
+		List<String> ids = new ArrayList<String>();
+		while (ids.size() < limit && i < sets.size()) {
+			Jedis jedis = pools.get(i).getResource();
+			try {
+				List<?> reply = (List<?>) jedis.eval(SSCANSCRIPT, 1,
+						sets.get(i), cursor,
+						String.valueOf(limit - ids.size()));
+				cursor = (String) reply.get(0);
+				for (Object member : (List<?>) reply.get(1))
+					ids.add((String) member);
+			} finally {
+				pools.get(i).returnResource(jedis);
+			}
+			if (cursor.equals("0"))
+				i++;
+		}
+		return new IdPage(ids, i < sets.size() ? i + ":" + cursor : null);
+	}
+
 	@Override
 	public Set<String> allCachedElements() {
-		Jedis jedis = pool.getResource();
-		Set<String> elements;
-		try{
-			elements = new HashSet<String>();
-			elements.addAll(jedis
-					.zrevrange("audio:time", 0, -1));
-			elements.addAll(jedis
-					.zrevrange("video:time", 0, -1));
-			elements.addAll(jedis
-					.zrevrange("image:time", 0, -1));
-		}finally {
-			pool.returnResource(jedis);
+		Set<String> elements = new HashSet<String>();
+		for (Shard shard : shards.getNodes()) {
+			Jedis jedis = shard.pool.getResource();
+			try {
+				elements.addAll(evictionPolicy.elements(jedis));
+			} finally {
+				shard.pool.returnResource(jedis);
+			}
 		}
-		return elements;		
+		return elements;
 	}
 
 	@Override
 	public void updateUserLocationAndDate(String userId, String appId,
 			String sessionToken, String location, String date) {
+		JedisPool pool = pool(appId);
 		Jedis jedis = pool.getResource();
-		try{
-			jedis.hset(("users:" + userId), "lastActive", date);
-			jedis.hset(("users:" + userId), "location", location);
-		}finally{
+		try {
+			Map<String, String> fields = new HashMap<String, String>();
+			fields.put("lastActive", date);
+			fields.put("location", location);
+			writeEntity(jedis, element(USERS, appId, userId), false,
+					"users:" + userId, fields, null);
+		} finally {
 			pool.returnResource(jedis);
 		}
 	}
 
 	@Override
 	public boolean storageExistsInApp(String appId, String storageId) {
-		Jedis jedis = pool.getResource();
-		boolean sucess = false;
-		try {
-			Set<String> storageInApp = this.jedis.smembers("app:" + appId
-					+ ":storage");
-			Iterator<String> it = storageInApp.iterator();
-			while (it.hasNext())
-				if (it.next().equalsIgnoreCase(storageId))
-					sucess = true;
-		} finally {
-			pool.returnResource(jedis);
-		}
-		return sucess;
+		return existsInApp(appId, STORAGE, storageId);
 	}
 
 	@Override
 	public boolean confirmUsersEmail(String appId) {
+		JedisPool pool = pool(appId);
 		Jedis jedis = pool.getResource();
 		boolean confirmUsersEmail = false;
 		try {
-			confirmUsersEmail = Boolean.parseBoolean(this.jedis.hget("apps:"+appId, "confirmUsersEmail"));
+			confirmUsersEmail = Boolean.parseBoolean(jedis.hget("apps:"+appId, "confirmUsersEmail"));
 		}finally {
 			pool.returnResource(jedis);
 		}
@@ -1125,28 +2223,21 @@ public class RedisDataModel implements CacheInterface {
 	public boolean createUserWithFlagWithEmailConfirmation(String appId,
 			String userId, String userName, String email, byte[] salt,
 			byte[] hash, String creationDate, String flag,
-			boolean emailConfirmed) throws UnsupportedEncodingException {
+			boolean emailConfirmed)
+					throws UnsupportedEncodingException {
+		JedisPool pool = pool(appId);
 		Jedis jedis = pool.getResource();
 		boolean sucess = false;
 		try {
 			if (!jedis.exists("users:" + userId)) {
-				long unixTime = System.currentTimeMillis() / 1000L;
-				jedis.zadd("users:time", unixTime, appId + ":" + userId);
-				jedis.hset("users:" + userId, "userId", userId);
-				jedis.hset("users:" + userId, "userName", userName);
-				jedis.hset("users:" + userId, "email", email);
-				jedis.hset("users:"+userId, "emailConfirmed", emailConfirmed+"");
-				jedis.hset("users:" + userId, "salt",
-						new String(salt,
-								"ISO-8859-1"));
-				jedis.hset(("users:" + userId), "lastActive", new Date().toString());
-				jedis.hset(("users:" + userId), "flag", flag);
-				jedis.hset(("users:" + userId), "hash",
-						new String(hash, "ISO-8859-1"));
-				jedis.hset("users:" + userId, "alive", new String("true"));
-				jedis.hset("users:" + userId, "creationDate", creationDate);
-				jedis.sadd("app:" + appId + ":users", userId);
-				jedis.sadd("app:" + appId + ":users:emails", email);
+				Map<String, String> fields = userFields(userId, userName,
+						email, salt, hash, creationDate);
+				fields.put("emailConfirmed", emailConfirmed + "");
+				fields.put("flag", flag);
+				writeEntity(jedis, element(USERS, appId, userId), true,
+						"users:" + userId, fields,
+						userMemberships(appId, userId), null,
+						userIndexes(appId, userId, null, email, userName));
 				sucess = true;
 			}
 		} finally {
@@ -1158,27 +2249,20 @@ public class RedisDataModel implements CacheInterface {
 	@Override
 	public boolean createUserWithoutFlagWithEmailConfirmation(String appId,
 			String userId, String userName, String email, byte[] salt,
-			byte[] hash, String creationDate, boolean emailConfirmed) throws UnsupportedEncodingException {
+			byte[] hash, String creationDate, boolean emailConfirmed)
+					throws UnsupportedEncodingException {
+		JedisPool pool = pool(appId);
 		Jedis jedis = pool.getResource();
 		boolean sucess = false;
 		try {
 			if (!jedis.exists("users:" + userId)) {
-				long unixTime = System.currentTimeMillis() / 1000L;
-				jedis.zadd("users:time", unixTime, appId + ":" + userId);
-				jedis.hset("users:" + userId, "userId", userId);
-				jedis.hset("users:" + userId, "userName", userName);
-				jedis.hset("users:" + userId, "email", email);
-				jedis.hset("users:"+userId, "emailConfirmed", emailConfirmed+"");
-				jedis.hset("users:" + userId, "salt",
-						new String(salt,
-								"ISO-8859-1"));
-				jedis.hset(("users:" + userId), "lastActive", new Date().toString());
-				jedis.hset(("users:" + userId), "hash",
-						new String(hash, "ISO-8859-1"));
-				jedis.hset("users:" + userId, "alive", new String("true"));
-				jedis.hset("users:" + userId, "creationDate", creationDate);
-				jedis.sadd("app:" + appId + ":users", userId);
-				jedis.sadd("app:" + appId + ":users:emails", email);
+				Map<String, String> fields = userFields(userId, userName,
+						email, salt, hash, creationDate);
+				fields.put("emailConfirmed", emailConfirmed + "");
+				writeEntity(jedis, element(USERS, appId, userId), true,
+						"users:" + userId, fields,
+						userMemberships(appId, userId), null,
+						userIndexes(appId, userId, null, email, userName));
 				sucess = true;
 			}
 		} finally {
@@ -1189,9 +2273,13 @@ public class RedisDataModel implements CacheInterface {
 
 	@Override
 	public boolean confirmUserEmail(String appId, String userId) {
+		JedisPool pool = pool(appId);
 		Jedis jedis = pool.getResource();
 		try {
-			jedis.hset("users:"+userId, "emailConfirmed", true+"");
+			Map<String, String> fields = new HashMap<String, String>();
+			fields.put("emailConfirmed", true + "");
+			writeEntity(jedis, element(USERS, appId, userId), false,
+					"users:" + userId, fields, null);
 		}finally {
 			pool.returnResource(jedis);
 		}
@@ -1200,10 +2288,13 @@ public class RedisDataModel implements CacheInterface {
 
 	@Override
 	public boolean userEmailIsConfirmed(String appId, String userId) {
+		JedisPool pool = pool(appId);
 		Jedis jedis = pool.getResource();
 		boolean isConfirmed = false;
 		try {
-			isConfirmed = Boolean.parseBoolean(jedis.hget("users:"+userId, "emailConfirmed"));
+			isConfirmed = Boolean.parseBoolean(UserCodec.decodeValue(
+					"emailConfirmed", jedis.hget(UserCodec.key(userId),
+							UserCodec.field("emailConfirmed"))));
 		}finally {
 			pool.returnResource(jedis);
 		}
@@ -1213,14 +2304,15 @@ public class RedisDataModel implements CacheInterface {
 	@Override
 	public boolean updateAllAppFields(String appId, String alive,
 			String newAppName, boolean confirmUsersEmail) {
+		JedisPool pool = pool(appId);
 		Jedis jedis = pool.getResource();
 		try {
-			long unixTime = System.currentTimeMillis() / 1000L;
-			jedis.zadd("apps:time", unixTime, appId);
-			jedis.hset("apps:" + appId, "appName", newAppName);
-			jedis.hset("apps:" + appId, "alive", alive);
-			jedis.hset("apps:" + appId, "appName", newAppName);
-			jedis.hset("apps:" + appId, "confirmUsersEmail", ""+confirmUsersEmail);
+			Map<String, String> fields = new HashMap<String, String>();
+			fields.put("appName", newAppName);
+			fields.put("alive", alive);
+			fields.put("confirmUsersEmail", "" + confirmUsersEmail);
+			writeEntity(jedis, element(APPS, appId, appId), false,
+					"apps:" + appId, fields, null);
 		} finally {
 			pool.returnResource(jedis);
 		}
@@ -1230,11 +2322,13 @@ public class RedisDataModel implements CacheInterface {
 	@Override
 	public boolean updateConfirmUsersEmailOption(String appId,
 			Boolean confirmUsersEmail) {
+		JedisPool pool = pool(appId);
 		Jedis jedis = pool.getResource();
 		try {
-			long unixTime = System.currentTimeMillis() / 1000L;
-			jedis.zadd("apps:time", unixTime, appId);
-			jedis.hset("apps:" + appId, "confirmUsersEmail", ""+confirmUsersEmail);
+			Map<String, String> fields = new HashMap<String, String>();
+			fields.put("confirmUsersEmail", "" + confirmUsersEmail);
+			writeEntity(jedis, element(APPS, appId, appId), false,
+					"apps:" + appId, fields, null);
 		} finally {
 			pool.returnResource(jedis);
 		}
@@ -1244,12 +2338,14 @@ public class RedisDataModel implements CacheInterface {
 	@Override
 	public boolean updateUserPassword(String appId, String userId, byte[] hash,
 			byte[] salt) throws UnsupportedEncodingException {
+		JedisPool pool = pool(appId);
 		Jedis jedis = pool.getResource();
 		try {
-			jedis.hset(("users:" + userId).getBytes(), "salt".getBytes(), salt);
-			jedis.hset(("users:" + userId).getBytes(), "hash".getBytes(), hash);
-			long unixTime = System.currentTimeMillis() / 1000L;
-			jedis.zadd("users:time", unixTime, appId + ":" + userId);
+			Map<String, String> fields = new HashMap<String, String>();
+			fields.put("salt", new String(salt, "ISO-8859-1"));
+			fields.put("hash", new String(hash, "ISO-8859-1"));
+			writeEntity(jedis, element(USERS, appId, userId), false,
+					"users:" + userId, fields, null);
 		} finally {
 			pool.returnResource(jedis);
 		}
@@ -1257,6 +2353,9 @@ public class RedisDataModel implements CacheInterface {
 	}
 	@Override
 	public void destroyPool(){
-		pool.destroy();
+		for (Shard shard : shards.getNodes()) {
+			shard.memoryGauge.stop();
+			RedisPools.releasePool(shard.host, shard.port);
+		}
 	}
 }
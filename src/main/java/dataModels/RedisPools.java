@@ -0,0 +1,88 @@
+package dataModels;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.pool.impl.GenericObjectPool;
+
+import redis.clients.jedis.JedisPoolConfig;
+
+/**
+ * One connection pool per redis instance, shared by every class that talks to
+ * it. A Jedis connection must never be used by two threads at once, so every
+ * access borrows from these pools instead of keeping a connection around.
+ *
+ * MAXACTIVE should be at least the number of servlet threads, borrows that
+ * wait more than MAXWAIT fail and are counted as exhaustion events.
+ *
+ * Every getPool counts a user of the pool, releasePool only closes it when
+ * the last one gives it back. Classes that keep their pool for the life of
+ * the process never release it, and keep it in a static field when they are
+ * instantiated per request, or the count would only grow.
+ *
+ */
+public class RedisPools {
+
+	private static final int MAXACTIVE = 64;
+	private static final int MAXIDLE = 16;
+	private static final int MINIDLE = 2;
+	private static final long MAXWAIT = 2000; // milliseconds
+	private static final int TIMEOUT = 2000; // socket timeout, milliseconds
+	private static final Map<String, InstrumentedJedisPool> pools = new HashMap<String, InstrumentedJedisPool>();
+	private static final Map<String, Integer> users = new HashMap<String, Integer>();
+
+	private RedisPools() {
+	}
+
+	public static synchronized InstrumentedJedisPool getPool(String host,
+			int port) {
+		String name = host + ":" + port;
+		InstrumentedJedisPool pool = pools.get(name);
+		if (pool == null) {
+			JedisPoolConfig config = new JedisPoolConfig();
+			config.setMaxActive(MAXACTIVE);
+			config.setMaxIdle(MAXIDLE);
+			config.setMinIdle(MINIDLE);
+			config.setMaxWait(MAXWAIT);
+			config.setWhenExhaustedAction(GenericObjectPool.WHEN_EXHAUSTED_BLOCK);
+			pool = new InstrumentedJedisPool(name, config, host, port, TIMEOUT);
+			pools.put(name, pool);
+			users.put(name, 0);
+		}
+		users.put(name, users.get(name) + 1);
+		return pool;
+	}
+
+	public static synchronized Collection<InstrumentedJedisPool> getPools() {
+		return new ArrayList<InstrumentedJedisPool>(pools.values());
+	}
+
+	/**
+	 * Gives back a pool taken with getPool, it is closed if nobody else
+	 * uses it.
+	 */
+	public static synchronized void releasePool(String host, int port) {
+		String name = host + ":" + port;
+		Integer count = users.get(name);
+		if (count == null)
+			return;
+		if (count > 1) {
+			users.put(name, count - 1);
+			return;
+		}
+		users.remove(name);
+		pools.remove(name).destroy();
+	}
+
+	/**
+	 * Closes every pool, only meant for shutdown.
+	 */
+	public static synchronized void destroyAll() {
+		for (InstrumentedJedisPool pool : pools.values())
+			pool.destroy();
+		pools.clear();
+		users.clear();
+	}
+}
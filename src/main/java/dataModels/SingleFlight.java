@@ -0,0 +1,102 @@
+package dataModels;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces concurrent loads of the same key: the first thread to miss runs
+ * the loader, the ones arriving while it runs wait for its result instead of
+ * hitting the database themselves.
+ *
+ * The loader's exception is thrown to every waiter (checked ones wrapped in a
+ * RuntimeException). A waiter that gives up after timeout runs the loader
+ * itself, so a stuck load can't block callers for longer than that.
+ *
+ * @param <V>
+ */
+public class SingleFlight<V> {
+
+	private final ConcurrentHashMap<String, FutureTask<V>> inFlight = new ConcurrentHashMap<String, FutureTask<V>>();
+	private final long timeout; // milliseconds
+	private final AtomicLong loads = new AtomicLong();
+	private final AtomicLong coalesced = new AtomicLong();
+	private final AtomicLong timeouts = new AtomicLong();
+
+	public SingleFlight(long timeout) {
+		this.timeout = timeout;
+	}
+
+	public V load(String key, Callable<V> loader) {
+		FutureTask<V> task = new FutureTask<V>(loader);
+		FutureTask<V> running = inFlight.putIfAbsent(key, task);
+		if (running == null) {
+			loads.incrementAndGet();
+			try {
+				task.run();
+			} finally {
+				inFlight.remove(key, task);
+			}
+			return result(task);
+		}
+		coalesced.incrementAndGet();
+		try {
+			return running.get(timeout, TimeUnit.MILLISECONDS);
+		} catch (TimeoutException e) {
+			timeouts.incrementAndGet();
+			FutureTask<V> own = new FutureTask<V>(loader);
+			own.run();
+			return result(own);
+		} catch (ExecutionException e) {
+			throw rethrow(e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		}
+	}
+
+	private V result(FutureTask<V> task) {
+		try {
+			return task.get();
+		} catch (ExecutionException e) {
+			throw rethrow(e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static RuntimeException rethrow(Throwable t) {
+		if (t instanceof RuntimeException)
+			return (RuntimeException) t;
+		if (t instanceof Error)
+			throw (Error) t;
+		return new RuntimeException(t);
+	}
+
+	/**
+	 * Loads actually run (one per flight).
+	 *
+	 * @return
+	 */
+	public long getLoads() {
+		return loads.get();
+	}
+
+	/**
+	 * Callers that waited on a running load instead of loading.
+	 *
+	 * @return
+	 */
+	public long getCoalesced() {
+		return coalesced.get();
+	}
+
+	public long getTimeouts() {
+		return timeouts.get();
+	}
+}
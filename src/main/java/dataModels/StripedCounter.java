@@ -0,0 +1,49 @@
+package dataModels;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counter for hot paths: each thread adds to one of several cells picked by
+ * its id, so threads don't fight over a single atomic. Cells are a cache line
+ * apart. Reading sums the cells, it is not a snapshot of concurrent adds.
+ *
+ */
+public class StripedCounter {
+
+	static final int STRIPES = stripes();
+	static final int PADDING = 8; // longs per 64 byte cache line
+	private final AtomicLongArray cells = new AtomicLongArray(STRIPES
+			* PADDING);
+
+	private static int stripes() {
+		int stripes = 1;
+		while (stripes < Runtime.getRuntime().availableProcessors() * 2)
+			stripes <<= 1;
+		return stripes;
+	}
+
+	/**
+	 * Cell of the calling thread, STRIPES is a power of two.
+	 *
+	 * @return
+	 */
+	static int stripe() {
+		long id = Thread.currentThread().getId();
+		return (int) (id ^ (id >>> 16)) & (STRIPES - 1);
+	}
+
+	public void increment() {
+		add(1);
+	}
+
+	public void add(long delta) {
+		cells.getAndAdd(stripe() * PADDING, delta);
+	}
+
+	public long sum() {
+		long sum = 0;
+		for (int i = 0; i < STRIPES; i++)
+			sum += cells.get(i * PADDING);
+		return sum;
+	}
+}
@@ -0,0 +1,239 @@
+package dataModels;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * Compact encoding of the cached user hashes. Known fields are stored under a
+ * one letter tag: salt and hash as their raw bytes, dates as 8 byte epoch
+ * millis, flags as one byte, text as UTF-8. Other fields keep their name.
+ * The userId is the key, it is not stored again.
+ *
+ * Dates and flags start with a marker byte: PARSED before the compact value,
+ * VERBATIM before the UTF-8 text of a value that doesn't parse, or whose date
+ * doesn't print back the same (another time zone). Either way the value is
+ * under the tag, an attribute has a single field.
+ *
+ * The callers keep seeing the usual fields: salt and hash as ISO-8859-1
+ * strings, dates as Date.toString(). Hashes written before this encoding
+ * have no version field, they are reported as missing so they get reloaded.
+ *
+ */
+public class UserCodec {
+
+	private static final int TEXT = 0;
+	private static final int RAW = 1;
+	private static final int DATE = 2;
+	private static final int FLAG = 3;
+	private static final String[] NAMES = { "userName", "email", "salt",
+			"hash", "lastActive", "creationDate", "updatedDate", "alive",
+			"userFile", "location", "emailConfirmed" };
+	private static final String[] TAGS = { "n", "e", "s", "h", "l", "c", "u",
+			"a", "f", "g", "m" };
+	private static final int[] KINDS = { TEXT, TEXT, RAW, RAW, DATE, DATE,
+			DATE, FLAG, TEXT, TEXT, FLAG };
+	private static final byte PARSED = 1;
+	private static final byte VERBATIM = 0;
+	private static final String VERSIONTAG = "v";
+	private static final byte VERSION = 2;
+	private static final String RAWENCODING = "ISO-8859-1";
+	private static final String DATEFORMAT = "EEE MMM dd HH:mm:ss zzz yyyy";
+	private static final Map<String, Integer> byName = new HashMap<String, Integer>();
+	private static final Map<String, Integer> byTag = new HashMap<String, Integer>();
+
+	static {
+		for (int i = 0; i < NAMES.length; i++) {
+			byName.put(NAMES[i], i);
+			byTag.put(TAGS[i], i);
+		}
+	}
+
+	public static byte[] key(String userId) {
+		return bytes("users:" + userId, "UTF-8");
+	}
+
+	public static byte[] versionField() {
+		return bytes(VERSIONTAG, "UTF-8");
+	}
+
+	/**
+	 * @param version
+	 *            value of the version field, may be null.
+	 * @return true if the hash has the current encoding.
+	 */
+	public static boolean isCurrent(byte[] version) {
+		return Arrays.equals(version, new byte[] { VERSION });
+	}
+
+	/**
+	 * Name of the field in the encoded hash.
+	 *
+	 * @param name
+	 * @return
+	 */
+	public static byte[] field(String name) {
+		Integer index = byName.get(name);
+		return bytes(index == null ? name : TAGS[index], "UTF-8");
+	}
+
+	/**
+	 * @param fields
+	 *            null values are left out, userId too.
+	 * @param complete
+	 *            true when fields is the whole user, only complete writes
+	 *            mark the hash with the current version.
+	 * @return
+	 */
+	public static Map<byte[], byte[]> encode(Map<String, String> fields,
+			boolean complete) {
+		Map<byte[], byte[]> encoded = new HashMap<byte[], byte[]>();
+		for (Entry<String, String> field : fields.entrySet()) {
+			if (field.getValue() == null || field.getKey().equals("userId"))
+				continue;
+			Integer index = byName.get(field.getKey());
+			if (index != null)
+				encoded.put(bytes(TAGS[index], "UTF-8"),
+						encodeValue(KINDS[index], field.getValue()));
+			else
+				encoded.put(bytes(field.getKey(), "UTF-8"),
+						bytes(field.getValue(), "UTF-8"));
+		}
+		if (complete)
+			encoded.put(versionField(), new byte[] { VERSION });
+		return encoded;
+	}
+
+	private static byte[] encodeValue(int kind, String value) {
+		switch (kind) {
+		case RAW:
+			return bytes(value, RAWENCODING);
+		case DATE:
+			try {
+				long millis = new SimpleDateFormat(DATEFORMAT, Locale.US)
+						.parse(value).getTime();
+				// zzz abbreviations are ambiguous, CST or IST may parse to
+				// another zone than the one written.
+				if (new Date(millis).toString().equals(value))
+					return ByteBuffer.allocate(9).put(PARSED).putLong(millis)
+							.array();
+			} catch (ParseException e) {
+				// kept as text.
+			}
+			return verbatim(value);
+		case FLAG:
+			if (value.equals("true") || value.equals("false"))
+				return new byte[] { PARSED,
+						(byte) (value.equals("true") ? 1 : 0) };
+			return verbatim(value);
+		default:
+			return bytes(value, "UTF-8");
+		}
+	}
+
+	private static byte[] verbatim(String value) {
+		byte[] text = bytes(value, "UTF-8");
+		return ByteBuffer.allocate(text.length + 1).put(VERBATIM).put(text)
+				.array();
+	}
+
+	/**
+	 * @param userId
+	 * @param encoded
+	 * @return the user fields, null if the hash is missing or has an older
+	 *         encoding.
+	 */
+	public static Map<String, String> decode(String userId,
+			Map<byte[], byte[]> encoded) {
+		Map<String, String> fields = new HashMap<String, String>();
+		boolean current = false;
+		for (Entry<byte[], byte[]> field : encoded.entrySet()) {
+			String name = string(field.getKey(), "UTF-8");
+			if (name.equals(VERSIONTAG))
+				current = isCurrent(field.getValue());
+			else
+				put(fields, name, field.getValue());
+		}
+		if (!current)
+			return null;
+		fields.put("userId", userId);
+		return fields;
+	}
+
+	/**
+	 * Decodes a HGETALL reply read raw (field, value, field, value...).
+	 */
+	public static Map<String, String> decode(String userId, List<?> reply) {
+		Map<byte[], byte[]> encoded = new HashMap<byte[], byte[]>();
+		for (int i = 0; i + 1 < reply.size(); i += 2)
+			encoded.put((byte[]) reply.get(i), (byte[]) reply.get(i + 1));
+		return decode(userId, encoded);
+	}
+
+	private static void put(Map<String, String> fields, String tag,
+			byte[] value) {
+		Integer index = byTag.get(tag);
+		if (index == null)
+			fields.put(tag, string(value, "UTF-8"));
+		else
+			fields.put(NAMES[index], decodeValue(KINDS[index], value));
+	}
+
+	/**
+	 * Decodes the value of a single field read with HGET.
+	 *
+	 * @param name
+	 * @param value
+	 * @return null if value is null.
+	 */
+	public static String decodeValue(String name, byte[] value) {
+		if (value == null)
+			return null;
+		Integer index = byName.get(name);
+		return index == null ? string(value, "UTF-8") : decodeValue(
+				KINDS[index], value);
+	}
+
+	private static String decodeValue(int kind, byte[] value) {
+		switch (kind) {
+		case RAW:
+			return string(value, RAWENCODING);
+		case DATE:
+			if (value[0] == VERBATIM)
+				return string(Arrays.copyOfRange(value, 1, value.length),
+						"UTF-8");
+			return new Date(ByteBuffer.wrap(value, 1, 8).getLong()).toString();
+		case FLAG:
+			if (value[0] == VERBATIM)
+				return string(Arrays.copyOfRange(value, 1, value.length),
+						"UTF-8");
+			return value[1] == 1 ? "true" : "false";
+		default:
+			return string(value, "UTF-8");
+		}
+	}
+
+	private static byte[] bytes(String value, String encoding) {
+		try {
+			return value.getBytes(encoding);
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String string(byte[] value, String encoding) {
+		try {
+			return new String(value, encoding);
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,318 @@
+package dataModels;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+import com.mongodb.WriteConcern;
+
+/**
+ * The emails and user names of the users of each app, in collections with
+ * unique {appId, email} and {appId, userName} indexes. Finding a user by
+ * email or user name is one read of a small document, and two users can't
+ * take the same email: the insert of the key fails for the second one.
+ *
+ * emailsInApp holds {appId, email, userId}, userNamesInApp {appId, userName,
+ * userId, email}. A user name belongs to the first user that took it, users
+ * created later with the same name are not found by name, as before.
+ *
+ * Users created before the collections existed are copied into them in the
+ * background on the first startup. Until that is done isReady() is false and
+ * MongoDBDataModel queries the users collection instead.
+ *
+ */
+public class UserKeys implements Runnable {
+
+	private static final String EMAILSCOLL = "emailsInApp";
+	private static final String USERNAMESCOLL = "userNamesInApp";
+	private static final String USERSCOLL = "users";
+	// document of EMAILSCOLL marking the copy of the users as done
+	private static final String BACKFILLED = "BACKFILLED";
+	private static final int BACKFILLBATCH = 1000;
+	// a duplicate key doesn't stop the rest of the batch
+	private static final WriteConcern CONTINUEONERROR = WriteConcern.ACKNOWLEDGED
+			.continueOnErrorForInsert(true);
+	private final DB db;
+	private volatile boolean ready;
+
+	public UserKeys(DB db) {
+		this.db = db;
+		try {
+			db.getCollection(EMAILSCOLL).ensureIndex(
+					new BasicDBObject("appId", 1).append("email", 1),
+					new BasicDBObject("name", "appId_email_unique").append(
+							"unique", true));
+			db.getCollection(EMAILSCOLL).ensureIndex(
+					new BasicDBObject("appId", 1).append("userId", 1),
+					new BasicDBObject("name", "appId_userId").append(
+							"background", true));
+			db.getCollection(USERNAMESCOLL).ensureIndex(
+					new BasicDBObject("appId", 1).append("userName", 1),
+					new BasicDBObject("name", "appId_userName_unique").append(
+							"unique", true));
+			db.getCollection(USERNAMESCOLL).ensureIndex(
+					new BasicDBObject("appId", 1).append("userId", 1),
+					new BasicDBObject("name", "appId_userId").append(
+							"background", true));
+			ready = db.getCollection(EMAILSCOLL).findOne(
+					new BasicDBObject("_id", BACKFILLED)) != null;
+		} catch (MongoException e) {
+			// the users collection answers until a later start copies them.
+			System.out.println("Could not create the user keys indexes: "
+					+ e.getMessage());
+		}
+	}
+
+	/**
+	 * Copies the keys of the users in a daemon thread, if it wasn't done.
+	 */
+	public void start() {
+		if (ready)
+			return;
+		Thread t = new Thread(this, "user-keys-backfill");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/**
+	 * @return true once every user is in the collections.
+	 */
+	public boolean isReady() {
+		return ready;
+	}
+
+	/**
+	 * Copies the keys of every user, the ones already there are skipped by
+	 * the unique indexes. Runs on every node that starts before it is done,
+	 * that is harmless.
+	 */
+	public void run() {
+		long start = System.currentTimeMillis();
+		try {
+			DBCursor cursor = db.getCollection(USERSCOLL).find(
+					new BasicDBObject(),
+					new BasicDBObject("appId", 1).append("email", 1).append(
+							"userName", 1));
+			List<DBObject> emails = new ArrayList<DBObject>();
+			List<DBObject> userNames = new ArrayList<DBObject>();
+			while (cursor.hasNext()) {
+				DBObject user = cursor.next();
+				String appId = (String) user.get("appId");
+				String userId = (String) user.get("_id");
+				String email = (String) user.get("email");
+				if (appId == null)
+					continue;
+				if (email != null)
+					emails.add(emailKey(appId, email, userId));
+				if (user.get("userName") != null)
+					userNames.add(userNameKey(appId,
+							(String) user.get("userName"), userId, email));
+				if (emails.size() >= BACKFILLBATCH
+						|| userNames.size() >= BACKFILLBATCH) {
+					insertAll(EMAILSCOLL, emails);
+					insertAll(USERNAMESCOLL, userNames);
+				}
+			}
+			insertAll(EMAILSCOLL, emails);
+			insertAll(USERNAMESCOLL, userNames);
+			db.getCollection(EMAILSCOLL).save(
+					new BasicDBObject("_id", BACKFILLED));
+			ready = true;
+			System.out.println("User keys copied in "
+					+ (System.currentTimeMillis() - start) + "ms.");
+		} catch (MongoException e) {
+			System.out.println("Could not copy the user keys: "
+					+ e.getMessage());
+		}
+	}
+
+	/**
+	 * Inserts the keys and empties the list, the duplicates are left out.
+	 */
+	private void insertAll(String collection, List<DBObject> keys) {
+		if (keys.isEmpty())
+			return;
+		try {
+			db.getCollection(collection).insert(keys, CONTINUEONERROR);
+		} catch (MongoException.DuplicateKey e) {
+			// already copied, or a repeated email or user name.
+		}
+		keys.clear();
+	}
+
+	private static DBObject emailKey(String appId, String email, String userId) {
+		return new BasicDBObject("appId", appId).append("email", email)
+				.append("userId", userId);
+	}
+
+	private static DBObject userNameKey(String appId, String userName,
+			String userId, String email) {
+		return new BasicDBObject("appId", appId).append("userName", userName)
+				.append("userId", userId).append("email", email);
+	}
+
+	/**
+	 * Takes the email and the user name for a new user.
+	 *
+	 * @param appId
+	 * @param userId
+	 * @param email
+	 * @param userName
+	 *            may be null.
+	 * @return false if the email belongs to another user, nothing is taken.
+	 */
+	public boolean reserve(String appId, String userId, String email,
+			String userName) {
+		try {
+			db.getCollection(EMAILSCOLL).insert(
+					emailKey(appId, email, userId));
+		} catch (MongoException.DuplicateKey e) {
+			return false;
+		}
+		if (userName != null)
+			try {
+				db.getCollection(USERNAMESCOLL).insert(
+						userNameKey(appId, userName, userId, email));
+			} catch (MongoException.DuplicateKey e) {
+				// the name stays with the user that has it.
+			}
+		return true;
+	}
+
+	/**
+	 * Takes the emails and user names of many users with one insert per
+	 * collection.
+	 *
+	 * @param users
+	 *            with _id, appId, email and optionally userName.
+	 * @return the ids of the users whose email was taken for them.
+	 */
+	public Set<String> reserveAll(List<Map<String, String>> users) {
+		List<DBObject> emails = new ArrayList<DBObject>();
+		List<DBObject> userNames = new ArrayList<DBObject>();
+		for (Map<String, String> user : users) {
+			emails.add(emailKey(user.get("appId"), user.get("email"),
+					user.get("_id")));
+			if (user.get("userName") != null)
+				userNames.add(userNameKey(user.get("appId"),
+						user.get("userName"), user.get("_id"),
+						user.get("email")));
+		}
+		Set<String> reserved = new HashSet<String>();
+		try {
+			db.getCollection(EMAILSCOLL).insert(emails, CONTINUEONERROR);
+			for (Map<String, String> user : users)
+				reserved.add(user.get("_id"));
+		} catch (MongoException.DuplicateKey e) {
+			// read back which of the emails are ours, one query per app.
+			Map<String, List<String>> byApp = new HashMap<String, List<String>>();
+			for (Map<String, String> user : users) {
+				if (!byApp.containsKey(user.get("appId")))
+					byApp.put(user.get("appId"), new ArrayList<String>());
+				byApp.get(user.get("appId")).add(user.get("email"));
+			}
+			Set<String> userIds = new HashSet<String>();
+			for (Map<String, String> user : users)
+				userIds.add(user.get("_id"));
+			for (Entry<String, List<String>> app : byApp.entrySet()) {
+				DBCursor cursor = db.getCollection(EMAILSCOLL).find(
+						new BasicDBObject("appId", app.getKey()).append("email",
+								new BasicDBObject("$in", app.getValue())),
+						new BasicDBObject("userId", 1));
+				while (cursor.hasNext()) {
+					String userId = (String) cursor.next().get("userId");
+					if (userIds.contains(userId))
+						reserved.add(userId);
+				}
+			}
+		}
+		List<DBObject> reservedNames = new ArrayList<DBObject>();
+		for (DBObject userName : userNames)
+			if (reserved.contains(userName.get("userId")))
+				reservedNames.add(userName);
+		insertAll(USERNAMESCOLL, reservedNames);
+		return reserved;
+	}
+
+	/**
+	 * Gives back what reserve took, when the user could not be written.
+	 */
+	public void release(String appId, String userId, String email,
+			String userName) {
+		db.getCollection(EMAILSCOLL).remove(emailKey(appId, email, userId));
+		if (userName != null)
+			db.getCollection(USERNAMESCOLL).remove(
+					new BasicDBObject("appId", appId).append("userName",
+							userName).append("userId", userId));
+	}
+
+	/**
+	 * Moves the user to a new email.
+	 *
+	 * @return false if the email belongs to another user, the keys are left
+	 *         as they were.
+	 */
+	public boolean changeEmail(String appId, String userId, String oldEmail,
+			String newEmail) {
+		if (newEmail == null || newEmail.equals(oldEmail))
+			return true;
+		try {
+			db.getCollection(EMAILSCOLL).insert(
+					emailKey(appId, newEmail, userId));
+		} catch (MongoException.DuplicateKey e) {
+			return false;
+		}
+		if (oldEmail != null)
+			db.getCollection(EMAILSCOLL).remove(
+					emailKey(appId, oldEmail, userId));
+		db.getCollection(USERNAMESCOLL).update(
+				new BasicDBObject("appId", appId).append("userId", userId),
+				new BasicDBObject("$set", new BasicDBObject("email", newEmail)),
+				false, true);
+		return true;
+	}
+
+	/**
+	 * @return the id of the user with the email, null if there is none.
+	 */
+	public String userIdByEmail(String appId, String email) {
+		DBObject key = db.getCollection(EMAILSCOLL).findOne(
+				new BasicDBObject("appId", appId).append("email", email),
+				new BasicDBObject("userId", 1));
+		return key == null ? null : (String) key.get("userId");
+	}
+
+	/**
+	 * @return {userId, email} of the user with the name, null if there is
+	 *         none.
+	 */
+	public DBObject byUserName(String appId, String userName) {
+		return db.getCollection(USERNAMESCOLL).findOne(
+				new BasicDBObject("appId", appId).append("userName", userName),
+				new BasicDBObject("userId", 1).append("email", 1));
+	}
+
+	/**
+	 * @return the emails in use in the app.
+	 */
+	public Set<String> existingEmails(String appId, Collection<String> emails) {
+		Set<String> existing = new HashSet<String>();
+		DBCursor cursor = db.getCollection(EMAILSCOLL).find(
+				new BasicDBObject("appId", appId).append("email",
+						new BasicDBObject("$in", emails)),
+				new BasicDBObject("email", 1));
+		while (cursor.hasNext())
+			existing.add((String) cursor.next().get("email"));
+		return existing;
+	}
+}
@@ -0,0 +1,436 @@
+package dataModels;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.codehaus.jettison.json.JSONArray;
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Transaction;
+import redis.clients.jedis.exceptions.JedisException;
+
+/**
+ * Write-behind persistence: creates are acknowledged once they are in redis
+ * and the matching database write is queued here, then applied in batches by
+ * a background worker.
+ *
+ * The queue lives in redis lists so it survives a restart. Operations of an
+ * app always go to the same partition and every partition is drained by a
+ * single worker (a lease in redis, for when several nodes share the
+ * instance), so the operations of an app are applied in the order they were
+ * queued. A failing operation is retried on the next runs, after MAXATTEMPTS
+ * it is moved to the failed list so the rest of the partition can go on. A
+ * create the database refuses (e.g. the email belongs to another user) goes
+ * to the failed list at once.
+ *
+ * Writes that still go straight to the database (updates and deletes) must
+ * call awaitPersisted first, otherwise they could run before the create they
+ * depend on. Reads that miss redis can still miss an operation that is
+ * queued.
+ *
+ */
+public class WriteBehindQueue {
+
+	public static final String CREATEAPP = "createApp";
+	public static final String CREATEUSERWITHFLAG = "createUserWithFlag";
+	public static final String CREATEUSERWITHOUTFLAG = "createUserWithoutFlag";
+	public static final String CREATEUSERWITHFLAGWITHEMAILCONFIRMATION = "createUserWithFlagWithEmailConfirmation";
+	public static final String CREATEUSERWITHOUTFLAGWITHEMAILCONFIRMATION = "createUserWithoutFlagWithEmailConfirmation";
+	public static final String CREATEAUDIO = "createAudioInApp";
+	public static final String CREATEIMAGE = "createImageInApp";
+	public static final String CREATEVIDEO = "createVideoInApp";
+	public static final String CREATESTORAGE = "createStorageInApp";
+
+	private static final String QUEUE = "writebehind:queue:";
+	private static final String LEASE = "writebehind:lease:";
+	private static final String PENDING = "writebehind:pending";
+	private static final String FAILED = "writebehind:failed";
+	private static final int PARTITIONS = 4;
+	private static final int BATCHSIZE = 100;
+	private static final int MAXATTEMPTS = 5;
+	private static final long DRAININTERVAL = 100; // milliseconds
+	private static final int LEASETIME = 10; // seconds
+	private static final long BARRIERTIMEOUT = 5000; // milliseconds
+	private static final long BARRIERPOLL = 10; // milliseconds
+	private static final long SHUTDOWNWAIT = 5000; // milliseconds
+	private static final String LEASESCRIPT = "if redis.call('setnx', KEYS[1], ARGV[1]) == 1"
+			+ " or redis.call('get', KEYS[1]) == ARGV[1] then"
+			+ " redis.call('expire', KEYS[1], ARGV[2]) return 1 end return 0";
+	// only the node holding the lease gives it up.
+	private static final String RELEASESCRIPT = "if redis.call('get', KEYS[1]) == ARGV[1] then"
+			+ " return redis.call('del', KEYS[1]) end return 0";
+	private static final String ENCODING = "ISO-8859-1";
+
+	private final JedisPool pool;
+	private final DatabaseInterface database;
+	private final String nodeId = UUID.randomUUID().toString();
+	private final int[] headAttempts = new int[PARTITIONS];
+	private final AtomicLong enqueued = new AtomicLong();
+	private final AtomicLong applied = new AtomicLong();
+	private final AtomicLong retries = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private volatile long lastAppliedLag = 0;
+	private ScheduledExecutorService executor;
+
+	public WriteBehindQueue(String host, int port, DatabaseInterface database) {
+		this.pool = RedisPools.getPool(host, port);
+		this.database = database;
+	}
+
+	public synchronized void start() {
+		if (executor != null)
+			return;
+		executor = Executors.newScheduledThreadPool(PARTITIONS,
+				new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "write-behind");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		for (int i = 0; i < PARTITIONS; i++) {
+			final int partition = i;
+			executor.scheduleWithFixedDelay(new Runnable() {
+				public void run() {
+					try {
+						drain(partition);
+					} catch (JedisException e) {
+						System.out.println("Write-behind partition " + partition
+								+ " could not be drained: " + e.getMessage());
+					}
+				}
+			}, DRAININTERVAL, DRAININTERVAL, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Lets the batches in flight be applied, then gives up the leases of this
+	 * node so another one drains the partitions without waiting LEASETIME.
+	 * What's still queued stays in redis.
+	 */
+	public synchronized void stop() {
+		if (executor == null)
+			return;
+		executor.shutdown();
+		try {
+			executor.awaitTermination(SHUTDOWNWAIT, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		executor.shutdownNow();
+		executor = null;
+		Jedis jedis = null;
+		try {
+			jedis = pool.getResource();
+			for (int i = 0; i < PARTITIONS; i++)
+				jedis.eval(RELEASESCRIPT, 1, LEASE + i, nodeId);
+		} catch (JedisException e) {
+			// the leases expire after LEASETIME.
+			System.out.println("Could not release the write-behind leases: "
+					+ e.getMessage());
+		} finally {
+			if (jedis != null)
+				pool.returnResource(jedis);
+		}
+	}
+
+	private static int partition(String appId) {
+		return (appId.hashCode() & 0x7fffffff) % PARTITIONS;
+	}
+
+	public static String encode(byte[] bytes) throws UnsupportedEncodingException {
+		return bytes == null ? null : new String(bytes, ENCODING);
+	}
+
+	private static byte[] decode(String value)
+			throws UnsupportedEncodingException {
+		return value == null ? null : value.getBytes(ENCODING);
+	}
+
+	/**
+	 * Queues the database write, the queue entry and the pending counter of
+	 * the app are written in one transaction.
+	 *
+	 * @param appId
+	 * @param operation
+	 *            one of the operation constants.
+	 * @param args
+	 *            the arguments of the DatabaseInterface method, in order.
+	 * @return false if the operation could not be queued.
+	 */
+	public boolean enqueue(String appId, String operation, String... args) {
+		String entry;
+		try {
+			JSONArray jsonArgs = new JSONArray();
+			for (int i = 0; i < args.length; i++)
+				jsonArgs.put(args[i] == null ? JSONObject.NULL : args[i]);
+			entry = new JSONObject().put("op", operation).put("appId", appId)
+					.put("args", jsonArgs)
+					.put("enqueued", System.currentTimeMillis()).toString();
+		} catch (JSONException e) {
+			e.printStackTrace();
+			return false;
+		}
+		Jedis jedis = pool.getResource();
+		boolean sucess = false;
+		try {
+			Transaction t = jedis.multi();
+			t.rpush(QUEUE + partition(appId), entry);
+			t.hincrBy(PENDING, appId, 1);
+			t.exec();
+			enqueued.incrementAndGet();
+			sucess = true;
+		} finally {
+			pool.returnResource(jedis);
+		}
+		return sucess;
+	}
+
+	/**
+	 * Waits until every queued operation of the app was applied (or
+	 * BARRIERTIMEOUT passed). Costs a single HGET when nothing is queued.
+	 *
+	 * @param appId
+	 */
+	public void awaitPersisted(String appId) {
+		long deadline = System.currentTimeMillis() + BARRIERTIMEOUT;
+		Jedis jedis = pool.getResource();
+		try {
+			while (true) {
+				String pending = jedis.hget(PENDING, appId);
+				if (pending == null || Long.parseLong(pending) <= 0)
+					return;
+				if (System.currentTimeMillis() > deadline) {
+					System.out.println("Write-behind: " + pending
+							+ " operations of " + appId + " still queued.");
+					return;
+				}
+				try {
+					Thread.sleep(BARRIERPOLL);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		} finally {
+			pool.returnResource(jedis);
+		}
+	}
+
+	private void drain(int partition) {
+		String queue = QUEUE + partition;
+		Jedis jedis = pool.getResource();
+		try {
+			Object lease = jedis.eval(LEASESCRIPT, 1, LEASE + partition,
+					nodeId, String.valueOf(LEASETIME));
+			if (!Long.valueOf(1).equals(lease))
+				return;
+			List<String> batch = jedis.lrange(queue, 0, BATCHSIZE - 1);
+			List<String> done = new ArrayList<String>();
+			List<String> dead = new ArrayList<String>();
+			for (String entry : batch) {
+				String appId = null;
+				try {
+					JSONObject json = new JSONObject(entry);
+					appId = json.getString("appId");
+					boolean persisted = apply(json.getString("op"),
+							json.getJSONArray("args"));
+					lastAppliedLag = System.currentTimeMillis()
+							- json.getLong("enqueued");
+					headAttempts[partition] = 0;
+					if (!persisted) {
+						System.out.println("Write-behind: " + entry
+								+ " was refused by the database.");
+						dead.add(entry);
+					}
+					done.add(appId);
+				} catch (JSONException e) {
+					// can't be applied, ever.
+					System.out.println("Write-behind: malformed entry " + entry);
+					dead.add(entry);
+					done.add(appId);
+				} catch (Exception e) {
+					headAttempts[partition]++;
+					retries.incrementAndGet();
+					System.out.println("Write-behind: " + entry + " failed ("
+							+ headAttempts[partition] + "/" + MAXATTEMPTS
+							+ "): " + e.getMessage());
+					if (headAttempts[partition] < MAXATTEMPTS)
+						break; // keep the order, retry on the next run
+					headAttempts[partition] = 0;
+					dead.add(entry);
+					done.add(appId);
+				}
+			}
+			if (!done.isEmpty()) {
+				Pipeline pipeline = jedis.pipelined();
+				pipeline.ltrim(queue, done.size(), -1);
+				for (String appId : done)
+					if (appId != null)
+						pipeline.hincrBy(PENDING, appId, -1);
+				for (String entry : dead)
+					pipeline.rpush(FAILED, entry);
+				pipeline.sync();
+				applied.addAndGet(done.size() - dead.size());
+				failed.addAndGet(dead.size());
+			}
+		} finally {
+			pool.returnResource(jedis);
+		}
+	}
+
+	/**
+	 * A create that returns false was either already applied (e.g. before a
+	 * crash that kept it in the queue), then the element is there, or refused.
+	 * 
+	 * @return false if the create was refused.
+	 */
+	private boolean apply(String operation, JSONArray a) throws JSONException,
+			UnsupportedEncodingException {
+		String[] args = new String[a.length()];
+		for (int i = 0; i < args.length; i++)
+			args[i] = a.isNull(i) ? null : a.getString(i);
+		boolean sucess;
+		if (operation.equals(CREATEAPP))
+			sucess = database.createApp(args[0], args[1], args[2],
+					Boolean.parseBoolean(args[3]));
+		else if (operation.equals(CREATEUSERWITHFLAG))
+			sucess = database.createUserWithFlag(args[0], args[1], args[2],
+					args[3], decode(args[4]), decode(args[5]), args[6], args[7]);
+		else if (operation.equals(CREATEUSERWITHOUTFLAG))
+			sucess = database.createUserWithoutFlag(args[0], args[1], args[2],
+					args[3], decode(args[4]), decode(args[5]), args[6]);
+		else if (operation.equals(CREATEUSERWITHFLAGWITHEMAILCONFIRMATION))
+			sucess = database.createUserWithFlagWithEmailConfirmation(args[0],
+					args[1], args[2], args[3], decode(args[4]),
+					decode(args[5]), args[6], args[7],
+					Boolean.parseBoolean(args[8]));
+		else if (operation.equals(CREATEUSERWITHOUTFLAGWITHEMAILCONFIRMATION))
+			sucess = database.createUserWithoutFlagWithEmailConfirmation(
+					args[0], args[1], args[2], args[3], decode(args[4]),
+					decode(args[5]), args[6], Boolean.parseBoolean(args[7]));
+		else if (operation.equals(CREATEAUDIO))
+			sucess = database.createAudioInApp(args[0], args[1], args[2],
+					args[3], args[4], args[5], args[6], args[7], args[8]);
+		else if (operation.equals(CREATEIMAGE))
+			sucess = database.createImageInApp(args[0], args[1], args[2],
+					args[3], args[4], args[5], args[6], args[7], args[8]);
+		else if (operation.equals(CREATEVIDEO))
+			sucess = database.createVideoInApp(args[0], args[1], args[2],
+					args[3], args[4], args[5], args[6], args[7], args[8]);
+		else if (operation.equals(CREATESTORAGE))
+			sucess = database.createStorageInApp(args[0], args[1], args[2],
+					args[3], args[4], args[5], args[6], args[7]);
+		else
+			throw new JSONException("Unknown operation " + operation);
+		if (sucess)
+			return true;
+		if (!exists(operation, args))
+			return false;
+		System.out.println("Write-behind: " + operation + " of " + args[0]
+				+ " was already applied.");
+		return true;
+	}
+
+	/**
+	 * @return true if the element the create writes is in the database.
+	 */
+	private boolean exists(String operation, String[] args) {
+		if (operation.equals(CREATEAPP))
+			return database.appExists(args[0]);
+		if (operation.equals(CREATEAUDIO))
+			return database.audioExistsInApp(args[0], args[1]);
+		if (operation.equals(CREATEIMAGE))
+			return database.imageExistsInApp(args[0], args[1]);
+		if (operation.equals(CREATEVIDEO))
+			return database.videoExistsInApp(args[0], args[1]);
+		if (operation.equals(CREATESTORAGE))
+			return database.storageExistsInApp(args[0], args[1]);
+		// the users, by id: the email may be taken by another one.
+		return database.getUser(args[0], args[1]) != null;
+	}
+
+	public long getEnqueued() {
+		return enqueued.get();
+	}
+
+	public long getApplied() {
+		return applied.get();
+	}
+
+	public long getRetries() {
+		return retries.get();
+	}
+
+	public long getFailed() {
+		return failed.get();
+	}
+
+	/**
+	 * Time between the queueing and the application of the last operation
+	 * this node applied, in milliseconds.
+	 *
+	 * @return
+	 */
+	public long getLastAppliedLag() {
+		return lastAppliedLag;
+	}
+
+	/**
+	 * Operations queued in every partition (all nodes).
+	 *
+	 * @return
+	 */
+	public long getQueued() {
+		Jedis jedis = pool.getResource();
+		long queued = 0;
+		try {
+			Pipeline pipeline = jedis.pipelined();
+			for (int i = 0; i < PARTITIONS; i++)
+				pipeline.llen(QUEUE + i);
+			for (Object length : pipeline.syncAndReturnAll())
+				queued += (Long) length;
+		} finally {
+			pool.returnResource(jedis);
+		}
+		return queued;
+	}
+
+	/**
+	 * Age of the oldest queued operation in milliseconds, 0 when the queue is
+	 * empty.
+	 *
+	 * @return
+	 */
+	public long getLag() {
+		Jedis jedis = pool.getResource();
+		long oldest = 0;
+		try {
+			for (int i = 0; i < PARTITIONS; i++) {
+				String head = jedis.lindex(QUEUE + i, 0);
+				if (head == null)
+					continue;
+				try {
+					long enqueuedAt = new JSONObject(head).getLong("enqueued");
+					if (oldest == 0 || enqueuedAt < oldest)
+						oldest = enqueuedAt;
+				} catch (JSONException e) {
+				}
+			}
+		} finally {
+			pool.returnResource(jedis);
+		}
+		return oldest == 0 ? 0 : System.currentTimeMillis() - oldest;
+	}
+}
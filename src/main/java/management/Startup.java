@@ -9,11 +9,14 @@ import javax.servlet.*;
 import org.codehaus.jettison.json.JSONException;
 
 import Model.DataModel;
+import Model.Model;
 
 import resourceModelLayer.AppsMiddleLayer;
 import rest_Models.PasswordEncryptionService;
 
 import dataModels.RedisDataModel;
+import dataModels.MongoClients;
+import dataModels.RedisPools;
 
 /**
  * Administrator class
@@ -26,12 +29,35 @@ public class Startup implements ServletContextListener {
 	private static String OPENBAASADMIN = "openbaasAdmin";
 	private static String ADMINPASSWORD = "infosistema";
 	private static String AdminAppId = "~app";
-	private static String AdminId = "~id";
+	public static final String AdminId = "~id";
 	private static String AdminEmail = "admin@openbaas.infosistema.com";
 	private static String AdminSessionId ="~session";
 
 	public void contextInitialized(ServletContextEvent event) {
 		this.context = event.getServletContext();
+		// <context-param> inMemoryMode=true runs without redis and mongo.
+		if (context.getInitParameter("inMemoryMode") != null)
+			DataModel.inMemoryMode = Boolean.parseBoolean(context
+					.getInitParameter("inMemoryMode"));
+		// settings of the mongo connection pool, shared by every mongo user.
+		if (context.getInitParameter("mongoConnectionsPerHost") != null)
+			MongoClients.connectionsPerHost = Integer.parseInt(context
+					.getInitParameter("mongoConnectionsPerHost"));
+		if (context.getInitParameter("mongoWaitQueueMultiplier") != null)
+			MongoClients.waitQueueMultiplier = Integer.parseInt(context
+					.getInitParameter("mongoWaitQueueMultiplier"));
+		if (context.getInitParameter("mongoMaxWaitTime") != null)
+			MongoClients.maxWaitTime = Integer.parseInt(context
+					.getInitParameter("mongoMaxWaitTime"));
+		if (context.getInitParameter("mongoConnectTimeout") != null)
+			MongoClients.connectTimeout = Integer.parseInt(context
+					.getInitParameter("mongoConnectTimeout"));
+		if (context.getInitParameter("mongoSocketTimeout") != null)
+			MongoClients.socketTimeout = Integer.parseInt(context
+					.getInitParameter("mongoSocketTimeout"));
+		if (context.getInitParameter("mongoWriteConcern") != null)
+			MongoClients.writeConcern = context
+					.getInitParameter("mongoWriteConcern");
 //		DataModel dataModel = new DataModel();
 		AppsMiddleLayer appsMid = new AppsMiddleLayer();
 		PasswordEncryptionService service = new PasswordEncryptionService();
@@ -71,10 +97,15 @@ public class Startup implements ServletContextListener {
 		else{
 			System.out.println("No admin Session created.");
 		}
+		// traffic is served while the cache fills in the background.
+		Model.getModel().startCacheWarmup();
 	}
 
 	public void contextDestroyed(ServletContextEvent arg0) {
 		this.context = null;
+		Model.getModel().shutdown();
+		RedisPools.destroyAll();
+		MongoClients.closeAll();
 	}// end constextDestroyed method
 
 }
\ No newline at end of file
@@ -7,14 +7,17 @@ import java.util.Iterator;
 import java.util.Set;
 import java.util.UUID;
 
+import dataModels.RedisPools;
+
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
-import redis.clients.jedis.JedisPoolConfig;
 
 public class Geolocation implements GeoLocationOperations{
 	private static final int RedisGeoPORT = 6381;
-	private Jedis jedis;
 	private final static String server = "localhost";
+	// one holder of the pool for every instance.
+	private static final JedisPool pool = RedisPools.getPool(server,
+			RedisGeoPORT);
 	private static final int squareSize = 100; // 100meters
 	private static int numbits = 6 * 5;
 	double[] latitudeRange = { -90, 90 };
@@ -30,10 +33,6 @@ public class Geolocation implements GeoLocationOperations{
 			lookup.put(c, i++);
 	}
 
-	public Geolocation() {
-		jedis = new Jedis(server, RedisGeoPORT);
-	}
-
 	public double[] decode(String geohash) {
 		StringBuilder buffer = new StringBuilder();
 		for (char c : geohash.toCharArray()) {
@@ -185,8 +184,6 @@ public class Geolocation implements GeoLocationOperations{
 
 	private void createObject(String latitudePointer, String longitudePointer,
 			String typePointer, String objectId) {
-		JedisPool pool = new JedisPool(new JedisPoolConfig(), "localhost",
-				RedisGeoPORT);
 		Jedis jedis = pool.getResource();
 		try {
 			if (!jedis.exists(latitudePointer + ":" + longitudePointer + ":"
@@ -196,7 +193,6 @@ public class Geolocation implements GeoLocationOperations{
 		} finally {
 			pool.returnResource(jedis);
 		}
-		pool.destroy();
 
 	}
 
@@ -205,8 +201,6 @@ public class Geolocation implements GeoLocationOperations{
 	}
 
 	private String getLatitudeIndex(double latitude) {
-		JedisPool pool = new JedisPool(new JedisPoolConfig(), "localhost",
-				RedisGeoPORT);
 		Jedis jedis = pool.getResource();
 		String id = null;
 		try {
@@ -232,15 +226,12 @@ public class Geolocation implements GeoLocationOperations{
 		} finally {
 			pool.returnResource(jedis);
 		}
-		pool.destroy();
 		return id; // a new id if the latitude point does not exist, or the
 					// closest latitude point within the
 		// precision
 	}
 
 	private String getLongitudeIndex(String latitudePointer, double longitude) {
-		JedisPool pool = new JedisPool(new JedisPoolConfig(), "localhost",
-				RedisGeoPORT);
 		Jedis jedis = pool.getResource();
 		String id = null;
 		try {
@@ -270,7 +261,6 @@ public class Geolocation implements GeoLocationOperations{
 		} finally {
 			pool.returnResource(jedis);
 		}
-		pool.destroy();
 		return id; // a new id if the longitude point does not exist, or the
 					// closest longitude point within the
 		// precision
@@ -278,8 +268,6 @@ public class Geolocation implements GeoLocationOperations{
 
 	private String getTypeIndex(String latitudePointer,
 			String longitudePointer, double longitude, String type) {
-		JedisPool pool = new JedisPool(new JedisPoolConfig(), "localhost",
-				RedisGeoPORT);
 		Jedis jedis = pool.getResource();
 		try {
 			Set<String> elements = jedis.smembers(latitudePointer + ":"
@@ -291,7 +279,6 @@ public class Geolocation implements GeoLocationOperations{
 		} finally {
 			pool.returnResource(jedis);
 		}
-		pool.destroy();
 		return type;
 	}
 
@@ -313,8 +300,6 @@ public class Geolocation implements GeoLocationOperations{
 	 */
 	public Set<String> searchObjectsInGrid(double latitude, double longitude,
 			String type, double radius) {
-		JedisPool pool = new JedisPool(new JedisPoolConfig(), "localhost",
-				RedisGeoPORT);
 		Jedis jedis = pool.getResource();
 		Set<String> elementsInGrid = new HashSet<String>();
 		latitude += 90;
@@ -375,7 +360,6 @@ public class Geolocation implements GeoLocationOperations{
 		} finally {
 			pool.returnResource(jedis);
 		}
-		pool.destroy();
 		return elementsInGrid;
 	}
 
@@ -50,6 +50,8 @@ import sessionsAndEmailConfirmations.RedisSessions;
 import sessionsAndEmailConfirmations.SessionDBInterface;
 import Model.Model;
 
+import dataModels.IdPage;
+
 import com.sun.jersey.core.header.FormDataContentDisposition;
 
 public class AppsMiddleLayer {
@@ -196,6 +198,49 @@ public class AppsMiddleLayer {
 		return this.model.getAllAppIds();
 	}
 
+	/**
+	 * Lists identifiers a page at a time.
+	 * 
+	 * @param type
+	 *            apps, users, audio, images, video, storage or media.
+	 * @param appId
+	 * @param token
+	 *            next token of the previous page, null for the first page.
+	 * @param limit
+	 *            0 for the default page size, capped at IdPage.MAXLIMIT.
+	 * @return
+	 * @throws IllegalArgumentException
+	 *             if the token is malformed.
+	 */
+	public IdPage getIdPage(String type, String appId, String token, int limit) {
+		return this.model.getIdPage(type, appId, token, IdPage.limit(limit));
+	}
+
+	/**
+	 * Imports the users of the app from in, see UserImporter.
+	 * 
+	 * @param appId
+	 * @param in
+	 * @param format
+	 *            UserImporter.NDJSON or UserImporter.CSV.
+	 * @param out
+	 *            receives the result of each row.
+	 * @throws IOException
+	 */
+	public void importUsers(String appId, InputStream in, String format,
+			OutputStream out) throws IOException {
+		new UserImporter(model).importUsers(appId, in, format, out);
+	}
+
+	/**
+	 * @param appId
+	 * @return users, files per type with their bytes and documents of the
+	 *         app, null if they are not kept.
+	 */
+	public Map<String, Long> getAppStatistics(String appId) {
+		return model.getAppStatistics(appId);
+	}
+
 	public void updateAllAppFields(String appId, String alive, String newAppName, boolean confirmUsersEmail) {
 		this.model.updateAllAppFields(appId, alive, newAppName, confirmUsersEmail);
 	}
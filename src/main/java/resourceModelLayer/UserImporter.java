@@ -0,0 +1,318 @@
+package resourceModelLayer;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+
+import rest_Models.PasswordEncryptionService;
+import Model.Model;
+
+/**
+ * Imports the users of an app from a stream, one user per line: NDJSON
+ * objects, or CSV with a header line naming the columns. The fields are
+ * "email" and "password", "userName" (defaults to the email) and "userFile"
+ * are optional.
+ *
+ * Rows are read in batches of BATCHSIZE. The passwords of a batch are hashed
+ * on a pool of HASHERS threads, emails already in the app or repeated in the
+ * batch are skipped, and the rest is written with one insert in the database
+ * and one pipeline per cache shard. A result line is written for every row as
+ * its batch completes, then a line with the totals.
+ *
+ * Imported users get no confirmation email and no AWS user, like the users
+ * created without the email confirmation option.
+ *
+ */
+public class UserImporter {
+
+	public static final String NDJSON = "application/x-ndjson";
+	public static final String CSV = "text/csv";
+	public static final String CREATED = "created";
+	public static final String DUPLICATE = "duplicate";
+	public static final String INVALID = "invalid";
+	public static final String FAILED = "failed";
+	private static final int BATCHSIZE = 500;
+	private static final int HASHERS = Runtime.getRuntime()
+			.availableProcessors();
+	private static final ExecutorService hashers = Executors.newFixedThreadPool(
+			HASHERS, new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "user-import-hasher");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+	private final Model model;
+	private final PasswordEncryptionService service = new PasswordEncryptionService();
+
+	private static class Row {
+		private final int number;
+		private String email;
+		private String password;
+		private String userName;
+		private String userFile;
+		private String status;
+		private String userId;
+		private String error;
+		private Future<byte[][]> credentials;
+
+		private Row(int number) {
+			this.number = number;
+		}
+
+		private void reject(String status, String error) {
+			this.status = status;
+			this.error = error;
+		}
+	}
+
+	public UserImporter(Model model) {
+		this.model = model;
+	}
+
+	/**
+	 * @param appId
+	 * @param in
+	 * @param format
+	 *            NDJSON or CSV.
+	 * @param out
+	 *            receives one JSON result per row then the totals.
+	 * @throws IOException
+	 *             if reading the rows or writing the results failed, the
+	 *             batches written before stay imported.
+	 */
+	public void importUsers(String appId, InputStream in, String format,
+			OutputStream out) throws IOException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(in,
+				"UTF-8"));
+		Writer writer = new OutputStreamWriter(out, "UTF-8");
+		boolean csv = CSV.equalsIgnoreCase(format);
+		String[] header = null;
+		if (csv) {
+			String line = reader.readLine();
+			header = line == null ? new String[0] : splitCsv(line);
+		}
+		Map<String, Integer> totals = new HashMap<String, Integer>();
+		for (String status : new String[] { CREATED, DUPLICATE, INVALID,
+				FAILED })
+			totals.put(status, 0);
+		List<Row> batch = new ArrayList<Row>();
+		int number = 0;
+		String line;
+		while ((line = reader.readLine()) != null) {
+			if (line.trim().length() == 0)
+				continue;
+			batch.add(csv ? parseCsv(++number, header, line) : parseJson(
+					++number, line));
+			if (batch.size() == BATCHSIZE) {
+				importBatch(appId, batch);
+				report(writer, batch, totals);
+				batch.clear();
+			}
+		}
+		importBatch(appId, batch);
+		report(writer, batch, totals);
+		writer.write(new JSONObject(totals).toString());
+		writer.write("\n");
+		writer.flush();
+	}
+
+	private static Row parseJson(int number, String line) {
+		Row row = new Row(number);
+		try {
+			JSONObject obj = new JSONObject(line);
+			row.email = obj.optString("email", null);
+			row.password = obj.optString("password", null);
+			row.userName = obj.optString("userName", null);
+			row.userFile = obj.optString("userFile", null);
+		} catch (JSONException e) {
+			row.reject(INVALID, "Malformed JSON.");
+		}
+		return row;
+	}
+
+	private static Row parseCsv(int number, String[] header, String line) {
+		Row row = new Row(number);
+		String[] values = splitCsv(line);
+		for (int i = 0; i < header.length && i < values.length; i++) {
+			String value = values[i].length() == 0 ? null : values[i];
+			if (header[i].equalsIgnoreCase("email"))
+				row.email = value;
+			else if (header[i].equalsIgnoreCase("password"))
+				row.password = value;
+			else if (header[i].equalsIgnoreCase("userName"))
+				row.userName = value;
+			else if (header[i].equalsIgnoreCase("userFile"))
+				row.userFile = value;
+		}
+		return row;
+	}
+
+	/**
+	 * Splits a CSV line, values may be quoted to hold commas, a quote inside
+	 * a quoted value is written twice.
+	 */
+	private static String[] splitCsv(String line) {
+		List<String> values = new ArrayList<String>();
+		StringBuilder value = new StringBuilder();
+		boolean quoted = false;
+		for (int i = 0; i < line.length(); i++) {
+			char c = line.charAt(i);
+			if (quoted) {
+				if (c != '"')
+					value.append(c);
+				else if (i + 1 < line.length() && line.charAt(i + 1) == '"')
+					value.append(line.charAt(++i));
+				else
+					quoted = false;
+			} else if (c == '"')
+				quoted = true;
+			else if (c == ',') {
+				values.add(value.toString().trim());
+				value.setLength(0);
+			} else
+				value.append(c);
+		}
+		values.add(value.toString().trim());
+		return values.toArray(new String[values.size()]);
+	}
+
+	private void importBatch(String appId, List<Row> batch) {
+		List<Row> pending = new ArrayList<Row>();
+		Set<String> emails = new HashSet<String>();
+		for (Row row : batch) {
+			if (row.status != null)
+				continue;
+			if (row.email == null || row.password == null)
+				row.reject(INVALID, "email and password are required.");
+			else if (!emails.add(row.email))
+				row.reject(DUPLICATE, "Repeated in the import.");
+			else
+				pending.add(row);
+		}
+		if (pending.isEmpty())
+			return;
+		Set<String> existing = model.getExistingEmails(appId, emails);
+		List<Row> hashing = new ArrayList<Row>();
+		for (Row row : pending) {
+			if (existing.contains(row.email))
+				row.reject(DUPLICATE, "Email already in use.");
+			else {
+				row.credentials = hashers.submit(hash(row.password));
+				hashing.add(row);
+			}
+		}
+		List<Map<String, String>> users = new ArrayList<Map<String, String>>();
+		List<Row> written = new ArrayList<Row>();
+		String creationDate = new Date().toString();
+		for (Row row : hashing) {
+			try {
+				byte[][] credentials = row.credentials.get();
+				row.userId = UUID.randomUUID().toString();
+				users.add(user(appId, row, credentials[0], credentials[1],
+						creationDate));
+				written.add(row);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				row.reject(FAILED, "Interrupted.");
+			} catch (ExecutionException e) {
+				System.out.println("Hashing failed, please review the PasswordEncryptionService.");
+				e.printStackTrace();
+				row.reject(FAILED, "Hashing failed.");
+			} catch (UnsupportedEncodingException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+		if (users.isEmpty())
+			return;
+		Set<String> created;
+		try {
+			created = model.createUsers(appId, users);
+		} catch (RuntimeException e) {
+			System.out.println("Import of " + users.size() + " users failed: "
+					+ e.getMessage());
+			created = new HashSet<String>();
+		}
+		for (Row row : written) {
+			if (created.contains(row.userId))
+				row.status = CREATED;
+			else {
+				row.reject(FAILED, "Not written.");
+				row.userId = null;
+			}
+		}
+	}
+
+	private Callable<byte[][]> hash(final String password) {
+		return new Callable<byte[][]>() {
+			public byte[][] call() throws Exception {
+				byte[] salt = service.generateSalt();
+				return new byte[][] { salt,
+						service.getEncryptedPassword(password, salt) };
+			}
+		};
+	}
+
+	/**
+	 * @return the user as the databases store it.
+	 */
+	private static Map<String, String> user(String appId, Row row,
+			byte[] salt, byte[] hash, String creationDate)
+			throws UnsupportedEncodingException {
+		Map<String, String> user = new HashMap<String, String>();
+		user.put("_id", row.userId);
+		user.put("alive", "true");
+		user.put("appId", appId);
+		user.put("userName", row.userName != null ? row.userName : row.email);
+		user.put("email", row.email);
+		user.put("hash", new String(hash, "ISO-8859-1"));
+		user.put("salt", new String(salt, "ISO-8859-1"));
+		if (row.userFile != null)
+			user.put("userFile", row.userFile);
+		user.put("creationDate", creationDate);
+		return user;
+	}
+
+	private static void report(Writer writer, List<Row> batch,
+			Map<String, Integer> totals) throws IOException {
+		for (Row row : batch) {
+			totals.put(row.status, totals.get(row.status) + 1);
+			JSONObject result = new JSONObject();
+			try {
+				result.put("row", row.number);
+				result.put("status", row.status);
+				if (row.userId != null)
+					result.put("userId", row.userId);
+				if (row.error != null)
+					result.put("error", row.error);
+			} catch (JSONException e) {
+				throw new IllegalStateException(e);
+			}
+			writer.write(result.toString());
+			writer.write("\n");
+		}
+		writer.flush();
+	}
+}
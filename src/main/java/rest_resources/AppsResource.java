@@ -23,6 +23,7 @@ import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
 import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.Context;
 import javax.ws.rs.core.Cookie;
@@ -63,26 +64,15 @@ public class AppsResource {
 	@GET
 	@Produces({ MediaType.APPLICATION_JSON })
 	public Response findAllApplicationIds(@Context HttpServletRequest req,
-			@Context UriInfo ui, @Context HttpHeaders hh) {
+			@Context UriInfo ui, @Context HttpHeaders hh,
+			@QueryParam("limit") String limit, @QueryParam("next") String next) {
 		Response response = null;
 		// Parameters treatment
 		int code = this.treatParameters(ui, hh);
 		if(code == 1){
 		System.out.println("***********************************");
 		System.out.println("********Finding all apps***********");
-		JSONObject temp = new JSONObject();
-		Set<String> ids = new HashSet<String>();
-		try {
-			ids = appsMid.getAllAppIds();
-			Iterator<String> it = ids.iterator();
-			while (it.hasNext()) {
-				temp.accumulate("appId", it.next());
-			}
-		} catch (JSONException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
-		response = Response.status(Status.OK).entity(ids).build();
+		response = IdPages.list(appsMid, "apps", null, limit, next);
 		 } else if(code == -2){
 			 response = Response.status(Status.FORBIDDEN).entity("Invalid Session Token.")
 		 .build();
@@ -166,6 +156,36 @@ public class AppsResource {
 		return response;
 	}
 
+	/**
+	 * Users, audio, images, video and storage files with their bytes and
+	 * document elements of the app, kept up to date as they are written.
+	 * 
+	 * @param appId
+	 * @return
+	 */
+	@Path("{appId}/statistics")
+	@GET
+	@Produces({ MediaType.APPLICATION_JSON })
+	public Response getStatistics(@PathParam("appId") String appId,
+			@Context UriInfo ui, @Context HttpHeaders hh) {
+		Response response = null;
+		int code = this.treatParameters(ui, hh);
+		if (code == 1) {
+			if (appsMid.getApp(appId) == null)
+				return Response.status(Status.NOT_FOUND).entity(appId).build();
+			Map<String, Long> statistics = appsMid.getAppStatistics(appId);
+			if (statistics == null)
+				return Response.status(Status.SERVICE_UNAVAILABLE)
+						.entity("Statistics are not kept.").build();
+			response = Response.status(Status.OK)
+					.entity(new JSONObject(statistics)).build();
+		} else if(code == -2){
+			 response = Response.status(Status.FORBIDDEN).entity("Invalid Session Token.").build();
+		 }else if(code == -1)
+			 response = Response.status(Status.BAD_REQUEST).entity("Error handling the request.").build();
+		return response;
+	}
+
 	/**
 	 * Delete application using its application Identifier.
 	 * 
@@ -124,19 +124,19 @@ public class AudioResource {
 	public Response findAllAudioIds(@Context UriInfo ui, @Context HttpHeaders hh,
 			@QueryParam("lat") String latitude,
 			@QueryParam("long") String longitude, 
-			@QueryParam("radius") String radius) {
+			@QueryParam("radius") String radius,
+			@QueryParam("limit") String limit, @QueryParam("next") String next) {
 		Response response = null;
 		int code = this.treatParameters(ui, hh);
 		if (code == 1) {
 			System.out.println("***********************************");
 			System.out.println("********Finding all Audio**********");
-			Set<String> audioIds = null;
 			if (latitude != null && longitude != null && radius != null) {
-				audioIds = appsMid.getAllAudioIdsInRadius(appId, Double.parseDouble(latitude),
+				Set<String> audioIds = appsMid.getAllAudioIdsInRadius(appId, Double.parseDouble(latitude),
 						Double.parseDouble(longitude), Double.parseDouble(radius));
+				response = Response.status(Status.OK).entity(audioIds).build();
 			}else
-				audioIds = appsMid.getAllAudioIds(appId);
-			response = Response.status(Status.OK).entity(audioIds).build();
+				response = IdPages.list(appsMid, "audio", appId, limit, next);
 		} else if(code == -2){
 			 response = Response.status(Status.FORBIDDEN).entity("Invalid Session Token.")
 		 .build();
@@ -0,0 +1,55 @@
+package rest_resources;
+
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.Status;
+
+import org.codehaus.jettison.json.JSONException;
+
+import resourceModelLayer.AppsMiddleLayer;
+import dataModels.IdPage;
+
+/**
+ * Builds the responses of the listings, shared by the resources. A listing
+ * returns {"ids": [...], "next": token}, the next page is read by passing the
+ * token back as ?next=. The last page has no next.
+ *
+ */
+class IdPages {
+
+	/**
+	 * @param appsMid
+	 * @param type
+	 *            apps, users, audio, images, video, storage or media.
+	 * @param appId
+	 * @param limit
+	 *            the limit query parameter, may be null.
+	 * @param next
+	 *            the next query parameter, may be null.
+	 * @return 200 with the page, 400 if limit or next are malformed.
+	 */
+	static Response list(AppsMiddleLayer appsMid, String type, String appId,
+			String limit, String next) {
+		int pageSize = 0;
+		if (limit != null) {
+			try {
+				pageSize = Integer.parseInt(limit);
+			} catch (NumberFormatException e) {
+				return Response.status(Status.BAD_REQUEST)
+						.entity("Invalid limit.").build();
+			}
+		}
+		IdPage page;
+		try {
+			page = appsMid.getIdPage(type, appId, next, pageSize);
+		} catch (IllegalArgumentException e) {
+			return Response.status(Status.BAD_REQUEST)
+					.entity("Invalid next token.").build();
+		}
+		try {
+			return Response.status(Status.OK).entity(page.toJSON()).build();
+		} catch (JSONException e) {
+			e.printStackTrace();
+			return Response.status(Status.INTERNAL_SERVER_ERROR).build();
+		}
+	}
+}
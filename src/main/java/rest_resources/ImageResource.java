@@ -14,6 +14,7 @@ import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.Context;
 import javax.ws.rs.core.Cookie;
 import javax.ws.rs.core.HttpHeaders;
@@ -93,14 +94,15 @@ public class ImageResource {
 	 */
 	@GET
 	@Produces({ MediaType.APPLICATION_JSON })
-	public Response findAllImageIds(@Context UriInfo ui, @Context HttpHeaders hh) {
+	public Response findAllImageIds(@Context UriInfo ui, @Context HttpHeaders hh,
+			@QueryParam("limit") String limit, @QueryParam("next") String next) {
 		Response response = null;
 		int code = this.treatParameters(ui, hh);
 		if (code == 1) {
 			System.out.println("***********************************");
 			System.out.println("********Finding all Images*********");
-			Set<String> imageIds = this.appsMid.getAllImageIdsInApp(this.appId);
-			response = Response.status(Status.OK).entity(imageIds).build();
+			response = IdPages.list(this.appsMid, "images", this.appId, limit,
+					next);
 		}else if(code == -2){
 			 response = Response.status(Status.FORBIDDEN).entity("Invalid Session Token.")
 		 .build();
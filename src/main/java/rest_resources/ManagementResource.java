@@ -1,18 +1,27 @@
 package rest_resources;
 
 import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
 import java.util.UUID;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpSession;
 import javax.ws.rs.Consumes;
+import javax.ws.rs.DELETE;
 import javax.ws.rs.GET;
 import javax.ws.rs.POST;
+import javax.ws.rs.PUT;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
 import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.Context;
+import javax.ws.rs.core.Cookie;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.Status;
@@ -21,7 +30,21 @@ import javax.ws.rs.core.Response.Status;
 import org.codehaus.jettison.json.JSONException;
 import org.codehaus.jettison.json.JSONObject;
 
+import dataModels.BloomFilter;
+import dataModels.CacheMetrics;
+import dataModels.CacheWarmer;
+import dataModels.ExistenceFilters;
+import dataModels.InstrumentedJedisPool;
+import dataModels.ParallelWriter;
+import dataModels.LatencyHistogram;
+import dataModels.RedisPools;
+import dataModels.WriteBehindQueue;
+
+import Model.Model;
+import management.Startup;
+
 import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
 import resourceModelLayer.AppsMiddleLayer;
 
 
@@ -36,8 +59,9 @@ public class ManagementResource {
 	private static byte [] adminSalt ; //you will be in the database
 	private static byte [] adminHash ;
 	private static final int RedisSessionsPORT = 6381;
-	Jedis jedis;
 	private final static String server = "localhost";
+	private static final JedisPool testPool = RedisPools.getPool(server,
+			RedisSessionsPORT);
 	
 	public ManagementResource(){
 		appsMid = new AppsMiddleLayer();
@@ -50,14 +74,310 @@ public class ManagementResource {
 	public Response test(){
 		//list com 
 		//sadd "column:" + i + ":rows"
-		jedis = new Jedis(server, RedisSessionsPORT);
+		JedisPool pool = testPool;
+		Jedis jedis = pool.getResource();
 		System.out.println("---------------------TESTING--------------------------");
-		for(long j = 0; j < 1000000; j++){
-			jedis.lpush("columns", new String(getRandomString(32)));
-			
+		try {
+			for(long j = 0; j < 1000000; j++){
+				jedis.lpush("columns", new String(getRandomString(32)));
+				
+			}
+		} finally {
+			pool.returnResource(jedis);
 		}
 		return  Response.status(Status.OK).entity("Invalid Session Token.").build();
 	}
+
+	/**
+	 * Redis connection pool metrics, one entry per redis instance: borrow
+	 * wait times (microseconds), active/idle connections and exhaustion
+	 * events. Write-behind queue length and lag (milliseconds) when it is on,
+	 * fill and false positive rates of the existence filters.
+	 * 
+	 * @return
+	 */
+	@GET
+	@Path("metrics")
+	@Produces({ MediaType.APPLICATION_JSON })
+	public Response metrics() {
+		JSONObject json = new JSONObject();
+		try {
+			JSONObject pools = new JSONObject();
+			for (InstrumentedJedisPool pool : RedisPools.getPools()) {
+				JSONObject poolJson = new JSONObject();
+				poolJson.put("maxActive", pool.getMaxActive());
+				poolJson.put("active", pool.getNumActive());
+				poolJson.put("idle", pool.getNumIdle());
+				poolJson.put("borrows", pool.getBorrows());
+				poolJson.put("averageBorrowWait", pool.getAverageBorrowWait());
+				poolJson.put("maxBorrowWait", pool.getMaxBorrowWait());
+				poolJson.put("exhausted", pool.getExhausted());
+				pools.put(pool.getName(), poolJson);
+			}
+			json.put("redisPools", pools);
+			json.put("cacheShards", Model.getModel().getCacheShards());
+			WriteBehindQueue writeBehind = Model.getModel()
+					.getWriteBehindQueue();
+			if (writeBehind != null) {
+				JSONObject queueJson = new JSONObject();
+				queueJson.put("queued", writeBehind.getQueued());
+				queueJson.put("lag", writeBehind.getLag());
+				queueJson.put("lastAppliedLag", writeBehind.getLastAppliedLag());
+				queueJson.put("enqueued", writeBehind.getEnqueued());
+				queueJson.put("applied", writeBehind.getApplied());
+				queueJson.put("retries", writeBehind.getRetries());
+				queueJson.put("failed", writeBehind.getFailed());
+				json.put("writeBehind", queueJson);
+			}
+			ParallelWriter parallelWrites = Model.getModel()
+					.getParallelWriter();
+			if (parallelWrites != null) {
+				JSONObject writesJson = new JSONObject();
+				writesJson.put("writes", parallelWrites.getWrites());
+				writesJson.put("queued", parallelWrites.getQueued());
+				writesJson.put("cacheFailures",
+						parallelWrites.getCacheFailures());
+				writesJson.put("databaseFailures",
+						parallelWrites.getDatabaseFailures());
+				writesJson.put("compensations",
+						parallelWrites.getCompensations());
+				json.put("parallelWrites", writesJson);
+			}
+			ExistenceFilters filters = Model.getModel().getExistenceFilters();
+			if (filters != null) {
+				JSONObject filtersJson = new JSONObject();
+				filtersJson.put("apps", filterJson(filters.getApps()));
+				filtersJson.put("emails", filterJson(filters.getEmails()));
+				filtersJson.put("identifiers",
+						filterJson(filters.getIdentifiers()));
+				json.put("existenceFilters", filtersJson);
+			}
+			CacheWarmer warmer = Model.getModel().getCacheWarmer();
+			if (warmer != null) {
+				JSONObject warmupJson = new JSONObject();
+				warmupJson.put("state", warmer.getState());
+				warmupJson.put("finished", warmer.isFinished());
+				warmupJson.put("elapsed", warmer.getElapsed());
+				warmupJson.put("read", warmer.getRead());
+				JSONObject loadedJson = new JSONObject();
+				for (String type : CacheWarmer.getTypes())
+					loadedJson.put(type, warmer.getLoaded(type));
+				warmupJson.put("loaded", loadedJson);
+				json.put("warmup", warmupJson);
+			}
+			CacheMetrics cacheMetrics = Model.getModel().getCacheMetrics();
+			JSONObject readsJson = new JSONObject();
+			for (String type : cacheMetrics.getTypes()) {
+				JSONObject typeJson = new JSONObject();
+				typeJson.put("hitRatio", cacheMetrics.getHitRatio(type));
+				for (int i = 0; i < CacheMetrics.getOutcomes(); i++)
+					typeJson.put(CacheMetrics.getOutcomeName(i),
+							histogramJson(cacheMetrics.getHistogram(type, i)));
+				readsJson.put(type, typeJson);
+			}
+			json.put("cacheReads", readsJson);
+		} catch (JSONException e) {
+			e.printStackTrace();
+		}
+		return Response.status(Status.OK).entity(json).build();
+	}
+	/*
+	 * Returns a code corresponding to the sucess or failure Codes: 
+	 * -2 -> Forbidden, the session is not the administrator's
+	 * -1 -> Bad request, no session token
+	 * 1 -> administrator session
+	 */
+	private int treatParameters(HttpHeaders hh) {
+		Cookie sessionToken = null;
+		for (Entry<String, Cookie> entry : hh.getCookies().entrySet())
+			if (entry.getKey().equalsIgnoreCase("sessionToken"))
+				sessionToken = entry.getValue();
+		for (Entry<String, List<String>> entry : hh.getRequestHeaders()
+				.entrySet())
+			if (entry.getKey().equalsIgnoreCase("sessionToken"))
+				sessionToken = new Cookie("sessionToken", entry.getValue().get(0));
+		if (sessionToken == null)
+			return -1;
+		if (Startup.AdminId.equals(appsMid
+				.getUserUsingSessionToken(sessionToken.getValue())))
+			return 1;
+		return -2;
+	}
+
+	/**
+	 * @return the reply to a request that is not the administrator's.
+	 */
+	private static Response refused(int code) {
+		if (code == -2)
+			return Response.status(Status.FORBIDDEN)
+					.entity("Invalid Session Token.").build();
+		return Response.status(Status.BAD_REQUEST)
+				.entity("Error handling the request.").build();
+	}
+
+	/**
+	 * Adds a redis instance to the cache tier. Only the apps that hash to it
+	 * move, they are dropped from their old instance and reloaded on reads.
+	 * Every node is told to route the apps to it.
+	 * 
+	 * @param host
+	 * @param port
+	 * @return
+	 */
+	@PUT
+	@Path("cacheShards/{host}/{port}")
+	public Response addCacheShard(@PathParam("host") String host,
+			@PathParam("port") int port, @Context HttpHeaders hh) {
+		int code = this.treatParameters(hh);
+		if (code != 1)
+			return refused(code);
+		Model.getModel().addCacheShard(host, port);
+		return Response.status(Status.OK).build();
+	}
+
+	/**
+	 * Removes a redis instance from the cache tier, on every node.
+	 * 
+	 * @param host
+	 * @param port
+	 * @return 409 if it is the last instance.
+	 */
+	@DELETE
+	@Path("cacheShards/{host}/{port}")
+	public Response removeCacheShard(@PathParam("host") String host,
+			@PathParam("port") int port, @Context HttpHeaders hh) {
+		int code = this.treatParameters(hh);
+		if (code != 1)
+			return refused(code);
+		if (!Model.getModel().removeCacheShard(host, port))
+			return Response.status(Status.CONFLICT)
+					.entity("The last cache instance can't be removed.")
+					.build();
+		return Response.status(Status.OK).build();
+	}
+
+	/**
+	 * Estimated cache memory, quota and pin of every app with cached entities
+	 * or a quota.
+	 * 
+	 * @return
+	 */
+	@GET
+	@Path("cacheQuotas")
+	@Produces({ MediaType.APPLICATION_JSON })
+	public Response cacheQuotas() {
+		JSONObject json = new JSONObject();
+		try {
+			Map<String, Long> usage = Model.getModel().getAppCacheUsage();
+			Map<String, Long> quotas = Model.getModel().getAppCacheQuotas();
+			Set<String> pinned = Model.getModel().getPinnedApps();
+			Set<String> appIds = new HashSet<String>(usage.keySet());
+			appIds.addAll(quotas.keySet());
+			appIds.addAll(pinned);
+			for (String appId : appIds) {
+				JSONObject appJson = new JSONObject();
+				appJson.put("bytes", usage.containsKey(appId) ? usage
+						.get(appId) : 0);
+				if (quotas.containsKey(appId))
+					appJson.put("quota", quotas.get(appId));
+				appJson.put("pinned", pinned.contains(appId));
+				json.put(appId, appJson);
+			}
+		} catch (JSONException e) {
+			e.printStackTrace();
+		}
+		return Response.status(Status.OK).entity(json).build();
+	}
+
+	/**
+	 * Caps the cache memory of an app, its least valuable entities are
+	 * evicted past it.
+	 * 
+	 * @param appId
+	 * @param bytes
+	 * @return
+	 */
+	@PUT
+	@Path("cacheQuotas/{appId}/{bytes}")
+	public Response setCacheQuota(@PathParam("appId") String appId,
+			@PathParam("bytes") long bytes, @Context HttpHeaders hh) {
+		int code = this.treatParameters(hh);
+		if (code != 1)
+			return refused(code);
+		if (bytes <= 0)
+			return Response.status(Status.BAD_REQUEST).build();
+		Model.getModel().setAppCacheQuota(appId, bytes);
+		return Response.status(Status.OK).build();
+	}
+
+	@DELETE
+	@Path("cacheQuotas/{appId}")
+	public Response removeCacheQuota(@PathParam("appId") String appId,
+			@Context HttpHeaders hh) {
+		int code = this.treatParameters(hh);
+		if (code != 1)
+			return refused(code);
+		Model.getModel().setAppCacheQuota(appId, 0);
+		return Response.status(Status.OK).build();
+	}
+
+	/**
+	 * Pins an app: its entities are never evicted and don't expire.
+	 * 
+	 * @param appId
+	 * @return
+	 */
+	@PUT
+	@Path("pinnedApps/{appId}")
+	public Response pinApp(@PathParam("appId") String appId,
+			@Context HttpHeaders hh) {
+		int code = this.treatParameters(hh);
+		if (code != 1)
+			return refused(code);
+		Model.getModel().setAppPinned(appId, true);
+		return Response.status(Status.OK).build();
+	}
+
+	@DELETE
+	@Path("pinnedApps/{appId}")
+	public Response unpinApp(@PathParam("appId") String appId,
+			@Context HttpHeaders hh) {
+		int code = this.treatParameters(hh);
+		if (code != 1)
+			return refused(code);
+		Model.getModel().setAppPinned(appId, false);
+		return Response.status(Status.OK).build();
+	}
+
+	/**
+	 * Count and latencies in microseconds.
+	 */
+	private JSONObject histogramJson(LatencyHistogram histogram)
+			throws JSONException {
+		JSONObject json = new JSONObject();
+		json.put("count", histogram.getCount());
+		json.put("mean", histogram.getMean());
+		json.put("p50", histogram.getPercentile(0.5));
+		json.put("p99", histogram.getPercentile(0.99));
+		json.put("max", histogram.getMax());
+		return json;
+	}
+
+	private JSONObject filterJson(BloomFilter filter) throws JSONException {
+		JSONObject json = new JSONObject();
+		double fillRatio = filter.getFillRatio();
+		json.put("bits", filter.getBits());
+		json.put("hashes", filter.getHashes());
+		json.put("fillRatio", fillRatio);
+		json.put("estimatedFalsePositiveRate",
+				Math.pow(fillRatio, filter.getHashes()));
+		json.put("observedFalsePositiveRate",
+				filter.getObservedFalsePositiveRate());
+		json.put("checks", filter.getChecks());
+		json.put("definitelyAbsent", filter.getAbsent());
+		return json;
+	}
+
 	private String getRandomString(int length) {
 		return (String) UUID.randomUUID().toString().subSequence(0, length);
 	}
@@ -19,6 +19,7 @@ import javax.ws.rs.POST;
 import javax.ws.rs.PUT;
 import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.core.Context;
 import javax.ws.rs.core.Cookie;
@@ -111,13 +112,13 @@ public class MediaResource {
 
 	@GET
 	@Produces({ MediaType.APPLICATION_JSON })
-	public Response findAll(@Context UriInfo ui, @Context HttpHeaders hh) {
+	public Response findAll(@Context UriInfo ui, @Context HttpHeaders hh,
+			@QueryParam("limit") String limit, @QueryParam("next") String next) {
 		Response response = null;
 		int code = this.treatParameters(ui, hh);
 		if (code == 1) {
 			if(appsMid.appExists(appId)){
-				Set<String> mediaIds = appsMid.getAllMediaIds(appId);
-				response = Response.status(Status.OK).entity(mediaIds).build();
+				response = IdPages.list(appsMid, "media", appId, limit, next);
 			}else{
 				response = Response.status(Status.NOT_FOUND).entity(appId).build();
 			}
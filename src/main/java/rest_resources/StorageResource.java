@@ -20,6 +20,7 @@ import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.Context;
 import javax.ws.rs.core.Cookie;
 import javax.ws.rs.core.HttpHeaders;
@@ -104,14 +105,14 @@ public class StorageResource {
 	@GET
 	@Produces({ MediaType.APPLICATION_JSON })
 	public Response findAllStorageIds(@Context UriInfo ui,
-			@Context HttpHeaders hh) {
+			@Context HttpHeaders hh, @QueryParam("limit") String limit,
+			@QueryParam("next") String next) {
 		Response response = null;
 		int code = this.treatParameters(ui, hh);
 		if (code == 1) {
 			System.out.println("***********************************");
 			System.out.println("********Finding all Storage********");
-			Set<String> storageIds = appsMid.getAllStorageIdsInApp(appId);
-			response = Response.status(Status.OK).entity(storageIds).build();
+			response = IdPages.list(appsMid, "storage", appId, limit, next);
 		} else if (code == -2) {
 			response = Response.status(Status.FORBIDDEN)
 					.entity("Invalid Session Token.").build();
@@ -1,5 +1,8 @@
 package rest_resources;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.security.NoSuchAlgorithmException;
 import java.security.spec.InvalidKeySpecException;
 import java.util.List;
@@ -15,6 +18,7 @@ import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
 import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.Context;
 import javax.ws.rs.core.Cookie;
@@ -24,6 +28,7 @@ import javax.ws.rs.core.MultivaluedMap;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.UriInfo;
 import javax.ws.rs.core.Response.Status;
+import javax.ws.rs.core.StreamingOutput;
 
 import modelInterfaces.User;
 
@@ -31,6 +36,7 @@ import org.codehaus.jettison.json.JSONException;
 import org.codehaus.jettison.json.JSONObject;
 
 import resourceModelLayer.AppsMiddleLayer;
+import resourceModelLayer.UserImporter;
 import rest_Models.PasswordEncryptionService;
 import rest_resources.AppsResource.PATCH;
 
@@ -99,7 +105,8 @@ public class UsersResource {
 	 */
 	@GET
 	@Produces(MediaType.APPLICATION_JSON)
-	public Response findAll(@Context UriInfo ui, @Context HttpHeaders hh) {
+	public Response findAll(@Context UriInfo ui, @Context HttpHeaders hh,
+			@QueryParam("limit") String limit, @QueryParam("next") String next) {
 		Response response = null;
 		int code = this.treatParameters(ui, hh);
 		if (code == 1) {
@@ -108,8 +115,47 @@ public class UsersResource {
 			if (!appsMid.appExists(appId))
 				response = Response.status(Status.NOT_FOUND).entity(appId).build();
 			else {
-				Set<String> temp = appsMid.getAllUserIdsForApp(appId);
-				response = Response.status(Status.OK).entity(temp).build();
+				response = IdPages.list(appsMid, "users", appId, limit, next);
+			}
+		} else if (code == -2) {
+			response = Response.status(Status.FORBIDDEN).entity("Invalid Session Token.").build();
+		} else if (code == -1)
+			response = Response.status(Status.BAD_REQUEST).entity("Error handling the request.").build();
+		return response;
+	}
+
+	/**
+	 * Imports users from the body, one per line: NDJSON objects or CSV with a
+	 * header line. Returns one JSON result per row as NDJSON, see
+	 * UserImporter.
+	 * 
+	 * @param in
+	 * @return
+	 */
+	@Path("import")
+	@POST
+	@Consumes({ UserImporter.NDJSON, UserImporter.CSV })
+	@Produces(UserImporter.NDJSON)
+	public Response importUsers(final InputStream in, @Context UriInfo ui,
+			@Context HttpHeaders hh) {
+		Response response = null;
+		int code = this.treatParameters(ui, hh);
+		if (code == 1) {
+			System.out.println("************************************");
+			System.out.println("**********Importing users***********");
+			if (!appsMid.appExists(appId))
+				response = Response.status(Status.NOT_FOUND).entity(appId).build();
+			else {
+				final String format = hh.getMediaType() == null ? UserImporter.NDJSON
+						: hh.getMediaType().getType() + "/"
+								+ hh.getMediaType().getSubtype();
+				StreamingOutput stream = new StreamingOutput() {
+					public void write(OutputStream out) throws IOException,
+							WebApplicationException {
+						appsMid.importUsers(appId, in, format, out);
+					}
+				};
+				response = Response.status(Status.OK).entity(stream).build();
 			}
 		} else if (code == -2) {
 			response = Response.status(Status.FORBIDDEN).entity("Invalid Session Token.").build();
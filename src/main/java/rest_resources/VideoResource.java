@@ -20,6 +20,7 @@ import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.Context;
 import javax.ws.rs.core.Cookie;
 import javax.ws.rs.core.HttpHeaders;
@@ -110,13 +111,13 @@ public class VideoResource {
 	@GET
 	@Produces({ MediaType.APPLICATION_JSON })
 	public Response findAllVideoIds(
-			@CookieParam(value = "sessionToken") String sessionToken) {
+			@CookieParam(value = "sessionToken") String sessionToken,
+			@QueryParam("limit") String limit, @QueryParam("next") String next) {
 		Response response = null;
 		if (appsMid.sessionTokenExists(sessionToken)) {
 			System.out.println("***********************************");
 			System.out.println("********Finding all Video**********");
-			Set<String> videoIds = appsMid.getAllVideoIdsInApp(appId);
-			response = Response.status(Status.OK).entity(videoIds).build();
+			response = IdPages.list(appsMid, "video", appId, limit, next);
 		} else
 			response = Response.status(Status.FORBIDDEN).entity(sessionToken)
 					.build();
@@ -11,9 +11,10 @@ import javax.mail.internet.AddressException;
 import javax.mail.internet.InternetAddress;
 import javax.mail.internet.MimeMessage;
 
+import dataModels.RedisPools;
+
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
-import redis.clients.jedis.JedisPoolConfig;
 
 public class EmailOperationsClass implements EmailOperations {
 
@@ -28,59 +29,46 @@ public class EmailOperationsClass implements EmailOperations {
 		private static final String SUBJECTEMAILCONFIRMATION = "Email Registry Confirmation";
 		private static final String SUBJECTEMAILRECOVERY = "Account Recovery";
 	private static final int RedisSessionsAndEmailPORT = 6380;
-	Jedis jedis;
 	private final static String server = "localhost";
+	// one holder of the pool for every instance.
+	private static final JedisPool pool = RedisPools.getPool(server,
+			RedisSessionsAndEmailPORT);
 	
-	public EmailOperationsClass() {
-		jedis = new Jedis(server, RedisSessionsAndEmailPORT);
-	}
-
 	@Override
 	public boolean addUrlToUserId(String appId, String userId, String registrationCode) {
-		JedisPool pool = new JedisPool(new JedisPoolConfig(), "localhost",
-				RedisSessionsAndEmailPORT);
 		Jedis jedis = pool.getResource();
 		try {
 			jedis.hset("apps:"+appId+":users:"+userId, "registrationCode", registrationCode);
 		} finally {
 			pool.returnResource(jedis);
 		}
-		pool.destroy();
 		return false;
 	}
 
 	@Override
 	public boolean removeUrlToUserId(String appId, String userId) {
-		JedisPool pool = new JedisPool(new JedisPoolConfig(), "localhost",
-				RedisSessionsAndEmailPORT);
 		Jedis jedis = pool.getResource();
 		try {
 			jedis.del("apps:"+appId+":users:"+userId);
 		} finally {
 			pool.returnResource(jedis);
 		}
-		pool.destroy();
 		return true;
 	}
 
 	@Override
 	public boolean updateUrlToUserId(String appId, String userId, String registrationCode) {
-		JedisPool pool = new JedisPool(new JedisPoolConfig(), "localhost",
-				RedisSessionsAndEmailPORT);
 		Jedis jedis = pool.getResource();
 		try {
 			jedis.hset("apps:"+appId+":users:"+userId, "registrationCode", registrationCode);
 		} finally {
 			pool.returnResource(jedis);
 		}
-		pool.destroy();
 		return false;
 	}
 
 	@Override
 	public String getUrlUserId(String appId, String userId) {
-		JedisPool pool = new JedisPool(new JedisPoolConfig(), "localhost",
-				RedisSessionsAndEmailPORT);
 		Jedis jedis = pool.getResource();
 		String url = null;
 		try {
@@ -88,7 +76,6 @@ public class EmailOperationsClass implements EmailOperations {
 		} finally {
 			pool.returnResource(jedis);
 		}
-		pool.destroy();
 		return url;
 	}
 
@@ -129,8 +116,6 @@ public class EmailOperationsClass implements EmailOperations {
 	@Override
 	public boolean addRecoveryCodeToUser(String appId, String userId,
 			String shortCode) {
-		JedisPool pool = new JedisPool(new JedisPoolConfig(), "localhost",
-				RedisSessionsAndEmailPORT);
 		Jedis jedis = pool.getResource();
 		try {
 			jedis.hset("apps:"+appId+":users:"+userId, "recoveryCode", shortCode);
@@ -138,12 +123,9 @@ public class EmailOperationsClass implements EmailOperations {
 		} finally {
 			pool.returnResource(jedis);
 		}
-		pool.destroy();
 		return false;	
 	}
 	public String getRecoveryCodeOfUser(String appId, String userId){
-		JedisPool pool = new JedisPool(new JedisPoolConfig(), "localhost",
-				RedisSessionsAndEmailPORT);
 		Jedis jedis = pool.getResource();
 		String code = null;
 		try {
@@ -151,7 +133,6 @@ public class EmailOperationsClass implements EmailOperations {
 		} finally {
 			pool.returnResource(jedis);
 		}
-		pool.destroy();
 		return code;
 	}
 	@Override
@@ -12,12 +12,13 @@ import java.util.Map.Entry;
 
 import Model.Model;
 
+import dataModels.RedisPools;
+
 import misc.Geolocation;
 import modelInterfaces.*;
 
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
-import redis.clients.jedis.JedisPoolConfig;
 import rest_Models.DefaultApplication;
 import rest_Models.DefaultUser;
 
@@ -34,17 +35,13 @@ public class RedisSessions implements SessionDBInterface {
 	public static final long MAXCACHESIZE = 5242880; // bytes
 	private static final int RedisSessionsAndEmailPORT = 6380;
 	private static final int MAXIMUMDISTANCE = 1; // 1 Km
-	Jedis jedis;
 	private final static String server = "localhost";
-
-	public RedisSessions() {
-		jedis = new Jedis(server, RedisSessionsAndEmailPORT);
-	}
+	// one holder of the pool for every instance.
+	private static final JedisPool pool = RedisPools.getPool(server,
+			RedisSessionsAndEmailPORT);
 
 	public void createAdmin(String OPENBAASADMIN, byte[] adminSalt,
 			byte[] adminHash) throws UnsupportedEncodingException {
-		JedisPool pool = new JedisPool(new JedisPoolConfig(), "localhost",
-				RedisSessionsAndEmailPORT);
 		Jedis jedis = pool.getResource();
 		try {
 			jedis.hset(OPENBAASADMIN, "adminSalt", new String(adminSalt,
@@ -54,26 +51,20 @@ public class RedisSessions implements SessionDBInterface {
 		} finally {
 			pool.returnResource(jedis);
 		}
-		pool.destroy();
 	}
 
 	public Map<String, String> getAdminFields(String OPENBAASADMIN) {
-		JedisPool pool = new JedisPool(new JedisPoolConfig(), "localhost",
-				RedisSessionsAndEmailPORT);
 		Jedis jedis = pool.getResource();
 		Map<String, String> adminFields = null;
 		try {
-			adminFields = this.jedis.hgetAll(OPENBAASADMIN);
+			adminFields = jedis.hgetAll(OPENBAASADMIN);
 		} finally {
 			pool.returnResource(jedis);
 		}
-		pool.destroy();
 		return adminFields;
 	}
 
 	public boolean adminExists(String admin) {
-		JedisPool pool = new JedisPool(new JedisPoolConfig(), "localhost",
-				RedisSessionsAndEmailPORT);
 		Jedis jedis = pool.getResource();
 		boolean adminExists = false;
 		try {
@@ -82,7 +73,6 @@ public class RedisSessions implements SessionDBInterface {
 		} finally {
 			pool.returnResource(jedis);
 		}
-		pool.destroy();
 		return adminExists;
 	}
 
@@ -94,8 +84,6 @@ public class RedisSessions implements SessionDBInterface {
 	 * @param userId
 	 */
 	public void createSession(String sessionId, String userId) {
-		JedisPool pool = new JedisPool(new JedisPoolConfig(), "localhost",
-				RedisSessionsAndEmailPORT);
 		Jedis jedis = pool.getResource();
 		try {
 			jedis.sadd("sessions:set", sessionId);
@@ -105,13 +93,10 @@ public class RedisSessions implements SessionDBInterface {
 		} finally {
 			pool.returnResource(jedis);
 		}
-		pool.destroy();
 	}
 
 	@Override
 	public void createSession(String sessionId, String appId, String userId) {
-		JedisPool pool = new JedisPool(new JedisPoolConfig(), "localhost",
-				RedisSessionsAndEmailPORT);
 		Jedis jedis = pool.getResource();
 		try {
 			jedis.sadd("sessions:set", sessionId);
@@ -122,13 +107,10 @@ public class RedisSessions implements SessionDBInterface {
 		} finally {
 			pool.returnResource(jedis);
 		}
-		pool.destroy();
 	}
 
 	@Override
 	public Map<String, String> getSessionFields(String sessionId) {
-		JedisPool pool = new JedisPool(new JedisPoolConfig(), "localhost",
-				RedisSessionsAndEmailPORT);
 		Jedis jedis = pool.getResource();
 		Map<String, String> sessionFields = null;
 		try {
@@ -136,14 +118,11 @@ public class RedisSessions implements SessionDBInterface {
 		} finally {
 			pool.returnResource(jedis);
 		}
-		pool.destroy();
 		return sessionFields;
 	}
 
 	@Override
 	public boolean sessionTokenExists(String sessionId) {
-		JedisPool pool = new JedisPool(new JedisPoolConfig(), "localhost",
-				RedisSessionsAndEmailPORT);
 		Jedis jedis = pool.getResource();
 		boolean sucess = false;
 		try {
@@ -158,14 +137,11 @@ public class RedisSessions implements SessionDBInterface {
 		} finally {
 			pool.returnResource(jedis);
 		}
-		pool.destroy();
 		return sucess;
 	}
 
 	@Override
 	public boolean sessionTokenExistsForUser(String sessionToken, String userId) {
-		JedisPool pool = new JedisPool(new JedisPoolConfig(), "localhost",
-				RedisSessionsAndEmailPORT);
 		Jedis jedis = pool.getResource();
 		boolean sucess = false;
 		try {
@@ -182,14 +158,11 @@ public class RedisSessions implements SessionDBInterface {
 		} finally {
 			pool.returnResource(jedis);
 		}
-		pool.destroy();
 		return sucess;
 	}
 
 	@Override
 	public void deleteAdminSession(String adminId) {
-		JedisPool pool = new JedisPool(new JedisPoolConfig(), "localhost",
-				RedisSessionsAndEmailPORT);
 		Jedis jedis = pool.getResource();
 		try {
 			Set<String> sessionIds = jedis.smembers("sessions");
@@ -212,13 +185,10 @@ public class RedisSessions implements SessionDBInterface {
 		} finally {
 			pool.returnResource(jedis);
 		}
-		pool.destroy();
 	}
 
 	@Override
 	public void createAdminSession(String sessionId, String adminId) {
-		JedisPool pool = new JedisPool(new JedisPoolConfig(), "localhost",
-				RedisSessionsAndEmailPORT);
 		Jedis jedis = pool.getResource();
 		try {
 			jedis.sadd("sessions", sessionId);
@@ -227,13 +197,10 @@ public class RedisSessions implements SessionDBInterface {
 		} finally {
 			pool.returnResource(jedis);
 		}
-		pool.destroy();
 	}
 
 	@Override
 	public boolean deleteUserSession(String sessionToken, String userId) {
-		JedisPool pool = new JedisPool(new JedisPoolConfig(), "localhost",
-				RedisSessionsAndEmailPORT);
 		Jedis jedis = pool.getResource();
 		boolean sucess = false;
 		try {
@@ -251,7 +218,6 @@ public class RedisSessions implements SessionDBInterface {
 		} finally {
 			pool.returnResource(jedis);
 		}
-		pool.destroy();
 		return sucess;
 	}
 
@@ -262,8 +228,6 @@ public class RedisSessions implements SessionDBInterface {
 	 */
 	@Override
 	public void refreshSession(String sessionToken, String date) {
-		JedisPool pool = new JedisPool(new JedisPoolConfig(), "localhost",
-				RedisSessionsAndEmailPORT);
 		Jedis jedis = pool.getResource();
 		try {
 			jedis.expire("sessions:" + sessionToken, EXPIRETIME);
@@ -271,12 +235,9 @@ public class RedisSessions implements SessionDBInterface {
 		} finally {
 			pool.returnResource(jedis);
 		}
-		pool.destroy();
 	}
 
 	public String getUserSession(String userId) {
-		JedisPool pool = new JedisPool(new JedisPoolConfig(), "localhost",
-				RedisSessionsAndEmailPORT);
 		Jedis jedis = pool.getResource();
 		String sessionId = null;
 		try {
@@ -296,14 +257,11 @@ public class RedisSessions implements SessionDBInterface {
 		} finally {
 			pool.returnResource(jedis);
 		}
-		pool.destroy();
 		return sessionId;
 	}
 
 	@Override
 	public boolean deleteAllUserSessions(String userId) {
-		JedisPool pool = new JedisPool(new JedisPoolConfig(), "localhost",
-				RedisSessionsAndEmailPORT);
 		Jedis jedis = pool.getResource();
 		boolean sucess = false;
 		try {
@@ -314,14 +272,11 @@ public class RedisSessions implements SessionDBInterface {
 		} finally {
 			pool.returnResource(jedis);
 		}
-		pool.destroy();
 		return sucess;
 	}
 
 	@Override
 	public Set<String> getAllUserSessions(String userId) {
-		JedisPool pool = new JedisPool(new JedisPoolConfig(), "localhost",
-				RedisSessionsAndEmailPORT);
 		Jedis jedis = pool.getResource();
 		Set<String> userSessions = null;
 		try {
@@ -331,14 +286,11 @@ public class RedisSessions implements SessionDBInterface {
 		} finally {
 			pool.returnResource(jedis);
 		}
-		pool.destroy();
 		return userSessions;
 	}
 
 	@Override
 	public boolean sessionExistsForUser(String userId) {
-		JedisPool pool = new JedisPool(new JedisPoolConfig(), "localhost",
-				RedisSessionsAndEmailPORT);
 		Jedis jedis = pool.getResource();
 		boolean exists = false;
 		try {
@@ -349,15 +301,12 @@ public class RedisSessions implements SessionDBInterface {
 		} finally {
 			pool.returnResource(jedis);
 		}
-		pool.destroy();
 		return exists;
 	}
 
 	@Override
 	public void addLocationToSession(String location, String sessionToken,
 			String userAgent) {
-		JedisPool pool = new JedisPool(new JedisPoolConfig(), "localhost",
-				RedisSessionsAndEmailPORT);
 		Jedis jedis = pool.getResource();
 		try {
 			jedis.hset("sessions:" + sessionToken, "location", location);
@@ -365,7 +314,6 @@ public class RedisSessions implements SessionDBInterface {
 		} finally {
 			pool.returnResource(jedis);
 		}
-		pool.destroy();
 	}
 
 	// P1=(lat1, lon1) and P2=(lat2, lon2)
@@ -374,8 +322,6 @@ public class RedisSessions implements SessionDBInterface {
 	@Override
 	public boolean refreshSession(String sessionToken, String location,
 			String date, String userAgent) {
-		JedisPool pool = new JedisPool(new JedisPoolConfig(), "localhost",
-				RedisSessionsAndEmailPORT);
 		Jedis jedis = pool.getResource();
 		try {
 			jedis.expire("sessions:" + sessionToken, EXPIRETIME);
@@ -384,7 +330,8 @@ public class RedisSessions implements SessionDBInterface {
 					"location");
 			if (previousLocation == null) { // No previous Location, we simply
 											// add it.
-				addLocationToSession(location, sessionToken, userAgent);
+				jedis.hset("sessions:" + sessionToken, "location", location);
+				jedis.hset("sessions:" + sessionToken, "userAgent", userAgent);
 			} else { // Calculate the distances
 				// Split the data
 				// previous location
@@ -417,8 +364,10 @@ public class RedisSessions implements SessionDBInterface {
 				} else { // the user is taking the device with him, update the
 							// user location/date aswell.
 					jedis.hset("sessions:" + sessionToken, "location", location);
-					String userId = this.getUserUsingSessionToken(sessionToken);
-					String appId = this.getAppUsingSessionToken(sessionToken);
+					String userId = jedis.hget("sessions:" + sessionToken,
+							"userId");
+					String appId = jedis.hget("sessions:" + sessionToken,
+							"appId");
 					Model model = Model.getModel();
 					model.updateUserLocationAndDate(userId, appId,
 							sessionToken, location, date);
@@ -427,17 +376,19 @@ public class RedisSessions implements SessionDBInterface {
 		} finally {
 			pool.returnResource(jedis);
 		}
-		pool.destroy();
 		return true;
 	}
 	
 
-	private String getAppUsingSessionToken(String sessionToken) {
-		return jedis.hget("sessions:" + sessionToken, "appId");
-	}
-
 	@Override
 	public String getUserUsingSessionToken(String sessionToken) {
-		return jedis.hget("sessions:" + sessionToken, "userId");
+		Jedis jedis = pool.getResource();
+		String userId = null;
+		try {
+			userId = jedis.hget("sessions:" + sessionToken, "userId");
+		} finally {
+			pool.returnResource(jedis);
+		}
+		return userId;
 	}
 }
@@ -0,0 +1,89 @@
+package dataModels;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+/**
+ * Key movement and balance of the consistent hash ring.
+ *
+ */
+public class ConsistentHashRingTest extends TestCase {
+
+	private static final int KEYS = 20000;
+	private static final int NODES = 5;
+
+	private static ConsistentHashRing<String> ring(int nodes) {
+		ConsistentHashRing<String> ring = new ConsistentHashRing<String>();
+		for (int i = 0; i < nodes; i++)
+			ring.add("10.0.0." + i + ":6379", "10.0.0." + i + ":6379");
+		return ring;
+	}
+
+	private static Map<String, String> owners(ConsistentHashRing<String> ring) {
+		Map<String, String> owners = new HashMap<String, String>();
+		for (int i = 0; i < KEYS; i++)
+			owners.put("app" + i, ring.get("app" + i));
+		return owners;
+	}
+
+	public void testEmptyRing() {
+		assertNull(new ConsistentHashRing<String>().get("app"));
+	}
+
+	public void testDistribution() {
+		Map<String, Integer> counts = new HashMap<String, Integer>();
+		for (String owner : owners(ring(NODES)).values())
+			counts.put(owner, counts.containsKey(owner) ? counts.get(owner) + 1
+					: 1);
+		assertEquals(NODES, counts.size());
+		double mean = (double) KEYS / NODES;
+		for (Map.Entry<String, Integer> count : counts.entrySet())
+			assertTrue(count.getKey() + " has " + count.getValue() + " keys",
+					count.getValue() > mean * 0.75
+							&& count.getValue() < mean * 1.25);
+	}
+
+	public void testAddMovesOnlyKeysToTheNewNode() {
+		ConsistentHashRing<String> ring = ring(NODES);
+		Map<String, String> before = owners(ring);
+		String added = "10.0.0.99:6379";
+		ring.add(added, added);
+		Map<String, String> after = owners(ring);
+		int moved = 0;
+		for (String key : before.keySet())
+			if (!before.get(key).equals(after.get(key))) {
+				assertEquals(added, after.get(key));
+				moved++;
+			}
+		// about 1/(N+1) of the keys.
+		double expected = (double) KEYS / (NODES + 1);
+		assertTrue(moved + " keys moved", moved > expected * 0.75
+				&& moved < expected * 1.25);
+	}
+
+	public void testRemoveMovesOnlyTheRemovedNodeKeys() {
+		ConsistentHashRing<String> ring = ring(NODES);
+		Map<String, String> before = owners(ring);
+		String removed = "10.0.0.2:6379";
+		assertEquals(removed, ring.remove(removed));
+		Map<String, String> after = owners(ring);
+		for (String key : before.keySet()) {
+			if (before.get(key).equals(removed))
+				assertFalse(removed.equals(after.get(key)));
+			else
+				assertEquals(before.get(key), after.get(key));
+		}
+		assertEquals(NODES - 1, ring.size());
+		assertNull(ring.getNode(removed));
+	}
+
+	public void testPlacementDependsOnlyOnNames() {
+		ConsistentHashRing<String> ring = ring(NODES);
+		ConsistentHashRing<String> reversed = new ConsistentHashRing<String>();
+		for (int i = NODES - 1; i >= 0; i--)
+			reversed.add("10.0.0." + i + ":6379", "10.0.0." + i + ":6379");
+		assertEquals(owners(ring), owners(reversed));
+	}
+}
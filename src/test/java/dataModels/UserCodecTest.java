@@ -0,0 +1,105 @@
+package dataModels;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+/**
+ * Round trips of the cached user encoding, and the hashes it must refuse.
+ *
+ */
+public class UserCodecTest extends TestCase {
+
+	private static Map<String, String> user() throws UnsupportedEncodingException {
+		byte[] salt = new byte[32];
+		for (int i = 0; i < salt.length; i++)
+			salt[i] = (byte) (i * 7 - 100);
+		Map<String, String> fields = new HashMap<String, String>();
+		fields.put("userName", "joão");
+		fields.put("email", "joao@example.com");
+		fields.put("salt", new String(salt, "ISO-8859-1"));
+		fields.put("hash", new String(new byte[] { 0, -1, 127, -128 },
+				"ISO-8859-1"));
+		fields.put("creationDate", new Date(1380000000000L).toString());
+		fields.put("lastActive", new Date().toString());
+		fields.put("alive", "true");
+		fields.put("emailConfirmed", "false");
+		fields.put("location", "38.7:-9.1");
+		fields.put("userFile", "file");
+		fields.put("customField", "kept by name");
+		return fields;
+	}
+
+	public void testRoundTrip() throws UnsupportedEncodingException {
+		Map<String, String> fields = user();
+		Map<String, String> decoded = UserCodec.decode("u1",
+				UserCodec.encode(fields, true));
+		Map<String, String> expected = new HashMap<String, String>(fields);
+		expected.put("userId", "u1");
+		assertEquals(expected, decoded);
+	}
+
+	public void testNullValuesAndUserIdAreLeftOut() {
+		Map<String, String> fields = new HashMap<String, String>();
+		fields.put("userId", "u1");
+		fields.put("email", null);
+		fields.put("userName", "name");
+		Map<byte[], byte[]> encoded = UserCodec.encode(fields, false);
+		assertEquals(1, encoded.size());
+	}
+
+	public void testValuesThatDontParseAreKeptVerbatim() {
+		String[] dates = { "yesterday", "", "Mon Jan 06 10:00:00 IST 2014",
+				"Sun Mar 09 02:30:00 CST 2014", "Tue Oct 01 12:00:00 XYZ 2013" };
+		for (String date : dates) {
+			Map<String, String> fields = new HashMap<String, String>();
+			fields.put("lastActive", date);
+			fields.put("alive", "maybe");
+			Map<String, String> decoded = UserCodec.decode("u1",
+					UserCodec.encode(fields, true));
+			assertEquals(date, decoded.get("lastActive"));
+			assertEquals("maybe", decoded.get("alive"));
+		}
+	}
+
+	public void testSingleFieldDecode() throws UnsupportedEncodingException {
+		Map<String, String> fields = user();
+		Map<byte[], byte[]> encoded = UserCodec.encode(fields, true);
+		for (String name : fields.keySet()) {
+			byte[] value = null;
+			byte[] field = UserCodec.field(name);
+			for (Map.Entry<byte[], byte[]> entry : encoded.entrySet())
+				if (Arrays.equals(entry.getKey(), field))
+					value = entry.getValue();
+			assertEquals(name, fields.get(name),
+					UserCodec.decodeValue(name, value));
+		}
+		assertNull(UserCodec.decodeValue("email", null));
+	}
+
+	public void testHashWithoutVersionIsMissing()
+			throws UnsupportedEncodingException {
+		// written before the encoding: plain field names, no version.
+		Map<byte[], byte[]> old = new HashMap<byte[], byte[]>();
+		old.put("email".getBytes("UTF-8"), "a@b.c".getBytes("UTF-8"));
+		old.put("alive".getBytes("UTF-8"), "true".getBytes("UTF-8"));
+		assertNull(UserCodec.decode("u1", old));
+		assertNull(UserCodec.decode("u1", new HashMap<byte[], byte[]>()));
+	}
+
+	public void testOlderVersionIsMissing() throws UnsupportedEncodingException {
+		Map<byte[], byte[]> encoded = UserCodec.encode(user(), true);
+		encoded.put(UserCodec.versionField(), new byte[] { 1 });
+		assertNull(UserCodec.decode("u1", encoded));
+		assertFalse(UserCodec.isCurrent(null));
+	}
+
+	public void testPartialWriteIsNotCurrent()
+			throws UnsupportedEncodingException {
+		assertNull(UserCodec.decode("u1", UserCodec.encode(user(), false)));
+	}
+}